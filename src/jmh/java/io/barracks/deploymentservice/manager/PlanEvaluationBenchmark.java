@@ -0,0 +1,155 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.manager;
+
+import io.barracks.deploymentservice.cache.ActiveDeploymentPlansCache;
+import io.barracks.deploymentservice.cache.ExistenceCache;
+import io.barracks.deploymentservice.cache.FilterDecisionsCache;
+import io.barracks.deploymentservice.cache.FilterDefinitionsCache;
+import io.barracks.deploymentservice.cache.ResolvedPackagesCache;
+import io.barracks.deploymentservice.client.ComponentServiceClient;
+import io.barracks.deploymentservice.client.FilterMatchBatcher;
+import io.barracks.deploymentservice.client.FilterServiceClient;
+import io.barracks.deploymentservice.filter.LocalFilterEvaluator;
+import io.barracks.deploymentservice.model.*;
+import io.barracks.deploymentservice.repository.DeploymentPlanRepository;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.core.task.SyncTaskExecutor;
+import org.springframework.web.client.AsyncRestTemplate;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class PlanEvaluationBenchmark {
+
+    @Param({"10", "100"})
+    private int packages;
+
+    private PlanEvaluationExecutor planEvaluationExecutor;
+    private DeploymentPlanManager deploymentPlanManager;
+    private DeviceRequest request;
+
+    @Setup
+    public void setUp() {
+        final String userId = UUID.randomUUID().toString();
+        final List<DeploymentPlan> plans = IntStream.range(0, packages)
+                .mapToObj(i -> buildPlan(userId, i))
+                .collect(Collectors.toList());
+        final DeploymentPlanRepository repository = (DeploymentPlanRepository) Proxy.newProxyInstance(
+                DeploymentPlanRepository.class.getClassLoader(),
+                new Class<?>[]{DeploymentPlanRepository.class},
+                (proxy, method, args) -> {
+                    if ("findByUserId".equals(method.getName())) {
+                        return plans;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                }
+        );
+        final FilterServiceClient filterServiceClient = new DecidedFilterServiceClient();
+        planEvaluationExecutor = new PlanEvaluationExecutor(32, 1000, 10000, false, 64, 16);
+        deploymentPlanManager = new DeploymentPlanManager(
+                repository,
+                new FilterMatchBatcher(filterServiceClient, false, 5, 100, 5000, 1, 100),
+                new ActiveDeploymentPlansCache(repository, 100000, 300),
+                new ResolvedPackagesCache(false, 100000, 60, 0),
+                new FilterDecisionsCache(false, 1000000, 300),
+                new LocalFilterEvaluator(new FilterDefinitionsCache(filterServiceClient, 1, 60, 3600), false),
+                planEvaluationExecutor,
+                new DeploymentPlanValidator(
+                        new ExistenceCache(filterServiceClient, new ComponentServiceClient("", false, 50, 5, 10000, new RestTemplateBuilder(), new AsyncRestTemplate()), false, 1, 1, 1),
+                        10000
+                ),
+                new SyncTaskExecutor()
+        );
+        request = DeviceRequest.builder()
+                .userId(userId)
+                .unitId(UUID.randomUUID().toString())
+                .build();
+    }
+
+    @TearDown
+    public void tearDown() {
+        planEvaluationExecutor.shutdown();
+    }
+
+    @Benchmark
+    public ResolvedPackages resolvePackagesForDeviceRequest() {
+        return deploymentPlanManager.resolvePackagesForDeviceRequest(request);
+    }
+
+    private static DeploymentPlan buildPlan(String userId, int index) {
+        return DeploymentPlan.builder()
+                .userId(userId)
+                .packageRef("package-" + index)
+                .deploymentConditions(DeploymentConditions.builder()
+                        .allowCondition(DeploymentCondition.builder().filter("allow-" + index % 4).build())
+                        .denyCondition(DeploymentCondition.builder().filter("deny").filter("blacklist").build())
+                        .build())
+                .deploymentRule(buildRule("beta-" + index % 4, "2.0." + index))
+                .deploymentRule(buildRule("stable", "1.0." + index))
+                .build();
+    }
+
+    private static DeploymentRule buildRule(String filter, String versionId) {
+        return DeploymentRule.builder()
+                .versionId(versionId)
+                .deploymentConditions(DeploymentConditions.builder()
+                        .allowCondition(DeploymentCondition.builder().filter(filter).build())
+                        .build())
+                .build();
+    }
+
+    private static class DecidedFilterServiceClient extends FilterServiceClient {
+
+        DecidedFilterServiceClient() {
+            super("", 0, false, 100, 5, 10000, false, 95, 5, 10, 1000, new RestTemplateBuilder(), new AsyncRestTemplate());
+        }
+
+        @Override
+        public Map<String, Boolean> matchFilterSets(DeviceRequest request, Map<String, List<String>> filterSets) {
+            return filterSets.entrySet().stream()
+                    .collect(Collectors.toMap(Map.Entry::getKey, entry -> isRequestMatchingFilters(request, entry.getValue())));
+        }
+
+        @Override
+        public boolean isRequestMatchingFilters(DeviceRequest request, List<String> filters) {
+            return !filters.get(0).startsWith("beta") && !filters.contains("deny");
+        }
+
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.cache;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import io.barracks.deploymentservice.model.CompiledDeploymentPlans;
+import io.barracks.deploymentservice.model.DeploymentPlan;
+import io.barracks.deploymentservice.repository.DeploymentPlanRepository;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+@Slf4j
+@Component
+public class ActiveDeploymentPlansCache implements PublicMetrics {
+
+    static final String METRIC_PREFIX = "cache.activeDeploymentPlans.";
+
+    private final LoadingCache<PlansKey, CompiledDeploymentPlans> cache;
+    private final ConcurrentMap<String, AtomicLong> generations = new ConcurrentHashMap<>();
+
+    public ActiveDeploymentPlansCache(
+            DeploymentPlanRepository deploymentPlanRepository,
+            @Value("${io.barracks.deploymentservice.cache.active_plans.max_plans:100000}") long maxPlans,
+            @Value("${io.barracks.deploymentservice.cache.active_plans.ttl_seconds:300}") long ttlSeconds
+    ) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxPlans)
+                .<PlansKey, CompiledDeploymentPlans>weigher((key, plans) -> plans.getDeploymentPlans().size() + 1)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build(new CacheLoader<PlansKey, CompiledDeploymentPlans>() {
+                    @Override
+                    public CompiledDeploymentPlans load(PlansKey key) {
+                        log.debug("Loading active deployment plans for user " + key.userId);
+                        return CompiledDeploymentPlans.compile(deploymentPlanRepository.findByUserId(key.userId));
+                    }
+                });
+    }
+
+    public List<DeploymentPlan> getActiveDeploymentPlans(String userId) {
+        return cache.getUnchecked(getKey(userId)).getDeploymentPlans();
+    }
+
+    public CompiledDeploymentPlans getCompiledDeploymentPlans(String userId) {
+        return cache.getUnchecked(getKey(userId));
+    }
+
+    public CompletableFuture<CompiledDeploymentPlans> getCompiledDeploymentPlansAsync(String userId, Executor executor) {
+        final PlansKey key = getKey(userId);
+        if (cache.asMap().containsKey(key)) {
+            return CompletableFuture.completedFuture(cache.getUnchecked(key));
+        }
+        return CompletableFuture.supplyAsync(() -> cache.getUnchecked(key), executor);
+    }
+
+    public void invalidate(String userId) {
+        final PlansKey previous = getKey(userId);
+        generations.computeIfAbsent(userId, id -> new AtomicLong()).incrementAndGet();
+        cache.invalidate(previous);
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        final CacheStats stats = cache.stats();
+        return Arrays.asList(
+                new Metric<>(METRIC_PREFIX + "size", cache.size()),
+                new Metric<>(METRIC_PREFIX + "hit", stats.hitCount()),
+                new Metric<>(METRIC_PREFIX + "miss", stats.missCount()),
+                new Metric<>(METRIC_PREFIX + "hit.ratio", stats.hitRate()),
+                new Metric<>(METRIC_PREFIX + "eviction", stats.evictionCount())
+        );
+    }
+
+    private PlansKey getKey(String userId) {
+        final long generation = Optional.ofNullable(generations.get(userId)).map(AtomicLong::get).orElse(0L);
+        return new PlansKey(userId, generation);
+    }
+
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    private static class PlansKey {
+        private final String userId;
+        private final long generation;
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.cache;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import io.barracks.deploymentservice.model.DeviceRequest;
+import io.barracks.deploymentservice.model.Package;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+public final class DeviceFingerprint {
+
+    private DeviceFingerprint() {
+    }
+
+    public static HashCode of(DeviceRequest request) {
+        final Hasher hasher = Hashing.murmur3_128().newHasher();
+        putValue(hasher, request.getCustomClientData());
+        hasher.putInt(request.getPackages().size());
+        for (Package pkg : request.getPackages()) {
+            putValue(hasher, pkg.getReference());
+            putValue(hasher, pkg.getVersion());
+        }
+        return hasher.hash();
+    }
+
+    private static void putValue(Hasher hasher, Object value) {
+        if (value == null) {
+            hasher.putByte((byte) 0);
+        } else if (value instanceof Map) {
+            final Map<String, Object> sorted = new TreeMap<>();
+            ((Map<?, ?>) value).forEach((key, entry) -> sorted.put(String.valueOf(key), entry));
+            hasher.putByte((byte) 1).putInt(sorted.size());
+            sorted.forEach((key, entry) -> {
+                putValue(hasher, key);
+                putValue(hasher, entry);
+            });
+        } else if (value instanceof Collection) {
+            hasher.putByte((byte) 2).putInt(((Collection<?>) value).size());
+            ((Collection<?>) value).forEach(entry -> putValue(hasher, entry));
+        } else if (value instanceof String) {
+            final String string = (String) value;
+            hasher.putByte((byte) 3).putInt(string.length()).putString(string, StandardCharsets.UTF_8);
+        } else {
+            final String string = value.toString();
+            hasher.putByte((byte) 4).putString(value.getClass().getName(), StandardCharsets.UTF_8)
+                    .putInt(string.length()).putString(string, StandardCharsets.UTF_8);
+        }
+    }
+
+}
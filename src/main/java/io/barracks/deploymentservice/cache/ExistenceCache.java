@@ -0,0 +1,189 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.barracks.deploymentservice.client.ComponentServiceClient;
+import io.barracks.deploymentservice.client.FilterServiceClient;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+@Slf4j
+@Component
+public class ExistenceCache implements PublicMetrics {
+
+    static final String METRIC_PREFIX = "cache.existence.";
+
+    private final FilterServiceClient filterServiceClient;
+    private final ComponentServiceClient componentServiceClient;
+    private final boolean enabled;
+    private final Cache<ExistenceKey, Boolean> existing;
+    private final Cache<ExistenceKey, Boolean> missing;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public ExistenceCache(
+            FilterServiceClient filterServiceClient,
+            ComponentServiceClient componentServiceClient,
+            @Value("${io.barracks.deploymentservice.cache.existence.enabled:true}") boolean enabled,
+            @Value("${io.barracks.deploymentservice.cache.existence.max_entries:100000}") long maxEntries,
+            @Value("${io.barracks.deploymentservice.cache.existence.positive_ttl_seconds:600}") long positiveTtlSeconds,
+            @Value("${io.barracks.deploymentservice.cache.existence.negative_ttl_seconds:30}") long negativeTtlSeconds
+    ) {
+        this.filterServiceClient = filterServiceClient;
+        this.componentServiceClient = componentServiceClient;
+        this.enabled = enabled;
+        this.existing = CacheBuilder.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfterWrite(positiveTtlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+        this.missing = CacheBuilder.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfterWrite(negativeTtlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+    }
+
+    public CompletableFuture<Boolean> filterExists(String userId, String filterName) {
+        return exists(
+                new ExistenceKey(Kind.FILTER, userId, null, filterName),
+                () -> filterServiceClient.filterExistsAsync(userId, filterName)
+        );
+    }
+
+    public CompletableFuture<Boolean> packageExists(String userId, String packageRef) {
+        return exists(
+                new ExistenceKey(Kind.PACKAGE, userId, packageRef, null),
+                () -> componentServiceClient.packageExistsAsync(userId, packageRef)
+        );
+    }
+
+    public CompletableFuture<Boolean> versionExists(String userId, String packageRef, String versionId) {
+        return exists(
+                new ExistenceKey(Kind.VERSION, userId, packageRef, versionId),
+                () -> componentServiceClient.versionExistsAsync(userId, packageRef, versionId)
+        );
+    }
+
+    public void invalidateFilter(String userId, String filterName) {
+        invalidate(new ExistenceKey(Kind.FILTER, userId, null, filterName));
+    }
+
+    public void invalidatePackage(String userId, String packageRef) {
+        invalidateIf(key -> key.kind != Kind.FILTER && key.userId.equals(userId) && key.packageRef.equals(packageRef));
+    }
+
+    public void invalidateVersion(String userId, String packageRef, String versionId) {
+        invalidate(new ExistenceKey(Kind.VERSION, userId, packageRef, versionId));
+    }
+
+    public void invalidate(String userId) {
+        invalidateIf(key -> key.userId.equals(userId));
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        final long hitCount = hits.sum();
+        final long missCount = misses.sum();
+        final long requestCount = hitCount + missCount;
+        return Arrays.asList(
+                new Metric<>(METRIC_PREFIX + "size", existing.size() + missing.size()),
+                new Metric<>(METRIC_PREFIX + "positive.size", existing.size()),
+                new Metric<>(METRIC_PREFIX + "negative.size", missing.size()),
+                new Metric<>(METRIC_PREFIX + "hit", hitCount),
+                new Metric<>(METRIC_PREFIX + "miss", missCount),
+                new Metric<>(METRIC_PREFIX + "hit.ratio", requestCount == 0 ? 1.0 : (double) hitCount / requestCount),
+                new Metric<>(METRIC_PREFIX + "eviction", existing.stats().evictionCount() + missing.stats().evictionCount())
+        );
+    }
+
+    private CompletableFuture<Boolean> exists(ExistenceKey key, Supplier<CompletableFuture<Boolean>> loader) {
+        if (!enabled) {
+            return loader.get();
+        }
+        if (existing.getIfPresent(key) != null) {
+            hits.increment();
+            return CompletableFuture.completedFuture(true);
+        }
+        if (missing.getIfPresent(key) != null) {
+            hits.increment();
+            return CompletableFuture.completedFuture(false);
+        }
+        misses.increment();
+        log.debug("Checking existence of " + key);
+        final CompletableFuture<Boolean> loading = loader.get();
+        final CompletableFuture<Boolean> result = loading.thenApply(exists -> {
+            (exists ? existing : missing).put(key, Boolean.TRUE);
+            return exists;
+        });
+        result.whenComplete((exists, error) -> {
+            if (result.isCancelled()) {
+                loading.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    private void invalidate(ExistenceKey key) {
+        existing.invalidate(key);
+        missing.invalidate(key);
+    }
+
+    private void invalidateIf(Predicate<ExistenceKey> predicate) {
+        existing.asMap().keySet().removeIf(predicate);
+        missing.asMap().keySet().removeIf(predicate);
+    }
+
+    private enum Kind {
+        FILTER, PACKAGE, VERSION
+    }
+
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    @ToString
+    private static class ExistenceKey {
+        private final Kind kind;
+        private final String userId;
+        private final String packageRef;
+        private final String name;
+    }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.cache;
+
+import com.google.common.base.Suppliers;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.hash.HashCode;
+import io.barracks.deploymentservice.model.DeviceRequest;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+@Component
+public class FilterDecisionsCache implements PublicMetrics {
+
+    static final String METRIC_PREFIX = "cache.filterDecisions.";
+
+    private final Cache<DecisionKey, Boolean> cache;
+    private final ConcurrentMap<String, AtomicLong> generations = new ConcurrentHashMap<>();
+    private final LongAdder resolutions = new LongAdder();
+    private final LongAdder savedCalls = new LongAdder();
+    private final boolean enabled;
+    private final long ttlMillis;
+    private final LongSupplier clock;
+
+    @Autowired
+    public FilterDecisionsCache(
+            @Value("${io.barracks.deploymentservice.cache.filter_decisions.enabled:true}") boolean enabled,
+            @Value("${io.barracks.deploymentservice.cache.filter_decisions.max_entries:1000000}") long maxEntries,
+            @Value("${io.barracks.deploymentservice.cache.filter_decisions.ttl_seconds:300}") long ttlSeconds
+    ) {
+        this(enabled, maxEntries, ttlSeconds, System::currentTimeMillis);
+    }
+
+    FilterDecisionsCache(boolean enabled, long maxEntries, long ttlSeconds, LongSupplier clock) {
+        this.enabled = enabled;
+        this.ttlMillis = Math.max(1, TimeUnit.SECONDS.toMillis(ttlSeconds));
+        this.clock = clock;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+    }
+
+    public DeviceDecisions forDevice(DeviceRequest request) {
+        if (!enabled) {
+            return DeviceDecisions.NONE;
+        }
+        return new DeviceDecisions(cache, Suppliers.memoize(() -> new DeviceKey(
+                request.getUserId(),
+                request.getUnitId(),
+                getGeneration(request.getUserId()),
+                DeviceFingerprint.of(request)
+        )));
+    }
+
+    public long getGeneration(String userId) {
+        return Optional.ofNullable(generations.get(userId)).map(AtomicLong::get).orElse(0L);
+    }
+
+    public long getDecisionWindow() {
+        return clock.getAsLong() / ttlMillis;
+    }
+
+    public void invalidate(String userId) {
+        generations.computeIfAbsent(userId, id -> new AtomicLong()).incrementAndGet();
+    }
+
+    public void recordSavedCalls(int saved) {
+        resolutions.increment();
+        savedCalls.add(saved);
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        final CacheStats stats = cache.stats();
+        final long resolutionCount = resolutions.sum();
+        return Arrays.asList(
+                new Metric<>(METRIC_PREFIX + "size", cache.size()),
+                new Metric<>(METRIC_PREFIX + "hit", stats.hitCount()),
+                new Metric<>(METRIC_PREFIX + "miss", stats.missCount()),
+                new Metric<>(METRIC_PREFIX + "hit.ratio", stats.hitRate()),
+                new Metric<>(METRIC_PREFIX + "eviction", stats.evictionCount()),
+                new Metric<>(METRIC_PREFIX + "saved_calls", savedCalls.sum()),
+                new Metric<>(METRIC_PREFIX + "saved_calls.per_resolve", resolutionCount == 0 ? 0.0 : (double) savedCalls.sum() / resolutionCount)
+        );
+    }
+
+    public static class DeviceDecisions {
+
+        public static final DeviceDecisions NONE = new DeviceDecisions(null, null);
+
+        private final Cache<DecisionKey, Boolean> cache;
+        private final Supplier<DeviceKey> device;
+
+        private DeviceDecisions(Cache<DecisionKey, Boolean> cache, Supplier<DeviceKey> device) {
+            this.cache = cache;
+            this.device = device;
+        }
+
+        public Optional<Boolean> get(ImmutableSortedSet<String> filterSet) {
+            if (cache == null) {
+                return Optional.empty();
+            }
+            return Optional.ofNullable(cache.getIfPresent(new DecisionKey(device.get(), filterSet)));
+        }
+
+        public void put(ImmutableSortedSet<String> filterSet, boolean decision) {
+            if (cache != null) {
+                cache.put(new DecisionKey(device.get(), filterSet), decision);
+            }
+        }
+
+    }
+
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    private static class DeviceKey {
+        private final String userId;
+        private final String unitId;
+        private final long generation;
+        private final HashCode fingerprint;
+    }
+
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    private static class DecisionKey {
+        private final DeviceKey device;
+        private final ImmutableSortedSet<String> filterSet;
+    }
+
+}
@@ -0,0 +1,162 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.cache;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import io.barracks.deploymentservice.client.FilterServiceClient;
+import io.barracks.deploymentservice.filter.FilterExpression;
+import io.barracks.deploymentservice.filter.FilterExpressionParser;
+import io.barracks.deploymentservice.model.Filter;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+@Slf4j
+@Component
+public class FilterDefinitionsCache implements PublicMetrics {
+
+    static final String METRIC_PREFIX = "cache.filterDefinitions.";
+
+    private static final int MAX_PENDING_REFRESHES = 10000;
+
+    private final LoadingCache<FilterKey, Optional<FilterExpression>> cache;
+    private final ExecutorService refreshExecutor;
+
+    public FilterDefinitionsCache(
+            FilterServiceClient filterServiceClient,
+            @Value("${io.barracks.deploymentservice.cache.filter_definitions.max_filters:100000}") long maxFilters,
+            @Value("${io.barracks.deploymentservice.cache.filter_definitions.refresh_seconds:60}") long refreshSeconds,
+            @Value("${io.barracks.deploymentservice.cache.filter_definitions.ttl_seconds:3600}") long ttlSeconds
+    ) {
+        this(
+                filterServiceClient,
+                maxFilters,
+                refreshSeconds,
+                ttlSeconds,
+                Ticker.systemTicker(),
+                new ThreadPoolExecutor(
+                        1,
+                        1,
+                        0,
+                        TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<>(MAX_PENDING_REFRESHES),
+                        new ThreadFactoryBuilder().setNameFormat("filter-definitions-refresh-%d").setDaemon(true).build(),
+                        new ThreadPoolExecutor.AbortPolicy()
+                )
+        );
+    }
+
+    FilterDefinitionsCache(
+            FilterServiceClient filterServiceClient,
+            long maxFilters,
+            long refreshSeconds,
+            long ttlSeconds,
+            Ticker ticker,
+            ExecutorService refreshExecutor
+    ) {
+        this.refreshExecutor = refreshExecutor;
+        this.cache = CacheBuilder.newBuilder()
+                .ticker(ticker)
+                .maximumSize(maxFilters)
+                .refreshAfterWrite(refreshSeconds, TimeUnit.SECONDS)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build(new CacheLoader<FilterKey, Optional<FilterExpression>>() {
+                    @Override
+                    public Optional<FilterExpression> load(FilterKey key) {
+                        log.debug("Loading definition of filter " + key.name + " for user " + key.userId);
+                        return filterServiceClient.getFilter(key.userId, key.name)
+                                .map(Filter::getQuery)
+                                .flatMap(FilterExpressionParser::parse);
+                    }
+
+                    @Override
+                    public ListenableFuture<Optional<FilterExpression>> reload(FilterKey key, Optional<FilterExpression> oldValue) {
+                        final ListenableFutureTask<Optional<FilterExpression>> task = ListenableFutureTask.create(() -> load(key));
+                        refreshExecutor.execute(task);
+                        return task;
+                    }
+                });
+    }
+
+    public Optional<FilterExpression> getFilterExpression(String userId, String filterName) {
+        try {
+            return cache.getUnchecked(new FilterKey(userId, filterName));
+        } catch (UncheckedExecutionException e) {
+            log.warn("Unable to load definition of filter " + filterName + " for user " + userId, e.getCause());
+            return Optional.empty();
+        }
+    }
+
+    public void invalidate(String userId, String filterName) {
+        cache.invalidate(new FilterKey(userId, filterName));
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        final CacheStats stats = cache.stats();
+        return Arrays.asList(
+                new Metric<>(METRIC_PREFIX + "size", cache.size()),
+                new Metric<>(METRIC_PREFIX + "hit", stats.hitCount()),
+                new Metric<>(METRIC_PREFIX + "miss", stats.missCount()),
+                new Metric<>(METRIC_PREFIX + "hit.ratio", stats.hitRate()),
+                new Metric<>(METRIC_PREFIX + "eviction", stats.evictionCount())
+        );
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        refreshExecutor.shutdownNow();
+    }
+
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    private static class FilterKey {
+        private final String userId;
+        private final String name;
+    }
+
+}
@@ -0,0 +1,158 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.cache;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import io.barracks.deploymentservice.model.DeviceRequest;
+import io.barracks.deploymentservice.model.ResolvedPackages;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+@Component
+public class ResolvedPackagesCache implements PublicMetrics {
+
+    static final String METRIC_PREFIX = "cache.resolvedPackages.";
+
+    private final Cache<ResolutionKey, ResolvedPackages> cache;
+    private final Cache<ResolutionKey, ResolvedPackages> lastKnownGood;
+    private final LongAdder staleServed = new LongAdder();
+    private final ConcurrentMap<String, AtomicLong> generations = new ConcurrentHashMap<>();
+    private final boolean enabled;
+
+    public ResolvedPackagesCache(
+            @Value("${io.barracks.deploymentservice.cache.resolved_packages.enabled:true}") boolean enabled,
+            @Value("${io.barracks.deploymentservice.cache.resolved_packages.max_entries:100000}") long maxEntries,
+            @Value("${io.barracks.deploymentservice.cache.resolved_packages.ttl_seconds:60}") long ttlSeconds,
+            @Value("${io.barracks.deploymentservice.cache.resolved_packages.stale_ttl_seconds:86400}") long staleTtlSeconds
+    ) {
+        this.enabled = enabled;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+        this.lastKnownGood = CacheBuilder.newBuilder()
+                .maximumSize(staleTtlSeconds > 0 ? maxEntries : 0)
+                .expireAfterWrite(Math.max(staleTtlSeconds, 1), TimeUnit.SECONDS)
+                .build();
+    }
+
+    public ResolvedPackages get(DeviceRequest request, Supplier<ResolvedPackages> resolver) {
+        if (!enabled) {
+            return resolver.get();
+        }
+        try {
+            return cache.get(getKey(request), resolver::get);
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new UncheckedExecutionException(e.getCause());
+        }
+    }
+
+    public CompletableFuture<ResolvedPackages> getAsync(DeviceRequest request, Supplier<CompletableFuture<ResolvedPackages>> resolver) {
+        if (!enabled) {
+            return resolver.get();
+        }
+        final ResolutionKey key = getKey(request);
+        final ResolvedPackages cached = cache.getIfPresent(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        return resolver.get().thenApply(resolved -> {
+            cache.put(key, resolved);
+            return resolved;
+        });
+    }
+
+    public ResolvedPackages remember(DeviceRequest request, ResolvedPackages resolved) {
+        if (!resolved.isStale()) {
+            lastKnownGood.put(getDeviceKey(request), resolved);
+        }
+        return resolved;
+    }
+
+    public Optional<ResolvedPackages> getLastKnownGood(DeviceRequest request) {
+        final Optional<ResolvedPackages> stale = Optional.ofNullable(lastKnownGood.getIfPresent(getDeviceKey(request)))
+                .map(ResolvedPackages::asStale);
+        stale.ifPresent(resolved -> staleServed.increment());
+        return stale;
+    }
+
+    public void invalidate(String userId) {
+        generations.computeIfAbsent(userId, id -> new AtomicLong()).incrementAndGet();
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        final CacheStats stats = cache.stats();
+        return Arrays.asList(
+                new Metric<>(METRIC_PREFIX + "size", cache.size()),
+                new Metric<>(METRIC_PREFIX + "hit", stats.hitCount()),
+                new Metric<>(METRIC_PREFIX + "miss", stats.missCount()),
+                new Metric<>(METRIC_PREFIX + "hit.ratio", stats.hitRate()),
+                new Metric<>(METRIC_PREFIX + "eviction", stats.evictionCount()),
+                new Metric<>(METRIC_PREFIX + "stale.size", lastKnownGood.size()),
+                new Metric<>(METRIC_PREFIX + "stale.served", staleServed.sum())
+        );
+    }
+
+    private ResolutionKey getKey(DeviceRequest request) {
+        final long generation = Optional.ofNullable(generations.get(request.getUserId())).map(AtomicLong::get).orElse(0L);
+        return new ResolutionKey(request.getUserId(), request.getUnitId(), generation, DeviceFingerprint.of(request));
+    }
+
+    private ResolutionKey getDeviceKey(DeviceRequest request) {
+        return new ResolutionKey(request.getUserId(), request.getUnitId(), 0, DeviceFingerprint.of(request));
+    }
+
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    private static class ResolutionKey {
+        private final String userId;
+        private final String unitId;
+        private final long generation;
+        private final HashCode fingerprint;
+    }
+
+}
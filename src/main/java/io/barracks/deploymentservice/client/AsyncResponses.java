@@ -0,0 +1,96 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.client;
+
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.RequestEntity;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.web.client.AsyncRestTemplate;
+import org.springframework.web.client.HttpStatusCodeException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+final class AsyncResponses {
+
+    private AsyncResponses() {
+    }
+
+    static CompletableFuture<Boolean> isFound(
+            AsyncRestTemplate asyncRestTemplate,
+            RequestEntity<?> request,
+            Function<HttpStatusCodeException, RuntimeException> errorMapper
+    ) {
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        final ListenableFuture<ResponseEntity<Void>> response = asyncRestTemplate.exchange(request.getUrl(), request.getMethod(), request, Void.class);
+        response.addCallback(
+                entity -> result.complete(HttpStatus.OK.equals(entity.getStatusCode())),
+                error -> {
+                    final Throwable cause = unwrap(error);
+                    if (!(cause instanceof HttpStatusCodeException)) {
+                        result.completeExceptionally(cause);
+                    } else if (HttpStatus.NOT_FOUND.equals(((HttpStatusCodeException) cause).getStatusCode())) {
+                        result.complete(false);
+                    } else {
+                        result.completeExceptionally(errorMapper.apply((HttpStatusCodeException) cause));
+                    }
+                }
+        );
+        cancelOnCancellation(result, response);
+        return result;
+    }
+
+    static <T> CompletableFuture<ResponseEntity<T>> exchange(
+            AsyncRestTemplate asyncRestTemplate,
+            RequestEntity<?> request,
+            ParameterizedTypeReference<T> responseType
+    ) {
+        final CompletableFuture<ResponseEntity<T>> result = new CompletableFuture<>();
+        final ListenableFuture<ResponseEntity<T>> response = asyncRestTemplate.exchange(request.getUrl(), request.getMethod(), request, responseType);
+        response.addCallback(
+                result::complete,
+                error -> result.completeExceptionally(unwrap(error))
+        );
+        cancelOnCancellation(result, response);
+        return result;
+    }
+
+    private static void cancelOnCancellation(CompletableFuture<?> result, Future<?> response) {
+        result.whenComplete((value, error) -> {
+            if (result.isCancelled()) {
+                response.cancel(true);
+            }
+        });
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return error instanceof ExecutionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+}
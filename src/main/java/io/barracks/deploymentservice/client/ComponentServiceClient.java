@@ -26,17 +26,27 @@ package io.barracks.deploymentservice.client;
 
 import io.barracks.commons.util.Endpoint;
 import io.barracks.deploymentservice.client.exception.ComponentServiceClientException;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
 import org.springframework.boot.web.client.RestTemplateBuilder;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Component;
+import org.springframework.web.client.AsyncRestTemplate;
 import org.springframework.web.client.HttpStatusCodeException;
 import org.springframework.web.client.RestTemplate;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 @Component
-public class ComponentServiceClient {
+public class ComponentServiceClient implements PublicMetrics {
 
     static final Endpoint GET_PACKAGE_ENDPOINT = Endpoint.from(
             HttpMethod.GET,
@@ -48,18 +58,64 @@ public class ComponentServiceClient {
             "/owners/{userId}/packages/{packageRef}/versions/{versionId}"
     );
 
+    static final String METRIC_PREFIX = "http.single_flight.component_service.";
+    static final String GUARD_METRIC_PREFIX = "http.guard.component_service.";
+
     private String baseUrl;
     private RestTemplate restTemplate;
+    private AsyncRestTemplate asyncRestTemplate;
+    private SingleFlight<PackageKey, Boolean> packageExistsFlights;
+    private SingleFlight<PackageKey, Boolean> versionExistsFlights;
+    private DownstreamGuard guard;
 
     public ComponentServiceClient(
             @Value("${io.barracks.componentservice.base_url}") String baseUrl,
-            RestTemplateBuilder restTemplateBuilder
+            @Value("${io.barracks.componentservice.single_flight.enabled:true}") boolean singleFlight,
+            @Value("${io.barracks.componentservice.guard.max_concurrent_calls:50}") int maxConcurrentCalls,
+            @Value("${io.barracks.componentservice.guard.failure_threshold:5}") int failureThreshold,
+            @Value("${io.barracks.componentservice.guard.open_millis:10000}") long openMillis,
+            RestTemplateBuilder restTemplateBuilder,
+            AsyncRestTemplate asyncRestTemplate
     ) {
         this.baseUrl = baseUrl;
         this.restTemplate = restTemplateBuilder.build();
+        this.asyncRestTemplate = asyncRestTemplate;
+        this.packageExistsFlights = new SingleFlight<>(METRIC_PREFIX + "package_exists.", singleFlight);
+        this.versionExistsFlights = new SingleFlight<>(METRIC_PREFIX + "version_exists.", singleFlight);
+        this.guard = new DownstreamGuard("component service", GUARD_METRIC_PREFIX, maxConcurrentCalls, failureThreshold, openMillis);
     }
 
     public boolean versionExists(String userId, String packageRef, String versionId) {
+        return versionExistsFlights.execute(
+                new PackageKey(userId, packageRef, versionId),
+                () -> guard.call(() -> requestVersionExists(userId, packageRef, versionId))
+        );
+    }
+
+    public CompletableFuture<Boolean> versionExistsAsync(String userId, String packageRef, String versionId) {
+        return versionExistsFlights.executeAsync(
+                new PackageKey(userId, packageRef, versionId),
+                () -> guard.callAsync(() -> requestVersionExistsAsync(userId, packageRef, versionId))
+        );
+    }
+
+    public boolean packageExists(String userId, String packageRef) {
+        return packageExistsFlights.execute(new PackageKey(userId, packageRef, null), () -> guard.call(() -> requestPackageExists(userId, packageRef)));
+    }
+
+    public CompletableFuture<Boolean> packageExistsAsync(String userId, String packageRef) {
+        return packageExistsFlights.executeAsync(new PackageKey(userId, packageRef, null), () -> guard.callAsync(() -> requestPackageExistsAsync(userId, packageRef)));
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        final List<Metric<?>> metrics = new ArrayList<>(packageExistsFlights.metrics());
+        metrics.addAll(versionExistsFlights.metrics());
+        metrics.addAll(guard.metrics());
+        return metrics;
+    }
+
+    private boolean requestVersionExists(String userId, String packageRef, String versionId) {
         try {
             final ResponseEntity<Void> response = restTemplate.exchange(
                     GET_VERSION_ENDPOINT.withBase(baseUrl).getRequestEntity(userId, packageRef, versionId),
@@ -74,7 +130,15 @@ public class ComponentServiceClient {
         }
     }
 
-    public boolean packageExists(String userId, String packageRef) {
+    private CompletableFuture<Boolean> requestVersionExistsAsync(String userId, String packageRef, String versionId) {
+        return AsyncResponses.isFound(
+                asyncRestTemplate,
+                GET_VERSION_ENDPOINT.withBase(baseUrl).getRequestEntity(userId, packageRef, versionId),
+                ComponentServiceClientException::new
+        );
+    }
+
+    private boolean requestPackageExists(String userId, String packageRef) {
         try {
             final ResponseEntity<Void> response = restTemplate.exchange(
                     GET_PACKAGE_ENDPOINT.withBase(baseUrl).getRequestEntity(userId, packageRef),
@@ -88,4 +152,21 @@ public class ComponentServiceClient {
             throw new ComponentServiceClientException(e);
         }
     }
+
+    private CompletableFuture<Boolean> requestPackageExistsAsync(String userId, String packageRef) {
+        return AsyncResponses.isFound(
+                asyncRestTemplate,
+                GET_PACKAGE_ENDPOINT.withBase(baseUrl).getRequestEntity(userId, packageRef),
+                ComponentServiceClientException::new
+        );
+    }
+
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    private static class PackageKey {
+        private final String userId;
+        private final String packageRef;
+        private final String versionId;
+    }
+
 }
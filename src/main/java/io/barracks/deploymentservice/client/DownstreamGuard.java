@@ -0,0 +1,227 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.client;
+
+import com.google.common.base.Throwables;
+import io.barracks.deploymentservice.client.exception.DownstreamUnavailableException;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.web.client.HttpStatusCodeException;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+final class DownstreamGuard {
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String service;
+    private final String metricPrefix;
+    private final int maxConcurrentCalls;
+    private final int failureThreshold;
+    private final long openNanos;
+    private final LongSupplier nanoClock;
+    private final Semaphore bulkhead;
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder circuitRejections = new LongAdder();
+    private final LongAdder bulkheadRejections = new LongAdder();
+    private final LongAdder openings = new LongAdder();
+    private final LongAdder latencyNanos = new LongAdder();
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openedAt = 0;
+
+    DownstreamGuard(String service, String metricPrefix, int maxConcurrentCalls, int failureThreshold, long openMillis) {
+        this(service, metricPrefix, maxConcurrentCalls, failureThreshold, openMillis, System::nanoTime);
+    }
+
+    DownstreamGuard(String service, String metricPrefix, int maxConcurrentCalls, int failureThreshold, long openMillis, LongSupplier nanoClock) {
+        this.service = service;
+        this.metricPrefix = metricPrefix;
+        this.maxConcurrentCalls = maxConcurrentCalls;
+        this.failureThreshold = failureThreshold;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+        this.nanoClock = nanoClock;
+        this.bulkhead = new Semaphore(maxConcurrentCalls);
+    }
+
+    <T> T call(Supplier<T> call) {
+        acquire();
+        final long start = nanoClock.getAsLong();
+        try {
+            final T result = call.get();
+            onCompletion(start, null);
+            return result;
+        } catch (RuntimeException e) {
+            onCompletion(start, e);
+            throw e;
+        } finally {
+            bulkhead.release();
+        }
+    }
+
+    <T> CompletableFuture<T> callAsync(Supplier<CompletableFuture<T>> call) {
+        final CompletableFuture<T> future;
+        final long start;
+        try {
+            acquire();
+            start = nanoClock.getAsLong();
+        } catch (DownstreamUnavailableException e) {
+            return failed(e);
+        }
+        try {
+            future = call.get();
+        } catch (RuntimeException e) {
+            bulkhead.release();
+            onCompletion(start, e);
+            return failed(e);
+        }
+        final CompletableFuture<T> guarded = new CompletableFuture<>();
+        future.whenComplete((result, error) -> {
+            bulkhead.release();
+            onCompletion(start, error);
+            if (error == null) {
+                guarded.complete(result);
+            } else {
+                guarded.completeExceptionally(error);
+            }
+        });
+        guarded.whenComplete((result, error) -> {
+            if (guarded.isCancelled()) {
+                future.cancel(true);
+            }
+        });
+        return guarded;
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    Collection<Metric<?>> metrics() {
+        final long callCount = calls.sum();
+        return Arrays.asList(
+                new Metric<>(metricPrefix + "state", getState().ordinal()),
+                new Metric<>(metricPrefix + "calls", callCount),
+                new Metric<>(metricPrefix + "failures", failures.sum()),
+                new Metric<>(metricPrefix + "opened", openings.sum()),
+                new Metric<>(metricPrefix + "rejected.circuit", circuitRejections.sum()),
+                new Metric<>(metricPrefix + "rejected.bulkhead", bulkheadRejections.sum()),
+                new Metric<>(metricPrefix + "in_flight", maxConcurrentCalls - bulkhead.availablePermits()),
+                new Metric<>(metricPrefix + "latency.mean_millis", callCount == 0 ? 0.0 : latencyNanos.sum() / 1e6 / callCount)
+        );
+    }
+
+    private void acquire() {
+        if (!bulkhead.tryAcquire()) {
+            bulkheadRejections.increment();
+            throw new DownstreamUnavailableException(service, "more than " + maxConcurrentCalls + " concurrent calls");
+        }
+        if (!allowCall()) {
+            bulkhead.release();
+            circuitRejections.increment();
+            throw new DownstreamUnavailableException(service, "circuit breaker is open");
+        }
+    }
+
+    private void onCompletion(long start, Throwable error) {
+        if (error != null && isCancellation(error)) {
+            recordCancellation();
+            return;
+        }
+        calls.increment();
+        latencyNanos.add(nanoClock.getAsLong() - start);
+        if (error == null || !isFailure(error)) {
+            recordSuccess();
+        } else {
+            failures.increment();
+            recordFailure();
+        }
+    }
+
+    private synchronized boolean allowCall() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (nanoClock.getAsLong() - openedAt < openNanos) {
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private synchronized void recordSuccess() {
+        if (state != State.OPEN) {
+            state = State.CLOSED;
+            consecutiveFailures = 0;
+        }
+    }
+
+    private synchronized void recordCancellation() {
+        if (state == State.HALF_OPEN) {
+            state = State.OPEN;
+        }
+    }
+
+    private synchronized void recordFailure() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            state = State.OPEN;
+            openedAt = nanoClock.getAsLong();
+            openings.increment();
+        }
+    }
+
+    private static boolean isCancellation(Throwable error) {
+        return Throwables.getCausalChain(error).stream().anyMatch(CancellationException.class::isInstance);
+    }
+
+    private static boolean isFailure(Throwable error) {
+        return Throwables.getCausalChain(error).stream()
+                .filter(HttpStatusCodeException.class::isInstance)
+                .noneMatch(cause -> ((HttpStatusCodeException) cause).getStatusCode().is4xxClientError());
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable error) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        result.completeExceptionally(error);
+        return result;
+    }
+
+}
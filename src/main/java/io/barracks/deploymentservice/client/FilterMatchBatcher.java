@@ -0,0 +1,250 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.client;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.common.util.concurrent.UncheckedTimeoutException;
+import io.barracks.deploymentservice.model.DeviceRequest;
+import io.barracks.deploymentservice.model.FilterSetsMatchRequest;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+@Slf4j
+@Component
+public class FilterMatchBatcher implements PublicMetrics {
+
+    static final String METRIC_PREFIX = "http.batch.filter_service.";
+
+    private static final String SINGLE_FILTER_SET = "0";
+    private static final long[] HISTOGRAM_BOUNDS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000};
+
+    private final FilterServiceClient filterServiceClient;
+    private final boolean enabled;
+    private final long maxWaitMillis;
+    private final int maxSize;
+    private final long timeoutMillis;
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final ThreadPoolExecutor sender;
+    private final ConcurrentMap<String, PendingBatch> batches = new ConcurrentHashMap<>();
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final Histogram queueDepths = new Histogram(HISTOGRAM_BOUNDS);
+    private final Histogram batchSizes = new Histogram(HISTOGRAM_BOUNDS);
+    private final LongAdder rejectedBatches = new LongAdder();
+
+    public FilterMatchBatcher(
+            FilterServiceClient filterServiceClient,
+            @Value("${io.barracks.deploymentservice.filter_batching.enabled:false}") boolean enabled,
+            @Value("${io.barracks.deploymentservice.filter_batching.max_wait_millis:5}") long maxWaitMillis,
+            @Value("${io.barracks.deploymentservice.filter_batching.max_size:100}") int maxSize,
+            @Value("${io.barracks.deploymentservice.filter_batching.timeout_millis:5000}") long timeoutMillis,
+            @Value("${io.barracks.deploymentservice.filter_batching.threads:4}") int threads,
+            @Value("${io.barracks.deploymentservice.filter_batching.max_pending_batches:1000}") int maxPendingBatches
+    ) {
+        this.filterServiceClient = filterServiceClient;
+        this.enabled = enabled;
+        this.maxWaitMillis = maxWaitMillis;
+        this.maxSize = maxSize;
+        this.timeoutMillis = timeoutMillis;
+        this.scheduler = new ScheduledThreadPoolExecutor(
+                1,
+                new ThreadFactoryBuilder().setNameFormat("filter-batching-timer-%d").setDaemon(true).build()
+        );
+        this.scheduler.setRemoveOnCancelPolicy(true);
+        this.sender = new ThreadPoolExecutor(
+                threads,
+                threads,
+                60,
+                TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(maxPendingBatches),
+                new ThreadFactoryBuilder().setNameFormat("filter-batching-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.AbortPolicy()
+        );
+        this.sender.allowCoreThreadTimeOut(true);
+    }
+
+    public boolean isRequestMatchingFilters(DeviceRequest request, List<String> filters) {
+        if (!enabled) {
+            return filterServiceClient.isRequestMatchingFilters(request, filters);
+        }
+        return Optional.ofNullable(matchFilterSets(request, Collections.singletonMap(SINGLE_FILTER_SET, filters)).get(SINGLE_FILTER_SET))
+                .orElseGet(() -> filterServiceClient.isRequestMatchingFilters(request, filters));
+    }
+
+    public Map<String, Boolean> matchFilterSets(DeviceRequest request, Map<String, List<String>> filterSets) {
+        if (!enabled || filterSets.isEmpty()) {
+            return filterServiceClient.matchFilterSets(request, filterSets);
+        }
+        final CompletableFuture<Map<String, Boolean>> result = enqueue(
+                FilterSetsMatchRequest.builder().device(request).filterSets(filterSets).build()
+        );
+        try {
+            return result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new UncheckedTimeoutException("Filter batch did not complete within " + timeoutMillis + "ms", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new UncheckedExecutionException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while waiting for a filter batch");
+        }
+    }
+
+    public CompletableFuture<Map<String, Boolean>> matchFilterSetsAsync(DeviceRequest request, Map<String, List<String>> filterSets) {
+        if (!enabled || filterSets.isEmpty()) {
+            return filterServiceClient.matchFilterSetsAsync(request, filterSets);
+        }
+        return enqueue(FilterSetsMatchRequest.builder().device(request).filterSets(filterSets).build());
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        final List<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>(METRIC_PREFIX + "queue.depth", queueDepth.get()));
+        queueDepths.addMetrics(METRIC_PREFIX + "queue.depth", metrics);
+        batchSizes.addMetrics(METRIC_PREFIX + "batch.size", metrics);
+        metrics.add(new Metric<>(METRIC_PREFIX + "batch.rejected", rejectedBatches.sum()));
+        return metrics;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+        sender.shutdownNow();
+    }
+
+    private CompletableFuture<Map<String, Boolean>> enqueue(FilterSetsMatchRequest request) {
+        final CompletableFuture<Map<String, Boolean>> result = new CompletableFuture<>();
+        final AtomicReference<PendingBatch> full = new AtomicReference<>();
+        batches.compute(request.getDevice().getUserId(), (userId, batch) -> {
+            final PendingBatch current = batch != null ? batch : schedule(new PendingBatch(userId));
+            current.requests.add(request);
+            current.results.add(result);
+            if (current.requests.size() >= maxSize) {
+                full.set(current);
+                return null;
+            }
+            return current;
+        });
+        queueDepths.record(queueDepth.incrementAndGet());
+        if (full.get() != null) {
+            flush(full.get());
+        }
+        return result;
+    }
+
+    private PendingBatch schedule(PendingBatch batch) {
+        batch.timer = scheduler.schedule(() -> {
+            if (batches.remove(batch.userId, batch)) {
+                flush(batch);
+            }
+        }, maxWaitMillis, TimeUnit.MILLISECONDS);
+        return batch;
+    }
+
+    private void flush(PendingBatch batch) {
+        batch.timer.cancel(false);
+        final int size = batch.requests.size();
+        queueDepth.addAndGet(-size);
+        batchSizes.record(size);
+        try {
+            sender.execute(() -> send(batch));
+        } catch (RejectedExecutionException e) {
+            rejectedBatches.increment();
+            log.warn("Too many pending filter batches, rejecting a batch of " + size + " devices of user " + batch.userId);
+            batch.results.forEach(result -> result.completeExceptionally(e));
+        }
+    }
+
+    private void send(PendingBatch batch) {
+        final int size = batch.requests.size();
+        final Map<String, FilterSetsMatchRequest> requests = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++) {
+            requests.put(String.valueOf(i), batch.requests.get(i));
+        }
+        try {
+            final Map<String, Map<String, Boolean>> results = filterServiceClient.matchDevicesFilterSets(batch.userId, requests);
+            for (int i = 0; i < size; i++) {
+                batch.results.get(i).complete(results.getOrDefault(String.valueOf(i), Collections.emptyMap()));
+            }
+        } catch (RuntimeException e) {
+            log.warn("Unable to match a batch of " + size + " devices of user " + batch.userId, e);
+            batch.results.forEach(result -> result.completeExceptionally(e));
+        }
+    }
+
+    private static final class PendingBatch {
+        private final String userId;
+        private final List<FilterSetsMatchRequest> requests = new ArrayList<>();
+        private final List<CompletableFuture<Map<String, Boolean>>> results = new ArrayList<>();
+        private ScheduledFuture<?> timer;
+
+        private PendingBatch(String userId) {
+            this.userId = userId;
+        }
+    }
+
+    private static final class Histogram {
+        private final long[] bounds;
+        private final AtomicLongArray counts;
+
+        private Histogram(long[] bounds) {
+            this.bounds = bounds;
+            this.counts = new AtomicLongArray(bounds.length + 1);
+        }
+
+        private void record(long value) {
+            int bucket = 0;
+            while (bucket < bounds.length && value > bounds[bucket]) {
+                bucket++;
+            }
+            counts.incrementAndGet(bucket);
+        }
+
+        private void addMetrics(String name, List<Metric<?>> metrics) {
+            long cumulated = 0;
+            for (int bucket = 0; bucket < bounds.length; bucket++) {
+                cumulated += counts.get(bucket);
+                metrics.add(new Metric<>(name + ".le." + bounds[bucket], cumulated));
+            }
+            metrics.add(new Metric<>(name + ".le.inf", cumulated + counts.get(bounds.length)));
+        }
+    }
+
+}
@@ -24,40 +24,136 @@
 
 package io.barracks.deploymentservice.client;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.barracks.commons.util.Endpoint;
+import io.barracks.deploymentservice.cache.DeviceFingerprint;
 import io.barracks.deploymentservice.client.exception.FilterServiceClientException;
 import io.barracks.deploymentservice.model.DeviceRequest;
+import io.barracks.deploymentservice.model.Filter;
+import io.barracks.deploymentservice.model.FilterSetsMatchRequest;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
 import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.core.ParameterizedTypeReference;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Component;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
+import org.springframework.web.client.AsyncRestTemplate;
 import org.springframework.web.client.HttpStatusCodeException;
 import org.springframework.web.client.RestTemplate;
 
-import java.util.List;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+@Slf4j
 @Component
-public class FilterServiceClient {
+public class FilterServiceClient implements PublicMetrics {
 
     static final Endpoint GET_FILTER_BY_NAME_ENDPOINT = Endpoint.from(HttpMethod.GET, "/owners/{userId}/filters/{name}");
     static final Endpoint MATCH_DEVICE_EVENT_ENDPOINT = Endpoint.from(HttpMethod.POST, "/owners/{userId}/devices/{unitId}/match");
+    static final Endpoint MATCH_DEVICE_FILTER_SETS_ENDPOINT = Endpoint.from(HttpMethod.POST, "/owners/{userId}/devices/{unitId}/match/batch");
+    static final Endpoint MATCH_DEVICES_FILTER_SETS_ENDPOINT = Endpoint.from(HttpMethod.POST, "/owners/{userId}/devices/match/batch");
+
+    static final String METRIC_PREFIX = "http.single_flight.filter_service.";
+    static final String GUARD_METRIC_PREFIX = "http.guard.filter_service.";
+    static final String HEDGE_METRIC_PREFIX = "http.hedge.filter_service.match.";
+    static final String BATCH_HEDGE_METRIC_PREFIX = "http.hedge.filter_service.match_filter_sets.";
+
+    private static final ParameterizedTypeReference<Map<String, Boolean>> FILTER_SETS_MATCH_RESULT = new ParameterizedTypeReference<Map<String, Boolean>>() {
+    };
+    private static final ParameterizedTypeReference<Map<String, Map<String, Boolean>>> DEVICES_FILTER_SETS_MATCH_RESULT = new ParameterizedTypeReference<Map<String, Map<String, Boolean>>>() {
+    };
+    private static final Set<HttpStatus> BATCH_MATCH_UNSUPPORTED_STATUSES = EnumSet.of(
+            HttpStatus.NOT_FOUND,
+            HttpStatus.METHOD_NOT_ALLOWED,
+            HttpStatus.NOT_IMPLEMENTED
+    );
+    private static final String SERVICE_ERROR_FIELD = "title";
+    private static final ObjectMapper ERROR_READER = new ObjectMapper();
 
     private String baseUrl;
     private RestTemplate restTemplate;
+    private AsyncRestTemplate asyncRestTemplate;
+    private long batchMatchRetryIntervalMillis;
+    private volatile long batchMatchUnsupportedUntil = 0;
+    private volatile long devicesBatchMatchUnsupportedUntil = 0;
+    private SingleFlight<FilterKey, Boolean> filterExistsFlights;
+    private SingleFlight<MatchKey, Boolean> matchFlights;
+    private DownstreamGuard guard;
+    private ScheduledThreadPoolExecutor hedgeScheduler;
+    private Hedger matchHedger;
+    private Hedger batchMatchHedger;
 
     public FilterServiceClient(
             @Value("${io.barracks.deviceservice.base_url}") String baseUrl,
-            RestTemplateBuilder restTemplateBuilder
+            @Value("${io.barracks.deviceservice.batch_match.retry_interval_seconds:300}") long batchMatchRetryIntervalSeconds,
+            @Value("${io.barracks.deviceservice.single_flight.enabled:true}") boolean singleFlight,
+            @Value("${io.barracks.deviceservice.guard.max_concurrent_calls:100}") int maxConcurrentCalls,
+            @Value("${io.barracks.deviceservice.guard.failure_threshold:5}") int failureThreshold,
+            @Value("${io.barracks.deviceservice.guard.open_millis:10000}") long openMillis,
+            @Value("${io.barracks.deviceservice.hedge.enabled:false}") boolean hedge,
+            @Value("${io.barracks.deviceservice.hedge.percentile:95}") double hedgePercentile,
+            @Value("${io.barracks.deviceservice.hedge.min_delay_millis:5}") long hedgeMinDelayMillis,
+            @Value("${io.barracks.deviceservice.hedge.budget_percent:10}") int hedgeBudgetPercent,
+            @Value("${io.barracks.deviceservice.hedge.window_size:1000}") int hedgeWindowSize,
+            RestTemplateBuilder restTemplateBuilder,
+            AsyncRestTemplate asyncRestTemplate
     ) {
         this.baseUrl = baseUrl;
+        this.batchMatchRetryIntervalMillis = TimeUnit.SECONDS.toMillis(batchMatchRetryIntervalSeconds);
         this.restTemplate = restTemplateBuilder.build();
+        this.asyncRestTemplate = asyncRestTemplate;
+        this.filterExistsFlights = new SingleFlight<>(METRIC_PREFIX + "filter_exists.", singleFlight);
+        this.matchFlights = new SingleFlight<>(METRIC_PREFIX + "match.", singleFlight);
+        this.guard = new DownstreamGuard("filter service", GUARD_METRIC_PREFIX, maxConcurrentCalls, failureThreshold, openMillis);
+        this.hedgeScheduler = new ScheduledThreadPoolExecutor(
+                1,
+                new ThreadFactoryBuilder().setNameFormat("filter-hedging-%d").setDaemon(true).build()
+        );
+        this.hedgeScheduler.setRemoveOnCancelPolicy(true);
+        this.matchHedger = new Hedger(
+                HEDGE_METRIC_PREFIX,
+                hedge,
+                hedgePercentile,
+                hedgeMinDelayMillis,
+                hedgeBudgetPercent,
+                hedgeWindowSize,
+                hedgeScheduler
+        );
+        this.batchMatchHedger = new Hedger(
+                BATCH_HEDGE_METRIC_PREFIX,
+                hedge,
+                hedgePercentile,
+                hedgeMinDelayMillis,
+                hedgeBudgetPercent,
+                hedgeWindowSize,
+                hedgeScheduler
+        );
     }
 
     public boolean filterExists(String userId, String filterName) {
+        return filterExistsFlights.execute(new FilterKey(userId, filterName), () -> guard.call(() -> requestFilterExists(userId, filterName)));
+    }
+
+    public CompletableFuture<Boolean> filterExistsAsync(String userId, String filterName) {
+        return filterExistsFlights.executeAsync(new FilterKey(userId, filterName), () -> guard.callAsync(() -> requestFilterExistsAsync(userId, filterName)));
+    }
+
+    private boolean requestFilterExists(String userId, String filterName) {
         try {
             final ResponseEntity<Void> response = restTemplate.exchange(
                     GET_FILTER_BY_NAME_ENDPOINT.withBase(baseUrl).getRequestEntity(userId, filterName),
@@ -72,7 +168,45 @@ public class FilterServiceClient {
         }
     }
 
+    private CompletableFuture<Boolean> requestFilterExistsAsync(String userId, String filterName) {
+        return AsyncResponses.isFound(
+                asyncRestTemplate,
+                GET_FILTER_BY_NAME_ENDPOINT.withBase(baseUrl).getRequestEntity(userId, filterName),
+                FilterServiceClientException::new
+        );
+    }
+
+    public Optional<Filter> getFilter(String userId, String filterName) {
+        return guard.call(() -> requestFilter(userId, filterName));
+    }
+
+    private Optional<Filter> requestFilter(String userId, String filterName) {
+        try {
+            final ResponseEntity<Filter> response = restTemplate.exchange(
+                    GET_FILTER_BY_NAME_ENDPOINT.withBase(baseUrl).getRequestEntity(userId, filterName),
+                    Filter.class
+            );
+            return Optional.ofNullable(response.getBody());
+        } catch (HttpStatusCodeException e) {
+            if (HttpStatus.NOT_FOUND.equals(e.getStatusCode())) {
+                return Optional.empty();
+            }
+            throw new FilterServiceClientException(e);
+        }
+    }
+
     public boolean isRequestMatchingFilters(DeviceRequest request, List<String> filters) {
+        if (matchHedger.isEnabled()) {
+            return matchFlights.execute(MatchKey.of(request, filters), () -> matchHedger.join(() -> guard.callAsync(() -> requestMatchingFiltersAsync(request, filters))));
+        }
+        return matchFlights.execute(MatchKey.of(request, filters), () -> guard.call(() -> requestMatchingFilters(request, filters)));
+    }
+
+    public CompletableFuture<Boolean> isRequestMatchingFiltersAsync(DeviceRequest request, List<String> filters) {
+        return matchFlights.executeAsync(MatchKey.of(request, filters), () -> matchHedger.execute(() -> guard.callAsync(() -> requestMatchingFiltersAsync(request, filters))));
+    }
+
+    private boolean requestMatchingFilters(DeviceRequest request, List<String> filters) {
         try {
             final MultiValueMap<String, String> queryParams = new LinkedMultiValueMap<>();
             queryParams.put("filter", filters);
@@ -89,4 +223,191 @@ public class FilterServiceClient {
         }
     }
 
+    private CompletableFuture<Boolean> requestMatchingFiltersAsync(DeviceRequest request, List<String> filters) {
+        final MultiValueMap<String, String> queryParams = new LinkedMultiValueMap<>();
+        queryParams.put("filter", filters);
+        return AsyncResponses.isFound(
+                asyncRestTemplate,
+                MATCH_DEVICE_EVENT_ENDPOINT.withBase(baseUrl).body(request).queryParams(queryParams).getRequestEntity(request.getUserId(), request.getUnitId()),
+                FilterServiceClientException::new
+        );
+    }
+
+    public Map<String, Boolean> matchFilterSets(DeviceRequest request, Map<String, List<String>> filterSets) {
+        final Map<String, Boolean> results = new HashMap<>();
+        if (!filterSets.isEmpty() && System.currentTimeMillis() >= batchMatchUnsupportedUntil) {
+            results.putAll(batchMatchHedger.isEnabled()
+                    ? batchMatchHedger.join(() -> guard.callAsync(() -> requestFilterSetsMatchAsync(request, filterSets)))
+                    : guard.call(() -> requestFilterSetsMatch(request, filterSets)));
+        }
+        filterSets.forEach((name, filters) -> {
+            if (!results.containsKey(name)) {
+                results.put(name, isRequestMatchingFilters(request, filters));
+            }
+        });
+        return results;
+    }
+
+    public CompletableFuture<Map<String, Boolean>> matchFilterSetsAsync(DeviceRequest request, Map<String, List<String>> filterSets) {
+        final CompletableFuture<Map<String, Boolean>> batch = !filterSets.isEmpty() && System.currentTimeMillis() >= batchMatchUnsupportedUntil
+                ? batchMatchHedger.execute(() -> guard.callAsync(() -> requestFilterSetsMatchAsync(request, filterSets)))
+                : CompletableFuture.completedFuture(Collections.emptyMap());
+        return batch.thenCompose(batchResults -> {
+            final Map<String, CompletableFuture<Boolean>> missing = new LinkedHashMap<>();
+            filterSets.forEach((name, filters) -> {
+                if (!batchResults.containsKey(name)) {
+                    missing.put(name, isRequestMatchingFiltersAsync(request, filters));
+                }
+            });
+            return CompletableFuture.allOf(missing.values().toArray(new CompletableFuture<?>[missing.size()]))
+                    .thenApply(done -> {
+                        final Map<String, Boolean> results = new HashMap<>(batchResults);
+                        missing.forEach((name, match) -> results.put(name, match.join()));
+                        return results;
+                    });
+        });
+    }
+
+    public Map<String, Map<String, Boolean>> matchDevicesFilterSets(String userId, Map<String, FilterSetsMatchRequest> requests) {
+        final Map<String, Map<String, Boolean>> results = new HashMap<>();
+        if (!requests.isEmpty() && System.currentTimeMillis() >= devicesBatchMatchUnsupportedUntil) {
+            results.putAll(guard.call(() -> requestDevicesFilterSetsMatch(userId, requests)));
+        }
+        requests.forEach((id, request) -> {
+            final Map<String, Boolean> deviceResults = new HashMap<>(results.getOrDefault(id, Collections.emptyMap()));
+            final Map<String, List<String>> missing = new LinkedHashMap<>(request.getFilterSets());
+            missing.keySet().removeAll(deviceResults.keySet());
+            if (!missing.isEmpty()) {
+                deviceResults.putAll(matchFilterSets(request.getDevice(), missing));
+            }
+            results.put(id, deviceResults);
+        });
+        return results;
+    }
+
+    private Map<String, Map<String, Boolean>> requestDevicesFilterSetsMatch(String userId, Map<String, FilterSetsMatchRequest> requests) {
+        try {
+            final ResponseEntity<Map<String, Map<String, Boolean>>> response = restTemplate.exchange(
+                    MATCH_DEVICES_FILTER_SETS_ENDPOINT.withBase(baseUrl).body(requests).getRequestEntity(userId),
+                    DEVICES_FILTER_SETS_MATCH_RESULT
+            );
+            return Optional.ofNullable(response.getBody()).orElse(Collections.emptyMap());
+        } catch (HttpStatusCodeException e) {
+            if (isBatchMatchUnsupported(e)) {
+                log.info("Filter service does not support multi-device batch matching (" + e.getStatusCode() + "), using one call per device");
+                devicesBatchMatchUnsupportedUntil = System.currentTimeMillis() + batchMatchRetryIntervalMillis;
+                return Collections.emptyMap();
+            }
+            if (HttpStatus.NOT_FOUND.equals(e.getStatusCode())) {
+                return Collections.emptyMap();
+            }
+            throw new FilterServiceClientException(e);
+        }
+    }
+
+    private Map<String, Boolean> requestFilterSetsMatch(DeviceRequest request, Map<String, List<String>> filterSets) {
+        try {
+            final ResponseEntity<Map<String, Boolean>> response = restTemplate.exchange(
+                    MATCH_DEVICE_FILTER_SETS_ENDPOINT.withBase(baseUrl)
+                            .body(FilterSetsMatchRequest.builder().device(request).filterSets(filterSets).build())
+                            .getRequestEntity(request.getUserId(), request.getUnitId()),
+                    FILTER_SETS_MATCH_RESULT
+            );
+            return Optional.ofNullable(response.getBody()).orElse(Collections.emptyMap());
+        } catch (HttpStatusCodeException e) {
+            if (isBatchMatchUnsupported(e)) {
+                log.info("Filter service does not support batch matching (" + e.getStatusCode() + "), using one call per filter set");
+                batchMatchUnsupportedUntil = System.currentTimeMillis() + batchMatchRetryIntervalMillis;
+                return Collections.emptyMap();
+            }
+            if (HttpStatus.NOT_FOUND.equals(e.getStatusCode())) {
+                return Collections.emptyMap();
+            }
+            throw new FilterServiceClientException(e);
+        }
+    }
+
+    private CompletableFuture<Map<String, Boolean>> requestFilterSetsMatchAsync(DeviceRequest request, Map<String, List<String>> filterSets) {
+        final CompletableFuture<Map<String, Boolean>> result = new CompletableFuture<>();
+        final CompletableFuture<ResponseEntity<Map<String, Boolean>>> response = AsyncResponses.exchange(
+                asyncRestTemplate,
+                MATCH_DEVICE_FILTER_SETS_ENDPOINT.withBase(baseUrl)
+                        .body(FilterSetsMatchRequest.builder().device(request).filterSets(filterSets).build())
+                        .getRequestEntity(request.getUserId(), request.getUnitId()),
+                FILTER_SETS_MATCH_RESULT
+        );
+        response.whenComplete((entity, error) -> {
+            if (error == null) {
+                result.complete(Optional.ofNullable(entity.getBody()).orElse(Collections.emptyMap()));
+            } else if (!(error instanceof HttpStatusCodeException)) {
+                result.completeExceptionally(error);
+            } else if (isBatchMatchUnsupported((HttpStatusCodeException) error)) {
+                log.info("Filter service does not support batch matching (" + ((HttpStatusCodeException) error).getStatusCode() + "), using one call per filter set");
+                batchMatchUnsupportedUntil = System.currentTimeMillis() + batchMatchRetryIntervalMillis;
+                result.complete(Collections.emptyMap());
+            } else if (HttpStatus.NOT_FOUND.equals(((HttpStatusCodeException) error).getStatusCode())) {
+                result.complete(Collections.emptyMap());
+            } else {
+                result.completeExceptionally(new FilterServiceClientException((HttpStatusCodeException) error));
+            }
+        });
+        result.whenComplete((matches, error) -> {
+            if (result.isCancelled()) {
+                response.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    private static boolean isBatchMatchUnsupported(HttpStatusCodeException e) {
+        if (!BATCH_MATCH_UNSUPPORTED_STATUSES.contains(e.getStatusCode())) {
+            return false;
+        }
+        return !HttpStatus.NOT_FOUND.equals(e.getStatusCode()) || !hasServiceErrorBody(e);
+    }
+
+    private static boolean hasServiceErrorBody(HttpStatusCodeException e) {
+        try {
+            final JsonNode body = ERROR_READER.readTree(e.getResponseBodyAsString());
+            return body != null && body.has(SERVICE_ERROR_FIELD);
+        } catch (IOException ignored) {
+            return false;
+        }
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        final List<Metric<?>> metrics = new ArrayList<>(filterExistsFlights.metrics());
+        metrics.addAll(matchFlights.metrics());
+        metrics.addAll(guard.metrics());
+        metrics.addAll(matchHedger.metrics());
+        metrics.addAll(batchMatchHedger.metrics());
+        return metrics;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        hedgeScheduler.shutdownNow();
+    }
+
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    private static class FilterKey {
+        private final String userId;
+        private final String filterName;
+    }
+
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    private static class MatchKey {
+        private final String userId;
+        private final String unitId;
+        private final HashCode fingerprint;
+        private final List<String> filters;
+
+        static MatchKey of(DeviceRequest request, List<String> filters) {
+            return new MatchKey(request.getUserId(), request.getUnitId(), DeviceFingerprint.of(request), new ArrayList<>(filters));
+        }
+    }
+
 }
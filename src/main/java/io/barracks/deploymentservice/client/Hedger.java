@@ -0,0 +1,207 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.client;
+
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+final class Hedger {
+
+    static final int MIN_SAMPLES = 20;
+    static final double MAX_BUDGET_TOKENS = 10;
+
+    private final String metricPrefix;
+    private final boolean enabled;
+    private final double percentile;
+    private final long minDelayNanos;
+    private final double budgetRatio;
+    private final ScheduledExecutorService scheduler;
+    private final long[] latencies;
+    private final int refreshInterval;
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+    private final LongAdder budgetExhausted = new LongAdder();
+
+    private int nextLatency = 0;
+    private int recordedLatencies = 0;
+    private int sinceRefresh = 0;
+    private double budgetTokens = 0;
+    private volatile long delayNanos = -1;
+
+    Hedger(
+            String metricPrefix,
+            boolean enabled,
+            double percentile,
+            long minDelayMillis,
+            int budgetPercent,
+            int windowSize,
+            ScheduledExecutorService scheduler
+    ) {
+        this.metricPrefix = metricPrefix;
+        this.enabled = enabled;
+        this.percentile = percentile;
+        this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(minDelayMillis);
+        this.budgetRatio = budgetPercent / 100.0;
+        this.scheduler = scheduler;
+        this.latencies = new long[Math.max(windowSize, 1)];
+        this.refreshInterval = Math.max(latencies.length / 10, 1);
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    <T> T join(Supplier<CompletableFuture<T>> attempt) {
+        try {
+            return execute(attempt).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    <T> CompletableFuture<T> execute(Supplier<CompletableFuture<T>> attempt) {
+        if (!enabled) {
+            return attempt.get();
+        }
+        calls.increment();
+        deposit();
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        final AtomicInteger pending = new AtomicInteger(1);
+        final AtomicBoolean settled = new AtomicBoolean();
+        final Queue<CompletableFuture<T>> attempts = new ConcurrentLinkedQueue<>();
+        final long delay = delayNanos;
+        result.whenComplete((value, error) -> attempts.forEach(running -> running.cancel(true)));
+        launch(attempt, result, pending, settled, attempts, false);
+        if (delay >= 0 && !result.isDone()) {
+            final ScheduledFuture<?> hedge = scheduler.schedule(() -> {
+                if (result.isDone()) {
+                    return;
+                }
+                if (!withdraw()) {
+                    budgetExhausted.increment();
+                    return;
+                }
+                hedges.increment();
+                pending.incrementAndGet();
+                launch(attempt, result, pending, settled, attempts, true);
+            }, delay, TimeUnit.NANOSECONDS);
+            result.whenComplete((value, error) -> hedge.cancel(false));
+        }
+        return result;
+    }
+
+    long getDelayNanos() {
+        return delayNanos;
+    }
+
+    synchronized void record(long latencyNanos) {
+        latencies[nextLatency] = latencyNanos;
+        nextLatency = (nextLatency + 1) % latencies.length;
+        recordedLatencies = Math.min(recordedLatencies + 1, latencies.length);
+        if (++sinceRefresh >= refreshInterval && recordedLatencies >= Math.min(MIN_SAMPLES, latencies.length)) {
+            sinceRefresh = 0;
+            final long[] sorted = Arrays.copyOf(latencies, recordedLatencies);
+            Arrays.sort(sorted);
+            final int index = Math.min(Math.max((int) Math.ceil(percentile / 100 * sorted.length) - 1, 0), sorted.length - 1);
+            delayNanos = Math.max(sorted[index], minDelayNanos);
+        }
+    }
+
+    Collection<Metric<?>> metrics() {
+        return Arrays.asList(
+                new Metric<>(metricPrefix + "calls", calls.sum()),
+                new Metric<>(metricPrefix + "hedged", hedges.sum()),
+                new Metric<>(metricPrefix + "hedge_won", hedgeWins.sum()),
+                new Metric<>(metricPrefix + "budget_exhausted", budgetExhausted.sum()),
+                new Metric<>(metricPrefix + "delay_millis", delayNanos < 0 ? -1.0 : delayNanos / 1e6)
+        );
+    }
+
+    private <T> void launch(
+            Supplier<CompletableFuture<T>> attempt,
+            CompletableFuture<T> result,
+            AtomicInteger pending,
+            AtomicBoolean settled,
+            Queue<CompletableFuture<T>> attempts,
+            boolean hedge
+    ) {
+        final long start = System.nanoTime();
+        CompletableFuture<T> future;
+        try {
+            future = attempt.get();
+        } catch (RuntimeException e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+        attempts.add(future);
+        if (result.isDone()) {
+            future.cancel(true);
+        }
+        final CompletableFuture<T> running = future;
+        running.whenComplete((value, error) -> {
+            if (!hedge && (error == null || running.isCancelled())) {
+                record(System.nanoTime() - start);
+            }
+            if (error == null) {
+                if (!result.isDone() && settled.compareAndSet(false, true)) {
+                    if (hedge) {
+                        hedgeWins.increment();
+                    }
+                    attempts.forEach(other -> other.cancel(true));
+                    result.complete(value);
+                }
+            } else if (pending.decrementAndGet() == 0) {
+                result.completeExceptionally(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+            }
+        });
+    }
+
+    private synchronized void deposit() {
+        budgetTokens = Math.min(budgetTokens + budgetRatio, MAX_BUDGET_TOKENS);
+    }
+
+    private synchronized boolean withdraw() {
+        if (budgetTokens < 1) {
+            return false;
+        }
+        budgetTokens -= 1;
+        return true;
+    }
+
+}
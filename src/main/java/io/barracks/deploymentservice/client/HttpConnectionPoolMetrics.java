@@ -0,0 +1,86 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.client;
+
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+@Component
+public class HttpConnectionPoolMetrics implements PublicMetrics {
+
+    static final String METRIC_PREFIX = "http.pool.";
+    static final String ASYNC_METRIC_PREFIX = "http.async_pool.";
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final PoolingNHttpClientConnectionManager asyncConnectionManager;
+
+    public HttpConnectionPoolMetrics(
+            PoolingHttpClientConnectionManager connectionManager,
+            PoolingNHttpClientConnectionManager asyncConnectionManager
+    ) {
+        this.connectionManager = connectionManager;
+        this.asyncConnectionManager = asyncConnectionManager;
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        final List<Metric<?>> metrics = new ArrayList<>();
+        addPoolStats(metrics, METRIC_PREFIX, connectionManager.getTotalStats(), connectionManager.getRoutes(), connectionManager::getStats);
+        addPoolStats(metrics, ASYNC_METRIC_PREFIX, asyncConnectionManager.getTotalStats(), asyncConnectionManager.getRoutes(), asyncConnectionManager::getStats);
+        return metrics;
+    }
+
+    private static void addPoolStats(
+            List<Metric<?>> metrics,
+            String prefix,
+            PoolStats totalStats,
+            Set<HttpRoute> routes,
+            Function<HttpRoute, PoolStats> routeStats
+    ) {
+        addStats(metrics, prefix, totalStats);
+        for (HttpRoute route : routes) {
+            addStats(metrics, prefix + "route." + route.getTargetHost().toHostString() + ".", routeStats.apply(route));
+        }
+    }
+
+    private static void addStats(List<Metric<?>> metrics, String prefix, PoolStats stats) {
+        metrics.add(new Metric<>(prefix + "leased", stats.getLeased()));
+        metrics.add(new Metric<>(prefix + "available", stats.getAvailable()));
+        metrics.add(new Metric<>(prefix + "pending", stats.getPending()));
+        metrics.add(new Metric<>(prefix + "max", stats.getMax()));
+    }
+
+}
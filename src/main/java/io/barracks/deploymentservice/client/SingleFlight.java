@@ -0,0 +1,136 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.client;
+
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+final class SingleFlight<K, V> {
+
+    private final String metricPrefix;
+    private final boolean enabled;
+    private final ConcurrentMap<K, Flight<V>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    SingleFlight(String metricPrefix, boolean enabled) {
+        this.metricPrefix = metricPrefix;
+        this.enabled = enabled;
+    }
+
+    V execute(K key, Supplier<V> call) {
+        if (!enabled) {
+            calls.increment();
+            return call.get();
+        }
+        final Flight<V> flight = new Flight<>();
+        final Flight<V> shared = inFlight.putIfAbsent(key, flight);
+        if (shared != null) {
+            coalesced.increment();
+            shared.waiters.incrementAndGet();
+            try {
+                return shared.result.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+        calls.increment();
+        try {
+            final V result = call.get();
+            flight.result.complete(result);
+            return result;
+        } catch (RuntimeException e) {
+            flight.result.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, flight);
+        }
+    }
+
+    CompletableFuture<V> executeAsync(K key, Supplier<CompletableFuture<V>> call) {
+        if (!enabled) {
+            calls.increment();
+            return call.get();
+        }
+        final Flight<V> flight = new Flight<>();
+        final Flight<V> shared = inFlight.putIfAbsent(key, flight);
+        if (shared != null) {
+            coalesced.increment();
+            shared.waiters.incrementAndGet();
+            return waitFor(key, shared);
+        }
+        calls.increment();
+        try {
+            flight.call = call.get();
+            flight.call.whenComplete((value, error) -> {
+                inFlight.remove(key, flight);
+                if (error == null) {
+                    flight.result.complete(value);
+                } else {
+                    flight.result.completeExceptionally(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.remove(key, flight);
+            flight.result.completeExceptionally(e);
+        }
+        return waitFor(key, flight);
+    }
+
+    Collection<Metric<?>> metrics() {
+        return Arrays.asList(
+                new Metric<>(metricPrefix + "calls", calls.sum()),
+                new Metric<>(metricPrefix + "coalesced", coalesced.sum()),
+                new Metric<>(metricPrefix + "in_flight", inFlight.size())
+        );
+    }
+
+    private CompletableFuture<V> waitFor(K key, Flight<V> flight) {
+        final CompletableFuture<V> waiter = flight.result.thenApply(value -> value);
+        waiter.whenComplete((value, error) -> {
+            if (waiter.isCancelled() && flight.waiters.decrementAndGet() == 0 && flight.call != null) {
+                inFlight.remove(key, flight);
+                flight.call.cancel(true);
+            }
+        });
+        return waiter;
+    }
+
+    private static final class Flight<V> {
+        private final CompletableFuture<V> result = new CompletableFuture<>();
+        private final AtomicInteger waiters = new AtomicInteger(1);
+        private volatile CompletableFuture<V> call;
+    }
+
+}
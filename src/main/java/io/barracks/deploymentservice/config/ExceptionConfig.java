@@ -24,13 +24,23 @@
 
 package io.barracks.deploymentservice.config;
 
+import com.google.common.util.concurrent.UncheckedTimeoutException;
 import cz.jirutka.spring.exhandler.RestHandlerExceptionResolverBuilder;
 import io.barracks.commons.configuration.ExceptionHandlingConfiguration;
+import io.barracks.deploymentservice.client.exception.DownstreamUnavailableException;
+import io.barracks.deploymentservice.exception.DeploymentPlanValidationUnavailableException;
+import io.barracks.deploymentservice.exception.DeviceRequestBatchTooLargeException;
+import io.barracks.deploymentservice.exception.InvalidDeploymentPlanException;
 import io.barracks.deploymentservice.exception.InvalidFiltersException;
+import io.barracks.deploymentservice.exception.InvalidPackageException;
 import io.barracks.deploymentservice.exception.InvalidVersionsException;
+import io.barracks.deploymentservice.exception.PackageResolutionUnavailableException;
 import io.barracks.deploymentservice.exception.UnknownDeploymentPlanException;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.http.HttpStatus;
+import org.springframework.web.context.request.async.AsyncRequestTimeoutException;
+
+import java.util.concurrent.RejectedExecutionException;
 
 @Configuration
 public class ExceptionConfig extends ExceptionHandlingConfiguration {
@@ -40,6 +50,15 @@ public class ExceptionConfig extends ExceptionHandlingConfiguration {
         return super.restExceptionResolver()
                 .addErrorMessageHandler(InvalidFiltersException.class, HttpStatus.BAD_REQUEST)
                 .addErrorMessageHandler(InvalidVersionsException.class, HttpStatus.BAD_REQUEST)
-                .addErrorMessageHandler(UnknownDeploymentPlanException.class, HttpStatus.NOT_FOUND);
+                .addErrorMessageHandler(InvalidPackageException.class, HttpStatus.BAD_REQUEST)
+                .addErrorMessageHandler(InvalidDeploymentPlanException.class, HttpStatus.BAD_REQUEST)
+                .addErrorMessageHandler(DeploymentPlanValidationUnavailableException.class, HttpStatus.SERVICE_UNAVAILABLE)
+                .addErrorMessageHandler(UnknownDeploymentPlanException.class, HttpStatus.NOT_FOUND)
+                .addErrorMessageHandler(PackageResolutionUnavailableException.class, HttpStatus.SERVICE_UNAVAILABLE)
+                .addErrorMessageHandler(DeviceRequestBatchTooLargeException.class, HttpStatus.PAYLOAD_TOO_LARGE)
+                .addErrorMessageHandler(UncheckedTimeoutException.class, HttpStatus.SERVICE_UNAVAILABLE)
+                .addErrorMessageHandler(AsyncRequestTimeoutException.class, HttpStatus.SERVICE_UNAVAILABLE)
+                .addErrorMessageHandler(RejectedExecutionException.class, HttpStatus.SERVICE_UNAVAILABLE)
+                .addErrorMessageHandler(DownstreamUnavailableException.class, HttpStatus.SERVICE_UNAVAILABLE);
     }
 }
\ No newline at end of file
@@ -0,0 +1,148 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.config;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.web.HttpMessageConverters;
+import org.springframework.boot.web.client.RestTemplateCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.HttpComponentsAsyncClientHttpRequestFactory;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.web.client.AsyncRestTemplate;
+
+import java.util.concurrent.TimeUnit;
+
+@Configuration
+public class HttpClientConfig {
+
+    @Bean
+    public PoolingHttpClientConnectionManager httpConnectionManager(
+            @Value("${io.barracks.deploymentservice.http.max_connections:200}") int maxConnections,
+            @Value("${io.barracks.deploymentservice.http.max_connections_per_route:50}") int maxConnectionsPerRoute,
+            @Value("${io.barracks.deploymentservice.http.validate_after_inactivity_millis:2000}") int validateAfterInactivityMillis
+    ) {
+        final PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        connectionManager.setValidateAfterInactivity(validateAfterInactivityMillis);
+        return connectionManager;
+    }
+
+    @Bean
+    public CloseableHttpClient httpClient(
+            PoolingHttpClientConnectionManager httpConnectionManager,
+            @Value("${io.barracks.deploymentservice.http.connect_timeout_millis:2000}") int connectTimeoutMillis,
+            @Value("${io.barracks.deploymentservice.http.read_timeout_millis:5000}") int readTimeoutMillis,
+            @Value("${io.barracks.deploymentservice.http.connection_request_timeout_millis:1000}") int connectionRequestTimeoutMillis,
+            @Value("${io.barracks.deploymentservice.http.keep_alive_seconds:30}") long keepAliveSeconds,
+            @Value("${io.barracks.deploymentservice.http.idle_eviction_seconds:30}") long idleEvictionSeconds
+    ) {
+        return HttpClients.custom()
+                .setConnectionManager(httpConnectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(connectTimeoutMillis)
+                        .setSocketTimeout(readTimeoutMillis)
+                        .setConnectionRequestTimeout(connectionRequestTimeoutMillis)
+                        .build())
+                .setKeepAliveStrategy(keepAliveStrategy(TimeUnit.SECONDS.toMillis(keepAliveSeconds)))
+                .evictExpiredConnections()
+                .evictIdleConnections(idleEvictionSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    @Bean
+    public RestTemplateCustomizer pooledRequestFactoryCustomizer(CloseableHttpClient httpClient) {
+        return restTemplate -> restTemplate.setRequestFactory(new HttpComponentsClientHttpRequestFactory(httpClient));
+    }
+
+    @Bean
+    public PoolingNHttpClientConnectionManager asyncHttpConnectionManager(
+            @Value("${io.barracks.deploymentservice.http.max_connections:200}") int maxConnections,
+            @Value("${io.barracks.deploymentservice.http.max_connections_per_route:50}") int maxConnectionsPerRoute,
+            @Value("${io.barracks.deploymentservice.http.io_threads:2}") int ioThreads,
+            @Value("${io.barracks.deploymentservice.http.connect_timeout_millis:2000}") int connectTimeoutMillis,
+            @Value("${io.barracks.deploymentservice.http.read_timeout_millis:5000}") int readTimeoutMillis
+    ) throws IOReactorException {
+        final PoolingNHttpClientConnectionManager connectionManager = new PoolingNHttpClientConnectionManager(
+                new DefaultConnectingIOReactor(IOReactorConfig.custom()
+                        .setIoThreadCount(ioThreads)
+                        .setConnectTimeout(connectTimeoutMillis)
+                        .setSoTimeout(readTimeoutMillis)
+                        .build())
+        );
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        return connectionManager;
+    }
+
+    @Bean
+    public CloseableHttpAsyncClient asyncHttpClient(
+            PoolingNHttpClientConnectionManager asyncHttpConnectionManager,
+            @Value("${io.barracks.deploymentservice.http.connect_timeout_millis:2000}") int connectTimeoutMillis,
+            @Value("${io.barracks.deploymentservice.http.read_timeout_millis:5000}") int readTimeoutMillis,
+            @Value("${io.barracks.deploymentservice.http.connection_request_timeout_millis:1000}") int connectionRequestTimeoutMillis,
+            @Value("${io.barracks.deploymentservice.http.keep_alive_seconds:30}") long keepAliveSeconds
+    ) {
+        final CloseableHttpAsyncClient client = HttpAsyncClients.custom()
+                .setConnectionManager(asyncHttpConnectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(connectTimeoutMillis)
+                        .setSocketTimeout(readTimeoutMillis)
+                        .setConnectionRequestTimeout(connectionRequestTimeoutMillis)
+                        .build())
+                .setKeepAliveStrategy(keepAliveStrategy(TimeUnit.SECONDS.toMillis(keepAliveSeconds)))
+                .build();
+        client.start();
+        return client;
+    }
+
+    @Bean
+    public AsyncRestTemplate asyncRestTemplate(CloseableHttpAsyncClient asyncHttpClient, HttpMessageConverters messageConverters) {
+        final AsyncRestTemplate asyncRestTemplate = new AsyncRestTemplate(new HttpComponentsAsyncClientHttpRequestFactory(asyncHttpClient));
+        asyncRestTemplate.setMessageConverters(messageConverters.getConverters());
+        return asyncRestTemplate;
+    }
+
+    static ConnectionKeepAliveStrategy keepAliveStrategy(long defaultKeepAliveMillis) {
+        return (response, context) -> {
+            final long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return keepAlive > 0 ? keepAlive : defaultKeepAliveMillis;
+        };
+    }
+
+}
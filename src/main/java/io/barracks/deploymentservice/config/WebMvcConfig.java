@@ -24,14 +24,66 @@
 
 package io.barracks.deploymentservice.config;
 
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
 import org.springframework.web.servlet.config.annotation.PathMatchConfigurer;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
 
+import java.util.concurrent.ThreadPoolExecutor;
+
 @Configuration
 public class WebMvcConfig extends WebMvcConfigurerAdapter {
+
+    private final int asyncThreads;
+    private final int asyncQueueSize;
+    private final int streamingThreads;
+    private final int streamingQueueSize;
+
+    public WebMvcConfig(
+            @Value("${io.barracks.deploymentservice.async.threads:16}") int asyncThreads,
+            @Value("${io.barracks.deploymentservice.async.queue_size:1000}") int asyncQueueSize,
+            @Value("${io.barracks.deploymentservice.streaming.threads:4}") int streamingThreads,
+            @Value("${io.barracks.deploymentservice.streaming.queue_size:16}") int streamingQueueSize
+    ) {
+        this.asyncThreads = asyncThreads;
+        this.asyncQueueSize = asyncQueueSize;
+        this.streamingThreads = streamingThreads;
+        this.streamingQueueSize = streamingQueueSize;
+    }
+
     @Override
     public void configurePathMatch(PathMatchConfigurer configurer) {
         configurer.setUseSuffixPatternMatch(false);
     }
+
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        configurer.setTaskExecutor(asyncRequestExecutor());
+    }
+
+    @Bean
+    @Primary
+    public ThreadPoolTaskExecutor asyncRequestExecutor() {
+        return boundedExecutor(asyncThreads, asyncQueueSize, "async-request-");
+    }
+
+    @Bean
+    public ThreadPoolTaskExecutor streamingRequestExecutor() {
+        return boundedExecutor(streamingThreads, streamingQueueSize, "streaming-request-");
+    }
+
+    private static ThreadPoolTaskExecutor boundedExecutor(int threads, int queueSize, String threadNamePrefix) {
+        final ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(threads);
+        executor.setMaxPoolSize(threads);
+        executor.setQueueCapacity(queueSize);
+        executor.setAllowCoreThreadTimeOut(true);
+        executor.setThreadNamePrefix(threadNamePrefix);
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.AbortPolicy());
+        return executor;
+    }
 }
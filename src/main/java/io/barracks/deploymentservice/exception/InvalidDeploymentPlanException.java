@@ -0,0 +1,56 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.exception;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class InvalidDeploymentPlanException extends RuntimeException {
+
+    public InvalidDeploymentPlanException(
+            String userId,
+            String packageRef,
+            List<String> invalidFilters,
+            List<String> invalidVersions,
+            boolean invalidPackage
+    ) {
+        super("Invalid deployment plan for package '" + packageRef + "' for user '" + userId + "': "
+                + String.join(", ", describe(invalidFilters, invalidVersions, invalidPackage)));
+    }
+
+    private static List<String> describe(List<String> invalidFilters, List<String> invalidVersions, boolean invalidPackage) {
+        final List<String> problems = new ArrayList<>();
+        if (invalidPackage) {
+            problems.add("invalid package");
+        }
+        if (!invalidFilters.isEmpty()) {
+            problems.add("invalid filters '" + invalidFilters + "'");
+        }
+        if (!invalidVersions.isEmpty()) {
+            problems.add("invalid versions '" + invalidVersions + "'");
+        }
+        return problems;
+    }
+}
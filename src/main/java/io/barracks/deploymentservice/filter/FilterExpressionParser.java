@@ -0,0 +1,238 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.filter;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import io.barracks.deploymentservice.model.DeviceRequest;
+import io.barracks.deploymentservice.model.Package;
+
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.Collectors;
+
+public final class FilterExpressionParser {
+
+    static final String CUSTOM_CLIENT_DATA_PREFIX = "customClientData.";
+    static final String PACKAGES_PREFIX = "packages.";
+
+    private FilterExpressionParser() {
+    }
+
+    public static Optional<FilterExpression> parse(JsonNode query) {
+        if (query == null || !query.isObject() || query.size() != 1) {
+            return Optional.empty();
+        }
+        final Map.Entry<String, JsonNode> operation = query.fields().next();
+        switch (operation.getKey()) {
+            case "and":
+                return parseAll(operation.getValue()).map(FilterExpressionParser::and);
+            case "or":
+                return parseAll(operation.getValue()).map(FilterExpressionParser::or);
+            case "not":
+                return parse(operation.getValue()).map(expression -> request -> expression.evaluate(request).map(result -> !result));
+            default:
+                return parseComparison(operation.getKey(), operation.getValue());
+        }
+    }
+
+    private static Optional<List<FilterExpression>> parseAll(JsonNode queries) {
+        if (!queries.isArray() || queries.size() == 0) {
+            return Optional.empty();
+        }
+        final List<FilterExpression> expressions = new ArrayList<>(queries.size());
+        for (JsonNode query : queries) {
+            final Optional<FilterExpression> expression = parse(query);
+            if (!expression.isPresent()) {
+                return Optional.empty();
+            }
+            expressions.add(expression.get());
+        }
+        return Optional.of(expressions);
+    }
+
+    private static FilterExpression and(List<FilterExpression> expressions) {
+        return request -> combine(expressions, request, false);
+    }
+
+    private static FilterExpression or(List<FilterExpression> expressions) {
+        return request -> combine(expressions, request, true);
+    }
+
+    private static Optional<Boolean> combine(List<FilterExpression> expressions, DeviceRequest request, boolean decisive) {
+        boolean undecided = false;
+        for (FilterExpression expression : expressions) {
+            final Optional<Boolean> result = expression.evaluate(request);
+            if (!result.isPresent()) {
+                undecided = true;
+            } else if (result.get() == decisive) {
+                return result;
+            }
+        }
+        return undecided ? Optional.empty() : Optional.of(!decisive);
+    }
+
+    private static Optional<FilterExpression> parseComparison(String operator, JsonNode operand) {
+        if (!operand.isObject() || operand.size() != 1) {
+            return Optional.empty();
+        }
+        final Map.Entry<String, JsonNode> field = operand.fields().next();
+        final Optional<Function<DeviceRequest, Object>> accessor = parseField(field.getKey());
+        final Optional<Function<Object, Optional<Boolean>>> condition = parseCondition(operator, field.getValue());
+        if (!accessor.isPresent() || !condition.isPresent()) {
+            return Optional.empty();
+        }
+        return Optional.of(request -> condition.get().apply(accessor.get().apply(request)));
+    }
+
+    private static Optional<Function<DeviceRequest, Object>> parseField(String field) {
+        if ("unitId".equals(field)) {
+            return Optional.of(DeviceRequest::getUnitId);
+        } else if ("userId".equals(field)) {
+            return Optional.of(DeviceRequest::getUserId);
+        } else if (field.startsWith(CUSTOM_CLIENT_DATA_PREFIX) && field.length() > CUSTOM_CLIENT_DATA_PREFIX.length()) {
+            final String[] path = field.substring(CUSTOM_CLIENT_DATA_PREFIX.length()).split("\\.");
+            return Optional.of(request -> {
+                Object value = request.getCustomClientData();
+                for (String key : path) {
+                    value = value instanceof Map ? ((Map<?, ?>) value).get(key) : null;
+                }
+                return value;
+            });
+        } else if (field.startsWith(PACKAGES_PREFIX) && field.length() > PACKAGES_PREFIX.length()) {
+            final String reference = field.substring(PACKAGES_PREFIX.length());
+            return Optional.of(request -> request.getPackages().stream()
+                    .filter(pkg -> reference.equals(pkg.getReference()))
+                    .map(Package::getVersion)
+                    .findFirst()
+                    .orElse(null)
+            );
+        }
+        return Optional.empty();
+    }
+
+    private static Optional<Function<Object, Optional<Boolean>>> parseCondition(String operator, JsonNode value) {
+        switch (operator) {
+            case "eq":
+                return scalar(value).map(expected -> actual -> comparison(actual, expected, c -> c == 0));
+            case "ne":
+                return scalar(value).map(expected -> actual -> actual == null ? Optional.of(true) : compare(actual, expected).map(c -> c != 0));
+            case "gt":
+                return scalar(value).map(expected -> actual -> comparison(actual, expected, c -> c > 0));
+            case "gte":
+                return scalar(value).map(expected -> actual -> comparison(actual, expected, c -> c >= 0));
+            case "lt":
+                return scalar(value).map(expected -> actual -> comparison(actual, expected, c -> c < 0));
+            case "lte":
+                return scalar(value).map(expected -> actual -> comparison(actual, expected, c -> c <= 0));
+            case "in":
+                return scalars(value).map(expected -> actual -> actual == null ? Optional.of(false) : in(actual, expected));
+            case "nin":
+                return scalars(value).map(expected -> actual -> actual == null ? Optional.of(true) : in(actual, expected).map(result -> !result));
+            case "exists":
+                return value.isBoolean()
+                        ? Optional.of(actual -> Optional.of((actual != null) == value.booleanValue()))
+                        : Optional.empty();
+            case "regex":
+                return pattern(value).map(pattern -> actual -> {
+                    if (actual == null) {
+                        return Optional.of(false);
+                    }
+                    return actual instanceof String ? Optional.of(pattern.matcher((String) actual).find()) : Optional.empty();
+                });
+            default:
+                return Optional.empty();
+        }
+    }
+
+    private static Optional<Boolean> comparison(Object actual, Object expected, IntPredicate test) {
+        return actual == null ? Optional.of(false) : compare(actual, expected).map(test::test);
+    }
+
+    private static Optional<Boolean> in(Object actual, List<Object> expected) {
+        boolean undecided = false;
+        for (Object candidate : expected) {
+            final Optional<Integer> comparison = compare(actual, candidate);
+            if (!comparison.isPresent()) {
+                undecided = true;
+            } else if (comparison.get() == 0) {
+                return Optional.of(true);
+            }
+        }
+        return undecided ? Optional.empty() : Optional.of(false);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Optional<Integer> compare(Object actual, Object expected) {
+        try {
+            if (actual instanceof Number && expected instanceof BigDecimal) {
+                return Optional.of(new BigDecimal(actual.toString()).compareTo((BigDecimal) expected));
+            } else if (actual instanceof String && expected instanceof String
+                    || actual instanceof Boolean && expected instanceof Boolean) {
+                return Optional.of(((Comparable<Object>) actual).compareTo(expected));
+            }
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+        return Optional.empty();
+    }
+
+    private static Optional<Object> scalar(JsonNode value) {
+        if (value.isTextual()) {
+            return Optional.of(value.textValue());
+        } else if (value.isNumber()) {
+            return Optional.of(value.decimalValue());
+        } else if (value.isBoolean()) {
+            return Optional.of(value.booleanValue());
+        }
+        return Optional.empty();
+    }
+
+    private static Optional<List<Object>> scalars(JsonNode values) {
+        if (!values.isArray()) {
+            return Optional.empty();
+        }
+        final List<Optional<Object>> parsed = new ArrayList<>(values.size());
+        values.forEach(value -> parsed.add(scalar(value)));
+        return parsed.stream().allMatch(Optional::isPresent)
+                ? Optional.of(parsed.stream().map(Optional::get).collect(Collectors.toList()))
+                : Optional.empty();
+    }
+
+    private static Optional<Pattern> pattern(JsonNode value) {
+        if (!value.isTextual()) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(Pattern.compile(value.textValue()));
+        } catch (PatternSyntaxException e) {
+            return Optional.empty();
+        }
+    }
+
+}
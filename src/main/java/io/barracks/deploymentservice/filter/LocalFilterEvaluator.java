@@ -0,0 +1,65 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.filter;
+
+import io.barracks.deploymentservice.cache.FilterDefinitionsCache;
+import io.barracks.deploymentservice.model.DeviceRequest;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+import java.util.Optional;
+
+@Component
+public class LocalFilterEvaluator {
+
+    private final FilterDefinitionsCache filterDefinitionsCache;
+    private final boolean enabled;
+
+    public LocalFilterEvaluator(
+            FilterDefinitionsCache filterDefinitionsCache,
+            @Value("${io.barracks.deploymentservice.filters.local_evaluation.enabled:true}") boolean enabled
+    ) {
+        this.filterDefinitionsCache = filterDefinitionsCache;
+        this.enabled = enabled;
+    }
+
+    public Optional<Boolean> evaluate(DeviceRequest request, Collection<String> filterNames) {
+        if (!enabled || filterNames.isEmpty()) {
+            return Optional.empty();
+        }
+        Boolean decision = null;
+        for (String filterName : filterNames) {
+            final Optional<Boolean> result = filterDefinitionsCache.getFilterExpression(request.getUserId(), filterName)
+                    .flatMap(expression -> expression.evaluate(request));
+            if (!result.isPresent() || (decision != null && !decision.equals(result.get()))) {
+                return Optional.empty();
+            }
+            decision = result.get();
+        }
+        return Optional.of(decision);
+    }
+
+}
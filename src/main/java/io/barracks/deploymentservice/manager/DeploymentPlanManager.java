@@ -24,23 +24,33 @@
 
 package io.barracks.deploymentservice.manager;
 
-import io.barracks.deploymentservice.client.ComponentServiceClient;
-import io.barracks.deploymentservice.client.FilterServiceClient;
-import io.barracks.deploymentservice.exception.InvalidFiltersException;
-import io.barracks.deploymentservice.exception.InvalidPackageException;
-import io.barracks.deploymentservice.exception.InvalidVersionsException;
+import com.google.common.base.Throwables;
+import com.google.common.hash.Hashing;
+import io.barracks.deploymentservice.cache.ActiveDeploymentPlansCache;
+import io.barracks.deploymentservice.cache.DeviceFingerprint;
+import io.barracks.deploymentservice.cache.FilterDecisionsCache;
+import io.barracks.deploymentservice.cache.ResolvedPackagesCache;
+import io.barracks.deploymentservice.client.FilterMatchBatcher;
+import io.barracks.deploymentservice.client.exception.DownstreamUnavailableException;
+import io.barracks.deploymentservice.exception.PackageResolutionUnavailableException;
 import io.barracks.deploymentservice.exception.UnknownDeploymentPlanException;
+import io.barracks.deploymentservice.filter.LocalFilterEvaluator;
 import io.barracks.deploymentservice.model.*;
 import io.barracks.deploymentservice.model.Package;
 import io.barracks.deploymentservice.repository.DeploymentPlanRepository;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.task.TaskExecutor;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Service;
 
-import java.util.Collections;
-import java.util.List;
-import java.util.Optional;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 @Slf4j
@@ -48,66 +58,77 @@ import java.util.stream.Collectors;
 public class DeploymentPlanManager {
 
     private final DeploymentPlanRepository deploymentPlanRepository;
-    private final FilterServiceClient filterServiceClient;
-    private final ComponentServiceClient componentServiceClient;
+    private final FilterMatchBatcher filterMatchBatcher;
+    private final ActiveDeploymentPlansCache activeDeploymentPlansCache;
+    private final ResolvedPackagesCache resolvedPackagesCache;
+    private final FilterDecisionsCache filterDecisionsCache;
+    private final LocalFilterEvaluator localFilterEvaluator;
+    private final PlanEvaluationExecutor planEvaluationExecutor;
+    private final DeploymentPlanValidator deploymentPlanValidator;
+    private final TaskExecutor asyncRequestExecutor;
 
     public DeploymentPlanManager(
             DeploymentPlanRepository deploymentPlanRepository,
-            FilterServiceClient filterServiceClient,
-            ComponentServiceClient componentServiceClient
+            FilterMatchBatcher filterMatchBatcher,
+            ActiveDeploymentPlansCache activeDeploymentPlansCache,
+            ResolvedPackagesCache resolvedPackagesCache,
+            FilterDecisionsCache filterDecisionsCache,
+            LocalFilterEvaluator localFilterEvaluator,
+            PlanEvaluationExecutor planEvaluationExecutor,
+            DeploymentPlanValidator deploymentPlanValidator,
+            TaskExecutor asyncRequestExecutor
     ) {
         this.deploymentPlanRepository = deploymentPlanRepository;
-        this.filterServiceClient = filterServiceClient;
-        this.componentServiceClient = componentServiceClient;
-    }
-
-    public DeploymentPlan publishDeploymentPlan(DeploymentPlan deploymentPlan) {
-        validateDeploymentPlanFilters(deploymentPlan);
-        validateDeploymentPlanVersions(deploymentPlan);
-        validateDeploymentPlanPackage(deploymentPlan);
-        return deploymentPlanRepository.insert(deploymentPlan);
-    }
-
-    void validateDeploymentPlanFilters(DeploymentPlan deploymentPlan) {
-        final List<String> filters = deploymentPlan.extractFilters();
-        final List<String> invalidFilters = filters.parallelStream()
-                .filter(name -> !filterServiceClient.filterExists(deploymentPlan.getUserId(), name))
-                .collect(Collectors.toList());
-        if (!invalidFilters.isEmpty()) {
-            throw new InvalidFiltersException(
-                    deploymentPlan.getUserId(),
-                    deploymentPlan.getPackageRef(),
-                    invalidFilters
-            );
-        }
+        this.filterMatchBatcher = filterMatchBatcher;
+        this.activeDeploymentPlansCache = activeDeploymentPlansCache;
+        this.resolvedPackagesCache = resolvedPackagesCache;
+        this.filterDecisionsCache = filterDecisionsCache;
+        this.localFilterEvaluator = localFilterEvaluator;
+        this.planEvaluationExecutor = planEvaluationExecutor;
+        this.deploymentPlanValidator = deploymentPlanValidator;
+        this.asyncRequestExecutor = asyncRequestExecutor;
     }
 
-    void validateDeploymentPlanVersions(DeploymentPlan deploymentPlan) {
-        final List<String> versions = deploymentPlan.extractVersions();
-        final List<String> invalidVersions = versions.parallelStream()
-                .filter(versionId ->
-                        !componentServiceClient.versionExists(
-                                deploymentPlan.getUserId(),
-                                deploymentPlan.getPackageRef(),
-                                versionId
-                        )
-                )
-                .collect(Collectors.toList());
-        if (!invalidVersions.isEmpty()) {
-            throw new InvalidVersionsException(
-                    deploymentPlan.getUserId(),
-                    deploymentPlan.getPackageRef(),
-                    invalidVersions
-            );
-        }
+    public CompletableFuture<DeploymentPlan> publishDeploymentPlanAsync(DeploymentPlan deploymentPlan, boolean fullValidation) {
+        final CompletableFuture<Optional<DeploymentPlan>> previous = fullValidation
+                ? CompletableFuture.completedFuture(Optional.empty())
+                : CompletableFuture.supplyAsync(
+                () -> deploymentPlanRepository.getActiveDeploymentPlan(deploymentPlan.getUserId(), deploymentPlan.getPackageRef()),
+                asyncRequestExecutor
+        );
+        return previous
+                .thenCompose(active -> deploymentPlanValidator.validateAsync(deploymentPlan, DeploymentPlanDiff.between(active, deploymentPlan)))
+                .thenApplyAsync(valid -> insertDeploymentPlan(deploymentPlan), asyncRequestExecutor);
     }
 
-    void validateDeploymentPlanPackage(DeploymentPlan deploymentPlan) {
-        final String userId = deploymentPlan.getUserId();
-        final String packageRef = deploymentPlan.getPackageRef();
-        if (!componentServiceClient.packageExists(userId, packageRef)) {
-            throw new InvalidPackageException(userId, packageRef);
-        }
+    private DeploymentPlan insertDeploymentPlan(DeploymentPlan deploymentPlan) {
+        final DeploymentPlan result = deploymentPlanRepository.insert(deploymentPlan);
+        activeDeploymentPlansCache.invalidate(deploymentPlan.getUserId());
+        resolvedPackagesCache.invalidate(deploymentPlan.getUserId());
+        return result;
+    }
+
+    public Function<DeviceRequest, DryRunOutcome> dryRunDeploymentPlan(DeploymentPlan draft) {
+        final Optional<DeploymentPlan> current = activeDeploymentPlansCache.getActiveDeploymentPlans(draft.getUserId()).stream()
+                .filter(plan -> draft.getPackageRef().equals(plan.getPackageRef()))
+                .findFirst();
+        deploymentPlanValidator.validate(draft, DeploymentPlanDiff.between(current, draft));
+        final CompiledDeploymentPlans compiled = CompiledDeploymentPlans.compile(
+                current.map(plan -> Arrays.asList(plan, draft)).orElse(Collections.singletonList(draft))
+        );
+        return device -> {
+            try {
+                final List<Optional<Package>> packages = resolvePlanPackages(device, compiled, FilterDecisionsCache.DeviceDecisions.NONE);
+                return DryRunOutcome.of(
+                        device.getUnitId(),
+                        current.isPresent() ? packages.get(0).orElse(null) : null,
+                        packages.get(packages.size() - 1).orElse(null)
+                );
+            } catch (RuntimeException e) {
+                log.warn("Dry run of plan " + draft.getPackageRef() + " failed for device " + device.getUnitId(), e);
+                return DryRunOutcome.failed(device.getUnitId(), e.getMessage());
+            }
+        };
     }
 
     public DeploymentPlan getActiveDeploymentPlan(String userId, String reference) {
@@ -115,58 +136,217 @@ public class DeploymentPlanManager {
                 .orElseThrow(() -> new UnknownDeploymentPlanException(userId, reference));
     }
 
+    public CompletableFuture<String> getResolutionTagAsync(DeviceRequest request) {
+        return getCompiledDeploymentPlansAsync(request).thenApply(compiled -> getResolutionTag(request, compiled));
+    }
+
+    private String getResolutionTag(DeviceRequest request, CompiledDeploymentPlans compiled) {
+        return Hashing.murmur3_128().newHasher()
+                .putBytes(compiled.getEpoch().asBytes())
+                .putLong(filterDecisionsCache.getGeneration(request.getUserId()))
+                .putLong(filterDecisionsCache.getDecisionWindow())
+                .putBytes(DeviceFingerprint.of(request).asBytes())
+                .hash()
+                .toString();
+    }
+
     public ResolvedPackages resolvePackagesForDeviceRequest(DeviceRequest request) {
-        final ResolvedPackages.ResolvedPackagesBuilder builder = ResolvedPackages.builder();
-        final List<DeploymentPlan> plans = deploymentPlanRepository.findByUserId(request.getUserId());
-        plans.forEach(
-                plan -> {
-                    Optional<Package> pkg = getPackageForPlan(request, plan);
-                    if (pkg.isPresent()) {
-                        builder.present(pkg.get());
-                    } else {
-                        builder.absent(Package.builder().reference(plan.getPackageRef()).build());
-                    }
-                }
+        return resolvePackagesForDeviceRequest(request, true);
+    }
+
+    public ResolvedPackages resolvePackagesForDeviceRequest(DeviceRequest request, boolean useCache) {
+        try {
+            return resolvedPackagesCache.remember(request, resolvePackagesForDeviceRequest(
+                    request,
+                    () -> activeDeploymentPlansCache.getCompiledDeploymentPlans(request.getUserId()),
+                    useCache
+            ));
+        } catch (RuntimeException e) {
+            return getLastKnownGood(request, e).orElseThrow(() -> e);
+        }
+    }
+
+    public CompletableFuture<ResolvedPackages> resolvePackagesForDeviceRequestAsync(DeviceRequest request, boolean useCache) {
+        final Supplier<CompletableFuture<ResolvedPackages>> resolution = () -> getCompiledDeploymentPlansAsync(request)
+                .thenCompose(compiled -> resolvePlanPackagesAsync(request, compiled)
+                        .thenApply(packages -> toResolvedPackages(compiled.getPlans(), packages)));
+        final CompletableFuture<ResolvedPackages> result = new CompletableFuture<>();
+        (useCache ? resolvedPackagesCache.getAsync(request, resolution) : resolution.get()).whenComplete((resolved, error) -> {
+            if (error == null) {
+                result.complete(resolvedPackagesCache.remember(request, resolved));
+                return;
+            }
+            final Optional<ResolvedPackages> stale = getLastKnownGood(request, error);
+            if (stale.isPresent()) {
+                result.complete(stale.get());
+            } else {
+                result.completeExceptionally(error);
+            }
+        });
+        return result;
+    }
+
+    private Optional<ResolvedPackages> getLastKnownGood(DeviceRequest request, Throwable error) {
+        if (Throwables.getCausalChain(error).stream().noneMatch(DownstreamUnavailableException.class::isInstance)) {
+            return Optional.empty();
+        }
+        final Optional<ResolvedPackages> stale = resolvedPackagesCache.getLastKnownGood(request);
+        if (stale.isPresent()) {
+            log.warn("Serving last known resolution to device " + request.getUnitId() + " of user " + request.getUserId()
+                    + ": " + Throwables.getRootCause(error).getMessage());
+        }
+        return stale;
+    }
+
+    private CompletableFuture<CompiledDeploymentPlans> getCompiledDeploymentPlansAsync(DeviceRequest request) {
+        return activeDeploymentPlansCache.getCompiledDeploymentPlansAsync(request.getUserId(), asyncRequestExecutor);
+    }
+
+    public Function<DeviceRequest, ResolvedPackages> getBatchResolver(boolean shareBetweenUnits, boolean useCache) {
+        final Map<String, CompiledDeploymentPlans> plans = new HashMap<>();
+        final Map<Object, ResolvedPackages> resolutions = new HashMap<>();
+        return request -> resolutions.computeIfAbsent(
+                shareBetweenUnits ? Arrays.asList(request.getUserId(), request.getCustomClientData(), request.getPackages()) : request,
+                key -> resolvePackagesForDeviceRequest(
+                        request,
+                        () -> plans.computeIfAbsent(request.getUserId(), activeDeploymentPlansCache::getCompiledDeploymentPlans),
+                        useCache
+                )
         );
+    }
+
+    private ResolvedPackages resolvePackagesForDeviceRequest(DeviceRequest request, Supplier<CompiledDeploymentPlans> compiled, boolean useCache) {
+        final Supplier<ResolvedPackages> resolution = () -> resolvePackagesForDeviceRequest(request, compiled.get());
+        return useCache ? resolvedPackagesCache.get(request, resolution) : resolution.get();
+    }
+
+    ResolvedPackages resolvePackagesForDeviceRequest(DeviceRequest request, CompiledDeploymentPlans compiled) {
+        return toResolvedPackages(compiled.getPlans(), resolvePlanPackages(request, compiled));
+    }
+
+    List<Optional<Package>> resolvePlanPackages(DeviceRequest request, CompiledDeploymentPlans compiled) {
+        return resolvePlanPackages(request, compiled, filterDecisionsCache.forDevice(request));
+    }
+
+    List<Optional<Package>> resolvePlanPackages(DeviceRequest request, CompiledDeploymentPlans compiled, FilterDecisionsCache.DeviceDecisions decisions) {
+        final DeviceFilterMatcher matcher = getMatcher(request, compiled, decisions);
+        matcher.prefetch();
+        return resolvePackagesAndLog(matcher, compiled.getPlans());
+    }
+
+    CompletableFuture<List<Optional<Package>>> resolvePlanPackagesAsync(DeviceRequest request, CompiledDeploymentPlans compiled) {
+        final DeviceFilterMatcher matcher = getMatcher(request, compiled, filterDecisionsCache.forDevice(request));
+        return matcher.prefetchAsync().thenCompose(prefetched -> evaluateAsync(request, () -> resolvePackagesAndLog(matcher, compiled.getPlans())));
+    }
+
+    private <T> CompletableFuture<T> evaluateAsync(DeviceRequest request, Supplier<T> evaluation) {
+        try {
+            return planEvaluationExecutor.supplyAsync(evaluation);
+        } catch (RejectedExecutionException e) {
+            final CompletableFuture<T> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(
+                    new PackageResolutionUnavailableException(request.getUserId(), request.getUnitId(), "too many concurrent resolutions")
+            );
+            return rejected;
+        }
+    }
+
+    private DeviceFilterMatcher getMatcher(DeviceRequest request, CompiledDeploymentPlans compiled, FilterDecisionsCache.DeviceDecisions decisions) {
+        return new DeviceFilterMatcher(
+                request,
+                compiled.getFilterSets(),
+                filterMatchBatcher,
+                localFilterEvaluator,
+                decisions
+        );
+    }
+
+    private List<Optional<Package>> resolvePackagesAndLog(DeviceFilterMatcher matcher, List<CompiledDeploymentPlan> plans) {
+        final List<Optional<Package>> packages = resolvePackages(matcher, plans);
+        filterDecisionsCache.recordSavedCalls(matcher.getSavedCalls());
+        if (log.isDebugEnabled()) {
+            final DeviceRequest request = matcher.getRequest();
+            log.debug("Resolved " + packages.size() + " plans for device " + request.getUnitId() + " of user " + request.getUserId()
+                    + ", " + matcher.getSavedCalls() + " filter service calls saved");
+        }
+        return packages;
+    }
+
+    private static ResolvedPackages toResolvedPackages(List<CompiledDeploymentPlan> plans, List<Optional<Package>> packages) {
+        final ResolvedPackages.ResolvedPackagesBuilder builder = ResolvedPackages.builder();
+        for (int i = 0; i < plans.size(); i++) {
+            if (packages.get(i).isPresent()) {
+                builder.present(packages.get(i).get());
+            } else {
+                builder.absent(plans.get(i).getReferencePackage());
+            }
+        }
         return builder.build();
     }
 
-    Optional<Package> getPackageForPlan(DeviceRequest request, DeploymentPlan deploymentPlan) {
-        return Optional.of(deploymentPlan)
-                .filter(plan -> isPackageAvailable(request, plan))
-                .map(plan -> getPackageVersion(request, deploymentPlan)
-                        .map(version -> Package.builder().reference(deploymentPlan.getPackageRef()).version(version).build())
-                        .orElse(Package.builder().reference(deploymentPlan.getPackageRef()).build())
-                );
+    List<Optional<Package>> resolvePackages(DeviceFilterMatcher matcher, List<CompiledDeploymentPlan> plans) {
+        if (matcher.isComplete()) {
+            final List<Optional<Package>> packages = new ArrayList<>(plans.size());
+            for (int i = 0; i < plans.size(); i++) {
+                packages.add(getPackageForPlan(matcher, plans.get(i)));
+            }
+            return packages;
+        }
+        return evaluatePlans(
+                matcher.getRequest(),
+                plans.stream()
+                        .map(plan -> (Callable<Optional<Package>>) () -> getPackageForPlan(matcher, plan))
+                        .collect(Collectors.toList())
+        );
     }
 
-    Optional<String> getPackageVersion(DeviceRequest request, DeploymentPlan plan) {
-        return plan.getDeploymentRules().stream()
-                .filter(rule -> isVersionAvailable(request, rule))
-                .map(DeploymentRule::getVersionId)
-                .findFirst();
+    <T> List<T> evaluatePlans(DeviceRequest request, List<Callable<T>> evaluations) {
+        try {
+            return planEvaluationExecutor.invokeAll(evaluations);
+        } catch (TimeoutException e) {
+            throw new PackageResolutionUnavailableException(request.getUserId(), request.getUnitId(), e.getMessage());
+        } catch (RejectedExecutionException e) {
+            throw new PackageResolutionUnavailableException(request.getUserId(), request.getUnitId(), "too many concurrent resolutions");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PackageResolutionUnavailableException(request.getUserId(), request.getUnitId(), "interrupted");
+        }
+    }
+
+    Optional<Package> getPackageForPlan(DeviceFilterMatcher matcher, CompiledDeploymentPlan plan) {
+        if (!isPackageAvailable(matcher, plan)) {
+            return Optional.empty();
+        }
+        final OptionalInt rule = getPackageVersion(matcher, plan);
+        return Optional.of(rule.isPresent() ? plan.getRulePackage(rule.getAsInt()) : plan.getReferencePackage());
+    }
+
+    OptionalInt getPackageVersion(DeviceFilterMatcher matcher, CompiledDeploymentPlan plan) {
+        if (plan.getRuleCount() < 2 || matcher.isDecided(plan)) {
+            for (int rule = 0; rule < plan.getRuleCount(); rule++) {
+                if (isVersionAvailable(matcher, plan, rule)) {
+                    return OptionalInt.of(rule);
+                }
+            }
+            return OptionalInt.empty();
+        }
+        final List<Callable<Optional<Integer>>> candidates = new ArrayList<>(plan.getRuleCount());
+        for (int rule = 0; rule < plan.getRuleCount(); rule++) {
+            final int candidate = rule;
+            candidates.add(() -> isVersionAvailable(matcher, plan, candidate) ? Optional.of(candidate) : Optional.empty());
+        }
+        return planEvaluationExecutor.findFirst(candidates).map(OptionalInt::of).orElse(OptionalInt.empty());
+    }
+
+    boolean isPackageAvailable(DeviceFilterMatcher matcher, CompiledDeploymentPlan plan) {
+        return matcher.matches(plan.getAllowFilterSet()) &&
+                (plan.getDenyFilterSet() == CompiledDeploymentPlan.UNCONDITIONAL || !matcher.matches(plan.getDenyFilterSet()));
     }
 
-    boolean isPackageAvailable(DeviceRequest request, DeploymentPlan plan) {
-        return plan.getAllow()
-                .filter(allow -> !allow.getFilters().isEmpty())
-                .map(condition -> filterServiceClient.isRequestMatchingFilters(request, condition.getFilters()))
-                .orElse(true) &&
-                plan.getDeny()
-                        .filter(deny -> !deny.getFilters().isEmpty())
-                        .map(condition -> !filterServiceClient.isRequestMatchingFilters(request, condition.getFilters()))
-                        .orElse(true);
-    }
-
-    boolean isVersionAvailable(DeviceRequest request, DeploymentRule rule) {
-        return rule.getAllow()
-                .filter(allow -> !allow.getFilters().isEmpty())
-                .map(allow -> filterServiceClient.isRequestMatchingFilters(request, allow.getFilters()))
-                .orElse(true) &&
-                rule.getDeny()
-                        .filter(deny -> !deny.getFilters().isEmpty())
-                        .map(deny -> !filterServiceClient.isRequestMatchingFilters(request, deny.getFilters()))
-                        .orElse(true);
+    boolean isVersionAvailable(DeviceFilterMatcher matcher, CompiledDeploymentPlan plan, int rule) {
+        final int deny = plan.getRuleDenyFilterSet(rule);
+        return matcher.matches(plan.getRuleAllowFilterSet(rule)) &&
+                (deny == CompiledDeploymentPlan.UNCONDITIONAL || !matcher.matches(deny));
     }
 
     public Page<DeploymentPlan> getDeploymentPlansByFilterName(String filterName, String userId, Pageable pageable) {
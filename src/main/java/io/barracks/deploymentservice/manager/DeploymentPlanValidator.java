@@ -0,0 +1,183 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.manager;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.barracks.deploymentservice.cache.ExistenceCache;
+import io.barracks.deploymentservice.exception.DeploymentPlanValidationUnavailableException;
+import io.barracks.deploymentservice.exception.InvalidDeploymentPlanException;
+import io.barracks.deploymentservice.exception.InvalidFiltersException;
+import io.barracks.deploymentservice.exception.InvalidPackageException;
+import io.barracks.deploymentservice.exception.InvalidVersionsException;
+import io.barracks.deploymentservice.model.DeploymentPlan;
+import io.barracks.deploymentservice.model.DeploymentPlanDiff;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+
+@Component
+public class DeploymentPlanValidator {
+
+    private final ExistenceCache existenceCache;
+    private final long timeoutMillis;
+    private final ScheduledThreadPoolExecutor deadlineScheduler;
+
+    public DeploymentPlanValidator(
+            ExistenceCache existenceCache,
+            @Value("${io.barracks.deploymentservice.validation.timeout_millis:10000}") long timeoutMillis
+    ) {
+        this.existenceCache = existenceCache;
+        this.timeoutMillis = timeoutMillis;
+        this.deadlineScheduler = new ScheduledThreadPoolExecutor(
+                1,
+                new ThreadFactoryBuilder().setNameFormat("validation-deadline-%d").setDaemon(true).build()
+        );
+        this.deadlineScheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    public void validate(DeploymentPlan deploymentPlan) {
+        validate(deploymentPlan, DeploymentPlanDiff.full(deploymentPlan));
+    }
+
+    public void validate(DeploymentPlan deploymentPlan, DeploymentPlanDiff diff) {
+        final List<CompletableFuture<Boolean>> checks = startChecks(deploymentPlan, diff);
+        verify(deploymentPlan, diff, awaitChecks(deploymentPlan.getUserId(), deploymentPlan.getPackageRef(), checks));
+    }
+
+    public CompletableFuture<Void> validateAsync(DeploymentPlan deploymentPlan, DeploymentPlanDiff diff) {
+        final List<CompletableFuture<Boolean>> checks = startChecks(deploymentPlan, diff);
+        final CompletableFuture<Void> validation = CompletableFuture.allOf(checks.toArray(new CompletableFuture<?>[checks.size()]))
+                .thenRun(() -> verify(deploymentPlan, diff, checks.stream().map(CompletableFuture::join).collect(Collectors.toList())));
+        return withDeadline(deploymentPlan.getUserId(), deploymentPlan.getPackageRef(), checks, validation);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        deadlineScheduler.shutdownNow();
+    }
+
+    private CompletableFuture<Void> withDeadline(
+            String userId,
+            String packageRef,
+            List<CompletableFuture<Boolean>> checks,
+            CompletableFuture<Void> validation
+    ) {
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        final ScheduledFuture<?> deadline = deadlineScheduler.schedule(
+                () -> result.completeExceptionally(new DeploymentPlanValidationUnavailableException(
+                        userId, packageRef, "validation did not complete within " + timeoutMillis + "ms"
+                )),
+                timeoutMillis,
+                TimeUnit.MILLISECONDS
+        );
+        validation.whenComplete((value, error) -> {
+            if (error == null) {
+                result.complete(value);
+            } else {
+                result.completeExceptionally(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+            }
+        });
+        result.whenComplete((value, error) -> {
+            deadline.cancel(false);
+            if (error != null) {
+                checks.forEach(check -> check.cancel(true));
+            }
+        });
+        return result;
+    }
+
+    private List<CompletableFuture<Boolean>> startChecks(DeploymentPlan deploymentPlan, DeploymentPlanDiff diff) {
+        final String userId = deploymentPlan.getUserId();
+        final String packageRef = deploymentPlan.getPackageRef();
+        final List<CompletableFuture<Boolean>> checks = new ArrayList<>(diff.getAddedFilters().size() + diff.getAddedVersions().size() + 1);
+        checks.add(existenceCache.packageExists(userId, packageRef));
+        diff.getAddedFilters().forEach(name -> checks.add(existenceCache.filterExists(userId, name)));
+        diff.getAddedVersions().forEach(versionId -> checks.add(existenceCache.versionExists(userId, packageRef, versionId)));
+        return checks;
+    }
+
+    private void verify(DeploymentPlan deploymentPlan, DeploymentPlanDiff diff, List<Boolean> results) {
+        final String userId = deploymentPlan.getUserId();
+        final String packageRef = deploymentPlan.getPackageRef();
+        final List<String> filters = diff.getAddedFilters();
+        final List<String> versions = diff.getAddedVersions();
+        final boolean invalidPackage = !results.get(0);
+        final List<String> invalidFilters = collectInvalid(filters, results.subList(1, filters.size() + 1));
+        final List<String> invalidVersions = collectInvalid(versions, results.subList(filters.size() + 1, results.size()));
+        final int invalidStages = (invalidPackage ? 1 : 0)
+                + (invalidFilters.isEmpty() ? 0 : 1)
+                + (invalidVersions.isEmpty() ? 0 : 1);
+        if (invalidStages > 1) {
+            throw new InvalidDeploymentPlanException(userId, packageRef, invalidFilters, invalidVersions, invalidPackage);
+        }
+        if (invalidPackage) {
+            throw new InvalidPackageException(userId, packageRef);
+        }
+        if (!invalidFilters.isEmpty()) {
+            throw new InvalidFiltersException(userId, packageRef, invalidFilters);
+        }
+        if (!invalidVersions.isEmpty()) {
+            throw new InvalidVersionsException(userId, packageRef, invalidVersions);
+        }
+    }
+
+    private List<Boolean> awaitChecks(String userId, String packageRef, List<CompletableFuture<Boolean>> checks) {
+        try {
+            CompletableFuture.allOf(checks.toArray(new CompletableFuture<?>[checks.size()])).get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            checks.forEach(check -> check.cancel(true));
+            throw new DeploymentPlanValidationUnavailableException(
+                    userId, packageRef, "validation did not complete within " + timeoutMillis + "ms"
+            );
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DeploymentPlanValidationUnavailableException(userId, packageRef, "interrupted");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+        final List<Boolean> results = new ArrayList<>(checks.size());
+        checks.forEach(check -> results.add(check.join()));
+        return results;
+    }
+
+    private static List<String> collectInvalid(List<String> names, List<Boolean> results) {
+        final List<String> invalid = new ArrayList<>();
+        for (int i = 0; i < names.size(); i++) {
+            if (!results.get(i)) {
+                invalid.add(names.get(i));
+            }
+        }
+        return invalid;
+    }
+
+}
@@ -0,0 +1,201 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.manager;
+
+import com.google.common.collect.ImmutableSortedSet;
+import io.barracks.deploymentservice.cache.FilterDecisionsCache;
+import io.barracks.deploymentservice.client.FilterMatchBatcher;
+import io.barracks.deploymentservice.filter.LocalFilterEvaluator;
+import io.barracks.deploymentservice.model.CompiledDeploymentPlan;
+import io.barracks.deploymentservice.model.DeviceRequest;
+import lombok.Getter;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static io.barracks.deploymentservice.model.CompiledDeploymentPlan.UNCONDITIONAL;
+
+class DeviceFilterMatcher {
+
+    private static final int UNKNOWN = 0;
+    private static final int NOT_MATCHING = 1;
+    private static final int MATCHING = 2;
+
+    @Getter
+    private final DeviceRequest request;
+    private final List<ImmutableSortedSet<String>> filterSets;
+    private final FilterMatchBatcher filterMatchBatcher;
+    private final LocalFilterEvaluator localFilterEvaluator;
+    private final FilterDecisionsCache.DeviceDecisions cachedDecisions;
+    private final AtomicIntegerArray decisions;
+    private final ConcurrentMap<Integer, CompletableFuture<Boolean>> evaluations = new ConcurrentHashMap<>();
+    private final AtomicInteger decided = new AtomicInteger();
+    private final AtomicInteger lookups = new AtomicInteger();
+    private final AtomicInteger remoteCalls = new AtomicInteger();
+
+    DeviceFilterMatcher(
+            DeviceRequest request,
+            List<ImmutableSortedSet<String>> filterSets,
+            FilterMatchBatcher filterMatchBatcher,
+            LocalFilterEvaluator localFilterEvaluator,
+            FilterDecisionsCache.DeviceDecisions cachedDecisions
+    ) {
+        this.request = request;
+        this.filterSets = filterSets;
+        this.filterMatchBatcher = filterMatchBatcher;
+        this.localFilterEvaluator = localFilterEvaluator;
+        this.cachedDecisions = cachedDecisions;
+        this.decisions = new AtomicIntegerArray(filterSets.size());
+    }
+
+    boolean matches(int filterSet) {
+        if (filterSet == UNCONDITIONAL) {
+            return true;
+        }
+        lookups.incrementAndGet();
+        final int decision = decisions.get(filterSet);
+        if (decision != UNKNOWN) {
+            return decision == MATCHING;
+        }
+        final CompletableFuture<Boolean> evaluation = new CompletableFuture<>();
+        final CompletableFuture<Boolean> shared = evaluations.putIfAbsent(filterSet, evaluation);
+        if (shared != null) {
+            try {
+                return shared.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+        try {
+            final boolean result = evaluate(filterSet);
+            decide(filterSet, result);
+            evaluation.complete(result);
+            return result;
+        } catch (RuntimeException e) {
+            evaluations.remove(filterSet, evaluation);
+            evaluation.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    boolean isDecided(int filterSet) {
+        return filterSet == UNCONDITIONAL || decisions.get(filterSet) != UNKNOWN;
+    }
+
+    boolean isDecided(CompiledDeploymentPlan plan) {
+        for (int i = 0; i < plan.getFilterSetCount(); i++) {
+            if (!isDecided(plan.getFilterSet(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean isComplete() {
+        return decided.get() == filterSets.size();
+    }
+
+    void prefetch() {
+        final List<Integer> pending = decideWithoutMatchCalls();
+        if (!pending.isEmpty()) {
+            remoteCalls.incrementAndGet();
+            decideAll(pending, filterMatchBatcher.matchFilterSets(request, toRequestedSets(pending)));
+        }
+    }
+
+    CompletableFuture<Void> prefetchAsync() {
+        final List<Integer> pending = decideWithoutMatchCalls();
+        if (pending.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        remoteCalls.incrementAndGet();
+        return filterMatchBatcher.matchFilterSetsAsync(request, toRequestedSets(pending))
+                .thenAccept(results -> decideAll(pending, results));
+    }
+
+    int getSavedCalls() {
+        return lookups.get() - remoteCalls.get();
+    }
+
+    private boolean evaluate(int filterSet) {
+        final ImmutableSortedSet<String> filters = filterSets.get(filterSet);
+        return localFilterEvaluator.evaluate(request, filters)
+                .orElseGet(() -> cachedDecisions.get(filters).orElseGet(() -> {
+                    remoteCalls.incrementAndGet();
+                    final boolean matching = filterMatchBatcher.isRequestMatchingFilters(request, filters.asList());
+                    cachedDecisions.put(filters, matching);
+                    return matching;
+                }));
+    }
+
+    private List<Integer> decideWithoutMatchCalls() {
+        final List<Integer> pending = new ArrayList<>();
+        for (int id = 0; id < filterSets.size(); id++) {
+            if (isDecided(id)) {
+                continue;
+            }
+            Optional<Boolean> decision = localFilterEvaluator.evaluate(request, filterSets.get(id));
+            if (!decision.isPresent()) {
+                decision = cachedDecisions.get(filterSets.get(id));
+            }
+            if (decision.isPresent()) {
+                decide(id, decision.get());
+            } else {
+                pending.add(id);
+            }
+        }
+        return pending;
+    }
+
+    private Map<String, List<String>> toRequestedSets(List<Integer> pending) {
+        final Map<String, List<String>> sets = new LinkedHashMap<>();
+        for (int i = 0; i < pending.size(); i++) {
+            sets.put(String.valueOf(i), filterSets.get(pending.get(i)).asList());
+        }
+        return sets;
+    }
+
+    private void decideAll(List<Integer> pending, Map<String, Boolean> results) {
+        for (int i = 0; i < pending.size(); i++) {
+            final Boolean decision = results.get(String.valueOf(i));
+            if (decision != null) {
+                cachedDecisions.put(filterSets.get(pending.get(i)), decision);
+                decide(pending.get(i), decision);
+            }
+        }
+    }
+
+    private void decide(int filterSet, boolean result) {
+        if (decisions.compareAndSet(filterSet, UNKNOWN, result ? MATCHING : NOT_MATCHING)) {
+            decided.incrementAndGet();
+        }
+    }
+
+}
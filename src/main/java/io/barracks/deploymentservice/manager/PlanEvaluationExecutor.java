@@ -0,0 +1,165 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.manager;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+@Slf4j
+@Component
+public class PlanEvaluationExecutor {
+
+    private final ThreadPoolExecutor executor;
+    private final ThreadPoolExecutor ruleExecutor;
+    private final ThreadPoolExecutor asyncExecutor;
+    private final long timeoutMillis;
+    private final boolean speculativeRules;
+
+    public PlanEvaluationExecutor(
+            @Value("${io.barracks.deploymentservice.resolve.threads:32}") int threads,
+            @Value("${io.barracks.deploymentservice.resolve.queue_size:1000}") int queueSize,
+            @Value("${io.barracks.deploymentservice.resolve.timeout_millis:5000}") long timeoutMillis,
+            @Value("${io.barracks.deploymentservice.resolve.speculative_rules.enabled:false}") boolean speculativeRules,
+            @Value("${io.barracks.deploymentservice.resolve.speculative_rules.threads:64}") int ruleThreads,
+            @Value("${io.barracks.deploymentservice.resolve.async_threads:16}") int asyncThreads
+    ) {
+        this.executor = new ThreadPoolExecutor(
+                threads,
+                threads,
+                60,
+                TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                new ThreadFactoryBuilder().setNameFormat("plan-evaluation-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.AbortPolicy()
+        );
+        this.executor.allowCoreThreadTimeOut(true);
+        this.ruleExecutor = new ThreadPoolExecutor(
+                ruleThreads,
+                ruleThreads,
+                60,
+                TimeUnit.SECONDS,
+                new SynchronousQueue<>(),
+                new ThreadFactoryBuilder().setNameFormat("rule-evaluation-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.CallerRunsPolicy()
+        );
+        this.ruleExecutor.allowCoreThreadTimeOut(true);
+        this.asyncExecutor = new ThreadPoolExecutor(
+                asyncThreads,
+                asyncThreads,
+                60,
+                TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                new ThreadFactoryBuilder().setNameFormat("plan-evaluation-async-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.AbortPolicy()
+        );
+        this.asyncExecutor.allowCoreThreadTimeOut(true);
+        this.timeoutMillis = timeoutMillis;
+        this.speculativeRules = speculativeRules;
+    }
+
+    public <T> List<T> invokeAll(List<Callable<T>> tasks) throws TimeoutException, RejectedExecutionException, InterruptedException {
+        final List<Future<T>> futures = executor.invokeAll(tasks, timeoutMillis, TimeUnit.MILLISECONDS);
+        final List<T> results = new ArrayList<>(futures.size());
+        for (Future<T> future : futures) {
+            if (future.isCancelled()) {
+                throw new TimeoutException("Plan evaluation did not complete within " + timeoutMillis + "ms");
+            }
+            results.add(getResult(future));
+        }
+        return results;
+    }
+
+    public <T> CompletableFuture<T> supplyAsync(Supplier<T> evaluation) throws RejectedExecutionException {
+        return CompletableFuture.supplyAsync(evaluation, asyncExecutor);
+    }
+
+    public <T> Optional<T> findFirst(List<Callable<Optional<T>>> candidates) {
+        if (!speculativeRules || candidates.size() < 2) {
+            for (Callable<Optional<T>> candidate : candidates) {
+                final Optional<T> result = call(candidate);
+                if (result.isPresent()) {
+                    return result;
+                }
+            }
+            return Optional.empty();
+        }
+        final List<Future<Optional<T>>> futures = new ArrayList<>(candidates.size());
+        try {
+            for (Callable<Optional<T>> candidate : candidates) {
+                futures.add(ruleExecutor.submit(candidate));
+            }
+            for (Future<Optional<T>> future : futures) {
+                final Optional<T> result = getResult(future);
+                if (result.isPresent()) {
+                    return result;
+                }
+            }
+            return Optional.empty();
+        } finally {
+            futures.forEach(future -> future.cancel(true));
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+        ruleExecutor.shutdownNow();
+        asyncExecutor.shutdownNow();
+    }
+
+    private static <T> T call(Callable<T> callable) {
+        try {
+            return callable.call();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static <T> T getResult(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while waiting for evaluation");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+}
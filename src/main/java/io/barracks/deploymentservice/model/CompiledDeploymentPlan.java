@@ -0,0 +1,96 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.model;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.ToString;
+
+@Getter
+@ToString
+public final class CompiledDeploymentPlan {
+
+    public static final int UNCONDITIONAL = -1;
+
+    private final String packageRef;
+    private final Package referencePackage;
+    private final int allowFilterSet;
+    private final int denyFilterSet;
+    @Getter(AccessLevel.NONE)
+    private final int[] ruleAllowFilterSets;
+    @Getter(AccessLevel.NONE)
+    private final int[] ruleDenyFilterSets;
+    @Getter(AccessLevel.NONE)
+    private final Package[] rulePackages;
+    @Getter(AccessLevel.NONE)
+    private final int[] filterSets;
+
+    CompiledDeploymentPlan(
+            String packageRef,
+            int allowFilterSet,
+            int denyFilterSet,
+            int[] ruleAllowFilterSets,
+            int[] ruleDenyFilterSets,
+            String[] ruleVersions,
+            int[] filterSets
+    ) {
+        this.packageRef = packageRef;
+        this.referencePackage = Package.builder().reference(packageRef).build();
+        this.allowFilterSet = allowFilterSet;
+        this.denyFilterSet = denyFilterSet;
+        this.ruleAllowFilterSets = ruleAllowFilterSets;
+        this.ruleDenyFilterSets = ruleDenyFilterSets;
+        this.rulePackages = new Package[ruleVersions.length];
+        for (int rule = 0; rule < ruleVersions.length; rule++) {
+            this.rulePackages[rule] = Package.builder().reference(packageRef).version(ruleVersions[rule]).build();
+        }
+        this.filterSets = filterSets;
+    }
+
+    public int getRuleCount() {
+        return rulePackages.length;
+    }
+
+    public int getRuleAllowFilterSet(int rule) {
+        return ruleAllowFilterSets[rule];
+    }
+
+    public int getRuleDenyFilterSet(int rule) {
+        return ruleDenyFilterSets[rule];
+    }
+
+    public Package getRulePackage(int rule) {
+        return rulePackages[rule];
+    }
+
+    public int getFilterSetCount() {
+        return filterSets.length;
+    }
+
+    public int getFilterSet(int index) {
+        return filterSets[index];
+    }
+
+}
@@ -0,0 +1,129 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.model;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import lombok.Getter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static io.barracks.deploymentservice.model.CompiledDeploymentPlan.UNCONDITIONAL;
+
+@Getter
+public final class CompiledDeploymentPlans {
+
+    private final List<DeploymentPlan> deploymentPlans;
+    private final List<CompiledDeploymentPlan> plans;
+    private final List<ImmutableSortedSet<String>> filterSets;
+    private final HashCode epoch;
+
+    private CompiledDeploymentPlans(
+            List<DeploymentPlan> deploymentPlans,
+            List<CompiledDeploymentPlan> plans,
+            List<ImmutableSortedSet<String>> filterSets,
+            HashCode epoch
+    ) {
+        this.deploymentPlans = deploymentPlans;
+        this.plans = plans;
+        this.filterSets = filterSets;
+        this.epoch = epoch;
+    }
+
+    public static CompiledDeploymentPlans compile(List<DeploymentPlan> deploymentPlans) {
+        final Map<ImmutableSortedSet<String>, Integer> filterSetIds = new HashMap<>();
+        final List<ImmutableSortedSet<String>> filterSets = new ArrayList<>();
+        final ImmutableList.Builder<CompiledDeploymentPlan> plans = ImmutableList.builder();
+        final Hasher epoch = Hashing.murmur3_128().newHasher();
+        deploymentPlans.stream()
+                .sorted(Comparator.comparing(DeploymentPlan::getPackageRef))
+                .forEach(plan -> {
+                    plans.add(compile(plan, filterSetIds, filterSets));
+                    putPlanVersion(epoch, plan);
+                });
+        return new CompiledDeploymentPlans(
+                ImmutableList.copyOf(deploymentPlans),
+                plans.build(),
+                ImmutableList.copyOf(filterSets),
+                epoch.hash()
+        );
+    }
+
+    private static void putPlanVersion(Hasher hasher, DeploymentPlan plan) {
+        hasher.putString(String.valueOf(plan.getPackageRef()), StandardCharsets.UTF_8).putByte((byte) 0)
+                .putString(String.valueOf(plan.getId()), StandardCharsets.UTF_8).putByte((byte) 0);
+    }
+
+    private static CompiledDeploymentPlan compile(
+            DeploymentPlan plan,
+            Map<ImmutableSortedSet<String>, Integer> filterSetIds,
+            List<ImmutableSortedSet<String>> filterSets
+    ) {
+        final List<DeploymentRule> rules = plan.getDeploymentRules();
+        final Set<Integer> used = new LinkedHashSet<>();
+        final int allow = intern(plan.getAllow(), filterSetIds, filterSets, used);
+        final int deny = intern(plan.getDeny(), filterSetIds, filterSets, used);
+        final int[] ruleAllows = new int[rules.size()];
+        final int[] ruleDenies = new int[rules.size()];
+        final String[] ruleVersions = new String[rules.size()];
+        for (int rule = 0; rule < rules.size(); rule++) {
+            ruleAllows[rule] = intern(rules.get(rule).getAllow(), filterSetIds, filterSets, used);
+            ruleDenies[rule] = intern(rules.get(rule).getDeny(), filterSetIds, filterSets, used);
+            ruleVersions[rule] = rules.get(rule).getVersionId();
+        }
+        return new CompiledDeploymentPlan(
+                plan.getPackageRef(),
+                allow,
+                deny,
+                ruleAllows,
+                ruleDenies,
+                ruleVersions,
+                used.stream().mapToInt(Integer::intValue).toArray()
+        );
+    }
+
+    private static int intern(
+            Optional<DeploymentCondition> condition,
+            Map<ImmutableSortedSet<String>, Integer> filterSetIds,
+            List<ImmutableSortedSet<String>> filterSets,
+            Set<Integer> used
+    ) {
+        final List<String> filters = condition.map(DeploymentCondition::getFilters).orElse(Collections.emptyList());
+        if (filters.isEmpty()) {
+            return UNCONDITIONAL;
+        }
+        final int id = filterSetIds.computeIfAbsent(ImmutableSortedSet.copyOf(filters), filterSet -> {
+            filterSets.add(filterSet);
+            return filterSets.size() - 1;
+        });
+        used.add(id);
+        return id;
+    }
+
+}
@@ -45,7 +45,7 @@ import java.util.stream.Collectors;
 @JsonInclude(JsonInclude.Include.NON_ABSENT)
 @JsonIgnoreProperties(ignoreUnknown = true)
 @Document(collection = "deploymentPlans")
-@CompoundIndex(name = "packageRef_userId_createdAt", def = "{ 'packageRef': 1, 'userId': 1, 'created': -1 }")
+@CompoundIndex(name = "userId_packageRef_createdAt_id", def = "{ 'userId': 1, 'packageRef': 1, 'created': -1, '_id': -1 }")
 public class DeploymentPlan {
 
     @Id
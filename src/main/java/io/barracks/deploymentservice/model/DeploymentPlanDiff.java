@@ -0,0 +1,62 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.model;
+
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.*;
+
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+@Getter
+@EqualsAndHashCode
+@ToString
+public class DeploymentPlanDiff {
+
+    private final List<String> addedFilters;
+
+    private final List<String> addedVersions;
+
+    public static DeploymentPlanDiff between(Optional<DeploymentPlan> previous, DeploymentPlan next) {
+        return new DeploymentPlanDiff(
+                added(previous.map(DeploymentPlan::extractFilters), next.extractFilters()),
+                added(previous.map(DeploymentPlan::extractVersions), next.extractVersions())
+        );
+    }
+
+    public static DeploymentPlanDiff full(DeploymentPlan plan) {
+        return between(Optional.empty(), plan);
+    }
+
+    private static List<String> added(Optional<List<String>> previous, List<String> next) {
+        final Set<String> added = new LinkedHashSet<>(next);
+        previous.map(HashSet::new).ifPresent(added::removeAll);
+        return Collections.unmodifiableList(new ArrayList<>(added));
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Builder;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.Objects;
+
+@Builder
+@Getter
+@ToString
+@EqualsAndHashCode
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class DryRunOutcome {
+
+    private final String unitId;
+    private final Package current;
+    private final Package draft;
+    private final Change change;
+    private final String error;
+
+    public static DryRunOutcome of(String unitId, Package current, Package draft) {
+        return builder()
+                .unitId(unitId)
+                .current(current)
+                .draft(draft)
+                .change(Change.between(current, draft))
+                .build();
+    }
+
+    public static DryRunOutcome failed(String unitId, String error) {
+        return builder()
+                .unitId(unitId)
+                .change(Change.ERROR)
+                .error(error)
+                .build();
+    }
+
+    public enum Change {
+        NONE, INSTALL, UPDATE, REMOVE, ERROR;
+
+        static Change between(Package current, Package draft) {
+            if (current == null) {
+                return draft == null ? NONE : INSTALL;
+            }
+            if (draft == null) {
+                return REMOVE;
+            }
+            return Objects.equals(current.getVersion(), draft.getVersion()) ? NONE : UPDATE;
+        }
+    }
+}
@@ -24,11 +24,15 @@
 
 package io.barracks.deploymentservice.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.*;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 
 @Builder
 @Getter
@@ -42,4 +46,30 @@ public class ResolvedPackages {
     @Singular
     @JsonProperty("absent")
     private final List<Package> absents;
+    @JsonIgnore
+    private final boolean stale;
+
+    public ResolvedPackages asStale() {
+        return builder().presents(presents).absents(absents).stale(true).build();
+    }
+
+    public ResolvedPackages toDelta(List<Package> installedPackages) {
+        final Map<String, String> installedVersions = new HashMap<>(installedPackages.size() * 2);
+        for (Package installed : installedPackages) {
+            installedVersions.put(installed.getReference(), installed.getVersion());
+        }
+        final ResolvedPackagesBuilder delta = builder().stale(stale);
+        for (Package present : presents) {
+            if (!installedVersions.containsKey(present.getReference())
+                    || (present.getVersion() != null && !Objects.equals(present.getVersion(), installedVersions.get(present.getReference())))) {
+                delta.present(present);
+            }
+        }
+        for (Package absent : absents) {
+            if (installedVersions.containsKey(absent.getReference())) {
+                delta.absent(absent);
+            }
+        }
+        return delta.build();
+    }
 }
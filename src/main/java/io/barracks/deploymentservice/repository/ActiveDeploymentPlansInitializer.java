@@ -0,0 +1,65 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.repository;
+
+import io.barracks.deploymentservice.model.ActiveDeploymentPlan;
+import io.barracks.deploymentservice.model.DeploymentPlan;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.stereotype.Component;
+
+@Slf4j
+@Component
+public class ActiveDeploymentPlansInitializer implements ApplicationRunner {
+
+    public static final String REBUILD_OPTION = "rebuild-active-plans";
+
+    private final DeploymentPlanRepository deploymentPlanRepository;
+    private final MongoOperations operations;
+
+    public ActiveDeploymentPlansInitializer(DeploymentPlanRepository deploymentPlanRepository, MongoOperations operations) {
+        this.deploymentPlanRepository = deploymentPlanRepository;
+        this.operations = operations;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (args.containsOption(REBUILD_OPTION)) {
+            log.info("Rebuilding active deployment plans as requested by --" + REBUILD_OPTION);
+            deploymentPlanRepository.rebuildActiveDeploymentPlans();
+        } else if (isMigrationRequired()) {
+            log.info("No active deployment plan found, building them from the deployment plans history");
+            deploymentPlanRepository.rebuildActiveDeploymentPlans();
+        }
+    }
+
+    boolean isMigrationRequired() {
+        return operations.getCollection(operations.getCollectionName(ActiveDeploymentPlan.class)).count() == 0
+                && operations.getCollection(operations.getCollectionName(DeploymentPlan.class)).count() > 0;
+    }
+
+}
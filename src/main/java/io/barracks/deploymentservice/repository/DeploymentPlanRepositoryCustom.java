@@ -40,4 +40,8 @@ public interface DeploymentPlanRepositoryCustom {
     Optional<DeploymentPlan> getActiveDeploymentPlan(String userId, String packageRef);
 
     List<String> getDeployedVersions(String userId, String packageRef);
+
+    void activateDeploymentPlan(DeploymentPlan plan);
+
+    long rebuildActiveDeploymentPlans();
 }
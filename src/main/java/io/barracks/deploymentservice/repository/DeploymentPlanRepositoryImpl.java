@@ -24,9 +24,16 @@
 
 package io.barracks.deploymentservice.repository;
 
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
+import io.barracks.deploymentservice.model.ActiveDeploymentPlan;
 import io.barracks.deploymentservice.model.DeploymentPlan;
 import lombok.extern.slf4j.Slf4j;
+import org.bson.types.ObjectId;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.Pageable;
@@ -34,7 +41,9 @@ import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.MongoOperations;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 import java.util.stream.Collectors;
@@ -54,6 +63,10 @@ public class DeploymentPlanRepositoryImpl implements DeploymentPlanRepositoryCus
     public static final String PLAN_RULE_DNY_CONDITION_FILTER_KEY = "deploymentRules.deploymentConditions.denyCondition.filters";
     public static final String PLAN_RULE_VERSION_KEY = "deploymentRules.versionId";
     public static final String CREATED_KEY = "created";
+    public static final String ID_KEY = "_id";
+    public static final String ACTIVE_PLAN_KEY = "plan";
+    public static final String ACTIVE_PLAN_ID_KEY = "plan._id";
+    public static final String ACTIVE_PLAN_CREATED_KEY = "plan.created";
     private final MongoOperations operations;
 
     @Autowired
@@ -63,22 +76,76 @@ public class DeploymentPlanRepositoryImpl implements DeploymentPlanRepositoryCus
 
     @Override
     public List<DeploymentPlan> findByUserId(String userId) {
-        final List<?> packages = operations.getCollection(operations.getCollectionName(DeploymentPlan.class))
-                .distinct(PACKAGE_REF_KEY, query(where(USER_ID_KEY).is(userId)).getQueryObject());
-        log.debug("Found " + packages + " for user " + userId);
-        return packages.stream()
-                .map(pkg -> getActiveDeploymentPlan(userId, pkg.toString()))
-                .filter(Optional::isPresent)
-                .map(Optional::get)
+        final List<DeploymentPlan> plans = operations.find(
+                query(where(USER_ID_KEY).is(userId)).with(new Sort(Sort.Direction.ASC, PACKAGE_REF_KEY)),
+                ActiveDeploymentPlan.class
+        ).stream()
+                .map(ActiveDeploymentPlan::getPlan)
                 .collect(toList());
+        log.debug("Found " + plans.size() + " active plans for user " + userId);
+        return plans;
     }
 
     @Override
     public Optional<DeploymentPlan> getActiveDeploymentPlan(String userId, String packageRef) {
-        return operations.find(
-                query(where(USER_ID_KEY).is(userId).and(PACKAGE_REF_KEY).is(packageRef)).with(new Sort(Sort.Direction.DESC, CREATED_KEY)).limit(1),
-                DeploymentPlan.class
-        ).stream().findFirst();
+        return Optional.ofNullable(
+                operations.findOne(
+                        query(where(USER_ID_KEY).is(userId).and(PACKAGE_REF_KEY).is(packageRef)),
+                        ActiveDeploymentPlan.class
+                )
+        ).map(ActiveDeploymentPlan::getPlan);
+    }
+
+    @Override
+    public void activateDeploymentPlan(DeploymentPlan plan) {
+        final Criteria samePackage = where(USER_ID_KEY).is(plan.getUserId()).and(PACKAGE_REF_KEY).is(plan.getPackageRef());
+        final Object id = ObjectId.isValid(plan.getId()) ? new ObjectId(plan.getId()) : plan.getId();
+        final Query olderActivePlan = query(
+                plan.getCreated()
+                        .map(created -> samePackage.orOperator(
+                                where(ACTIVE_PLAN_CREATED_KEY).lt(created),
+                                where(ACTIVE_PLAN_CREATED_KEY).is(created).and(ACTIVE_PLAN_ID_KEY).lt(id)
+                        ))
+                        .orElseGet(() -> samePackage.and(ACTIVE_PLAN_KEY).exists(false))
+        );
+        final Update update = new Update()
+                .set(USER_ID_KEY, plan.getUserId())
+                .set(PACKAGE_REF_KEY, plan.getPackageRef())
+                .set(ACTIVE_PLAN_KEY, plan);
+        try {
+            operations.upsert(olderActivePlan, update, ActiveDeploymentPlan.class);
+        } catch (DuplicateKeyException e) {
+            retryActivation(plan, olderActivePlan, update);
+        }
+    }
+
+    private void retryActivation(DeploymentPlan plan, Query olderActivePlan, Update update) {
+        try {
+            operations.upsert(olderActivePlan, update, ActiveDeploymentPlan.class);
+        } catch (DuplicateKeyException e) {
+            log.debug("A more recent plan than " + plan.getId() + " is already active for package " + plan.getPackageRef() + " and user " + plan.getUserId());
+        }
+    }
+
+    @Override
+    public long rebuildActiveDeploymentPlans() {
+        final List<DBObject> pipeline = Arrays.asList(
+                new BasicDBObject("$sort", new BasicDBObject(USER_ID_KEY, 1).append(PACKAGE_REF_KEY, 1).append(CREATED_KEY, -1).append(ID_KEY, -1)),
+                new BasicDBObject("$group", new BasicDBObject(ID_KEY, new BasicDBObject(USER_ID_KEY, "$" + USER_ID_KEY).append(PACKAGE_REF_KEY, "$" + PACKAGE_REF_KEY))
+                        .append(ACTIVE_PLAN_KEY, new BasicDBObject("$first", "$$ROOT")))
+        );
+        long count = 0;
+        try (Cursor cursor = operations.getCollection(operations.getCollectionName(DeploymentPlan.class)).aggregate(
+                pipeline,
+                AggregationOptions.builder().outputMode(AggregationOptions.OutputMode.CURSOR).allowDiskUse(true).build()
+        )) {
+            while (cursor.hasNext()) {
+                activateDeploymentPlan(operations.getConverter().read(DeploymentPlan.class, (DBObject) cursor.next().get(ACTIVE_PLAN_KEY)));
+                count++;
+            }
+        }
+        log.info("Rebuilt " + count + " active deployment plans");
+        return count;
     }
 
     @Override
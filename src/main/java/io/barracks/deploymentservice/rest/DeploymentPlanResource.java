@@ -24,43 +24,173 @@
 
 package io.barracks.deploymentservice.rest;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import io.barracks.deploymentservice.exception.DeploymentPlanValidationUnavailableException;
 import io.barracks.deploymentservice.manager.DeploymentPlanManager;
 import io.barracks.deploymentservice.model.DeploymentPlan;
+import io.barracks.deploymentservice.model.DeviceRequest;
+import io.barracks.deploymentservice.model.DryRunOutcome;
+import io.barracks.deploymentservice.model.DryRunSummary;
 import org.hibernate.validator.constraints.NotBlank;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.AsyncTaskExecutor;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.web.PagedResourcesAssembler;
 import org.springframework.hateoas.PagedResources;
 import org.springframework.hateoas.Resource;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.HttpMessageNotReadableException;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.context.request.async.WebAsyncTask;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import javax.servlet.http.HttpServletResponse;
+import javax.validation.ConstraintViolation;
+import javax.validation.ConstraintViolationException;
 import javax.validation.Valid;
+import javax.validation.Validator;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
 
 @RestController
 @RequestMapping("/owners/{userId}/plans")
 public class DeploymentPlanResource {
 
+    static final int DRY_RUN_FLUSH_INTERVAL = 100;
+
     private final DeploymentPlanManager deploymentPlanManager;
     private final PagedResourcesAssembler<DeploymentPlan> assembler;
+    private final ObjectMapper objectMapper;
+    private final Validator validator;
+    private final long publishTimeoutMillis;
+    private final long dryRunTimeoutMillis;
+    private final AsyncTaskExecutor streamingRequestExecutor;
 
 
-    public DeploymentPlanResource(DeploymentPlanManager deploymentPlanManager, PagedResourcesAssembler<DeploymentPlan> assembler) {
+    public DeploymentPlanResource(
+            DeploymentPlanManager deploymentPlanManager,
+            PagedResourcesAssembler<DeploymentPlan> assembler,
+            ObjectMapper objectMapper,
+            Validator validator,
+            @Value("${io.barracks.deploymentservice.publish.request_timeout_millis:15000}") long publishTimeoutMillis,
+            @Value("${io.barracks.deploymentservice.dry_run.request_timeout_millis:3600000}") long dryRunTimeoutMillis,
+            @Qualifier("streamingRequestExecutor") AsyncTaskExecutor streamingRequestExecutor
+    ) {
         this.deploymentPlanManager = deploymentPlanManager;
         this.assembler = assembler;
+        this.objectMapper = objectMapper;
+        this.validator = validator;
+        this.publishTimeoutMillis = publishTimeoutMillis;
+        this.dryRunTimeoutMillis = dryRunTimeoutMillis;
+        this.streamingRequestExecutor = streamingRequestExecutor;
     }
 
-    @ResponseStatus(HttpStatus.CREATED)
     @RequestMapping(method = RequestMethod.POST)
-    public DeploymentPlan publishDeploymentPlan(
+    public DeferredResult<ResponseEntity<DeploymentPlan>> publishDeploymentPlan(
             @Valid @RequestBody DeploymentPlan deploymentPlan,
-            @NotBlank @PathVariable("userId") String userId
+            @NotBlank @PathVariable("userId") String userId,
+            @RequestParam(value = "fullValidation", required = false, defaultValue = "false") boolean fullValidation
     ) {
-        return deploymentPlanManager.publishDeploymentPlan(
-                deploymentPlan.toBuilder().userId(userId).build()
+        final DeploymentPlan plan = deploymentPlan.toBuilder().userId(userId).build();
+        return DeferredResults.of(
+                deploymentPlanManager.publishDeploymentPlanAsync(plan, fullValidation)
+                        .thenApply(published -> ResponseEntity.status(HttpStatus.CREATED).body(published)),
+                publishTimeoutMillis,
+                () -> new DeploymentPlanValidationUnavailableException(
+                        userId, plan.getPackageRef(), "publication did not complete within " + publishTimeoutMillis + "ms"
+                )
         );
     }
 
+    @RequestMapping(
+            method = RequestMethod.POST,
+            path = "/dryRun",
+            consumes = {MediaType.APPLICATION_JSON_VALUE, PackageResource.APPLICATION_NDJSON_VALUE},
+            produces = PackageResource.APPLICATION_NDJSON_VALUE
+    )
+    public WebAsyncTask<Void> dryRunDeploymentPlan(
+            @NotBlank @PathVariable("userId") String userId,
+            InputStream body,
+            HttpServletResponse response
+    ) throws IOException {
+        final StreamingResponseBody dryRun = streamDryRun(userId, body);
+        return new WebAsyncTask<>(dryRunTimeoutMillis, streamingRequestExecutor, () -> {
+            response.setContentType(PackageResource.APPLICATION_NDJSON_VALUE);
+            dryRun.writeTo(response.getOutputStream());
+            return null;
+        });
+    }
+
+    StreamingResponseBody streamDryRun(String userId, InputStream body) throws IOException {
+        final JsonParser parser = objectMapper.getFactory().createParser(body);
+        final DeploymentPlan draft = readDraft(parser).toBuilder().userId(userId).build();
+        final Function<DeviceRequest, DryRunOutcome> dryRun = deploymentPlanManager.dryRunDeploymentPlan(draft);
+        final ObjectWriter writer = objectMapper.writer();
+        return outputStream -> {
+            final DryRunSummary summary = new DryRunSummary();
+            try (MappingIterator<DeviceRequest> devices = objectMapper.readerFor(DeviceRequest.class).readValues(parser)) {
+                while (devices.hasNextValue()) {
+                    final DryRunOutcome outcome = dryRun(userId, devices.nextValue(), summary.getDevices(), dryRun);
+                    summary.add(outcome);
+                    outputStream.write(writer.writeValueAsBytes(outcome));
+                    outputStream.write('\n');
+                    if (summary.getDevices() % DRY_RUN_FLUSH_INTERVAL == 0) {
+                        outputStream.flush();
+                    }
+                }
+            }
+            outputStream.write(writer.writeValueAsBytes(Collections.singletonMap("summary", summary)));
+            outputStream.write('\n');
+            outputStream.flush();
+        };
+    }
+
+    DeploymentPlan readDraft(JsonParser parser) {
+        final DeploymentPlan draft;
+        try {
+            if (parser.nextToken() == null) {
+                throw new HttpMessageNotReadableException("Missing draft deployment plan");
+            }
+            draft = objectMapper.readValue(parser, DeploymentPlan.class);
+            parser.clearCurrentToken();
+        } catch (IOException e) {
+            throw new HttpMessageNotReadableException("Could not read draft deployment plan: " + e.getMessage(), e);
+        }
+        final Set<ConstraintViolation<DeploymentPlan>> violations = validator.validate(draft);
+        if (!violations.isEmpty()) {
+            throw new ConstraintViolationException("Invalid draft deployment plan", violations);
+        }
+        return draft;
+    }
+
+    private DryRunOutcome dryRun(String userId, DeviceRequest snapshot, long index, Function<DeviceRequest, DryRunOutcome> dryRun) {
+        if (snapshot.getCustomClientData() == null || snapshot.getPackages() == null) {
+            return DryRunOutcome.failed(snapshot.getUnitId(), "Invalid device request at index " + index);
+        }
+        final DeviceRequest device = DeviceRequest.builder()
+                .userId(userId)
+                .unitId(snapshot.getUnitId())
+                .customClientData(snapshot.getCustomClientData())
+                .packages(snapshot.getPackages())
+                .build();
+        final Set<ConstraintViolation<DeviceRequest>> violations = validator.validate(device);
+        if (!violations.isEmpty()) {
+            return DryRunOutcome.failed(device.getUnitId(), "Invalid device request at index " + index);
+        }
+        return dryRun.apply(device);
+    }
+
     @ResponseBody
     @RequestMapping(method = RequestMethod.GET)
     public PagedResources<Resource<DeploymentPlan>> getDeploymentPlansByFilterName(
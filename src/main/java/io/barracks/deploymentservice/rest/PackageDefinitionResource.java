@@ -0,0 +1,61 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.rest;
+
+import io.barracks.deploymentservice.cache.ExistenceCache;
+import org.hibernate.validator.constraints.NotBlank;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.*;
+
+@RestController
+@RequestMapping("/owners/{userId}/packages/{packageRef}")
+public class PackageDefinitionResource {
+
+    private final ExistenceCache existenceCache;
+
+    public PackageDefinitionResource(ExistenceCache existenceCache) {
+        this.existenceCache = existenceCache;
+    }
+
+    @ResponseStatus(HttpStatus.NO_CONTENT)
+    @RequestMapping(method = RequestMethod.DELETE, path = "/definition")
+    public void invalidatePackageDefinition(
+            @NotBlank @PathVariable("userId") String userId,
+            @NotBlank @PathVariable("packageRef") String packageRef
+    ) {
+        existenceCache.invalidatePackage(userId, packageRef);
+    }
+
+    @ResponseStatus(HttpStatus.NO_CONTENT)
+    @RequestMapping(method = RequestMethod.DELETE, path = "/versions/{versionId}/definition")
+    public void invalidateVersionDefinition(
+            @NotBlank @PathVariable("userId") String userId,
+            @NotBlank @PathVariable("packageRef") String packageRef,
+            @NotBlank @PathVariable("versionId") String versionId
+    ) {
+        existenceCache.invalidateVersion(userId, packageRef, versionId);
+    }
+
+}
@@ -24,31 +24,195 @@
 
 package io.barracks.deploymentservice.rest;
 
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import io.barracks.deploymentservice.exception.DeviceRequestBatchTooLargeException;
+import io.barracks.deploymentservice.exception.PackageResolutionUnavailableException;
 import io.barracks.deploymentservice.manager.DeploymentPlanManager;
 import io.barracks.deploymentservice.model.DeviceRequest;
+import io.barracks.deploymentservice.model.ResolutionFailure;
 import io.barracks.deploymentservice.model.ResolvedPackages;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.HttpMessageNotReadableException;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.context.request.async.WebAsyncTask;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import javax.servlet.http.HttpServletResponse;
+import javax.validation.ConstraintViolation;
+import javax.validation.ConstraintViolationException;
 import javax.validation.Valid;
+import javax.validation.Validator;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 
+@Slf4j
 @RestController
 @RequestMapping("/packages/resolve")
 public class PackageResource {
 
+    public static final String APPLICATION_NDJSON_VALUE = "application/x-ndjson";
+    static final String NO_CACHE = "no-cache";
+    static final String WEAK_ETAG_PREFIX = "W/";
+    static final String DELTA_ETAG_SUFFIX = "-delta";
+    static final String STALE_WARNING = "110 - \"Response is Stale\"";
+
     private final DeploymentPlanManager deploymentPlanManager;
+    private final ObjectMapper objectMapper;
+    private final Validator validator;
+    private final int maxBatchSize;
+    private final boolean shareBetweenUnits;
+    private final long timeoutMillis;
+    private final long batchTimeoutMillis;
+    private final AsyncTaskExecutor streamingRequestExecutor;
 
-    public PackageResource(DeploymentPlanManager deploymentPlanManager) {
+    public PackageResource(
+            DeploymentPlanManager deploymentPlanManager,
+            ObjectMapper objectMapper,
+            Validator validator,
+            @Value("${io.barracks.deploymentservice.resolve.batch.max_size:1000}") int maxBatchSize,
+            @Value("${io.barracks.deploymentservice.resolve.batch.share_between_units:false}") boolean shareBetweenUnits,
+            @Value("${io.barracks.deploymentservice.resolve.request_timeout_millis:10000}") long timeoutMillis,
+            @Value("${io.barracks.deploymentservice.resolve.batch.request_timeout_millis:600000}") long batchTimeoutMillis,
+            @Qualifier("streamingRequestExecutor") AsyncTaskExecutor streamingRequestExecutor
+    ) {
         this.deploymentPlanManager = deploymentPlanManager;
+        this.objectMapper = objectMapper;
+        this.validator = validator;
+        this.maxBatchSize = maxBatchSize;
+        this.shareBetweenUnits = shareBetweenUnits;
+        this.timeoutMillis = timeoutMillis;
+        this.batchTimeoutMillis = batchTimeoutMillis;
+        this.streamingRequestExecutor = streamingRequestExecutor;
     }
 
     @RequestMapping(method = RequestMethod.POST)
-    public ResolvedPackages resolvePackages(
-            @Valid @RequestBody DeviceRequest request
+    public DeferredResult<ResponseEntity<ResolvedPackages>> resolvePackages(
+            @Valid @RequestBody DeviceRequest request,
+            @RequestHeader(value = HttpHeaders.CACHE_CONTROL, required = false) String cacheControl,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+            @RequestParam(value = "delta", required = false, defaultValue = "false") boolean delta
+    ) {
+        final CompletableFuture<ResponseEntity<ResolvedPackages>> response = deploymentPlanManager.getResolutionTagAsync(request)
+                .thenCompose(tag -> {
+                    final String etag = "\"" + tag + (delta ? DELTA_ETAG_SUFFIX : "") + "\"";
+                    if (isNotModified(ifNoneMatch, etag)) {
+                        return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).build());
+                    }
+                    return deploymentPlanManager.resolvePackagesForDeviceRequestAsync(request, isCacheAllowed(cacheControl))
+                            .thenApply(resolved -> (resolved.isStale()
+                                    ? ResponseEntity.ok().header(HttpHeaders.WARNING, STALE_WARNING)
+                                    : ResponseEntity.ok().eTag(etag))
+                                    .body(delta ? resolved.toDelta(request.getPackages()) : resolved));
+                });
+        return DeferredResults.of(
+                response,
+                timeoutMillis,
+                () -> new PackageResolutionUnavailableException(
+                        request.getUserId(), request.getUnitId(), "resolution did not complete within " + timeoutMillis + "ms"
+                )
+        );
+    }
+
+    @RequestMapping(
+            path = "/batch",
+            method = RequestMethod.POST,
+            consumes = {MediaType.APPLICATION_JSON_VALUE, APPLICATION_NDJSON_VALUE},
+            produces = APPLICATION_NDJSON_VALUE
+    )
+    public WebAsyncTask<Void> resolvePackages(
+            InputStream body,
+            @RequestHeader(value = HttpHeaders.CACHE_CONTROL, required = false) String cacheControl,
+            @RequestParam(value = "delta", required = false, defaultValue = "false") boolean delta,
+            HttpServletResponse response
     ) {
-        return deploymentPlanManager.resolvePackagesForDeviceRequest(request);
+        final StreamingResponseBody batch = streamBatch(body, cacheControl, delta);
+        return new WebAsyncTask<>(batchTimeoutMillis, streamingRequestExecutor, () -> {
+            response.setContentType(APPLICATION_NDJSON_VALUE);
+            batch.writeTo(response.getOutputStream());
+            return null;
+        });
+    }
+
+    StreamingResponseBody streamBatch(InputStream body, String cacheControl, boolean delta) {
+        final List<DeviceRequest> requests = readDeviceRequests(body);
+        final boolean useCache = isCacheAllowed(cacheControl);
+        final ObjectWriter writer = objectMapper.writer();
+        return outputStream -> {
+            final Function<DeviceRequest, ResolvedPackages> resolver = deploymentPlanManager.getBatchResolver(shareBetweenUnits, useCache);
+            for (DeviceRequest request : requests) {
+                outputStream.write(writer.writeValueAsBytes(resolveForBatch(request, resolver, delta)));
+                outputStream.write('\n');
+                outputStream.flush();
+            }
+        };
+    }
+
+    private Object resolveForBatch(DeviceRequest request, Function<DeviceRequest, ResolvedPackages> resolver, boolean delta) {
+        try {
+            final ResolvedPackages resolved = resolver.apply(request);
+            return delta ? resolved.toDelta(request.getPackages()) : resolved;
+        } catch (RuntimeException e) {
+            log.warn("Batch resolution failed for device " + request.getUnitId(), e);
+            return ResolutionFailure.of(request.getUnitId(), e.getMessage());
+        }
+    }
+
+    List<DeviceRequest> readDeviceRequests(InputStream body) {
+        final List<DeviceRequest> requests = new ArrayList<>();
+        try (MappingIterator<DeviceRequest> iterator = objectMapper.readerFor(DeviceRequest.class).readValues(body)) {
+            while (iterator.hasNextValue()) {
+                if (requests.size() == maxBatchSize) {
+                    throw new DeviceRequestBatchTooLargeException(maxBatchSize);
+                }
+                final DeviceRequest request = iterator.nextValue();
+                final Set<ConstraintViolation<DeviceRequest>> violations = validator.validate(request);
+                if (!violations.isEmpty()) {
+                    throw new ConstraintViolationException("Invalid device request at index " + requests.size(), violations);
+                }
+                requests.add(request);
+            }
+        } catch (IOException e) {
+            throw new HttpMessageNotReadableException("Could not read device requests: " + e.getMessage(), e);
+        }
+        return requests;
+    }
+
+    static boolean isNotModified(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            final String tag = candidate.trim();
+            if ("*".equals(tag) || etag.equals(tag.startsWith(WEAK_ETAG_PREFIX) ? tag.substring(WEAK_ETAG_PREFIX.length()) : tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static boolean isCacheAllowed(String cacheControl) {
+        return cacheControl == null || !cacheControl.toLowerCase(Locale.ROOT).contains(NO_CACHE);
     }
 
 }
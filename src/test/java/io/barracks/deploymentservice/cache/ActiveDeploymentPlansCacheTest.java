@@ -0,0 +1,257 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.cache;
+
+import io.barracks.deploymentservice.model.CompiledDeploymentPlans;
+import io.barracks.deploymentservice.model.DeploymentPlan;
+import io.barracks.deploymentservice.repository.DeploymentPlanRepository;
+import io.barracks.deploymentservice.utils.DeploymentPlanUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.stream.Collectors;
+
+import static io.barracks.deploymentservice.cache.ActiveDeploymentPlansCache.METRIC_PREFIX;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ActiveDeploymentPlansCacheTest {
+
+    @Mock
+    private DeploymentPlanRepository deploymentPlanRepository;
+
+    private ActiveDeploymentPlansCache activeDeploymentPlansCache;
+
+    @Before
+    public void setUp() {
+        activeDeploymentPlansCache = new ActiveDeploymentPlansCache(deploymentPlanRepository, 100, 300);
+    }
+
+    @Test
+    public void getActiveDeploymentPlans_whenCalledTwice_shouldLoadFromRepositoryOnce() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final List<DeploymentPlan> plans = Arrays.asList(
+                DeploymentPlanUtils.getDeploymentPlan(),
+                DeploymentPlanUtils.getDeploymentPlan()
+        );
+        doReturn(plans).when(deploymentPlanRepository).findByUserId(userId);
+
+        // When
+        final List<DeploymentPlan> first = activeDeploymentPlansCache.getActiveDeploymentPlans(userId);
+        final List<DeploymentPlan> second = activeDeploymentPlansCache.getActiveDeploymentPlans(userId);
+
+        // Then
+        verify(deploymentPlanRepository).findByUserId(userId);
+        assertThat(first).containsExactlyElementsOf(plans);
+        assertThat(second).containsExactlyElementsOf(plans);
+    }
+
+    @Test
+    public void getCompiledDeploymentPlans_shouldCompileLoadedPlansOnce() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final List<DeploymentPlan> plans = Arrays.asList(
+                DeploymentPlanUtils.getDeploymentPlan(),
+                DeploymentPlanUtils.getDeploymentPlan()
+        );
+        doReturn(plans).when(deploymentPlanRepository).findByUserId(userId);
+
+        // When
+        final CompiledDeploymentPlans first = activeDeploymentPlansCache.getCompiledDeploymentPlans(userId);
+        final List<DeploymentPlan> second = activeDeploymentPlansCache.getActiveDeploymentPlans(userId);
+
+        // Then
+        verify(deploymentPlanRepository).findByUserId(userId);
+        assertThat(first.getPlans()).hasSize(plans.size());
+        assertThat(first.getDeploymentPlans()).containsExactlyElementsOf(plans);
+        assertThat(second).isSameAs(first.getDeploymentPlans());
+    }
+
+    @Test
+    public void getCompiledDeploymentPlansAsync_whenNotCached_shouldLoadOnTheGivenExecutor() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final List<DeploymentPlan> plans = Collections.singletonList(DeploymentPlanUtils.getDeploymentPlan());
+        final List<Runnable> tasks = new ArrayList<>();
+        doReturn(plans).when(deploymentPlanRepository).findByUserId(userId);
+
+        // When
+        final CompletableFuture<CompiledDeploymentPlans> result = activeDeploymentPlansCache.getCompiledDeploymentPlansAsync(userId, tasks::add);
+        final boolean loadedInline = result.isDone();
+        tasks.forEach(Runnable::run);
+
+        // Then
+        verify(deploymentPlanRepository).findByUserId(userId);
+        assertThat(loadedInline).isFalse();
+        assertThat(result.join().getDeploymentPlans()).containsExactlyElementsOf(plans);
+    }
+
+    @Test
+    public void getCompiledDeploymentPlansAsync_whenCached_shouldCompleteImmediately() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        doReturn(Collections.singletonList(DeploymentPlanUtils.getDeploymentPlan())).when(deploymentPlanRepository).findByUserId(userId);
+        final CompiledDeploymentPlans expected = activeDeploymentPlansCache.getCompiledDeploymentPlans(userId);
+        final Executor executor = mock(Executor.class);
+
+        // When
+        final CompletableFuture<CompiledDeploymentPlans> result = activeDeploymentPlansCache.getCompiledDeploymentPlansAsync(userId, executor);
+
+        // Then
+        verifyZeroInteractions(executor);
+        assertThat(result.join()).isSameAs(expected);
+    }
+
+    @Test
+    public void getActiveDeploymentPlans_whenInvalidated_shouldReloadFromRepository() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final List<DeploymentPlan> oldPlans = Arrays.asList(DeploymentPlanUtils.getDeploymentPlan());
+        final List<DeploymentPlan> newPlans = Arrays.asList(DeploymentPlanUtils.getDeploymentPlan());
+        when(deploymentPlanRepository.findByUserId(userId)).thenReturn(oldPlans, newPlans);
+        activeDeploymentPlansCache.getActiveDeploymentPlans(userId);
+
+        // When
+        activeDeploymentPlansCache.invalidate(userId);
+        final List<DeploymentPlan> result = activeDeploymentPlansCache.getActiveDeploymentPlans(userId);
+
+        // Then
+        verify(deploymentPlanRepository, times(2)).findByUserId(userId);
+        assertThat(result).containsExactlyElementsOf(newPlans);
+    }
+
+    @Test
+    public void getActiveDeploymentPlans_whenInvalidatedDuringLoad_shouldNotKeepTheStaleResult() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final List<DeploymentPlan> oldPlans = Arrays.asList(DeploymentPlanUtils.getDeploymentPlan());
+        final List<DeploymentPlan> newPlans = Arrays.asList(DeploymentPlanUtils.getDeploymentPlan());
+        when(deploymentPlanRepository.findByUserId(userId))
+                .thenAnswer(invocation -> {
+                    activeDeploymentPlansCache.invalidate(userId);
+                    return oldPlans;
+                })
+                .thenReturn(newPlans);
+        activeDeploymentPlansCache.getActiveDeploymentPlans(userId);
+
+        // When
+        final List<DeploymentPlan> result = activeDeploymentPlansCache.getActiveDeploymentPlans(userId);
+
+        // Then
+        verify(deploymentPlanRepository, times(2)).findByUserId(userId);
+        assertThat(result).containsExactlyElementsOf(newPlans);
+    }
+
+    @Test
+    public void invalidate_shouldOnlyEvictGivenUser() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final String otherUserId = UUID.randomUUID().toString();
+        doReturn(Arrays.asList(DeploymentPlanUtils.getDeploymentPlan())).when(deploymentPlanRepository).findByUserId(anyString());
+        activeDeploymentPlansCache.getActiveDeploymentPlans(userId);
+        activeDeploymentPlansCache.getActiveDeploymentPlans(otherUserId);
+
+        // When
+        activeDeploymentPlansCache.invalidate(userId);
+        activeDeploymentPlansCache.getActiveDeploymentPlans(userId);
+        activeDeploymentPlansCache.getActiveDeploymentPlans(otherUserId);
+
+        // Then
+        verify(deploymentPlanRepository, times(2)).findByUserId(userId);
+        verify(deploymentPlanRepository, times(1)).findByUserId(otherUserId);
+    }
+
+    @Test
+    public void getActiveDeploymentPlans_whenMaxPlansExceeded_shouldEvictEntries() {
+        // Given
+        activeDeploymentPlansCache = new ActiveDeploymentPlansCache(deploymentPlanRepository, 4, 300);
+        doReturn(Arrays.asList(DeploymentPlanUtils.getDeploymentPlan(), DeploymentPlanUtils.getDeploymentPlan()))
+                .when(deploymentPlanRepository).findByUserId(anyString());
+
+        // When
+        activeDeploymentPlansCache.getActiveDeploymentPlans(UUID.randomUUID().toString());
+        activeDeploymentPlansCache.getActiveDeploymentPlans(UUID.randomUUID().toString());
+
+        // Then
+        final Map<String, Number> metrics = toMap(activeDeploymentPlansCache.metrics());
+        assertThat(metrics.get(METRIC_PREFIX + "size")).isEqualTo(1L);
+        assertThat(metrics.get(METRIC_PREFIX + "eviction")).isEqualTo(1L);
+    }
+
+    @Test
+    public void metrics_shouldReportHitsAndMisses() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        doReturn(Arrays.asList(DeploymentPlanUtils.getDeploymentPlan())).when(deploymentPlanRepository).findByUserId(userId);
+        activeDeploymentPlansCache.getActiveDeploymentPlans(userId);
+        activeDeploymentPlansCache.getActiveDeploymentPlans(userId);
+        activeDeploymentPlansCache.getActiveDeploymentPlans(userId);
+
+        // When
+        final Map<String, Number> metrics = toMap(activeDeploymentPlansCache.metrics());
+
+        // Then
+        assertThat(metrics.get(METRIC_PREFIX + "miss")).isEqualTo(1L);
+        assertThat(metrics.get(METRIC_PREFIX + "hit")).isEqualTo(2L);
+        assertThat(metrics.get(METRIC_PREFIX + "size")).isEqualTo(1L);
+    }
+
+    @Test
+    public void metrics_whenLoadedAsynchronously_shouldReportOneMissPerLoad() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final List<Runnable> tasks = new ArrayList<>();
+        doReturn(Arrays.asList(DeploymentPlanUtils.getDeploymentPlan())).when(deploymentPlanRepository).findByUserId(userId);
+        activeDeploymentPlansCache.getCompiledDeploymentPlansAsync(userId, tasks::add);
+        tasks.forEach(Runnable::run);
+        activeDeploymentPlansCache.getCompiledDeploymentPlansAsync(userId, tasks::add);
+
+        // When
+        final Map<String, Number> metrics = toMap(activeDeploymentPlansCache.metrics());
+
+        // Then
+        assertThat(metrics.get(METRIC_PREFIX + "miss")).isEqualTo(1L);
+        assertThat(metrics.get(METRIC_PREFIX + "hit")).isEqualTo(1L);
+    }
+
+    private static Map<String, Number> toMap(Collection<Metric<?>> metrics) {
+        return metrics.stream().collect(Collectors.toMap(Metric::getName, Metric::getValue));
+    }
+}
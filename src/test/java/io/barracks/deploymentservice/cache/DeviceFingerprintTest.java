@@ -0,0 +1,76 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.cache;
+
+import io.barracks.deploymentservice.model.DeviceRequest;
+import io.barracks.deploymentservice.utils.DeviceRequestUtils;
+import io.barracks.deploymentservice.utils.PackageUtils;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DeviceFingerprintTest {
+
+    @Test
+    public void of_shouldIgnoreCustomClientDataOrder() {
+        // Given
+        final Map<String, Object> data = new LinkedHashMap<>();
+        data.put("a", "1");
+        data.put("b", Collections.singletonMap("c", 2));
+        final Map<String, Object> reversed = new LinkedHashMap<>();
+        reversed.put("b", Collections.singletonMap("c", 2));
+        reversed.put("a", "1");
+
+        // When / Then
+        assertThat(DeviceFingerprint.of(DeviceRequest.builder().userId("user").customClientData(data).build()))
+                .isEqualTo(DeviceFingerprint.of(DeviceRequest.builder().userId("user").customClientData(reversed).build()));
+    }
+
+    @Test
+    public void of_shouldDependOnCustomClientDataAndPackages() {
+        // Given
+        final DeviceRequest request = DeviceRequestUtils.getDeviceRequest();
+        final DeviceRequest otherData = DeviceRequest.builder()
+                .userId(request.getUserId())
+                .unitId(request.getUnitId())
+                .addCustomClientData("aKey", 1)
+                .packages(request.getPackages())
+                .build();
+        final DeviceRequest otherPackages = DeviceRequest.builder()
+                .userId(request.getUserId())
+                .unitId(request.getUnitId())
+                .customClientData(request.getCustomClientData())
+                .addPackage(PackageUtils.getPackage())
+                .build();
+
+        // When / Then
+        assertThat(DeviceFingerprint.of(otherData)).isNotEqualTo(DeviceFingerprint.of(request));
+        assertThat(DeviceFingerprint.of(otherPackages)).isNotEqualTo(DeviceFingerprint.of(request));
+    }
+}
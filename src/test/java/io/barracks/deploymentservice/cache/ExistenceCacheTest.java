@@ -0,0 +1,232 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.cache;
+
+import io.barracks.deploymentservice.client.ComponentServiceClient;
+import io.barracks.deploymentservice.client.FilterServiceClient;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ExistenceCacheTest {
+
+    @Mock
+    private FilterServiceClient filterServiceClient;
+
+    @Mock
+    private ComponentServiceClient componentServiceClient;
+
+    private ExistenceCache existenceCache;
+
+    private String userId;
+
+    private String packageRef;
+
+    @Before
+    public void setUp() {
+        existenceCache = new ExistenceCache(filterServiceClient, componentServiceClient, true, 100, 60, 60);
+        userId = UUID.randomUUID().toString();
+        packageRef = UUID.randomUUID().toString();
+    }
+
+    @Test
+    public void filterExists_whenCalledTwice_shouldCheckRemoteServiceOnce() {
+        // Given
+        final String existing = UUID.randomUUID().toString();
+        final String unknown = UUID.randomUUID().toString();
+        doReturn(completedFuture(true)).when(filterServiceClient).filterExistsAsync(userId, existing);
+        doReturn(completedFuture(false)).when(filterServiceClient).filterExistsAsync(userId, unknown);
+
+        // When
+        existenceCache.filterExists(userId, existing);
+        existenceCache.filterExists(userId, unknown);
+        final boolean existingResult = existenceCache.filterExists(userId, existing).join();
+        final boolean unknownResult = existenceCache.filterExists(userId, unknown).join();
+
+        // Then
+        verify(filterServiceClient).filterExistsAsync(userId, existing);
+        verify(filterServiceClient).filterExistsAsync(userId, unknown);
+        assertThat(existingResult).isTrue();
+        assertThat(unknownResult).isFalse();
+    }
+
+    @Test
+    public void exists_whenNegativeLifetimeIsShorter_shouldRecheckMissingNamesOnly() {
+        // Given
+        existenceCache = new ExistenceCache(filterServiceClient, componentServiceClient, true, 100, 60, 0);
+        doReturn(completedFuture(true)).when(componentServiceClient).versionExistsAsync(userId, packageRef, "v1");
+        doReturn(completedFuture(false)).when(componentServiceClient).versionExistsAsync(userId, packageRef, "v2");
+
+        // When
+        existenceCache.versionExists(userId, packageRef, "v1");
+        existenceCache.versionExists(userId, packageRef, "v2");
+        existenceCache.versionExists(userId, packageRef, "v1");
+        existenceCache.versionExists(userId, packageRef, "v2");
+
+        // Then
+        verify(componentServiceClient, times(1)).versionExistsAsync(userId, packageRef, "v1");
+        verify(componentServiceClient, times(2)).versionExistsAsync(userId, packageRef, "v2");
+    }
+
+    @Test
+    public void exists_whenDisabled_shouldAlwaysCheckRemoteService() {
+        // Given
+        existenceCache = new ExistenceCache(filterServiceClient, componentServiceClient, false, 100, 60, 60);
+        doReturn(completedFuture(true)).when(componentServiceClient).packageExistsAsync(userId, packageRef);
+
+        // When
+        existenceCache.packageExists(userId, packageRef);
+        existenceCache.packageExists(userId, packageRef);
+
+        // Then
+        verify(componentServiceClient, times(2)).packageExistsAsync(userId, packageRef);
+    }
+
+    @Test
+    public void invalidatePackage_shouldForgetPackageAndItsVersions() {
+        // Given
+        final String otherPackageRef = UUID.randomUUID().toString();
+        doReturn(completedFuture(true)).when(componentServiceClient).packageExistsAsync(anyString(), anyString());
+        doReturn(completedFuture(true)).when(componentServiceClient).versionExistsAsync(anyString(), anyString(), anyString());
+        existenceCache.packageExists(userId, packageRef);
+        existenceCache.versionExists(userId, packageRef, "v1");
+        existenceCache.versionExists(userId, otherPackageRef, "v1");
+
+        // When
+        existenceCache.invalidatePackage(userId, packageRef);
+        existenceCache.packageExists(userId, packageRef);
+        existenceCache.versionExists(userId, packageRef, "v1");
+        existenceCache.versionExists(userId, otherPackageRef, "v1");
+
+        // Then
+        verify(componentServiceClient, times(2)).packageExistsAsync(userId, packageRef);
+        verify(componentServiceClient, times(2)).versionExistsAsync(userId, packageRef, "v1");
+        verify(componentServiceClient, times(1)).versionExistsAsync(userId, otherPackageRef, "v1");
+    }
+
+    @Test
+    public void invalidateFilter_shouldForgetOnlyThatFilter() {
+        // Given
+        doReturn(completedFuture(false)).when(filterServiceClient).filterExistsAsync(anyString(), anyString());
+        existenceCache.filterExists(userId, "filter1");
+        existenceCache.filterExists(userId, "filter2");
+
+        // When
+        existenceCache.invalidateFilter(userId, "filter1");
+        existenceCache.filterExists(userId, "filter1");
+        existenceCache.filterExists(userId, "filter2");
+
+        // Then
+        verify(filterServiceClient, times(2)).filterExistsAsync(userId, "filter1");
+        verify(filterServiceClient, times(1)).filterExistsAsync(userId, "filter2");
+    }
+
+    @Test
+    public void invalidateVersion_shouldForgetOnlyThatVersion() {
+        // Given
+        doReturn(completedFuture(true)).when(componentServiceClient).versionExistsAsync(anyString(), anyString(), anyString());
+        existenceCache.versionExists(userId, packageRef, "v1");
+        existenceCache.versionExists(userId, packageRef, "v2");
+
+        // When
+        existenceCache.invalidateVersion(userId, packageRef, "v1");
+        existenceCache.versionExists(userId, packageRef, "v1");
+        existenceCache.versionExists(userId, packageRef, "v2");
+
+        // Then
+        verify(componentServiceClient, times(2)).versionExistsAsync(userId, packageRef, "v1");
+        verify(componentServiceClient, times(1)).versionExistsAsync(userId, packageRef, "v2");
+    }
+
+    @Test
+    public void exists_whenRemoteCheckFails_shouldNotCacheAnything() {
+        // Given
+        final CompletableFuture<Boolean> failure = new CompletableFuture<>();
+        failure.completeExceptionally(new IllegalStateException());
+        doReturn(failure).doReturn(completedFuture(true)).when(filterServiceClient).filterExistsAsync(userId, "filter1");
+
+        // When
+        final CompletableFuture<Boolean> first = existenceCache.filterExists(userId, "filter1");
+        final boolean second = existenceCache.filterExists(userId, "filter1").join();
+
+        // Then
+        verify(filterServiceClient, times(2)).filterExistsAsync(userId, "filter1");
+        assertThat(first).isCompletedExceptionally();
+        assertThat(second).isTrue();
+    }
+
+    @Test
+    public void exists_whenCallerCancels_shouldCancelTheRemoteCheck() {
+        // Given
+        final CompletableFuture<Boolean> remoteCheck = new CompletableFuture<>();
+        doReturn(remoteCheck).when(componentServiceClient).packageExistsAsync(userId, packageRef);
+
+        // When
+        existenceCache.packageExists(userId, packageRef).cancel(true);
+
+        // Then
+        assertThat(remoteCheck).isCancelled();
+    }
+
+    @Test
+    public void metrics_shouldExposeHitsMissesAndSizes() {
+        // Given
+        doReturn(completedFuture(true)).when(filterServiceClient).filterExistsAsync(userId, "filter1");
+        doReturn(completedFuture(false)).when(filterServiceClient).filterExistsAsync(userId, "filter2");
+        existenceCache.filterExists(userId, "filter1");
+        existenceCache.filterExists(userId, "filter2");
+        existenceCache.filterExists(userId, "filter1");
+
+        // When
+        final Map<String, Number> metrics = toMap(existenceCache.metrics());
+
+        // Then
+        assertThat(metrics)
+                .containsEntry(ExistenceCache.METRIC_PREFIX + "size", 2L)
+                .containsEntry(ExistenceCache.METRIC_PREFIX + "positive.size", 1L)
+                .containsEntry(ExistenceCache.METRIC_PREFIX + "negative.size", 1L)
+                .containsEntry(ExistenceCache.METRIC_PREFIX + "hit", 1L)
+                .containsEntry(ExistenceCache.METRIC_PREFIX + "miss", 2L);
+    }
+
+    private static Map<String, Number> toMap(Collection<Metric<?>> metrics) {
+        return metrics.stream().collect(Collectors.toMap(Metric::getName, Metric::getValue));
+    }
+
+}
@@ -0,0 +1,214 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.cache;
+
+import com.google.common.collect.ImmutableSortedSet;
+import io.barracks.deploymentservice.model.DeviceRequest;
+import io.barracks.deploymentservice.utils.DeviceRequestUtils;
+import io.barracks.deploymentservice.utils.PackageUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static io.barracks.deploymentservice.cache.FilterDecisionsCache.METRIC_PREFIX;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FilterDecisionsCacheTest {
+
+    private static final ImmutableSortedSet<String> FILTER_SET = ImmutableSortedSet.of("alpha", "beta");
+
+    private FilterDecisionsCache filterDecisionsCache;
+
+    @Before
+    public void setUp() {
+        filterDecisionsCache = new FilterDecisionsCache(true, 100, 300);
+    }
+
+    @Test
+    public void get_whenDecisionStored_shouldReturnItForSameDevice() {
+        // Given
+        final DeviceRequest request = DeviceRequestUtils.getDeviceRequest();
+        filterDecisionsCache.forDevice(request).put(FILTER_SET, true);
+
+        // When
+        final Optional<Boolean> result = filterDecisionsCache.forDevice(request).get(FILTER_SET);
+        final Optional<Boolean> otherSet = filterDecisionsCache.forDevice(request).get(ImmutableSortedSet.of("alpha"));
+
+        // Then
+        assertThat(result).contains(true);
+        assertThat(otherSet).isEmpty();
+    }
+
+    @Test
+    public void get_whenDeviceDataChanged_shouldNotReturnStoredDecision() {
+        // Given
+        final DeviceRequest request = DeviceRequestUtils.getDeviceRequest();
+        final DeviceRequest updatedData = DeviceRequest.builder()
+                .userId(request.getUserId())
+                .unitId(request.getUnitId())
+                .addCustomClientData("aKey", "anotherValue")
+                .packages(request.getPackages())
+                .build();
+        final DeviceRequest updatedPackages = DeviceRequest.builder()
+                .userId(request.getUserId())
+                .unitId(request.getUnitId())
+                .customClientData(request.getCustomClientData())
+                .addPackage(PackageUtils.getPackage())
+                .build();
+        filterDecisionsCache.forDevice(request).put(FILTER_SET, true);
+
+        // When / Then
+        assertThat(filterDecisionsCache.forDevice(updatedData).get(FILTER_SET)).isEmpty();
+        assertThat(filterDecisionsCache.forDevice(updatedPackages).get(FILTER_SET)).isEmpty();
+    }
+
+    @Test
+    public void get_whenAnotherUnit_shouldNotReturnStoredDecision() {
+        // Given
+        final DeviceRequest request = DeviceRequestUtils.getDeviceRequest();
+        final DeviceRequest otherUnit = DeviceRequest.builder()
+                .userId(request.getUserId())
+                .unitId(UUID.randomUUID().toString())
+                .customClientData(request.getCustomClientData())
+                .packages(request.getPackages())
+                .build();
+        filterDecisionsCache.forDevice(request).put(FILTER_SET, false);
+
+        // When
+        final Optional<Boolean> result = filterDecisionsCache.forDevice(otherUnit).get(FILTER_SET);
+
+        // Then
+        assertThat(result).isEmpty();
+    }
+
+    @Test
+    public void get_whenInvalidated_shouldOnlyForgetDecisionsOfGivenUser() {
+        // Given
+        final DeviceRequest request = DeviceRequestUtils.getDeviceRequest();
+        final DeviceRequest otherUser = DeviceRequestUtils.getDeviceRequest();
+        filterDecisionsCache.forDevice(request).put(FILTER_SET, true);
+        filterDecisionsCache.forDevice(otherUser).put(FILTER_SET, true);
+
+        // When
+        filterDecisionsCache.invalidate(request.getUserId());
+
+        // Then
+        assertThat(filterDecisionsCache.forDevice(request).get(FILTER_SET)).isEmpty();
+        assertThat(filterDecisionsCache.forDevice(otherUser).get(FILTER_SET)).contains(true);
+    }
+
+    @Test
+    public void getGeneration_shouldChangeOnlyWhenGivenUserIsInvalidated() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final String otherUserId = UUID.randomUUID().toString();
+        final long initial = filterDecisionsCache.getGeneration(userId);
+
+        // When
+        filterDecisionsCache.invalidate(userId);
+
+        // Then
+        assertThat(filterDecisionsCache.getGeneration(userId)).isNotEqualTo(initial);
+        assertThat(filterDecisionsCache.getGeneration(otherUserId)).isEqualTo(initial);
+    }
+
+    @Test
+    public void getDecisionWindow_shouldChangeOncePerTtl() {
+        // Given
+        final AtomicLong now = new AtomicLong(TimeUnit.SECONDS.toMillis(600));
+        filterDecisionsCache = new FilterDecisionsCache(true, 100, 300, now::get);
+        final long initial = filterDecisionsCache.getDecisionWindow();
+
+        // When
+        now.addAndGet(TimeUnit.SECONDS.toMillis(300) - 1);
+        final long withinTtl = filterDecisionsCache.getDecisionWindow();
+        now.incrementAndGet();
+        final long afterTtl = filterDecisionsCache.getDecisionWindow();
+
+        // Then
+        assertThat(withinTtl).isEqualTo(initial);
+        assertThat(afterTtl).isNotEqualTo(initial);
+    }
+
+    @Test
+    public void forDevice_whenDisabled_shouldNotStoreDecisions() {
+        // Given
+        filterDecisionsCache = new FilterDecisionsCache(false, 100, 300);
+        final DeviceRequest request = DeviceRequestUtils.getDeviceRequest();
+
+        // When
+        filterDecisionsCache.forDevice(request).put(FILTER_SET, true);
+
+        // Then
+        assertThat(filterDecisionsCache.forDevice(request)).isSameAs(FilterDecisionsCache.DeviceDecisions.NONE);
+        assertThat(filterDecisionsCache.forDevice(request).get(FILTER_SET)).isEmpty();
+        assertThat(toMap(filterDecisionsCache.metrics()).get(METRIC_PREFIX + "size")).isEqualTo(0L);
+    }
+
+    @Test
+    public void metrics_shouldReportHitsAndMisses() {
+        // Given
+        final DeviceRequest request = DeviceRequestUtils.getDeviceRequest();
+        final FilterDecisionsCache.DeviceDecisions decisions = filterDecisionsCache.forDevice(request);
+        decisions.get(FILTER_SET);
+        decisions.put(FILTER_SET, true);
+        decisions.get(FILTER_SET);
+        decisions.get(FILTER_SET);
+
+        // When
+        final Map<String, Number> metrics = toMap(filterDecisionsCache.metrics());
+
+        // Then
+        assertThat(metrics.get(METRIC_PREFIX + "miss")).isEqualTo(1L);
+        assertThat(metrics.get(METRIC_PREFIX + "hit")).isEqualTo(2L);
+        assertThat(metrics.get(METRIC_PREFIX + "size")).isEqualTo(1L);
+    }
+
+    @Test
+    public void metrics_shouldReportSavedCallsPerResolve() {
+        // Given
+        filterDecisionsCache.recordSavedCalls(3);
+        filterDecisionsCache.recordSavedCalls(1);
+
+        // When
+        final Map<String, Number> metrics = toMap(filterDecisionsCache.metrics());
+
+        // Then
+        assertThat(metrics.get(METRIC_PREFIX + "saved_calls")).isEqualTo(4L);
+        assertThat(metrics.get(METRIC_PREFIX + "saved_calls.per_resolve")).isEqualTo(2.0);
+    }
+
+    private static Map<String, Number> toMap(Collection<Metric<?>> metrics) {
+        return metrics.stream().collect(Collectors.toMap(Metric::getName, Metric::getValue));
+    }
+}
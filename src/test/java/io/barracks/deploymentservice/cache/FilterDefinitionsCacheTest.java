@@ -0,0 +1,179 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.cache;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Ticker;
+import io.barracks.deploymentservice.client.FilterServiceClient;
+import io.barracks.deploymentservice.client.exception.FilterServiceClientException;
+import io.barracks.deploymentservice.filter.FilterExpression;
+import io.barracks.deploymentservice.model.DeviceRequest;
+import io.barracks.deploymentservice.model.Filter;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpServerErrorException;
+
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static io.barracks.deploymentservice.utils.DeviceRequestUtils.getDeviceRequest;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class FilterDefinitionsCacheTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Mock
+    private FilterServiceClient filterServiceClient;
+
+    private FilterDefinitionsCache filterDefinitionsCache;
+
+    @Before
+    public void setUp() {
+        filterDefinitionsCache = new FilterDefinitionsCache(filterServiceClient, 100, 60, 3600);
+    }
+
+    @Test
+    public void getFilterExpression_whenCalledTwice_shouldLoadDefinitionOnce() throws Exception {
+        // Given
+        final DeviceRequest request = getDeviceRequest();
+        final String filterName = UUID.randomUUID().toString();
+        final Filter filter = Filter.builder()
+                .name(filterName)
+                .query(objectMapper.readTree("{\"eq\": {\"unitId\": \"" + request.getUnitId() + "\"}}"))
+                .build();
+        doReturn(Optional.of(filter)).when(filterServiceClient).getFilter(request.getUserId(), filterName);
+
+        // When
+        final Optional<FilterExpression> first = filterDefinitionsCache.getFilterExpression(request.getUserId(), filterName);
+        final Optional<FilterExpression> second = filterDefinitionsCache.getFilterExpression(request.getUserId(), filterName);
+
+        // Then
+        verify(filterServiceClient).getFilter(request.getUserId(), filterName);
+        assertThat(first).isPresent();
+        assertThat(second).isPresent();
+        assertThat(first.get().evaluate(request)).contains(true);
+    }
+
+    @Test
+    public void getFilterExpression_whenInvalidated_shouldReloadDefinition() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final String filterName = UUID.randomUUID().toString();
+        doReturn(Optional.empty()).when(filterServiceClient).getFilter(userId, filterName);
+        filterDefinitionsCache.getFilterExpression(userId, filterName);
+
+        // When
+        filterDefinitionsCache.invalidate(userId, filterName);
+        filterDefinitionsCache.getFilterExpression(userId, filterName);
+
+        // Then
+        verify(filterServiceClient, times(2)).getFilter(userId, filterName);
+    }
+
+    @Test
+    public void getFilterExpression_whenRefreshIsDue_shouldKeepServingTheOldDefinitionUntilReloaded() throws Exception {
+        // Given
+        final AtomicLong nanos = new AtomicLong();
+        final ExecutorService refreshExecutor = Executors.newSingleThreadExecutor();
+        filterDefinitionsCache = new FilterDefinitionsCache(filterServiceClient, 100, 60, 3600, new Ticker() {
+            @Override
+            public long read() {
+                return nanos.get();
+            }
+        }, refreshExecutor);
+        final DeviceRequest request = getDeviceRequest();
+        final String filterName = UUID.randomUUID().toString();
+        final Filter filter = Filter.builder()
+                .name(filterName)
+                .query(objectMapper.readTree("{\"eq\": {\"unitId\": \"" + request.getUnitId() + "\"}}"))
+                .build();
+        final CountDownLatch release = new CountDownLatch(1);
+        when(filterServiceClient.getFilter(request.getUserId(), filterName))
+                .thenReturn(Optional.of(filter))
+                .thenAnswer(invocation -> {
+                    release.await(5, TimeUnit.SECONDS);
+                    return Optional.empty();
+                });
+        filterDefinitionsCache.getFilterExpression(request.getUserId(), filterName);
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(61));
+
+        // When
+        final Optional<FilterExpression> duringRefresh = filterDefinitionsCache.getFilterExpression(request.getUserId(), filterName);
+        release.countDown();
+        refreshExecutor.shutdown();
+        refreshExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        final Optional<FilterExpression> afterRefresh = filterDefinitionsCache.getFilterExpression(request.getUserId(), filterName);
+
+        // Then
+        verify(filterServiceClient, times(2)).getFilter(request.getUserId(), filterName);
+        assertThat(duringRefresh).isPresent();
+        assertThat(afterRefresh).isEmpty();
+    }
+
+    @Test
+    public void getFilterExpression_whenFilterIsUnknown_shouldReturnEmpty() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final String filterName = UUID.randomUUID().toString();
+        doReturn(Optional.empty()).when(filterServiceClient).getFilter(userId, filterName);
+
+        // When
+        final Optional<FilterExpression> result = filterDefinitionsCache.getFilterExpression(userId, filterName);
+
+        // Then
+        assertThat(result).isEmpty();
+    }
+
+    @Test
+    public void getFilterExpression_whenFilterServiceFails_shouldReturnEmpty_andRetryLater() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final String filterName = UUID.randomUUID().toString();
+        doThrow(new FilterServiceClientException(new HttpServerErrorException(HttpStatus.INTERNAL_SERVER_ERROR)))
+                .when(filterServiceClient).getFilter(userId, filterName);
+
+        // When
+        final Optional<FilterExpression> first = filterDefinitionsCache.getFilterExpression(userId, filterName);
+        final Optional<FilterExpression> second = filterDefinitionsCache.getFilterExpression(userId, filterName);
+
+        // Then
+        verify(filterServiceClient, times(2)).getFilter(userId, filterName);
+        assertThat(first).isEmpty();
+        assertThat(second).isEmpty();
+    }
+
+}
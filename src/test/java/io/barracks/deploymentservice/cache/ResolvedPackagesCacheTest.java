@@ -0,0 +1,274 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.cache;
+
+import io.barracks.deploymentservice.model.DeviceRequest;
+import io.barracks.deploymentservice.model.ResolvedPackages;
+import io.barracks.deploymentservice.utils.DeviceRequestUtils;
+import io.barracks.deploymentservice.utils.PackageUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static io.barracks.deploymentservice.cache.ResolvedPackagesCache.METRIC_PREFIX;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+public class ResolvedPackagesCacheTest {
+
+    private ResolvedPackagesCache resolvedPackagesCache;
+
+    @Before
+    public void setUp() {
+        resolvedPackagesCache = new ResolvedPackagesCache(true, 100, 60, 60);
+    }
+
+    @Test
+    public void get_whenCalledTwice_shouldResolveOnce() {
+        // Given
+        final DeviceRequest request = DeviceRequestUtils.getDeviceRequest();
+        final AtomicInteger calls = new AtomicInteger();
+        final Supplier<ResolvedPackages> resolver = countingResolver(calls);
+
+        // When
+        final ResolvedPackages first = resolvedPackagesCache.get(request, resolver);
+        final ResolvedPackages second = resolvedPackagesCache.get(request, resolver);
+
+        // Then
+        assertThat(calls.get()).isEqualTo(1);
+        assertThat(second).isSameAs(first);
+    }
+
+    @Test
+    public void get_whenSameDataForAnotherUnit_shouldResolveAgain() {
+        // Given
+        final DeviceRequest request = DeviceRequestUtils.getDeviceRequest();
+        final DeviceRequest otherUnit = DeviceRequest.builder()
+                .userId(request.getUserId())
+                .unitId(UUID.randomUUID().toString())
+                .customClientData(request.getCustomClientData())
+                .packages(request.getPackages())
+                .build();
+        final AtomicInteger calls = new AtomicInteger();
+
+        // When
+        resolvedPackagesCache.get(request, countingResolver(calls));
+        resolvedPackagesCache.get(otherUnit, countingResolver(calls));
+
+        // Then
+        assertThat(calls.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void get_whenInvalidated_shouldOnlyResolveAgainForGivenUser() {
+        // Given
+        final DeviceRequest request = DeviceRequestUtils.getDeviceRequest();
+        final DeviceRequest otherUser = DeviceRequestUtils.getDeviceRequest();
+        final AtomicInteger calls = new AtomicInteger();
+        final AtomicInteger otherCalls = new AtomicInteger();
+        resolvedPackagesCache.get(request, countingResolver(calls));
+        resolvedPackagesCache.get(otherUser, countingResolver(otherCalls));
+
+        // When
+        resolvedPackagesCache.invalidate(request.getUserId());
+        resolvedPackagesCache.get(request, countingResolver(calls));
+        resolvedPackagesCache.get(otherUser, countingResolver(otherCalls));
+
+        // Then
+        assertThat(calls.get()).isEqualTo(2);
+        assertThat(otherCalls.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void get_whenDisabled_shouldAlwaysResolve() {
+        // Given
+        resolvedPackagesCache = new ResolvedPackagesCache(false, 100, 60, 60);
+        final DeviceRequest request = DeviceRequestUtils.getDeviceRequest();
+        final AtomicInteger calls = new AtomicInteger();
+
+        // When
+        resolvedPackagesCache.get(request, countingResolver(calls));
+        resolvedPackagesCache.get(request, countingResolver(calls));
+
+        // Then
+        assertThat(calls.get()).isEqualTo(2);
+        assertThat(toMap(resolvedPackagesCache.metrics()).get(METRIC_PREFIX + "size")).isEqualTo(0L);
+    }
+
+    @Test
+    public void get_whenResolutionFails_shouldRethrowAndNotCache() {
+        // Given
+        final DeviceRequest request = DeviceRequestUtils.getDeviceRequest();
+        final AtomicInteger calls = new AtomicInteger();
+
+        // When / Then
+        assertThatExceptionOfType(IllegalStateException.class).isThrownBy(() ->
+                resolvedPackagesCache.get(request, () -> {
+                    throw new IllegalStateException();
+                })
+        );
+        resolvedPackagesCache.get(request, countingResolver(calls));
+        assertThat(calls.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void getAsync_shouldShareEntriesWithSynchronousLookups() {
+        // Given
+        final DeviceRequest request = DeviceRequestUtils.getDeviceRequest();
+        final AtomicInteger calls = new AtomicInteger();
+        final Supplier<ResolvedPackages> resolver = countingResolver(calls);
+
+        // When
+        final ResolvedPackages first = resolvedPackagesCache.getAsync(request, () -> CompletableFuture.completedFuture(resolver.get())).join();
+        final ResolvedPackages second = resolvedPackagesCache.get(request, resolver);
+        final ResolvedPackages third = resolvedPackagesCache.getAsync(request, () -> CompletableFuture.completedFuture(resolver.get())).join();
+
+        // Then
+        assertThat(calls.get()).isEqualTo(1);
+        assertThat(second).isSameAs(first);
+        assertThat(third).isSameAs(first);
+    }
+
+    @Test
+    public void getAsync_whenResolutionFails_shouldFailAndNotCache() {
+        // Given
+        final DeviceRequest request = DeviceRequestUtils.getDeviceRequest();
+        final AtomicInteger calls = new AtomicInteger();
+        final CompletableFuture<ResolvedPackages> failure = new CompletableFuture<>();
+        failure.completeExceptionally(new IllegalStateException());
+
+        // When
+        final CompletableFuture<ResolvedPackages> failed = resolvedPackagesCache.getAsync(request, () -> failure);
+        resolvedPackagesCache.get(request, countingResolver(calls));
+
+        // Then
+        assertThat(failed).isCompletedExceptionally();
+        assertThat(calls.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void metrics_shouldReportHitsAndMisses() {
+        // Given
+        final DeviceRequest request = DeviceRequestUtils.getDeviceRequest();
+        final AtomicInteger calls = new AtomicInteger();
+        resolvedPackagesCache.get(request, countingResolver(calls));
+        resolvedPackagesCache.get(request, countingResolver(calls));
+        resolvedPackagesCache.get(request, countingResolver(calls));
+
+        // When
+        final Map<String, Number> metrics = toMap(resolvedPackagesCache.metrics());
+
+        // Then
+        assertThat(metrics.get(METRIC_PREFIX + "miss")).isEqualTo(1L);
+        assertThat(metrics.get(METRIC_PREFIX + "hit")).isEqualTo(2L);
+        assertThat(metrics.get(METRIC_PREFIX + "size")).isEqualTo(1L);
+    }
+
+    @Test
+    public void getLastKnownGood_whenRemembered_shouldReturnStaleCopy() {
+        // Given
+        final DeviceRequest request = DeviceRequestUtils.getDeviceRequest();
+        final ResolvedPackages resolved = ResolvedPackages.builder().present(PackageUtils.getPackage()).build();
+        resolvedPackagesCache.remember(request, resolved);
+
+        // When
+        final Optional<ResolvedPackages> result = resolvedPackagesCache.getLastKnownGood(request);
+
+        // Then
+        assertThat(result).isPresent();
+        assertThat(result.get().isStale()).isTrue();
+        assertThat(result.get().getPresents()).isEqualTo(resolved.getPresents());
+        assertThat(toMap(resolvedPackagesCache.metrics()).get(METRIC_PREFIX + "stale.served")).isEqualTo(1L);
+    }
+
+    @Test
+    public void getLastKnownGood_whenInvalidated_shouldStillReturnStaleCopy() {
+        // Given
+        final DeviceRequest request = DeviceRequestUtils.getDeviceRequest();
+        resolvedPackagesCache.remember(request, ResolvedPackages.builder().present(PackageUtils.getPackage()).build());
+
+        // When
+        resolvedPackagesCache.invalidate(request.getUserId());
+        final Optional<ResolvedPackages> result = resolvedPackagesCache.getLastKnownGood(request);
+
+        // Then
+        assertThat(result).isPresent();
+    }
+
+    @Test
+    public void getLastKnownGood_whenNothingRemembered_shouldReturnEmpty() {
+        // Given
+        final DeviceRequest request = DeviceRequestUtils.getDeviceRequest();
+        resolvedPackagesCache.remember(DeviceRequestUtils.getDeviceRequest(), ResolvedPackages.builder().build());
+
+        // When
+        final Optional<ResolvedPackages> result = resolvedPackagesCache.getLastKnownGood(request);
+
+        // Then
+        assertThat(result).isEmpty();
+    }
+
+    @Test
+    public void remember_whenResolutionIsStale_shouldNotStoreIt() {
+        // Given
+        final DeviceRequest request = DeviceRequestUtils.getDeviceRequest();
+
+        // When
+        resolvedPackagesCache.remember(request, ResolvedPackages.builder().present(PackageUtils.getPackage()).build().asStale());
+
+        // Then
+        assertThat(resolvedPackagesCache.getLastKnownGood(request)).isEmpty();
+    }
+
+    @Test
+    public void remember_whenStaleTtlIsZero_shouldNotStoreAnything() {
+        // Given
+        resolvedPackagesCache = new ResolvedPackagesCache(true, 100, 60, 0);
+        final DeviceRequest request = DeviceRequestUtils.getDeviceRequest();
+
+        // When
+        resolvedPackagesCache.remember(request, ResolvedPackages.builder().present(PackageUtils.getPackage()).build());
+
+        // Then
+        assertThat(resolvedPackagesCache.getLastKnownGood(request)).isEmpty();
+    }
+
+    private static Supplier<ResolvedPackages> countingResolver(AtomicInteger calls) {
+        return () -> {
+            calls.incrementAndGet();
+            return ResolvedPackages.builder().present(PackageUtils.getPackage()).build();
+        };
+    }
+
+    private static Map<String, Number> toMap(Collection<Metric<?>> metrics) {
+        return metrics.stream().collect(Collectors.toMap(Metric::getName, Metric::getValue));
+    }
+}
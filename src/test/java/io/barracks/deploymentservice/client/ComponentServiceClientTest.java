@@ -26,16 +26,21 @@ package io.barracks.deploymentservice.client;
 
 import io.barracks.commons.util.Endpoint;
 import io.barracks.deploymentservice.client.exception.ComponentServiceClientException;
+import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.autoconfigure.web.client.RestClientTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
 import org.springframework.http.HttpStatus;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.web.client.AsyncRestTemplate;
 
 import java.util.UUID;
+import java.util.concurrent.CompletionException;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
@@ -52,6 +57,14 @@ public class ComponentServiceClientTest {
     private ComponentServiceClient componentServiceClient;
     @Autowired
     private MockRestServiceServer mockServer;
+    @Autowired
+    private AsyncRestTemplate asyncRestTemplate;
+    private MockRestServiceServer asyncMockServer;
+
+    @Before
+    public void setUp() {
+        asyncMockServer = MockRestServiceServer.bindTo(asyncRestTemplate).build();
+    }
 
     @Test
     public void versionExists_shouldReturnTrue_whenServiceReturn200() {
@@ -159,4 +172,70 @@ public class ComponentServiceClientTest {
                 .isThrownBy(() -> componentServiceClient.packageExists(userId, packageRef));
         mockServer.verify();
     }
-}
\ No newline at end of file
+
+    @Test
+    public void versionExistsAsync_shouldCompleteWithExistence_whenServiceReturns200Or404() {
+        // Given
+        final Endpoint endpoint = ComponentServiceClient.GET_VERSION_ENDPOINT;
+        final String userId = UUID.randomUUID().toString();
+        final String packageRef = UUID.randomUUID().toString();
+        asyncMockServer.expect(method(endpoint.getMethod()))
+                .andExpect(requestTo(endpoint.withBase(baseUrl).getURI(userId, packageRef, "v1")))
+                .andRespond(withStatus(HttpStatus.OK));
+        asyncMockServer.expect(method(endpoint.getMethod()))
+                .andExpect(requestTo(endpoint.withBase(baseUrl).getURI(userId, packageRef, "v2")))
+                .andRespond(withStatus(HttpStatus.NOT_FOUND));
+
+        // When
+        final boolean existing = componentServiceClient.versionExistsAsync(userId, packageRef, "v1").join();
+        final boolean unknown = componentServiceClient.versionExistsAsync(userId, packageRef, "v2").join();
+
+        // Then
+        asyncMockServer.verify();
+        assertThat(existing).isTrue();
+        assertThat(unknown).isFalse();
+    }
+
+    @Test
+    public void packageExistsAsync_shouldCompleteWithTrue_whenServiceReturns200() {
+        // Given
+        final Endpoint endpoint = ComponentServiceClient.GET_PACKAGE_ENDPOINT;
+        final String userId = UUID.randomUUID().toString();
+        final String packageRef = UUID.randomUUID().toString();
+        asyncMockServer.expect(method(endpoint.getMethod()))
+                .andExpect(requestTo(endpoint.withBase(baseUrl).getURI(userId, packageRef)))
+                .andRespond(withStatus(HttpStatus.OK));
+
+        // When
+        final boolean result = componentServiceClient.packageExistsAsync(userId, packageRef).join();
+
+        // Then
+        asyncMockServer.verify();
+        assertThat(result).isTrue();
+    }
+
+    @Test
+    public void packageExistsAsync_shouldFailWithAnException_whenServiceReturnsOtherCodes() {
+        // Given
+        final Endpoint endpoint = ComponentServiceClient.GET_PACKAGE_ENDPOINT;
+        final String userId = UUID.randomUUID().toString();
+        final String packageRef = UUID.randomUUID().toString();
+        asyncMockServer.expect(method(endpoint.getMethod()))
+                .andExpect(requestTo(endpoint.withBase(baseUrl).getURI(userId, packageRef)))
+                .andRespond(withStatus(HttpStatus.INTERNAL_SERVER_ERROR));
+
+        // When / Then
+        assertThatExceptionOfType(CompletionException.class)
+                .isThrownBy(() -> componentServiceClient.packageExistsAsync(userId, packageRef).join())
+                .withCauseInstanceOf(ComponentServiceClientException.class);
+        asyncMockServer.verify();
+    }
+
+    @TestConfiguration
+    static class AsyncRestTemplateConfiguration {
+        @Bean
+        public AsyncRestTemplate asyncRestTemplate() {
+            return new AsyncRestTemplate();
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.client;
+
+import io.barracks.deploymentservice.client.exception.DownstreamUnavailableException;
+import io.barracks.deploymentservice.client.exception.FilterServiceClientException;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+public class DownstreamGuardTest {
+
+    private static final String PREFIX = "test.";
+
+    private static final long OPEN_MILLIS = 1000;
+
+    private AtomicLong clock;
+
+    private DownstreamGuard guard;
+
+    @Before
+    public void setUp() {
+        clock = new AtomicLong();
+        guard = new DownstreamGuard("test service", PREFIX, 2, 2, OPEN_MILLIS, clock::get);
+    }
+
+    @Test
+    public void call_whenFailuresReachTheThreshold_shouldOpenTheCircuit() {
+        // Given
+        fail();
+        fail();
+
+        // When / Then
+        assertThat(guard.getState()).isEqualTo(DownstreamGuard.State.OPEN);
+        assertThatExceptionOfType(DownstreamUnavailableException.class)
+                .isThrownBy(() -> guard.call(() -> true))
+                .withMessageContaining("circuit breaker is open");
+        assertThat(toMap(guard.metrics()))
+                .containsEntry(PREFIX + "failures", 2L)
+                .containsEntry(PREFIX + "opened", 1L)
+                .containsEntry(PREFIX + "rejected.circuit", 1L);
+    }
+
+    @Test
+    public void call_whenASuccessHappensBetweenFailures_shouldKeepTheCircuitClosed() {
+        // Given
+        fail();
+        guard.call(() -> true);
+        fail();
+
+        // When / Then
+        assertThat(guard.getState()).isEqualTo(DownstreamGuard.State.CLOSED);
+        assertThat(guard.call(() -> true)).isTrue();
+    }
+
+    @Test
+    public void call_whenClientErrors_shouldNotCountAsFailures() {
+        // Given
+        for (int i = 0; i < 3; i++) {
+            assertThatExceptionOfType(FilterServiceClientException.class).isThrownBy(() -> guard.call(() -> {
+                throw new FilterServiceClientException(new HttpClientErrorException(HttpStatus.BAD_REQUEST));
+            }));
+        }
+
+        // When / Then
+        assertThat(guard.getState()).isEqualTo(DownstreamGuard.State.CLOSED);
+    }
+
+    @Test
+    public void call_whenOpenDelayHasElapsed_shouldLetOneProbeThroughAndCloseOnSuccess() {
+        // Given
+        fail();
+        fail();
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(OPEN_MILLIS));
+
+        // When
+        final Boolean result = guard.call(() -> {
+            assertThat(guard.getState()).isEqualTo(DownstreamGuard.State.HALF_OPEN);
+            assertThatExceptionOfType(DownstreamUnavailableException.class).isThrownBy(() -> guard.call(() -> true));
+            return true;
+        });
+
+        // Then
+        assertThat(result).isTrue();
+        assertThat(guard.getState()).isEqualTo(DownstreamGuard.State.CLOSED);
+    }
+
+    @Test
+    public void call_whenProbeFails_shouldReopenTheCircuit() {
+        // Given
+        fail();
+        fail();
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(OPEN_MILLIS));
+
+        // When
+        fail();
+
+        // Then
+        assertThat(guard.getState()).isEqualTo(DownstreamGuard.State.OPEN);
+        assertThat(toMap(guard.metrics())).containsEntry(PREFIX + "opened", 2L);
+    }
+
+    @Test
+    public void callAsync_whenTooManyCallsAreInFlight_shouldRejectImmediately() {
+        // Given
+        final CompletableFuture<Boolean> first = new CompletableFuture<>();
+        final CompletableFuture<Boolean> second = new CompletableFuture<>();
+        guard.callAsync(() -> first);
+        guard.callAsync(() -> second);
+
+        // When
+        final CompletableFuture<Boolean> rejected = guard.callAsync(() -> CompletableFuture.completedFuture(true));
+        first.complete(true);
+        final CompletableFuture<Boolean> accepted = guard.callAsync(() -> CompletableFuture.completedFuture(true));
+
+        // Then
+        assertThatExceptionOfType(CompletionException.class)
+                .isThrownBy(rejected::join)
+                .withMessageContaining("more than 2 concurrent calls");
+        assertThat(accepted.join()).isTrue();
+        assertThat(toMap(guard.metrics()))
+                .containsEntry(PREFIX + "rejected.bulkhead", 1L)
+                .containsEntry(PREFIX + "in_flight", 1);
+    }
+
+    @Test
+    public void callAsync_whenFailuresReachTheThreshold_shouldOpenTheCircuit() {
+        // Given
+        final CompletableFuture<Boolean> failed = new CompletableFuture<>();
+        failed.completeExceptionally(new FilterServiceClientException(new HttpServerErrorException(HttpStatus.BAD_GATEWAY)));
+
+        // When
+        guard.callAsync(() -> failed);
+        guard.callAsync(() -> failed);
+
+        // Then
+        assertThat(guard.getState()).isEqualTo(DownstreamGuard.State.OPEN);
+        assertThat(guard.callAsync(() -> CompletableFuture.completedFuture(true))).isCompletedExceptionally();
+    }
+
+    @Test
+    public void callAsync_whenCancelled_shouldCancelTheCallAndReleaseItsPermitWithoutCountingAFailure() {
+        // Given
+        final CompletableFuture<Boolean> call = new CompletableFuture<>();
+        final CompletableFuture<Boolean> guarded = guard.callAsync(() -> call);
+
+        // When
+        guarded.cancel(true);
+
+        // Then
+        assertThat(call.isCancelled()).isTrue();
+        assertThat(toMap(guard.metrics()))
+                .containsEntry(PREFIX + "in_flight", 0)
+                .containsEntry(PREFIX + "failures", 0L);
+        assertThat(guard.getState()).isEqualTo(DownstreamGuard.State.CLOSED);
+    }
+
+    @Test
+    public void callAsync_whenProbeIsCancelled_shouldLetTheNextCallProbeAgain() {
+        // Given
+        fail();
+        fail();
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(OPEN_MILLIS));
+        final CompletableFuture<Boolean> probe = guard.callAsync(CompletableFuture::new);
+
+        // When
+        probe.cancel(true);
+        final CompletableFuture<Boolean> result = guard.callAsync(() -> CompletableFuture.completedFuture(true));
+
+        // Then
+        assertThat(result.join()).isTrue();
+        assertThat(guard.getState()).isEqualTo(DownstreamGuard.State.CLOSED);
+    }
+
+    @Test
+    public void metrics_shouldReportMeanLatency() {
+        // Given
+        guard.call(() -> clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(10)));
+        guard.call(() -> clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(30)));
+
+        // When
+        final Map<String, Number> metrics = toMap(guard.metrics());
+
+        // Then
+        assertThat(metrics)
+                .containsEntry(PREFIX + "calls", 2L)
+                .containsEntry(PREFIX + "latency.mean_millis", 20.0);
+    }
+
+    private void fail() {
+        assertThatExceptionOfType(FilterServiceClientException.class).isThrownBy(() -> guard.call(() -> {
+            throw new FilterServiceClientException(new HttpServerErrorException(HttpStatus.INTERNAL_SERVER_ERROR));
+        }));
+    }
+
+    private static Map<String, Number> toMap(Collection<Metric<?>> metrics) {
+        return metrics.stream().collect(Collectors.toMap(Metric::getName, Metric::getValue));
+    }
+
+}
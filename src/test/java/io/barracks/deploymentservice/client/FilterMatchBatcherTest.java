@@ -0,0 +1,312 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.client;
+
+import com.google.common.util.concurrent.UncheckedTimeoutException;
+import io.barracks.deploymentservice.model.DeviceRequest;
+import io.barracks.deploymentservice.model.FilterSetsMatchRequest;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+
+import static io.barracks.deploymentservice.client.FilterMatchBatcher.METRIC_PREFIX;
+import static io.barracks.deploymentservice.utils.DeviceRequestUtils.getDeviceRequest;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class FilterMatchBatcherTest {
+
+    private static final Map<String, List<String>> FILTER_SETS = Collections.singletonMap("0", Collections.singletonList("beta"));
+
+    @Mock
+    private FilterServiceClient filterServiceClient;
+
+    private FilterMatchBatcher filterMatchBatcher;
+
+    @After
+    public void tearDown() {
+        if (filterMatchBatcher != null) {
+            filterMatchBatcher.shutdown();
+        }
+    }
+
+    @Test
+    public void matchFilterSets_whenDisabled_shouldCallFilterServiceDirectly() {
+        // Given
+        filterMatchBatcher = new FilterMatchBatcher(filterServiceClient, false, 5, 100, 5000, 1, 100);
+        final DeviceRequest request = getDeviceRequest();
+        doReturn(Collections.singletonMap("0", true)).when(filterServiceClient).matchFilterSets(request, FILTER_SETS);
+        doReturn(false).when(filterServiceClient).isRequestMatchingFilters(request, FILTER_SETS.get("0"));
+
+        // When
+        final Map<String, Boolean> sets = filterMatchBatcher.matchFilterSets(request, FILTER_SETS);
+        final boolean single = filterMatchBatcher.isRequestMatchingFilters(request, FILTER_SETS.get("0"));
+
+        // Then
+        verify(filterServiceClient).matchFilterSets(request, FILTER_SETS);
+        verify(filterServiceClient).isRequestMatchingFilters(request, FILTER_SETS.get("0"));
+        verifyNoMoreInteractions(filterServiceClient);
+        assertThat(sets).containsEntry("0", true);
+        assertThat(single).isFalse();
+    }
+
+    @Test
+    public void matchFilterSets_whenConcurrentCallsOfSameUser_shouldSendThemInOneBatch() throws Exception {
+        // Given
+        filterMatchBatcher = new FilterMatchBatcher(filterServiceClient, true, 10000, 3, 5000, 1, 100);
+        final DeviceRequest template = getDeviceRequest();
+        final List<DeviceRequest> requests = Arrays.asList(
+                withUnitId(template, "match"),
+                withUnitId(template, "other"),
+                withUnitId(template, "match")
+        );
+        answerByUnitId();
+        final ExecutorService callers = Executors.newFixedThreadPool(requests.size());
+
+        // When
+        final List<Future<Map<String, Boolean>>> futures = new ArrayList<>();
+        for (DeviceRequest request : requests) {
+            futures.add(callers.submit(() -> filterMatchBatcher.matchFilterSets(request, FILTER_SETS)));
+        }
+        final List<Boolean> results = new ArrayList<>();
+        for (Future<Map<String, Boolean>> future : futures) {
+            results.add(future.get(5, TimeUnit.SECONDS).get("0"));
+        }
+        callers.shutdown();
+
+        // Then
+        verify(filterServiceClient).matchDevicesFilterSets(eq(template.getUserId()), anyMapOf(String.class, FilterSetsMatchRequest.class));
+        verifyNoMoreInteractions(filterServiceClient);
+        assertThat(results).containsExactly(true, false, true);
+    }
+
+    @Test
+    public void isRequestMatchingFilters_whenMaxWaitElapsed_shouldSendPendingBatch() {
+        // Given
+        filterMatchBatcher = new FilterMatchBatcher(filterServiceClient, true, 10, 100, 5000, 1, 100);
+        final DeviceRequest request = withUnitId(getDeviceRequest(), "match");
+        answerByUnitId();
+
+        // When
+        final boolean result = filterMatchBatcher.isRequestMatchingFilters(request, FILTER_SETS.get("0"));
+
+        // Then
+        verify(filterServiceClient).matchDevicesFilterSets(eq(request.getUserId()), anyMapOf(String.class, FilterSetsMatchRequest.class));
+        verifyNoMoreInteractions(filterServiceClient);
+        assertThat(result).isTrue();
+    }
+
+    @Test
+    public void matchFilterSets_whenDifferentUsers_shouldSendOneBatchPerUser() {
+        // Given
+        filterMatchBatcher = new FilterMatchBatcher(filterServiceClient, true, 10000, 1, 5000, 1, 100);
+        final DeviceRequest first = getDeviceRequest();
+        final DeviceRequest second = getDeviceRequest();
+        answerByUnitId();
+
+        // When
+        filterMatchBatcher.matchFilterSets(first, FILTER_SETS);
+        filterMatchBatcher.matchFilterSets(second, FILTER_SETS);
+
+        // Then
+        verify(filterServiceClient).matchDevicesFilterSets(eq(first.getUserId()), anyMapOf(String.class, FilterSetsMatchRequest.class));
+        verify(filterServiceClient).matchDevicesFilterSets(eq(second.getUserId()), anyMapOf(String.class, FilterSetsMatchRequest.class));
+    }
+
+    @Test
+    public void matchFilterSets_whenFilterServiceFails_shouldThrowTheException() {
+        // Given
+        filterMatchBatcher = new FilterMatchBatcher(filterServiceClient, true, 10000, 1, 5000, 1, 100);
+        final IllegalStateException failure = new IllegalStateException();
+        doThrow(failure).when(filterServiceClient).matchDevicesFilterSets(anyString(), anyMapOf(String.class, FilterSetsMatchRequest.class));
+
+        // When / Then
+        assertThatExceptionOfType(IllegalStateException.class)
+                .isThrownBy(() -> filterMatchBatcher.matchFilterSets(getDeviceRequest(), FILTER_SETS));
+    }
+
+    @Test
+    public void matchFilterSets_whenBatchTakesTooLong_shouldThrowAnException() {
+        // Given
+        filterMatchBatcher = new FilterMatchBatcher(filterServiceClient, true, 1, 100, 50, 1, 100);
+        doAnswer(invocation -> {
+            Thread.sleep(1000);
+            return Collections.emptyMap();
+        }).when(filterServiceClient).matchDevicesFilterSets(anyString(), anyMapOf(String.class, FilterSetsMatchRequest.class));
+
+        // When / Then
+        assertThatExceptionOfType(UncheckedTimeoutException.class)
+                .isThrownBy(() -> filterMatchBatcher.matchFilterSets(getDeviceRequest(), FILTER_SETS));
+    }
+
+    @Test
+    public void metrics_shouldReturnQueueDepthAndBatchSizeHistograms() throws Exception {
+        // Given
+        filterMatchBatcher = new FilterMatchBatcher(filterServiceClient, true, 10000, 2, 5000, 1, 100);
+        final DeviceRequest request = getDeviceRequest();
+        answerByUnitId();
+        final ExecutorService callers = Executors.newFixedThreadPool(2);
+        final Future<?> first = callers.submit(() -> filterMatchBatcher.matchFilterSets(request, FILTER_SETS));
+        final Future<?> second = callers.submit(() -> filterMatchBatcher.matchFilterSets(request, FILTER_SETS));
+        first.get(5, TimeUnit.SECONDS);
+        second.get(5, TimeUnit.SECONDS);
+        callers.shutdown();
+
+        // When
+        final Map<String, Number> metrics = filterMatchBatcher.metrics().stream()
+                .collect(Collectors.toMap(Metric::getName, Metric::getValue));
+
+        // Then
+        assertThat(metrics)
+                .containsEntry(METRIC_PREFIX + "queue.depth", 0)
+                .containsEntry(METRIC_PREFIX + "queue.depth.le.1", 1L)
+                .containsEntry(METRIC_PREFIX + "queue.depth.le.2", 2L)
+                .containsEntry(METRIC_PREFIX + "batch.size.le.1", 0L)
+                .containsEntry(METRIC_PREFIX + "batch.size.le.2", 1L)
+                .containsEntry(METRIC_PREFIX + "batch.size.le.inf", 1L);
+    }
+
+    @Test
+    public void matchFilterSetsAsync_whenDisabled_shouldCallAsyncFilterServiceDirectly() {
+        // Given
+        filterMatchBatcher = new FilterMatchBatcher(filterServiceClient, false, 5, 100, 5000, 1, 100);
+        final DeviceRequest request = getDeviceRequest();
+        doReturn(CompletableFuture.completedFuture(Collections.singletonMap("0", true)))
+                .when(filterServiceClient).matchFilterSetsAsync(request, FILTER_SETS);
+
+        // When
+        final Map<String, Boolean> results = filterMatchBatcher.matchFilterSetsAsync(request, FILTER_SETS).join();
+
+        // Then
+        verify(filterServiceClient).matchFilterSetsAsync(request, FILTER_SETS);
+        verifyNoMoreInteractions(filterServiceClient);
+        assertThat(results).containsEntry("0", true);
+    }
+
+    @Test
+    public void matchFilterSetsAsync_whenEnabled_shouldJoinPendingBatchWithoutBlocking() {
+        // Given
+        filterMatchBatcher = new FilterMatchBatcher(filterServiceClient, true, 10000, 2, 5000, 1, 100);
+        final DeviceRequest first = withUnitId(getDeviceRequest(), "match");
+        final DeviceRequest second = withUnitId(first, "other");
+        answerByUnitId();
+
+        // When
+        final CompletableFuture<Map<String, Boolean>> firstResult = filterMatchBatcher.matchFilterSetsAsync(first, FILTER_SETS);
+        final boolean pendingBeforeFlush = !firstResult.isDone();
+        final CompletableFuture<Map<String, Boolean>> secondResult = filterMatchBatcher.matchFilterSetsAsync(second, FILTER_SETS);
+        final Map<String, Boolean> firstMatches = firstResult.join();
+        final Map<String, Boolean> secondMatches = secondResult.join();
+
+        // Then
+        verify(filterServiceClient).matchDevicesFilterSets(eq(first.getUserId()), anyMapOf(String.class, FilterSetsMatchRequest.class));
+        verifyNoMoreInteractions(filterServiceClient);
+        assertThat(pendingBeforeFlush).isTrue();
+        assertThat(firstMatches).containsEntry("0", true);
+        assertThat(secondMatches).containsEntry("0", false);
+    }
+
+    @Test
+    public void matchFilterSetsAsync_whenBatchIsFull_shouldNotSendItOnTheCallerThread() {
+        // Given
+        filterMatchBatcher = new FilterMatchBatcher(filterServiceClient, true, 10000, 1, 5000, 1, 100);
+        final DeviceRequest request = withUnitId(getDeviceRequest(), "match");
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Thread> senders = new CopyOnWriteArrayList<>();
+        doAnswer(invocation -> {
+            senders.add(Thread.currentThread());
+            release.await(5, TimeUnit.SECONDS);
+            return Collections.singletonMap("0", Collections.singletonMap("0", true));
+        }).when(filterServiceClient).matchDevicesFilterSets(anyString(), anyMapOf(String.class, FilterSetsMatchRequest.class));
+
+        // When
+        final CompletableFuture<Map<String, Boolean>> result = filterMatchBatcher.matchFilterSetsAsync(request, FILTER_SETS);
+        final boolean pendingWhileSending = !result.isDone();
+        release.countDown();
+
+        // Then
+        assertThat(pendingWhileSending).isTrue();
+        assertThat(result.join()).containsEntry("0", true);
+        assertThat(senders).hasSize(1).doesNotContain(Thread.currentThread());
+    }
+
+    @Test
+    public void matchFilterSetsAsync_whenTooManyBatchesArePending_shouldRejectTheBatch() throws Exception {
+        // Given
+        filterMatchBatcher = new FilterMatchBatcher(filterServiceClient, true, 10000, 1, 5000, 1, 1);
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            sending.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return Collections.emptyMap();
+        }).when(filterServiceClient).matchDevicesFilterSets(anyString(), anyMapOf(String.class, FilterSetsMatchRequest.class));
+        final CompletableFuture<Map<String, Boolean>> inFlight = filterMatchBatcher.matchFilterSetsAsync(getDeviceRequest(), FILTER_SETS);
+        sending.await(5, TimeUnit.SECONDS);
+        final CompletableFuture<Map<String, Boolean>> queued = filterMatchBatcher.matchFilterSetsAsync(getDeviceRequest(), FILTER_SETS);
+
+        // When
+        final CompletableFuture<Map<String, Boolean>> rejected = filterMatchBatcher.matchFilterSetsAsync(getDeviceRequest(), FILTER_SETS);
+        release.countDown();
+        final Map<String, Number> metrics = filterMatchBatcher.metrics().stream()
+                .collect(Collectors.toMap(Metric::getName, Metric::getValue));
+
+        // Then
+        assertThat(rejected).isCompletedExceptionally();
+        assertThat(inFlight.get(5, TimeUnit.SECONDS)).isEmpty();
+        assertThat(queued.get(5, TimeUnit.SECONDS)).isEmpty();
+        assertThat(metrics).containsEntry(METRIC_PREFIX + "batch.rejected", 1L);
+    }
+
+    private void answerByUnitId() {
+        doAnswer(invocation -> {
+            @SuppressWarnings("unchecked")
+            final Map<String, FilterSetsMatchRequest> requests = (Map<String, FilterSetsMatchRequest>) invocation.getArguments()[1];
+            final Map<String, Map<String, Boolean>> results = new HashMap<>();
+            requests.forEach((id, request) -> results.put(id, request.getFilterSets().keySet().stream()
+                    .collect(Collectors.toMap(name -> name, name -> "match".equals(request.getDevice().getUnitId())))));
+            return results;
+        }).when(filterServiceClient).matchDevicesFilterSets(anyString(), anyMapOf(String.class, FilterSetsMatchRequest.class));
+    }
+
+    private DeviceRequest withUnitId(DeviceRequest request, String unitId) {
+        return DeviceRequest.builder()
+                .userId(request.getUserId())
+                .unitId(unitId)
+                .customClientData(request.getCustomClientData())
+                .packages(request.getPackages())
+                .build();
+    }
+
+}
@@ -28,23 +28,36 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import io.barracks.commons.util.Endpoint;
 import io.barracks.deploymentservice.client.exception.FilterServiceClientException;
 import io.barracks.deploymentservice.model.DeviceRequest;
+import io.barracks.deploymentservice.model.Filter;
+import io.barracks.deploymentservice.model.FilterSetsMatchRequest;
+import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.actuate.metrics.Metric;
 import org.springframework.boot.test.autoconfigure.web.client.RestClientTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.test.web.client.MockRestServiceServer;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
+import org.springframework.web.client.AsyncRestTemplate;
 
-import java.util.Arrays;
-import java.util.List;
-import java.util.UUID;
+import java.util.*;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Collectors;
 
+import static io.barracks.deploymentservice.client.FilterServiceClient.BATCH_HEDGE_METRIC_PREFIX;
 import static io.barracks.deploymentservice.client.FilterServiceClient.GET_FILTER_BY_NAME_ENDPOINT;
+import static io.barracks.deploymentservice.client.FilterServiceClient.HEDGE_METRIC_PREFIX;
 import static io.barracks.deploymentservice.client.FilterServiceClient.MATCH_DEVICE_EVENT_ENDPOINT;
+import static io.barracks.deploymentservice.client.FilterServiceClient.MATCH_DEVICES_FILTER_SETS_ENDPOINT;
+import static io.barracks.deploymentservice.client.FilterServiceClient.MATCH_DEVICE_FILTER_SETS_ENDPOINT;
 import static io.barracks.deploymentservice.utils.DeviceRequestUtils.getDeviceRequest;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
@@ -62,6 +75,16 @@ public class FilterServiceClientTest {
     private MockRestServiceServer mockServer;
     @Autowired
     private ObjectMapper objectMapper;
+    @Autowired
+    private AsyncRestTemplate asyncRestTemplate;
+    private MockRestServiceServer asyncMockServer;
+
+    @Before
+    public void setUp() {
+        asyncMockServer = MockRestServiceServer.bindTo(asyncRestTemplate).build();
+        ReflectionTestUtils.setField(filterServiceClient, "batchMatchUnsupportedUntil", 0L);
+        ReflectionTestUtils.setField(filterServiceClient, "devicesBatchMatchUnsupportedUntil", 0L);
+    }
 
     @Test
     public void filterExists_shouldReturnTrue_WhenServerReturn200Code() {
@@ -115,6 +138,118 @@ public class FilterServiceClientTest {
         mockServer.verify();
     }
 
+    @Test
+    public void filterExistsAsync_shouldCompleteWithTrue_WhenServerReturn200Code() {
+        // Given
+        final Endpoint endpoint = GET_FILTER_BY_NAME_ENDPOINT;
+        final String userId = "My user id";
+        final String filterName = "The filter name";
+        asyncMockServer.expect(method(endpoint.getMethod()))
+                .andExpect(requestTo(endpoint.withBase(baseUrl).getURI(userId, filterName)))
+                .andRespond(withStatus(HttpStatus.OK));
+
+        // When
+        final boolean result = filterServiceClient.filterExistsAsync(userId, filterName).join();
+
+        // Then
+        asyncMockServer.verify();
+        assertThat(result).isTrue();
+    }
+
+    @Test
+    public void filterExistsAsync_shouldCompleteWithFalse_WhenServerReturn404Code() {
+        // Given
+        final Endpoint endpoint = GET_FILTER_BY_NAME_ENDPOINT;
+        final String userId = "My user id";
+        final String filterName = "The filter name";
+        asyncMockServer.expect(method(endpoint.getMethod()))
+                .andExpect(requestTo(endpoint.withBase(baseUrl).getURI(userId, filterName)))
+                .andRespond(withStatus(HttpStatus.NOT_FOUND));
+
+        // When
+        final boolean result = filterServiceClient.filterExistsAsync(userId, filterName).join();
+
+        // Then
+        asyncMockServer.verify();
+        assertThat(result).isFalse();
+    }
+
+    @Test
+    public void filterExistsAsync_shouldFailWithAnException_WhenServerReturnOtherCodes() {
+        // Given
+        final Endpoint endpoint = GET_FILTER_BY_NAME_ENDPOINT;
+        final String userId = "My user id";
+        final String filterName = "The filter name";
+        asyncMockServer.expect(method(endpoint.getMethod()))
+                .andExpect(requestTo(endpoint.withBase(baseUrl).getURI(userId, filterName)))
+                .andRespond(withStatus(HttpStatus.INTERNAL_SERVER_ERROR));
+
+        // When / Then
+        assertThatExceptionOfType(CompletionException.class)
+                .isThrownBy(() -> filterServiceClient.filterExistsAsync(userId, filterName).join())
+                .withCauseInstanceOf(FilterServiceClientException.class);
+        asyncMockServer.verify();
+    }
+
+    @Test
+    public void getFilter_shouldReturnFilter_whenServerReturn200Code() throws Exception {
+        // Given
+        final Endpoint endpoint = GET_FILTER_BY_NAME_ENDPOINT;
+        final String userId = "My user id";
+        final String filterName = "The filter name";
+        final Filter expected = Filter.builder()
+                .name(filterName)
+                .query(objectMapper.readTree("{\"eq\": {\"customClientData.channel\": \"beta\"}}"))
+                .build();
+        mockServer.expect(method(endpoint.getMethod()))
+                .andExpect(requestTo(endpoint.withBase(baseUrl).getURI(userId, filterName)))
+                .andRespond(withSuccess(
+                        "{\"name\": \"" + filterName + "\", \"userId\": \"" + userId + "\", \"query\": {\"eq\": {\"customClientData.channel\": \"beta\"}}}",
+                        MediaType.APPLICATION_JSON
+                ));
+
+        // When
+        final Optional<Filter> result = filterServiceClient.getFilter(userId, filterName);
+
+        // Then
+        mockServer.verify();
+        assertThat(result).contains(expected);
+    }
+
+    @Test
+    public void getFilter_shouldReturnEmpty_whenServerReturn404Code() {
+        // Given
+        final Endpoint endpoint = GET_FILTER_BY_NAME_ENDPOINT;
+        final String userId = "My user id";
+        final String filterName = "The filter name";
+        mockServer.expect(method(endpoint.getMethod()))
+                .andExpect(requestTo(endpoint.withBase(baseUrl).getURI(userId, filterName)))
+                .andRespond(withStatus(HttpStatus.NOT_FOUND));
+
+        // When
+        final Optional<Filter> result = filterServiceClient.getFilter(userId, filterName);
+
+        // Then
+        mockServer.verify();
+        assertThat(result).isEmpty();
+    }
+
+    @Test
+    public void getFilter_shouldThrowAnException_whenServerReturnOtherCodes() {
+        // Given
+        final Endpoint endpoint = GET_FILTER_BY_NAME_ENDPOINT;
+        final String userId = "My user id";
+        final String filterName = "The filter name";
+        mockServer.expect(method(endpoint.getMethod()))
+                .andExpect(requestTo(endpoint.withBase(baseUrl).getURI(userId, filterName)))
+                .andRespond(withServerError());
+
+        // When / Then
+        assertThatExceptionOfType(FilterServiceClientException.class)
+                .isThrownBy(() -> filterServiceClient.getFilter(userId, filterName));
+        mockServer.verify();
+    }
+
     @Test
     public void isRequestMatchingFilters_shouldReturnTrue_whenStatusOk() throws Exception {
         // Given
@@ -175,4 +310,320 @@ public class FilterServiceClientTest {
                 .isThrownBy(() -> filterServiceClient.isRequestMatchingFilters(request, filters));
         mockServer.verify();
     }
-}
\ No newline at end of file
+
+    @Test
+    public void isRequestMatchingFiltersAsync_shouldCompleteWithMatchResult() throws Exception {
+        // Given
+        final Endpoint endpoint = MATCH_DEVICE_EVENT_ENDPOINT;
+        final DeviceRequest request = getDeviceRequest();
+        final List<String> filters = Arrays.asList(UUID.randomUUID().toString(), UUID.randomUUID().toString());
+        final MultiValueMap<String, String> query = new LinkedMultiValueMap<>();
+        query.put("filter", filters);
+        asyncMockServer.expect(method(endpoint.getMethod()))
+                .andExpect(requestTo(endpoint.withBase(baseUrl).queryParams(query).getURI(request.getUserId(), request.getUnitId())))
+                .andExpect(content().string(objectMapper.writeValueAsString(request)))
+                .andRespond(withSuccess());
+        asyncMockServer.expect(method(endpoint.getMethod()))
+                .andExpect(requestTo(endpoint.withBase(baseUrl).queryParams(query).getURI(request.getUserId(), request.getUnitId())))
+                .andRespond(withStatus(HttpStatus.NOT_FOUND));
+
+        // When
+        final boolean matching = filterServiceClient.isRequestMatchingFiltersAsync(request, filters).join();
+        final boolean notMatching = filterServiceClient.isRequestMatchingFiltersAsync(request, filters).join();
+
+        // Then
+        asyncMockServer.verify();
+        assertThat(matching).isTrue();
+        assertThat(notMatching).isFalse();
+    }
+
+    @Test
+    public void matchFilterSets_whenBatchSupported_shouldSendDeviceOnce_andReturnResults() throws Exception {
+        // Given
+        final Endpoint endpoint = MATCH_DEVICE_FILTER_SETS_ENDPOINT;
+        final DeviceRequest request = getDeviceRequest();
+        final Map<String, List<String>> filterSets = getFilterSets();
+        final Map<String, Boolean> expected = new HashMap<>();
+        expected.put("0", true);
+        expected.put("1", false);
+        mockServer.expect(method(endpoint.getMethod()))
+                .andExpect(requestTo(endpoint.withBase(baseUrl).getURI(request.getUserId(), request.getUnitId())))
+                .andExpect(content().string(objectMapper.writeValueAsString(
+                        FilterSetsMatchRequest.builder().device(request).filterSets(filterSets).build()
+                )))
+                .andRespond(withSuccess(objectMapper.writeValueAsString(expected), MediaType.APPLICATION_JSON));
+
+        // When
+        final Map<String, Boolean> result = filterServiceClient.matchFilterSets(request, filterSets);
+
+        // Then
+        mockServer.verify();
+        assertThat(result).isEqualTo(expected);
+    }
+
+    @Test
+    public void matchFilterSets_whenBatchNotSupported_shouldFallbackToOneCallPerSet() throws Exception {
+        // Given
+        final DeviceRequest request = getDeviceRequest();
+        final Map<String, List<String>> filterSets = getFilterSets();
+        mockServer.expect(requestTo(MATCH_DEVICE_FILTER_SETS_ENDPOINT.withBase(baseUrl).getURI(request.getUserId(), request.getUnitId())))
+                .andRespond(withStatus(HttpStatus.NOT_FOUND));
+        expectSingleMatch(request, filterSets.get("0"), HttpStatus.OK);
+        expectSingleMatch(request, filterSets.get("1"), HttpStatus.NOT_FOUND);
+
+        // When
+        final Map<String, Boolean> result = filterServiceClient.matchFilterSets(request, filterSets);
+
+        // Then
+        mockServer.verify();
+        assertThat(result).containsEntry("0", true).containsEntry("1", false).hasSize(2);
+    }
+
+    @Test
+    public void matchFilterSets_whenBatchReportsUnknownDevice_shouldFallbackWithoutDisablingBatch() throws Exception {
+        // Given
+        final DeviceRequest request = getDeviceRequest();
+        final Map<String, List<String>> filterSets = getFilterSets();
+        final String unknownDevice = "{\"title\":\"Not Found\",\"status\":404,\"detail\":\"Unknown device\"}";
+        mockServer.expect(requestTo(MATCH_DEVICE_FILTER_SETS_ENDPOINT.withBase(baseUrl).getURI(request.getUserId(), request.getUnitId())))
+                .andRespond(withStatus(HttpStatus.NOT_FOUND).contentType(MediaType.APPLICATION_JSON).body(unknownDevice));
+        expectSingleMatch(request, filterSets.get("0"), HttpStatus.NOT_FOUND);
+        expectSingleMatch(request, filterSets.get("1"), HttpStatus.NOT_FOUND);
+        mockServer.expect(requestTo(MATCH_DEVICE_FILTER_SETS_ENDPOINT.withBase(baseUrl).getURI(request.getUserId(), request.getUnitId())))
+                .andRespond(withSuccess("{\"0\":true,\"1\":false}", MediaType.APPLICATION_JSON));
+        final Map<String, Boolean> unknown = filterServiceClient.matchFilterSets(request, filterSets);
+
+        // When
+        final Map<String, Boolean> result = filterServiceClient.matchFilterSets(request, filterSets);
+
+        // Then
+        mockServer.verify();
+        assertThat(unknown).containsEntry("0", false).containsEntry("1", false).hasSize(2);
+        assertThat(result).containsEntry("0", true).containsEntry("1", false).hasSize(2);
+    }
+
+    @Test
+    public void matchFilterSets_whenBatchAlreadyKnownAsNotSupported_shouldNotTryBatchAgain() throws Exception {
+        // Given
+        final DeviceRequest request = getDeviceRequest();
+        final Map<String, List<String>> filterSets = getFilterSets();
+        mockServer.expect(requestTo(MATCH_DEVICE_FILTER_SETS_ENDPOINT.withBase(baseUrl).getURI(request.getUserId(), request.getUnitId())))
+                .andRespond(withStatus(HttpStatus.NOT_IMPLEMENTED));
+        expectSingleMatch(request, filterSets.get("0"), HttpStatus.OK);
+        expectSingleMatch(request, filterSets.get("1"), HttpStatus.OK);
+        expectSingleMatch(request, filterSets.get("0"), HttpStatus.NOT_FOUND);
+        expectSingleMatch(request, filterSets.get("1"), HttpStatus.NOT_FOUND);
+        filterServiceClient.matchFilterSets(request, filterSets);
+
+        // When
+        final Map<String, Boolean> result = filterServiceClient.matchFilterSets(request, filterSets);
+
+        // Then
+        mockServer.verify();
+        assertThat(result).containsEntry("0", false).containsEntry("1", false).hasSize(2);
+    }
+
+    @Test
+    public void matchFilterSets_whenBatchResultIsIncomplete_shouldEvaluateMissingSetsOneByOne() throws Exception {
+        // Given
+        final DeviceRequest request = getDeviceRequest();
+        final Map<String, List<String>> filterSets = getFilterSets();
+        mockServer.expect(requestTo(MATCH_DEVICE_FILTER_SETS_ENDPOINT.withBase(baseUrl).getURI(request.getUserId(), request.getUnitId())))
+                .andRespond(withSuccess("{\"0\":false}", MediaType.APPLICATION_JSON));
+        expectSingleMatch(request, filterSets.get("1"), HttpStatus.OK);
+
+        // When
+        final Map<String, Boolean> result = filterServiceClient.matchFilterSets(request, filterSets);
+
+        // Then
+        mockServer.verify();
+        assertThat(result).containsEntry("0", false).containsEntry("1", true).hasSize(2);
+    }
+
+    @Test
+    public void matchFilterSets_whenServerError_shouldThrowException() throws Exception {
+        // Given
+        final DeviceRequest request = getDeviceRequest();
+        final Map<String, List<String>> filterSets = getFilterSets();
+        mockServer.expect(requestTo(MATCH_DEVICE_FILTER_SETS_ENDPOINT.withBase(baseUrl).getURI(request.getUserId(), request.getUnitId())))
+                .andRespond(withServerError());
+
+        // When / Then
+        assertThatExceptionOfType(FilterServiceClientException.class)
+                .isThrownBy(() -> filterServiceClient.matchFilterSets(request, filterSets));
+        mockServer.verify();
+    }
+
+    @Test
+    public void matchFilterSetsAsync_whenBatchSupported_shouldSendDeviceOnce_andCompleteWithResults() throws Exception {
+        // Given
+        final Endpoint endpoint = MATCH_DEVICE_FILTER_SETS_ENDPOINT;
+        final DeviceRequest request = getDeviceRequest();
+        final Map<String, List<String>> filterSets = getFilterSets();
+        final Map<String, Boolean> expected = new HashMap<>();
+        expected.put("0", true);
+        expected.put("1", false);
+        asyncMockServer.expect(method(endpoint.getMethod()))
+                .andExpect(requestTo(endpoint.withBase(baseUrl).getURI(request.getUserId(), request.getUnitId())))
+                .andExpect(content().string(objectMapper.writeValueAsString(
+                        FilterSetsMatchRequest.builder().device(request).filterSets(filterSets).build()
+                )))
+                .andRespond(withSuccess(objectMapper.writeValueAsString(expected), MediaType.APPLICATION_JSON));
+
+        // When
+        final Map<String, Boolean> result = filterServiceClient.matchFilterSetsAsync(request, filterSets).join();
+
+        // Then
+        asyncMockServer.verify();
+        assertThat(result).isEqualTo(expected);
+    }
+
+    @Test
+    public void matchFilterSetsAsync_whenBatchNotSupported_shouldFallbackToOneCallPerSet() throws Exception {
+        // Given
+        final DeviceRequest request = getDeviceRequest();
+        final Map<String, List<String>> filterSets = getFilterSets();
+        asyncMockServer.expect(requestTo(MATCH_DEVICE_FILTER_SETS_ENDPOINT.withBase(baseUrl).getURI(request.getUserId(), request.getUnitId())))
+                .andRespond(withStatus(HttpStatus.NOT_FOUND));
+        expectSingleMatch(asyncMockServer, request, filterSets.get("0"), HttpStatus.OK);
+        expectSingleMatch(asyncMockServer, request, filterSets.get("1"), HttpStatus.NOT_FOUND);
+
+        // When
+        final Map<String, Boolean> result = filterServiceClient.matchFilterSetsAsync(request, filterSets).join();
+
+        // Then
+        asyncMockServer.verify();
+        assertThat(result).containsEntry("0", true).containsEntry("1", false).hasSize(2);
+    }
+
+    @Test
+    public void matchFilterSetsAsync_whenServerError_shouldFailWithAnException() throws Exception {
+        // Given
+        final DeviceRequest request = getDeviceRequest();
+        final Map<String, List<String>> filterSets = getFilterSets();
+        asyncMockServer.expect(requestTo(MATCH_DEVICE_FILTER_SETS_ENDPOINT.withBase(baseUrl).getURI(request.getUserId(), request.getUnitId())))
+                .andRespond(withServerError());
+
+        // When / Then
+        assertThatExceptionOfType(CompletionException.class)
+                .isThrownBy(() -> filterServiceClient.matchFilterSetsAsync(request, filterSets).join())
+                .withCauseInstanceOf(FilterServiceClientException.class);
+        asyncMockServer.verify();
+    }
+
+    @Test
+    public void metrics_shouldExposeSingleAndBatchMatchHedging() {
+        // When
+        final Set<String> names = filterServiceClient.metrics().stream().map(Metric::getName).collect(Collectors.toSet());
+
+        // Then
+        assertThat(names).contains(HEDGE_METRIC_PREFIX + "hedged", BATCH_HEDGE_METRIC_PREFIX + "hedged");
+    }
+
+    @Test
+    public void matchDevicesFilterSets_whenBatchSupported_shouldSendAllDevicesOnce_andReturnResults() throws Exception {
+        // Given
+        final Endpoint endpoint = MATCH_DEVICES_FILTER_SETS_ENDPOINT;
+        final DeviceRequest request = getDeviceRequest();
+        final Map<String, FilterSetsMatchRequest> requests = getDevicesFilterSets(request, getDeviceRequest());
+        final Map<String, Map<String, Boolean>> expected = new HashMap<>();
+        expected.put("0", Collections.singletonMap("0", true));
+        expected.put("1", Collections.singletonMap("0", false));
+        mockServer.expect(method(endpoint.getMethod()))
+                .andExpect(requestTo(endpoint.withBase(baseUrl).getURI(request.getUserId())))
+                .andExpect(content().string(objectMapper.writeValueAsString(requests)))
+                .andRespond(withSuccess(objectMapper.writeValueAsString(expected), MediaType.APPLICATION_JSON));
+
+        // When
+        final Map<String, Map<String, Boolean>> result = filterServiceClient.matchDevicesFilterSets(request.getUserId(), requests);
+
+        // Then
+        mockServer.verify();
+        assertThat(result).isEqualTo(expected);
+    }
+
+    @Test
+    public void matchDevicesFilterSets_whenBatchNotSupported_shouldFallbackToOneCallPerDevice() throws Exception {
+        // Given
+        final DeviceRequest first = getDeviceRequest();
+        final DeviceRequest second = getDeviceRequest();
+        final Map<String, FilterSetsMatchRequest> requests = getDevicesFilterSets(first, second);
+        mockServer.expect(requestTo(MATCH_DEVICES_FILTER_SETS_ENDPOINT.withBase(baseUrl).getURI(first.getUserId())))
+                .andRespond(withStatus(HttpStatus.NOT_FOUND));
+        mockServer.expect(requestTo(MATCH_DEVICE_FILTER_SETS_ENDPOINT.withBase(baseUrl).getURI(first.getUserId(), first.getUnitId())))
+                .andRespond(withSuccess("{\"0\":true}", MediaType.APPLICATION_JSON));
+        mockServer.expect(requestTo(MATCH_DEVICE_FILTER_SETS_ENDPOINT.withBase(baseUrl).getURI(second.getUserId(), second.getUnitId())))
+                .andRespond(withSuccess("{\"0\":false}", MediaType.APPLICATION_JSON));
+
+        // When
+        final Map<String, Map<String, Boolean>> result = filterServiceClient.matchDevicesFilterSets(first.getUserId(), requests);
+
+        // Then
+        mockServer.verify();
+        assertThat(result)
+                .containsEntry("0", Collections.singletonMap("0", true))
+                .containsEntry("1", Collections.singletonMap("0", false))
+                .hasSize(2);
+    }
+
+    @Test
+    public void matchDevicesFilterSets_whenBatchResultIsIncomplete_shouldMatchMissingDevices() throws Exception {
+        // Given
+        final DeviceRequest first = getDeviceRequest();
+        final DeviceRequest second = getDeviceRequest();
+        final Map<String, FilterSetsMatchRequest> requests = getDevicesFilterSets(first, second);
+        mockServer.expect(requestTo(MATCH_DEVICES_FILTER_SETS_ENDPOINT.withBase(baseUrl).getURI(first.getUserId())))
+                .andRespond(withSuccess("{\"0\":{\"0\":false}}", MediaType.APPLICATION_JSON));
+        mockServer.expect(requestTo(MATCH_DEVICE_FILTER_SETS_ENDPOINT.withBase(baseUrl).getURI(second.getUserId(), second.getUnitId())))
+                .andRespond(withSuccess("{\"0\":true}", MediaType.APPLICATION_JSON));
+
+        // When
+        final Map<String, Map<String, Boolean>> result = filterServiceClient.matchDevicesFilterSets(first.getUserId(), requests);
+
+        // Then
+        mockServer.verify();
+        assertThat(result)
+                .containsEntry("0", Collections.singletonMap("0", false))
+                .containsEntry("1", Collections.singletonMap("0", true))
+                .hasSize(2);
+    }
+
+    private Map<String, FilterSetsMatchRequest> getDevicesFilterSets(DeviceRequest... devices) {
+        final Map<String, FilterSetsMatchRequest> requests = new LinkedHashMap<>();
+        for (int i = 0; i < devices.length; i++) {
+            requests.put(String.valueOf(i), FilterSetsMatchRequest.builder()
+                    .device(devices[i])
+                    .filterSet("0", Collections.singletonList(UUID.randomUUID().toString()))
+                    .build());
+        }
+        return requests;
+    }
+
+    private Map<String, List<String>> getFilterSets() {
+        final Map<String, List<String>> filterSets = new LinkedHashMap<>();
+        filterSets.put("0", Arrays.asList(UUID.randomUUID().toString(), UUID.randomUUID().toString()));
+        filterSets.put("1", Collections.singletonList(UUID.randomUUID().toString()));
+        return filterSets;
+    }
+
+    private void expectSingleMatch(DeviceRequest request, List<String> filters, HttpStatus status) {
+        expectSingleMatch(mockServer, request, filters, status);
+    }
+
+    private void expectSingleMatch(MockRestServiceServer server, DeviceRequest request, List<String> filters, HttpStatus status) {
+        final MultiValueMap<String, String> query = new LinkedMultiValueMap<>();
+        query.put("filter", filters);
+        server.expect(method(MATCH_DEVICE_EVENT_ENDPOINT.getMethod()))
+                .andExpect(requestTo(MATCH_DEVICE_EVENT_ENDPOINT.withBase(baseUrl).queryParams(query).getURI(request.getUserId(), request.getUnitId())))
+                .andRespond(withStatus(status));
+    }
+
+    @TestConfiguration
+    static class AsyncRestTemplateConfiguration {
+        @Bean
+        public AsyncRestTemplate asyncRestTemplate() {
+            return new AsyncRestTemplate();
+        }
+    }
+
+}
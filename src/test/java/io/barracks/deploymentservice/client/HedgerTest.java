@@ -0,0 +1,311 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.client;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+public class HedgerTest {
+
+    private static final String PREFIX = "test.";
+
+    private static final long FAST_MILLIS = 1;
+
+    private static final long SPIKE_MILLIS = 5000;
+
+    private ScheduledExecutorService scheduler;
+
+    private Hedger hedger;
+
+    @Before
+    public void setUp() {
+        scheduler = Executors.newScheduledThreadPool(2);
+        hedger = new Hedger(PREFIX, true, 95, 1, 100, 100, scheduler);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void execute_whenDisabled_shouldCallOnceAndReturnTheAttempt() {
+        // Given
+        hedger = new Hedger(PREFIX, false, 95, 1, 100, 100, scheduler);
+        warmUp();
+        final CompletableFuture<Boolean> attempt = new CompletableFuture<>();
+        final AtomicInteger calls = new AtomicInteger();
+
+        // When
+        final CompletableFuture<Boolean> result = hedger.execute(() -> {
+            calls.incrementAndGet();
+            return attempt;
+        });
+
+        // Then
+        assertThat(result).isSameAs(attempt);
+        assertThat(calls.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void execute_whenNotEnoughLatencySamples_shouldNotHedge() {
+        // Given
+        final AtomicInteger calls = new AtomicInteger();
+
+        // When
+        final Boolean result = hedger.join(() -> {
+            calls.incrementAndGet();
+            return respondAfter(100, true);
+        });
+
+        // Then
+        assertThat(hedger.getDelayNanos()).isNegative();
+        assertThat(result).isTrue();
+        assertThat(calls.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void execute_whenAttemptIsSlowerThanThePercentile_shouldHedgeAndTakeTheFastestAnswer() {
+        // Given
+        warmUp();
+        final SpikyStub stub = new SpikyStub(0);
+        final long start = System.nanoTime();
+
+        // When
+        final Boolean result = hedger.join(stub);
+
+        // Then
+        assertThat(result).isTrue();
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(SPIKE_MILLIS / 2);
+        assertThat(stub.calls.get()).isEqualTo(2);
+        assertThat(toMap(hedger.metrics()))
+                .containsEntry(PREFIX + "hedged", 1L)
+                .containsEntry(PREFIX + "hedge_won", 1L);
+    }
+
+    @Test
+    public void execute_whenHedgeWins_shouldCancelTheSlowAttempt() {
+        // Given
+        warmUp();
+        final CompletableFuture<Boolean> slow = new CompletableFuture<>();
+        final AtomicInteger calls = new AtomicInteger();
+
+        // When
+        final Boolean result = hedger.join(() -> calls.incrementAndGet() == 1 ? slow : respondAfter(FAST_MILLIS, true));
+
+        // Then
+        assertThat(result).isTrue();
+        assertThat(slow.isCancelled()).isTrue();
+    }
+
+    @Test
+    public void execute_whenHedgeWins_shouldRecordHowLongTheCancelledAttemptRan() {
+        // Given
+        hedger = new Hedger(PREFIX, true, 95, 1, 100, 1, scheduler);
+        hedger.record(TimeUnit.MILLISECONDS.toNanos(FAST_MILLIS));
+        final AtomicInteger calls = new AtomicInteger();
+
+        // When
+        final Boolean result = hedger.join(() -> calls.incrementAndGet() == 1 ? new CompletableFuture<Boolean>() : respondAfter(100, true));
+
+        // Then
+        assertThat(result).isTrue();
+        assertThat(calls.get()).isEqualTo(2);
+        assertThat(hedger.getDelayNanos()).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    public void execute_whenAttemptAnswersImmediately_shouldNotHedge() {
+        // Given
+        warmUp();
+        final AtomicInteger calls = new AtomicInteger();
+
+        // When
+        final Boolean result = hedger.join(() -> {
+            calls.incrementAndGet();
+            return CompletableFuture.completedFuture(true);
+        });
+
+        // Then
+        assertThat(result).isTrue();
+        assertThat(calls.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void execute_whenBudgetIsExhausted_shouldWaitForTheFirstAttempt() {
+        // Given
+        hedger = new Hedger(PREFIX, true, 95, 1, 0, 100, scheduler);
+        warmUp();
+        final AtomicInteger calls = new AtomicInteger();
+
+        // When
+        final Boolean result = hedger.join(() -> {
+            calls.incrementAndGet();
+            return respondAfter(100, true);
+        });
+
+        // Then
+        assertThat(result).isTrue();
+        assertThat(calls.get()).isEqualTo(1);
+        assertThat(toMap(hedger.metrics()))
+                .containsEntry(PREFIX + "hedged", 0L)
+                .containsEntry(PREFIX + "budget_exhausted", 1L);
+    }
+
+    @Test
+    public void execute_whenFirstAttemptFails_shouldAnswerWithTheHedge() {
+        // Given
+        warmUp();
+        final AtomicInteger calls = new AtomicInteger();
+
+        // When
+        final Boolean result = hedger.join(() -> calls.incrementAndGet() == 1
+                ? failAfter(200, new IllegalStateException("boom"))
+                : respondAfter(FAST_MILLIS, true)
+        );
+
+        // Then
+        assertThat(result).isTrue();
+        assertThat(calls.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void execute_whenEveryAttemptFails_shouldFailWithTheCause() {
+        // Given
+        warmUp();
+
+        // When / Then
+        assertThatExceptionOfType(IllegalStateException.class)
+                .isThrownBy(() -> hedger.join(() -> failAfter(50, new IllegalStateException("boom"))))
+                .withMessage("boom");
+    }
+
+    @Test
+    public void execute_whenStubInjectsLatencySpikes_shouldCutTheTail() {
+        // Given
+        final Set<Integer> spikes = IntStream.range(0, 10).map(i -> i * 10 + 5).boxed().collect(Collectors.toSet());
+        final SpikyStub stub = new SpikyStub(spikes);
+        warmUp();
+
+        // When
+        long worstMillis = 0;
+        for (int i = 0; i < 100; i++) {
+            final long start = System.nanoTime();
+            assertThat(hedger.join(stub)).isTrue();
+            worstMillis = Math.max(worstMillis, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+
+        // Then
+        assertThat(worstMillis).isLessThan(SPIKE_MILLIS / 2);
+        assertThat(toMap(hedger.metrics()).get(PREFIX + "hedged").longValue()).isGreaterThanOrEqualTo(spikes.size());
+    }
+
+    @Test
+    public void record_shouldUseTheConfiguredPercentileOfRecentLatencies() {
+        // Given
+        hedger = new Hedger(PREFIX, true, 95, 1, 10, 100, scheduler);
+
+        // When
+        for (long millis = 100; millis > 0; millis--) {
+            hedger.record(TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+
+        // Then
+        assertThat(hedger.getDelayNanos()).isEqualTo(TimeUnit.MILLISECONDS.toNanos(95));
+    }
+
+    @Test
+    public void record_whenPercentileIsBelowTheMinimumDelay_shouldUseTheMinimumDelay() {
+        // Given
+        hedger = new Hedger(PREFIX, true, 95, 20, 10, 100, scheduler);
+
+        // When
+        warmUp();
+
+        // Then
+        assertThat(hedger.getDelayNanos()).isEqualTo(TimeUnit.MILLISECONDS.toNanos(20));
+    }
+
+    private void warmUp() {
+        for (int i = 0; i < 100; i++) {
+            hedger.record(TimeUnit.MILLISECONDS.toNanos(FAST_MILLIS));
+        }
+    }
+
+    private CompletableFuture<Boolean> respondAfter(long millis, Boolean value) {
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        scheduler.schedule(() -> result.complete(value), millis, TimeUnit.MILLISECONDS);
+        return result;
+    }
+
+    private CompletableFuture<Boolean> failAfter(long millis, RuntimeException error) {
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+        scheduler.schedule(() -> result.completeExceptionally(error), millis, TimeUnit.MILLISECONDS);
+        return result;
+    }
+
+    private static Map<String, Number> toMap(Collection<Metric<?>> metrics) {
+        return metrics.stream().collect(Collectors.toMap(Metric::getName, Metric::getValue));
+    }
+
+    private class SpikyStub implements Supplier<CompletableFuture<Boolean>> {
+
+        private final Set<Integer> spikes;
+        private final AtomicInteger calls = new AtomicInteger();
+
+        SpikyStub(Set<Integer> spikes) {
+            this.spikes = spikes;
+        }
+
+        SpikyStub(int spike) {
+            this(Collections.singleton(spike));
+        }
+
+        @Override
+        public CompletableFuture<Boolean> get() {
+            return respondAfter(spikes.contains(calls.getAndIncrement()) ? SPIKE_MILLIS : FAST_MILLIS, true);
+        }
+
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.client;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HttpConnectionPoolMetricsTest {
+
+    private PoolingHttpClientConnectionManager connectionManager;
+
+    private PoolingNHttpClientConnectionManager asyncConnectionManager;
+
+    private HttpConnectionPoolMetrics httpConnectionPoolMetrics;
+
+    @Before
+    public void setUp() throws Exception {
+        connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(10);
+        connectionManager.setDefaultMaxPerRoute(4);
+        asyncConnectionManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor());
+        asyncConnectionManager.setMaxTotal(20);
+        httpConnectionPoolMetrics = new HttpConnectionPoolMetrics(connectionManager, asyncConnectionManager);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        connectionManager.shutdown();
+        asyncConnectionManager.shutdown();
+    }
+
+    @Test
+    public void metrics_whenPoolIsIdle_shouldReportTotals() {
+        // When
+        final Map<String, Number> metrics = toMap(httpConnectionPoolMetrics.metrics());
+
+        // Then
+        assertThat(metrics)
+                .containsEntry(HttpConnectionPoolMetrics.METRIC_PREFIX + "leased", 0)
+                .containsEntry(HttpConnectionPoolMetrics.METRIC_PREFIX + "available", 0)
+                .containsEntry(HttpConnectionPoolMetrics.METRIC_PREFIX + "pending", 0)
+                .containsEntry(HttpConnectionPoolMetrics.METRIC_PREFIX + "max", 10)
+                .containsEntry(HttpConnectionPoolMetrics.ASYNC_METRIC_PREFIX + "leased", 0)
+                .containsEntry(HttpConnectionPoolMetrics.ASYNC_METRIC_PREFIX + "max", 20);
+    }
+
+    @Test
+    public void metrics_whenAConnectionIsLeased_shouldReportItForTheTotalAndTheRoute() throws Exception {
+        // Given
+        final HttpRoute route = new HttpRoute(new HttpHost("filters.barracks.io", 80));
+        final HttpClientConnection connection = connectionManager.requestConnection(route, null).get(1, TimeUnit.SECONDS);
+
+        // When
+        final Map<String, Number> metrics = toMap(httpConnectionPoolMetrics.metrics());
+
+        // Then
+        final String routePrefix = HttpConnectionPoolMetrics.METRIC_PREFIX + "route.filters.barracks.io:80.";
+        assertThat(metrics)
+                .containsEntry(HttpConnectionPoolMetrics.METRIC_PREFIX + "leased", 1)
+                .containsEntry(routePrefix + "leased", 1)
+                .containsEntry(routePrefix + "available", 0)
+                .containsEntry(routePrefix + "max", 4);
+        connectionManager.releaseConnection(connection, null, 0, TimeUnit.MILLISECONDS);
+    }
+
+    private static Map<String, Number> toMap(Collection<Metric<?>> metrics) {
+        return metrics.stream().collect(Collectors.toMap(Metric::getName, Metric::getValue));
+    }
+
+}
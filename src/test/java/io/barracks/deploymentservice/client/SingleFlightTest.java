@@ -0,0 +1,236 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.client;
+
+import org.junit.Test;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+public class SingleFlightTest {
+
+    private static final String PREFIX = "test.";
+
+    @Test
+    public void executeAsync_whenSameKeyIsInFlight_shouldShareTheOutstandingCall() {
+        // Given
+        final SingleFlight<String, Boolean> singleFlight = new SingleFlight<>(PREFIX, true);
+        final CompletableFuture<Boolean> call = new CompletableFuture<>();
+        final AtomicInteger calls = new AtomicInteger();
+
+        // When
+        final CompletableFuture<Boolean> first = singleFlight.executeAsync("key", () -> {
+            calls.incrementAndGet();
+            return call;
+        });
+        final CompletableFuture<Boolean> second = singleFlight.executeAsync("key", () -> {
+            calls.incrementAndGet();
+            return CompletableFuture.completedFuture(false);
+        });
+        call.complete(true);
+
+        // Then
+        assertThat(calls.get()).isEqualTo(1);
+        assertThat(first.join()).isTrue();
+        assertThat(second.join()).isTrue();
+        assertThat(toMap(singleFlight.metrics()))
+                .containsEntry(PREFIX + "calls", 1L)
+                .containsEntry(PREFIX + "coalesced", 1L)
+                .containsEntry(PREFIX + "in_flight", 0);
+    }
+
+    @Test
+    public void executeAsync_whenPreviousCallHasCompleted_shouldIssueANewCall() {
+        // Given
+        final SingleFlight<String, Boolean> singleFlight = new SingleFlight<>(PREFIX, true);
+        singleFlight.executeAsync("key", () -> CompletableFuture.completedFuture(true)).join();
+
+        // When
+        final Boolean result = singleFlight.executeAsync("key", () -> CompletableFuture.completedFuture(false)).join();
+
+        // Then
+        assertThat(result).isFalse();
+        assertThat(toMap(singleFlight.metrics())).containsEntry(PREFIX + "calls", 2L).containsEntry(PREFIX + "coalesced", 0L);
+    }
+
+    @Test
+    public void executeAsync_whenDifferentKeys_shouldNotShareCalls() {
+        // Given
+        final SingleFlight<String, Boolean> singleFlight = new SingleFlight<>(PREFIX, true);
+        final CompletableFuture<Boolean> call = new CompletableFuture<>();
+
+        // When
+        singleFlight.executeAsync("key", () -> call);
+        final Boolean result = singleFlight.executeAsync("other", () -> CompletableFuture.completedFuture(false)).join();
+
+        // Then
+        assertThat(result).isFalse();
+        assertThat(toMap(singleFlight.metrics())).containsEntry(PREFIX + "calls", 2L).containsEntry(PREFIX + "in_flight", 1);
+    }
+
+    @Test
+    public void executeAsync_whenACallerCancels_shouldNotFailTheOthers() {
+        // Given
+        final SingleFlight<String, Boolean> singleFlight = new SingleFlight<>(PREFIX, true);
+        final CompletableFuture<Boolean> call = new CompletableFuture<>();
+        final CompletableFuture<Boolean> first = singleFlight.executeAsync("key", () -> call);
+        final CompletableFuture<Boolean> second = singleFlight.executeAsync("key", () -> call);
+
+        // When
+        first.cancel(true);
+        call.complete(true);
+
+        // Then
+        assertThat(second.join()).isTrue();
+    }
+
+    @Test
+    public void executeAsync_whenEveryCallerCancels_shouldCancelTheSharedCall() {
+        // Given
+        final SingleFlight<String, Boolean> singleFlight = new SingleFlight<>(PREFIX, true);
+        final CompletableFuture<Boolean> call = new CompletableFuture<>();
+        final CompletableFuture<Boolean> first = singleFlight.executeAsync("key", () -> call);
+        final CompletableFuture<Boolean> second = singleFlight.executeAsync("key", () -> call);
+
+        // When
+        first.cancel(true);
+        final boolean cancelledEarly = call.isCancelled();
+        second.cancel(true);
+
+        // Then
+        assertThat(cancelledEarly).isFalse();
+        assertThat(call).isCancelled();
+        assertThat(toMap(singleFlight.metrics())).containsEntry(PREFIX + "in_flight", 0);
+    }
+
+    @Test
+    public void executeAsync_whenCallFails_shouldFailEveryCallerWithTheCause() {
+        // Given
+        final SingleFlight<String, Boolean> singleFlight = new SingleFlight<>(PREFIX, true);
+        final CompletableFuture<Boolean> call = new CompletableFuture<>();
+        final IllegalStateException failure = new IllegalStateException("down");
+        final CompletableFuture<Boolean> first = singleFlight.executeAsync("key", () -> call);
+        final CompletableFuture<Boolean> second = singleFlight.executeAsync("key", () -> call);
+
+        // When
+        call.completeExceptionally(failure);
+
+        // Then
+        assertThatExceptionOfType(CompletionException.class).isThrownBy(first::join).withCause(failure);
+        assertThatExceptionOfType(CompletionException.class).isThrownBy(second::join).withCause(failure);
+        assertThat(toMap(singleFlight.metrics())).containsEntry(PREFIX + "in_flight", 0);
+    }
+
+    @Test
+    public void executeAsync_whenDisabled_shouldAlwaysCall() {
+        // Given
+        final SingleFlight<String, Boolean> singleFlight = new SingleFlight<>(PREFIX, false);
+        final CompletableFuture<Boolean> call = new CompletableFuture<>();
+        singleFlight.executeAsync("key", () -> call);
+
+        // When
+        final Boolean result = singleFlight.executeAsync("key", () -> CompletableFuture.completedFuture(false)).join();
+
+        // Then
+        assertThat(result).isFalse();
+        assertThat(toMap(singleFlight.metrics())).containsEntry(PREFIX + "calls", 2L).containsEntry(PREFIX + "coalesced", 0L);
+    }
+
+    @Test
+    public void execute_whenSameKeyIsInFlight_shouldWaitForTheOutstandingCall() throws Exception {
+        // Given
+        final SingleFlight<String, Boolean> singleFlight = new SingleFlight<>(PREFIX, true);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final Future<Boolean> first = executor.submit(() -> singleFlight.execute("key", () -> {
+                calls.incrementAndGet();
+                started.countDown();
+                awaitUninterruptibly(release);
+                return true;
+            }));
+            started.await(1, TimeUnit.SECONDS);
+
+            // When
+            final Future<Boolean> second = executor.submit(() -> singleFlight.execute("key", () -> {
+                calls.incrementAndGet();
+                return false;
+            }));
+            while (toMap(singleFlight.metrics()).get(PREFIX + "coalesced").longValue() == 0) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+
+            // Then
+            assertThat(first.get(1, TimeUnit.SECONDS)).isTrue();
+            assertThat(second.get(1, TimeUnit.SECONDS)).isTrue();
+            assertThat(calls.get()).isEqualTo(1);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void execute_whenCallFails_shouldRethrowTheCause() {
+        // Given
+        final SingleFlight<String, Boolean> singleFlight = new SingleFlight<>(PREFIX, true);
+
+        // When / Then
+        assertThatExceptionOfType(IllegalStateException.class)
+                .isThrownBy(() -> singleFlight.execute("key", () -> {
+                    throw new IllegalStateException("down");
+                }))
+                .withMessage("down");
+        assertThat(toMap(singleFlight.metrics())).containsEntry(PREFIX + "in_flight", 0);
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        try {
+            latch.await(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Map<String, Number> toMap(Collection<Metric<?>> metrics) {
+        return metrics.stream().collect(Collectors.toMap(Metric::getName, Metric::getValue));
+    }
+
+}
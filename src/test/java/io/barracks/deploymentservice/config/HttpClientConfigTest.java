@@ -0,0 +1,83 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.config;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+import org.junit.Test;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.web.client.RestTemplate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class HttpClientConfigTest {
+
+    private final HttpClientConfig httpClientConfig = new HttpClientConfig();
+
+    @Test
+    public void pooledRequestFactoryCustomizer_shouldUseTheSharedHttpClient() {
+        // Given
+        final CloseableHttpClient httpClient = mock(CloseableHttpClient.class);
+        final RestTemplate restTemplate = new RestTemplate();
+
+        // When
+        httpClientConfig.pooledRequestFactoryCustomizer(httpClient).customize(restTemplate);
+
+        // Then
+        assertThat(restTemplate.getRequestFactory()).isInstanceOf(HttpComponentsClientHttpRequestFactory.class);
+        assertThat(((HttpComponentsClientHttpRequestFactory) restTemplate.getRequestFactory()).getHttpClient()).isSameAs(httpClient);
+    }
+
+    @Test
+    public void keepAliveStrategy_whenServerDoesNotSendKeepAlive_shouldUseDefault() {
+        // Given
+        final HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+
+        // When
+        final long result = HttpClientConfig.keepAliveStrategy(30000).getKeepAliveDuration(response, new BasicHttpContext());
+
+        // Then
+        assertThat(result).isEqualTo(30000);
+    }
+
+    @Test
+    public void keepAliveStrategy_whenServerSendsKeepAlive_shouldUseServerTimeout() {
+        // Given
+        final HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+        response.addHeader("Keep-Alive", "timeout=5, max=100");
+
+        // When
+        final long result = HttpClientConfig.keepAliveStrategy(30000).getKeepAliveDuration(response, new BasicHttpContext());
+
+        // Then
+        assertThat(result).isEqualTo(5000);
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.filter;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.barracks.deploymentservice.model.DeviceRequest;
+import io.barracks.deploymentservice.model.Package;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FilterExpressionParserTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final DeviceRequest request = DeviceRequest.builder()
+            .userId("user")
+            .unitId("unit-42")
+            .addCustomClientData("channel", "beta")
+            .addCustomClientData("battery", 85)
+            .addCustomClientData("location", Collections.singletonMap("country", "FR"))
+            .addCustomClientData("tags", Collections.singletonList("a"))
+            .addPackage(Package.builder().reference("firmware").version("1.2.0").build())
+            .build();
+
+    @Test
+    public void parse_whenEquality_shouldMatchCustomClientDataAndDeviceFields() throws Exception {
+        assertThat(evaluate("{\"eq\": {\"customClientData.channel\": \"beta\"}}")).contains(true);
+        assertThat(evaluate("{\"eq\": {\"customClientData.channel\": \"stable\"}}")).contains(false);
+        assertThat(evaluate("{\"eq\": {\"unitId\": \"unit-42\"}}")).contains(true);
+        assertThat(evaluate("{\"eq\": {\"customClientData.location.country\": \"FR\"}}")).contains(true);
+        assertThat(evaluate("{\"eq\": {\"packages.firmware\": \"1.2.0\"}}")).contains(true);
+        assertThat(evaluate("{\"ne\": {\"customClientData.channel\": \"stable\"}}")).contains(true);
+    }
+
+    @Test
+    public void parse_whenComparison_shouldCompareNumbersAndStrings() throws Exception {
+        assertThat(evaluate("{\"gte\": {\"customClientData.battery\": 85}}")).contains(true);
+        assertThat(evaluate("{\"gt\": {\"customClientData.battery\": 85.5}}")).contains(false);
+        assertThat(evaluate("{\"lt\": {\"customClientData.battery\": 90}}")).contains(true);
+        assertThat(evaluate("{\"lte\": {\"packages.firmware\": \"1.1.9\"}}")).contains(false);
+    }
+
+    @Test
+    public void parse_whenFieldIsMissing_shouldOnlyMatchNegativeConditions() throws Exception {
+        assertThat(evaluate("{\"eq\": {\"customClientData.unknown\": \"x\"}}")).contains(false);
+        assertThat(evaluate("{\"gt\": {\"customClientData.unknown\": 1}}")).contains(false);
+        assertThat(evaluate("{\"ne\": {\"customClientData.unknown\": \"x\"}}")).contains(true);
+        assertThat(evaluate("{\"nin\": {\"customClientData.unknown\": [\"x\"]}}")).contains(true);
+        assertThat(evaluate("{\"exists\": {\"customClientData.unknown\": false}}")).contains(true);
+        assertThat(evaluate("{\"exists\": {\"customClientData.channel\": true}}")).contains(true);
+    }
+
+    @Test
+    public void parse_whenSetAndPatternConditions_shouldEvaluateThem() throws Exception {
+        assertThat(evaluate("{\"in\": {\"customClientData.channel\": [\"alpha\", \"beta\"]}}")).contains(true);
+        assertThat(evaluate("{\"nin\": {\"customClientData.channel\": [\"alpha\", \"beta\"]}}")).contains(false);
+        assertThat(evaluate("{\"regex\": {\"unitId\": \"^unit-\\\\d+$\"}}")).contains(true);
+        assertThat(evaluate("{\"regex\": {\"unitId\": \"^device-\"}}")).contains(false);
+    }
+
+    @Test
+    public void parse_whenLogicalOperators_shouldCombineResults() throws Exception {
+        assertThat(evaluate("{\"and\": [{\"eq\": {\"customClientData.channel\": \"beta\"}}, {\"gt\": {\"customClientData.battery\": 50}}]}")).contains(true);
+        assertThat(evaluate("{\"and\": [{\"eq\": {\"customClientData.channel\": \"beta\"}}, {\"gt\": {\"customClientData.battery\": 90}}]}")).contains(false);
+        assertThat(evaluate("{\"or\": [{\"eq\": {\"customClientData.channel\": \"stable\"}}, {\"eq\": {\"unitId\": \"unit-42\"}}]}")).contains(true);
+        assertThat(evaluate("{\"not\": {\"eq\": {\"customClientData.channel\": \"beta\"}}}")).contains(false);
+    }
+
+    @Test
+    public void parse_whenTypesCannotBeCompared_shouldNotDecide() throws Exception {
+        assertThat(evaluate("{\"eq\": {\"customClientData.battery\": \"85\"}}")).isEmpty();
+        assertThat(evaluate("{\"eq\": {\"customClientData.tags\": \"a\"}}")).isEmpty();
+        assertThat(evaluate("{\"regex\": {\"customClientData.battery\": \"8\"}}")).isEmpty();
+    }
+
+    @Test
+    public void parse_whenOneBranchIsUndecidedButAnotherIsDecisive_shouldDecide() throws Exception {
+        assertThat(evaluate("{\"or\": [{\"eq\": {\"customClientData.tags\": \"a\"}}, {\"eq\": {\"unitId\": \"unit-42\"}}]}")).contains(true);
+        assertThat(evaluate("{\"and\": [{\"eq\": {\"customClientData.tags\": \"a\"}}, {\"eq\": {\"unitId\": \"other\"}}]}")).contains(false);
+        assertThat(evaluate("{\"and\": [{\"eq\": {\"customClientData.tags\": \"a\"}}, {\"eq\": {\"unitId\": \"unit-42\"}}]}")).isEmpty();
+    }
+
+    @Test
+    public void parse_whenExpressionIsNotSupported_shouldReturnEmpty() throws Exception {
+        assertThat(FilterExpressionParser.parse(objectMapper.readTree("{\"near\": {\"customClientData.location\": [0, 0]}}"))).isEmpty();
+        assertThat(FilterExpressionParser.parse(objectMapper.readTree("{\"eq\": {\"deviceInfo.ip\": \"127.0.0.1\"}}"))).isEmpty();
+        assertThat(FilterExpressionParser.parse(objectMapper.readTree("{\"and\": [{\"eq\": {\"unitId\": \"a\"}}, {\"elemMatch\": {}}]}"))).isEmpty();
+        assertThat(FilterExpressionParser.parse(objectMapper.readTree("{\"regex\": {\"unitId\": \"(\"}}"))).isEmpty();
+        assertThat(FilterExpressionParser.parse(objectMapper.readTree("{\"eq\": {\"unitId\": \"a\"}, \"ne\": {\"unitId\": \"b\"}}"))).isEmpty();
+        assertThat(FilterExpressionParser.parse(null)).isEmpty();
+    }
+
+    private Optional<Boolean> evaluate(String query) throws Exception {
+        final Optional<FilterExpression> expression = FilterExpressionParser.parse(objectMapper.readTree(query));
+        assertThat(expression).isPresent();
+        return expression.get().evaluate(request);
+    }
+
+}
@@ -0,0 +1,112 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.filter;
+
+import io.barracks.deploymentservice.cache.FilterDefinitionsCache;
+import io.barracks.deploymentservice.model.DeviceRequest;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+
+import static io.barracks.deploymentservice.utils.DeviceRequestUtils.getDeviceRequest;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+@RunWith(MockitoJUnitRunner.class)
+public class LocalFilterEvaluatorTest {
+
+    @Mock
+    private FilterDefinitionsCache filterDefinitionsCache;
+
+    @Test
+    public void evaluate_whenAllFiltersAgree_shouldReturnTheirResult() {
+        // Given
+        final DeviceRequest request = getDeviceRequest();
+        final LocalFilterEvaluator evaluator = new LocalFilterEvaluator(filterDefinitionsCache, true);
+        doReturn(Optional.of(expression(true))).when(filterDefinitionsCache).getFilterExpression(request.getUserId(), "alpha");
+        doReturn(Optional.of(expression(true))).when(filterDefinitionsCache).getFilterExpression(request.getUserId(), "beta");
+
+        // When
+        final Optional<Boolean> result = evaluator.evaluate(request, Arrays.asList("alpha", "beta"));
+
+        // Then
+        assertThat(result).contains(true);
+    }
+
+    @Test
+    public void evaluate_whenFiltersDisagree_shouldNotDecide() {
+        // Given
+        final DeviceRequest request = getDeviceRequest();
+        final LocalFilterEvaluator evaluator = new LocalFilterEvaluator(filterDefinitionsCache, true);
+        doReturn(Optional.of(expression(true))).when(filterDefinitionsCache).getFilterExpression(request.getUserId(), "alpha");
+        doReturn(Optional.of(expression(false))).when(filterDefinitionsCache).getFilterExpression(request.getUserId(), "beta");
+
+        // When
+        final Optional<Boolean> result = evaluator.evaluate(request, Arrays.asList("alpha", "beta"));
+
+        // Then
+        assertThat(result).isEmpty();
+    }
+
+    @Test
+    public void evaluate_whenOneFilterIsNotSupported_shouldNotDecide() {
+        // Given
+        final DeviceRequest request = getDeviceRequest();
+        final LocalFilterEvaluator evaluator = new LocalFilterEvaluator(filterDefinitionsCache, true);
+        doReturn(Optional.of(expression(false))).when(filterDefinitionsCache).getFilterExpression(request.getUserId(), "alpha");
+        doReturn(Optional.empty()).when(filterDefinitionsCache).getFilterExpression(request.getUserId(), "beta");
+
+        // When
+        final Optional<Boolean> result = evaluator.evaluate(request, Arrays.asList("alpha", "beta"));
+
+        // Then
+        assertThat(result).isEmpty();
+    }
+
+    @Test
+    public void evaluate_whenDisabled_shouldNotDecide() {
+        // Given
+        final DeviceRequest request = getDeviceRequest();
+        final LocalFilterEvaluator evaluator = new LocalFilterEvaluator(filterDefinitionsCache, false);
+
+        // When
+        final Optional<Boolean> result = evaluator.evaluate(request, Collections.singletonList("alpha"));
+
+        // Then
+        verifyZeroInteractions(filterDefinitionsCache);
+        assertThat(result).isEmpty();
+    }
+
+    private FilterExpression expression(boolean result) {
+        return request -> Optional.of(result);
+    }
+
+}
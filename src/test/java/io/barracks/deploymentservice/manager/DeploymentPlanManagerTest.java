@@ -24,29 +24,43 @@
 
 package io.barracks.deploymentservice.manager;
 
-import io.barracks.deploymentservice.client.ComponentServiceClient;
-import io.barracks.deploymentservice.client.FilterServiceClient;
-import io.barracks.deploymentservice.exception.InvalidFiltersException;
+import io.barracks.deploymentservice.cache.ActiveDeploymentPlansCache;
+import io.barracks.deploymentservice.cache.FilterDecisionsCache;
+import io.barracks.deploymentservice.cache.ResolvedPackagesCache;
+import io.barracks.deploymentservice.client.FilterMatchBatcher;
+import io.barracks.deploymentservice.client.exception.DownstreamUnavailableException;
+import io.barracks.deploymentservice.filter.LocalFilterEvaluator;
 import io.barracks.deploymentservice.exception.InvalidPackageException;
-import io.barracks.deploymentservice.exception.InvalidVersionsException;
+import io.barracks.deploymentservice.exception.PackageResolutionUnavailableException;
 import io.barracks.deploymentservice.exception.UnknownDeploymentPlanException;
 import io.barracks.deploymentservice.model.*;
 import io.barracks.deploymentservice.model.Package;
 import io.barracks.deploymentservice.repository.DeploymentPlanRepository;
 import io.barracks.deploymentservice.utils.DeploymentPlanUtils;
 import io.barracks.deploymentservice.utils.PackageUtils;
+import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Spy;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.core.task.TaskExecutor;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static io.barracks.deploymentservice.utils.DeviceRequestUtils.getDeviceRequest;
 import static org.assertj.core.api.Assertions.assertThat;
@@ -60,160 +74,205 @@ public class DeploymentPlanManagerTest {
     private DeploymentPlanRepository deploymentPlanRepository;
 
     @Mock
-    private FilterServiceClient filterServiceClient;
+    private FilterMatchBatcher filterMatchBatcher;
 
     @Mock
-    private ComponentServiceClient componentServiceClient;
+    private LocalFilterEvaluator localFilterEvaluator;
+
+    @Mock
+    private PlanEvaluationExecutor planEvaluationExecutor;
+
+    @Mock
+    private DeploymentPlanValidator deploymentPlanValidator;
+
+    @Mock
+    private ActiveDeploymentPlansCache activeDeploymentPlansCache;
+
+    @Mock
+    private ResolvedPackagesCache resolvedPackagesCache;
+
+    @Mock
+    private FilterDecisionsCache filterDecisionsCache;
+
+    @Mock
+    private TaskExecutor asyncRequestExecutor;
 
     @Spy
     @InjectMocks
     private DeploymentPlanManager deploymentPlanManager;
 
+    @Before
+    public void setUp() throws Exception {
+        doReturn(FilterDecisionsCache.DeviceDecisions.NONE).when(filterDecisionsCache).forDevice(any(DeviceRequest.class));
+        doAnswer(invocation -> {
+            ((Runnable) invocation.getArguments()[0]).run();
+            return null;
+        }).when(asyncRequestExecutor).execute(any(Runnable.class));
+        doAnswer(invocation -> CompletableFuture.supplyAsync(
+                () -> activeDeploymentPlansCache.getCompiledDeploymentPlans((String) invocation.getArguments()[0]),
+                Runnable::run
+        )).when(activeDeploymentPlansCache).getCompiledDeploymentPlansAsync(anyString(), any(Executor.class));
+        doAnswer(invocation -> ((Supplier<?>) invocation.getArguments()[1]).get())
+                .when(resolvedPackagesCache).get(any(DeviceRequest.class), any(Supplier.class));
+        doAnswer(invocation -> invocation.getArguments()[1])
+                .when(resolvedPackagesCache).remember(any(DeviceRequest.class), any(ResolvedPackages.class));
+        doReturn(Optional.empty()).when(resolvedPackagesCache).getLastKnownGood(any(DeviceRequest.class));
+        doReturn(Optional.empty()).when(localFilterEvaluator).evaluate(any(DeviceRequest.class), anyCollection());
+        doAnswer(invocation -> {
+            final List<Object> results = new ArrayList<>();
+            for (Object task : (List<?>) invocation.getArguments()[0]) {
+                results.add(((Callable<?>) task).call());
+            }
+            return results;
+        }).when(planEvaluationExecutor).invokeAll(anyList());
+        doAnswer(invocation -> {
+            for (Object candidate : (List<?>) invocation.getArguments()[0]) {
+                final Optional<?> result = (Optional<?>) ((Callable<?>) candidate).call();
+                if (result.isPresent()) {
+                    return result;
+                }
+            }
+            return Optional.empty();
+        }).when(planEvaluationExecutor).findFirst(anyList());
+        doAnswer(invocation -> CompletableFuture.completedFuture(((Supplier<?>) invocation.getArguments()[0]).get()))
+                .when(planEvaluationExecutor).supplyAsync(any(Supplier.class));
+    }
+
     @Test
-    public void publishDeploymentPlan_shouldValidateAndSavePlan_andReturnResult() {
+    public void publishDeploymentPlanAsync_shouldValidateAndSavePlan_andReturnResult() {
         // Given
         final DeploymentPlan deploymentPlan = DeploymentPlanUtils.getDeploymentPlan();
         final DeploymentPlan expected = DeploymentPlanUtils.getDeploymentPlan();
-        doNothing().when(deploymentPlanManager).validateDeploymentPlanFilters(deploymentPlan);
-        doNothing().when(deploymentPlanManager).validateDeploymentPlanVersions(deploymentPlan);
-        doNothing().when(deploymentPlanManager).validateDeploymentPlanPackage(deploymentPlan);
+        doReturn(Optional.empty()).when(deploymentPlanRepository)
+                .getActiveDeploymentPlan(deploymentPlan.getUserId(), deploymentPlan.getPackageRef());
+        doReturn(CompletableFuture.completedFuture(null)).when(deploymentPlanValidator).validateAsync(eq(deploymentPlan), any(DeploymentPlanDiff.class));
         when(deploymentPlanRepository.insert(deploymentPlan)).thenReturn(expected);
 
         // When
-        final DeploymentPlan result = deploymentPlanManager.publishDeploymentPlan(deploymentPlan);
+        final DeploymentPlan result = deploymentPlanManager.publishDeploymentPlanAsync(deploymentPlan, false).join();
 
         // Then
-        verify(deploymentPlanManager).validateDeploymentPlanFilters(deploymentPlan);
-        verify(deploymentPlanManager).validateDeploymentPlanVersions(deploymentPlan);
-        verify(deploymentPlanManager).validateDeploymentPlanPackage(deploymentPlan);
+        verify(deploymentPlanValidator).validateAsync(deploymentPlan, DeploymentPlanDiff.full(deploymentPlan));
         verify(deploymentPlanRepository).insert(deploymentPlan);
+        verify(activeDeploymentPlansCache).invalidate(deploymentPlan.getUserId());
+        verify(resolvedPackagesCache).invalidate(deploymentPlan.getUserId());
+        verify(asyncRequestExecutor, times(2)).execute(any(Runnable.class));
         assertThat(result).isEqualTo(expected);
     }
 
     @Test
-    public void validateDeploymentPlanFilters_shouldThrowAnException_whenOneFilterDoesNotExist() {
+    public void publishDeploymentPlanAsync_whenAPlanIsActive_shouldOnlyValidateWhatChanged() {
         // Given
-        final String userId = "User ID";
-        final DeploymentPlan deploymentPlan = mock(DeploymentPlan.class);
-        final String existingFilter = "filter1";
-        final String unknownFilter = "filter2";
-        when(deploymentPlan.getUserId()).thenReturn(userId);
-        when(deploymentPlan.extractFilters()).thenReturn(Arrays.asList(existingFilter, unknownFilter));
-        when(filterServiceClient.filterExists(userId, existingFilter)).thenReturn(true);
-        when(filterServiceClient.filterExists(userId, unknownFilter)).thenReturn(false);
+        final DeploymentPlan previous = DeploymentPlan.builder().userId("user").packageRef("ref")
+                .deploymentRule(DeploymentRule.builder().versionId("1.0").build())
+                .build();
+        final DeploymentPlan deploymentPlan = previous.toBuilder()
+                .deploymentRule(DeploymentRule.builder().versionId("2.0").build())
+                .build();
+        doReturn(Optional.of(previous)).when(deploymentPlanRepository).getActiveDeploymentPlan("user", "ref");
+        doReturn(CompletableFuture.completedFuture(null)).when(deploymentPlanValidator).validateAsync(eq(deploymentPlan), any(DeploymentPlanDiff.class));
 
-        // When / Then
-        assertThatExceptionOfType(InvalidFiltersException.class)
-                .isThrownBy(() -> deploymentPlanManager.validateDeploymentPlanFilters(deploymentPlan))
-                .withMessageContaining(unknownFilter)
-                .withMessageContaining(userId);
-        verify(filterServiceClient).filterExists(userId, existingFilter);
-        verify(filterServiceClient).filterExists(userId, unknownFilter);
+        // When
+        deploymentPlanManager.publishDeploymentPlanAsync(deploymentPlan, false).join();
+
+        // Then
+        verify(deploymentPlanValidator).validateAsync(deploymentPlan, DeploymentPlanDiff.between(Optional.of(previous), deploymentPlan));
+        verify(deploymentPlanRepository).insert(deploymentPlan);
     }
 
     @Test
-    public void validateDeploymentPlanFilters_shouldNotThrowAnException_whenAllFiltersExist() {
+    public void publishDeploymentPlanAsync_whenFullValidationIsRequested_shouldIgnoreTheActivePlan() {
         // Given
-        final String userId = "User ID";
-        final DeploymentPlan deploymentPlan = mock(DeploymentPlan.class);
-        final List<String> existingFilters = Arrays.asList("filter1", "filter2");
-        when(deploymentPlan.getUserId()).thenReturn(userId);
-        when(deploymentPlan.extractFilters()).thenReturn(existingFilters);
-        existingFilters.forEach(filter -> {
-            when(filterServiceClient.filterExists(userId, filter)).thenReturn(true);
-        });
+        final DeploymentPlan deploymentPlan = DeploymentPlanUtils.getDeploymentPlan();
+        doReturn(CompletableFuture.completedFuture(null)).when(deploymentPlanValidator).validateAsync(eq(deploymentPlan), any(DeploymentPlanDiff.class));
 
         // When
-        deploymentPlanManager.validateDeploymentPlanFilters(deploymentPlan);
+        deploymentPlanManager.publishDeploymentPlanAsync(deploymentPlan, true).join();
 
         // Then
-        verify(filterServiceClient).filterExists(userId, existingFilters.get(0));
-        verify(filterServiceClient).filterExists(userId, existingFilters.get(1));
+        verify(deploymentPlanRepository, never()).getActiveDeploymentPlan(anyString(), anyString());
+        verify(deploymentPlanValidator).validateAsync(deploymentPlan, DeploymentPlanDiff.full(deploymentPlan));
+        verify(deploymentPlanRepository).insert(deploymentPlan);
     }
 
     @Test
-    public void validateDeploymentPlanVersions_shouldThrowAnException_whenOneVersionDoesNotExist() {
+    public void publishDeploymentPlanAsync_whenValidationFails_shouldNotSavePlan() {
         // Given
-        final String userId = "User ID";
-        final String packageRef = "io.barracks.app1";
-        final String existingVersion = "v0.0.1";
-        final String unknownVersion = "v0.0.2";
-        final DeploymentPlan deploymentPlan = mock(DeploymentPlan.class);
-        when(deploymentPlan.getUserId()).thenReturn(userId);
-        when(deploymentPlan.getPackageRef()).thenReturn(packageRef);
-        when(deploymentPlan.extractVersions()).thenReturn(Arrays.asList(existingVersion, unknownVersion));
-        when(componentServiceClient.versionExists(userId, packageRef, existingVersion)).thenReturn(true);
-        when(componentServiceClient.versionExists(userId, packageRef, unknownVersion)).thenReturn(false);
+        final DeploymentPlan deploymentPlan = DeploymentPlanUtils.getDeploymentPlan();
+        final InvalidPackageException failure = new InvalidPackageException(deploymentPlan.getUserId(), deploymentPlan.getPackageRef());
+        final CompletableFuture<Void> validation = new CompletableFuture<>();
+        validation.completeExceptionally(failure);
+        doReturn(validation).when(deploymentPlanValidator).validateAsync(eq(deploymentPlan), any(DeploymentPlanDiff.class));
 
-        // When / Then
-        assertThatExceptionOfType(InvalidVersionsException.class)
-                .isThrownBy(() -> deploymentPlanManager.validateDeploymentPlanVersions(deploymentPlan))
-                .withMessageContaining(unknownVersion)
-                .withMessageContaining(packageRef)
-                .withMessageContaining(userId);
-        verify(componentServiceClient).versionExists(userId, packageRef, existingVersion);
-        verify(componentServiceClient).versionExists(userId, packageRef, unknownVersion);
+        // When
+        final CompletableFuture<DeploymentPlan> result = deploymentPlanManager.publishDeploymentPlanAsync(deploymentPlan, true);
+
+        // Then
+        verify(deploymentPlanRepository, never()).insert(any(DeploymentPlan.class));
+        verifyZeroInteractions(activeDeploymentPlansCache, resolvedPackagesCache);
+        assertThatExceptionOfType(CompletionException.class).isThrownBy(result::join).withCause(failure);
     }
 
     @Test
-    public void validateDeploymentPlanFilters_shouldNotThrowAnException_whenAllVersionsExist() {
+    public void dryRunDeploymentPlan_shouldValidateDraft_andCompareItToTheActivePlanForEachDevice() {
         // Given
-        final String userId = "User ID";
-        final String packageRef = "io.barracks.app1";
-        final DeploymentPlan deploymentPlan = mock(DeploymentPlan.class);
-        final List<String> existingVersions = Arrays.asList("v0.0.1", "v0.0.2");
-        when(deploymentPlan.getUserId()).thenReturn(userId);
-        when(deploymentPlan.getPackageRef()).thenReturn(packageRef);
-        when(deploymentPlan.extractVersions()).thenReturn(existingVersions);
-        existingVersions.forEach(version -> {
-            when(componentServiceClient.versionExists(userId, packageRef, version)).thenReturn(true);
-        });
+        final DeviceRequest request = getDeviceRequest();
+        final DeploymentPlan active = DeploymentPlan.builder().id("active").userId(request.getUserId()).packageRef("ref")
+                .deploymentRule(DeploymentRule.builder().versionId("1.0").build())
+                .build();
+        final DeploymentPlan other = DeploymentPlan.builder().id("other").userId(request.getUserId()).packageRef("other").build();
+        final DeploymentPlan draft = DeploymentPlan.builder().userId(request.getUserId()).packageRef("ref")
+                .deploymentRule(DeploymentRule.builder().versionId("2.0").build())
+                .build();
+        doReturn(Arrays.asList(other, active)).when(activeDeploymentPlansCache).getActiveDeploymentPlans(request.getUserId());
 
         // When
-        deploymentPlanManager.validateDeploymentPlanVersions(deploymentPlan);
+        final DryRunOutcome result = deploymentPlanManager.dryRunDeploymentPlan(draft).apply(request);
 
         // Then
-        verify(componentServiceClient).versionExists(userId, packageRef, existingVersions.get(0));
-        verify(componentServiceClient).versionExists(userId, packageRef, existingVersions.get(1));
+        verify(deploymentPlanValidator).validate(draft, DeploymentPlanDiff.between(Optional.of(active), draft));
+        verify(filterDecisionsCache, never()).forDevice(any(DeviceRequest.class));
+        verifyZeroInteractions(deploymentPlanRepository, resolvedPackagesCache);
+        assertThat(result).isEqualTo(DryRunOutcome.of(
+                request.getUnitId(),
+                Package.builder().reference("ref").version("1.0").build(),
+                Package.builder().reference("ref").version("2.0").build()
+        ));
+        assertThat(result.getChange()).isEqualTo(DryRunOutcome.Change.UPDATE);
     }
 
-
     @Test
-    public void validateDeploymentPlanPackage_shouldThrowAnException_whenPackageDoesNotExist() {
+    public void dryRunDeploymentPlan_whenNoActivePlan_shouldReportAnInstall() {
         // Given
-        final String userId = UUID.randomUUID().toString();
-        final String packageRef = UUID.randomUUID().toString();
-        final DeploymentPlan deploymentPlan = mock(DeploymentPlan.class);
-
-        when(deploymentPlan.getUserId()).thenReturn(userId);
-        when(deploymentPlan.getPackageRef()).thenReturn(packageRef);
-        doReturn(false).when(componentServiceClient).packageExists(userId, packageRef);
+        final DeviceRequest request = getDeviceRequest();
+        final DeploymentPlan draft = DeploymentPlan.builder().userId(request.getUserId()).packageRef("ref").build();
+        doReturn(Collections.emptyList()).when(activeDeploymentPlansCache).getActiveDeploymentPlans(request.getUserId());
 
-        // When / Then
-        assertThatExceptionOfType(InvalidPackageException.class)
-                .isThrownBy(() -> deploymentPlanManager.validateDeploymentPlanPackage(deploymentPlan))
-                .withMessageContaining(userId)
-                .withMessageContaining(packageRef);
+        // When
+        final DryRunOutcome result = deploymentPlanManager.dryRunDeploymentPlan(draft).apply(request);
 
-        verify(componentServiceClient).packageExists(userId, packageRef);
+        // Then
+        assertThat(result.getCurrent()).isNull();
+        assertThat(result.getDraft()).isEqualTo(Package.builder().reference("ref").build());
+        assertThat(result.getChange()).isEqualTo(DryRunOutcome.Change.INSTALL);
     }
 
     @Test
-    public void validateDeploymentPlanPackage_shouldNotThrowAnException_whenPackageExists() {
+    public void dryRunDeploymentPlan_whenResolutionFails_shouldReportAnError() {
         // Given
-        final String userId = UUID.randomUUID().toString();
-        final String packageRef = UUID.randomUUID().toString();
-        final DeploymentPlan deploymentPlan = mock(DeploymentPlan.class);
-
-        when(deploymentPlan.getUserId()).thenReturn(userId);
-        when(deploymentPlan.getPackageRef()).thenReturn(packageRef);
-        doReturn(true).when(componentServiceClient).packageExists(userId, packageRef);
+        final DeviceRequest request = getDeviceRequest();
+        final DeploymentPlan draft = DeploymentPlan.builder().userId(request.getUserId()).packageRef("ref").build();
+        doReturn(Collections.emptyList()).when(activeDeploymentPlansCache).getActiveDeploymentPlans(request.getUserId());
+        doThrow(new PackageResolutionUnavailableException(request.getUserId(), request.getUnitId(), "timeout"))
+                .when(deploymentPlanManager).resolvePlanPackages(eq(request), any(CompiledDeploymentPlans.class), eq(FilterDecisionsCache.DeviceDecisions.NONE));
 
         // When
-        deploymentPlanManager.validateDeploymentPlanPackage(deploymentPlan);
+        final DryRunOutcome result = deploymentPlanManager.dryRunDeploymentPlan(draft).apply(request);
 
         // Then
-        verify(componentServiceClient).packageExists(userId, packageRef);
+        assertThat(result.getUnitId()).isEqualTo(request.getUnitId());
+        assertThat(result.getChange()).isEqualTo(DryRunOutcome.Change.ERROR);
+        assertThat(result.getError()).isNotEmpty();
     }
 
     @Test
@@ -223,12 +282,14 @@ public class DeploymentPlanManagerTest {
         final DeploymentRule rule = mock(DeploymentRule.class);
         doReturn(Optional.empty()).when(rule).getAllow();
         doReturn(Optional.empty()).when(rule).getDeny();
+        final CompiledDeploymentPlans compiled = compile(rule);
+        final DeviceFilterMatcher matcher = getMatcher(request, compiled);
 
         // When
-        final boolean result = deploymentPlanManager.isVersionAvailable(request, rule);
+        final boolean result = deploymentPlanManager.isVersionAvailable(matcher, compiled.getPlans().get(0), 0);
 
         // Then
-        verifyZeroInteractions(componentServiceClient);
+        verifyZeroInteractions(deploymentPlanValidator);
         assertThat(result).isTrue();
     }
 
@@ -240,13 +301,15 @@ public class DeploymentPlanManagerTest {
         final DeploymentCondition allow = DeploymentCondition.builder().filters(Collections.singletonList(UUID.randomUUID().toString())).build();
         doReturn(Optional.of(allow)).when(rule).getAllow();
         doReturn(Optional.empty()).when(rule).getDeny();
-        doReturn(true).when(filterServiceClient).isRequestMatchingFilters(request, allow.getFilters());
+        doReturn(true).when(filterMatchBatcher).isRequestMatchingFilters(request, allow.getFilters());
+        final CompiledDeploymentPlans compiled = compile(rule);
+        final DeviceFilterMatcher matcher = getMatcher(request, compiled);
 
         // When
-        final boolean result = deploymentPlanManager.isVersionAvailable(request, rule);
+        final boolean result = deploymentPlanManager.isVersionAvailable(matcher, compiled.getPlans().get(0), 0);
 
         // Then
-        verify(filterServiceClient).isRequestMatchingFilters(request, allow.getFilters());
+        verify(filterMatchBatcher).isRequestMatchingFilters(request, allow.getFilters());
         assertThat(result).isTrue();
     }
 
@@ -259,15 +322,17 @@ public class DeploymentPlanManagerTest {
         final DeploymentCondition deny = DeploymentCondition.builder().filters(Collections.singletonList(UUID.randomUUID().toString())).build();
         doReturn(Optional.of(allow)).when(rule).getAllow();
         doReturn(Optional.of(deny)).when(rule).getDeny();
-        doReturn(true).when(filterServiceClient).isRequestMatchingFilters(request, allow.getFilters());
-        doReturn(false).when(filterServiceClient).isRequestMatchingFilters(request, deny.getFilters());
+        doReturn(true).when(filterMatchBatcher).isRequestMatchingFilters(request, allow.getFilters());
+        doReturn(false).when(filterMatchBatcher).isRequestMatchingFilters(request, deny.getFilters());
+        final CompiledDeploymentPlans compiled = compile(rule);
+        final DeviceFilterMatcher matcher = getMatcher(request, compiled);
 
         // When
-        final boolean result = deploymentPlanManager.isVersionAvailable(request, rule);
+        final boolean result = deploymentPlanManager.isVersionAvailable(matcher, compiled.getPlans().get(0), 0);
 
         // Then
-        verify(filterServiceClient).isRequestMatchingFilters(request, allow.getFilters());
-        verify(filterServiceClient).isRequestMatchingFilters(request, deny.getFilters());
+        verify(filterMatchBatcher).isRequestMatchingFilters(request, allow.getFilters());
+        verify(filterMatchBatcher).isRequestMatchingFilters(request, deny.getFilters());
         assertThat(result).isTrue();
     }
 
@@ -280,15 +345,17 @@ public class DeploymentPlanManagerTest {
         final DeploymentCondition deny = DeploymentCondition.builder().filters(Collections.singletonList(UUID.randomUUID().toString())).build();
         doReturn(Optional.of(allow)).when(rule).getAllow();
         doReturn(Optional.of(deny)).when(rule).getDeny();
-        doReturn(true).when(filterServiceClient).isRequestMatchingFilters(request, allow.getFilters());
-        doReturn(true).when(filterServiceClient).isRequestMatchingFilters(request, deny.getFilters());
+        doReturn(true).when(filterMatchBatcher).isRequestMatchingFilters(request, allow.getFilters());
+        doReturn(true).when(filterMatchBatcher).isRequestMatchingFilters(request, deny.getFilters());
+        final CompiledDeploymentPlans compiled = compile(rule);
+        final DeviceFilterMatcher matcher = getMatcher(request, compiled);
 
         // When
-        final boolean result = deploymentPlanManager.isVersionAvailable(request, rule);
+        final boolean result = deploymentPlanManager.isVersionAvailable(matcher, compiled.getPlans().get(0), 0);
 
         // Then
-        verify(filterServiceClient).isRequestMatchingFilters(request, allow.getFilters());
-        verify(filterServiceClient).isRequestMatchingFilters(request, deny.getFilters());
+        verify(filterMatchBatcher).isRequestMatchingFilters(request, allow.getFilters());
+        verify(filterMatchBatcher).isRequestMatchingFilters(request, deny.getFilters());
         assertThat(result).isFalse();
     }
 
@@ -300,13 +367,15 @@ public class DeploymentPlanManagerTest {
         final DeploymentCondition deny = DeploymentCondition.builder().filters(Collections.singletonList(UUID.randomUUID().toString())).build();
         doReturn(Optional.empty()).when(rule).getAllow();
         doReturn(Optional.of(deny)).when(rule).getDeny();
-        doReturn(true).when(filterServiceClient).isRequestMatchingFilters(request, deny.getFilters());
+        doReturn(true).when(filterMatchBatcher).isRequestMatchingFilters(request, deny.getFilters());
+        final CompiledDeploymentPlans compiled = compile(rule);
+        final DeviceFilterMatcher matcher = getMatcher(request, compiled);
 
         // When
-        final boolean result = deploymentPlanManager.isVersionAvailable(request, rule);
+        final boolean result = deploymentPlanManager.isVersionAvailable(matcher, compiled.getPlans().get(0), 0);
 
         // Then
-        verify(filterServiceClient).isRequestMatchingFilters(request, deny.getFilters());
+        verify(filterMatchBatcher).isRequestMatchingFilters(request, deny.getFilters());
         assertThat(result).isFalse();
     }
 
@@ -318,13 +387,15 @@ public class DeploymentPlanManagerTest {
         final DeploymentCondition allow = DeploymentCondition.builder().filters(Collections.singletonList(UUID.randomUUID().toString())).build();
         doReturn(Optional.of(allow)).when(rule).getAllow();
         doReturn(Optional.empty()).when(rule).getDeny();
-        doReturn(false).when(filterServiceClient).isRequestMatchingFilters(request, allow.getFilters());
+        doReturn(false).when(filterMatchBatcher).isRequestMatchingFilters(request, allow.getFilters());
+        final CompiledDeploymentPlans compiled = compile(rule);
+        final DeviceFilterMatcher matcher = getMatcher(request, compiled);
 
         // When
-        final boolean result = deploymentPlanManager.isVersionAvailable(request, rule);
+        final boolean result = deploymentPlanManager.isVersionAvailable(matcher, compiled.getPlans().get(0), 0);
 
         // Then
-        verify(filterServiceClient).isRequestMatchingFilters(request, allow.getFilters());
+        verify(filterMatchBatcher).isRequestMatchingFilters(request, allow.getFilters());
         assertThat(result).isFalse();
     }
 
@@ -337,15 +408,17 @@ public class DeploymentPlanManagerTest {
         final DeploymentCondition deny = DeploymentCondition.builder().filters(Collections.singletonList(UUID.randomUUID().toString())).build();
         doReturn(Optional.of(allow)).when(rule).getAllow();
         doReturn(Optional.of(deny)).when(rule).getDeny();
-        doReturn(false).when(filterServiceClient).isRequestMatchingFilters(request, allow.getFilters());
-        doReturn(false).when(filterServiceClient).isRequestMatchingFilters(request, deny.getFilters());
+        doReturn(false).when(filterMatchBatcher).isRequestMatchingFilters(request, allow.getFilters());
+        doReturn(false).when(filterMatchBatcher).isRequestMatchingFilters(request, deny.getFilters());
+        final CompiledDeploymentPlans compiled = compile(rule);
+        final DeviceFilterMatcher matcher = getMatcher(request, compiled);
 
         // When
-        final boolean result = deploymentPlanManager.isVersionAvailable(request, rule);
+        final boolean result = deploymentPlanManager.isVersionAvailable(matcher, compiled.getPlans().get(0), 0);
 
         // Then
-        verify(filterServiceClient).isRequestMatchingFilters(request, allow.getFilters());
-        verify(filterServiceClient, atLeast(0)).isRequestMatchingFilters(request, deny.getFilters());
+        verify(filterMatchBatcher).isRequestMatchingFilters(request, allow.getFilters());
+        verify(filterMatchBatcher, atLeast(0)).isRequestMatchingFilters(request, deny.getFilters());
         assertThat(result).isFalse();
     }
 
@@ -358,15 +431,17 @@ public class DeploymentPlanManagerTest {
         final DeploymentCondition deny = DeploymentCondition.builder().filters(Collections.singletonList(UUID.randomUUID().toString())).build();
         doReturn(Optional.of(allow)).when(rule).getAllow();
         doReturn(Optional.of(deny)).when(rule).getDeny();
-        doReturn(false).when(filterServiceClient).isRequestMatchingFilters(request, allow.getFilters());
-        doReturn(true).when(filterServiceClient).isRequestMatchingFilters(request, deny.getFilters());
+        doReturn(false).when(filterMatchBatcher).isRequestMatchingFilters(request, allow.getFilters());
+        doReturn(true).when(filterMatchBatcher).isRequestMatchingFilters(request, deny.getFilters());
+        final CompiledDeploymentPlans compiled = compile(rule);
+        final DeviceFilterMatcher matcher = getMatcher(request, compiled);
 
         // When
-        final boolean result = deploymentPlanManager.isVersionAvailable(request, rule);
+        final boolean result = deploymentPlanManager.isVersionAvailable(matcher, compiled.getPlans().get(0), 0);
 
         // Then
-        verify(filterServiceClient).isRequestMatchingFilters(request, allow.getFilters());
-        verify(filterServiceClient, atLeast(0)).isRequestMatchingFilters(request, deny.getFilters());
+        verify(filterMatchBatcher).isRequestMatchingFilters(request, allow.getFilters());
+        verify(filterMatchBatcher, atLeast(0)).isRequestMatchingFilters(request, deny.getFilters());
         assertThat(result).isFalse();
     }
 
@@ -377,12 +452,14 @@ public class DeploymentPlanManagerTest {
         final DeploymentPlan plan = mock(DeploymentPlan.class);
         doReturn(Optional.empty()).when(plan).getAllow();
         doReturn(Optional.empty()).when(plan).getDeny();
+        final CompiledDeploymentPlans compiled = compile(plan);
+        final DeviceFilterMatcher matcher = getMatcher(request, compiled);
 
         // When
-        final boolean result = deploymentPlanManager.isPackageAvailable(request, plan);
+        final boolean result = deploymentPlanManager.isPackageAvailable(matcher, compiled.getPlans().get(0));
 
         // Then
-        verifyZeroInteractions(componentServiceClient);
+        verifyZeroInteractions(deploymentPlanValidator);
         assertThat(result).isTrue();
     }
 
@@ -394,13 +471,15 @@ public class DeploymentPlanManagerTest {
         final DeploymentCondition allow = DeploymentCondition.builder().filters(Collections.singletonList(UUID.randomUUID().toString())).build();
         doReturn(Optional.of(allow)).when(plan).getAllow();
         doReturn(Optional.empty()).when(plan).getDeny();
-        doReturn(true).when(filterServiceClient).isRequestMatchingFilters(request, allow.getFilters());
+        doReturn(true).when(filterMatchBatcher).isRequestMatchingFilters(request, allow.getFilters());
+        final CompiledDeploymentPlans compiled = compile(plan);
+        final DeviceFilterMatcher matcher = getMatcher(request, compiled);
 
         // When
-        final boolean result = deploymentPlanManager.isPackageAvailable(request, plan);
+        final boolean result = deploymentPlanManager.isPackageAvailable(matcher, compiled.getPlans().get(0));
 
         // Then
-        verify(filterServiceClient).isRequestMatchingFilters(request, allow.getFilters());
+        verify(filterMatchBatcher).isRequestMatchingFilters(request, allow.getFilters());
         assertThat(result).isTrue();
     }
 
@@ -413,15 +492,17 @@ public class DeploymentPlanManagerTest {
         final DeploymentCondition deny = DeploymentCondition.builder().filters(Collections.singletonList(UUID.randomUUID().toString())).build();
         doReturn(Optional.of(allow)).when(plan).getAllow();
         doReturn(Optional.of(deny)).when(plan).getDeny();
-        doReturn(true).when(filterServiceClient).isRequestMatchingFilters(request, allow.getFilters());
-        doReturn(false).when(filterServiceClient).isRequestMatchingFilters(request, deny.getFilters());
+        doReturn(true).when(filterMatchBatcher).isRequestMatchingFilters(request, allow.getFilters());
+        doReturn(false).when(filterMatchBatcher).isRequestMatchingFilters(request, deny.getFilters());
+        final CompiledDeploymentPlans compiled = compile(plan);
+        final DeviceFilterMatcher matcher = getMatcher(request, compiled);
 
         // When
-        final boolean result = deploymentPlanManager.isPackageAvailable(request, plan);
+        final boolean result = deploymentPlanManager.isPackageAvailable(matcher, compiled.getPlans().get(0));
 
         // Then
-        verify(filterServiceClient).isRequestMatchingFilters(request, allow.getFilters());
-        verify(filterServiceClient).isRequestMatchingFilters(request, deny.getFilters());
+        verify(filterMatchBatcher).isRequestMatchingFilters(request, allow.getFilters());
+        verify(filterMatchBatcher).isRequestMatchingFilters(request, deny.getFilters());
         assertThat(result).isTrue();
     }
 
@@ -434,15 +515,17 @@ public class DeploymentPlanManagerTest {
         final DeploymentCondition deny = DeploymentCondition.builder().filters(Collections.singletonList(UUID.randomUUID().toString())).build();
         doReturn(Optional.of(allow)).when(plan).getAllow();
         doReturn(Optional.of(deny)).when(plan).getDeny();
-        doReturn(true).when(filterServiceClient).isRequestMatchingFilters(request, allow.getFilters());
-        doReturn(true).when(filterServiceClient).isRequestMatchingFilters(request, deny.getFilters());
+        doReturn(true).when(filterMatchBatcher).isRequestMatchingFilters(request, allow.getFilters());
+        doReturn(true).when(filterMatchBatcher).isRequestMatchingFilters(request, deny.getFilters());
+        final CompiledDeploymentPlans compiled = compile(plan);
+        final DeviceFilterMatcher matcher = getMatcher(request, compiled);
 
         // When
-        final boolean result = deploymentPlanManager.isPackageAvailable(request, plan);
+        final boolean result = deploymentPlanManager.isPackageAvailable(matcher, compiled.getPlans().get(0));
 
         // Then
-        verify(filterServiceClient).isRequestMatchingFilters(request, allow.getFilters());
-        verify(filterServiceClient).isRequestMatchingFilters(request, deny.getFilters());
+        verify(filterMatchBatcher).isRequestMatchingFilters(request, allow.getFilters());
+        verify(filterMatchBatcher).isRequestMatchingFilters(request, deny.getFilters());
         assertThat(result).isFalse();
     }
 
@@ -454,13 +537,15 @@ public class DeploymentPlanManagerTest {
         final DeploymentCondition deny = DeploymentCondition.builder().filters(Collections.singletonList(UUID.randomUUID().toString())).build();
         doReturn(Optional.empty()).when(plan).getAllow();
         doReturn(Optional.of(deny)).when(plan).getDeny();
-        doReturn(true).when(filterServiceClient).isRequestMatchingFilters(request, deny.getFilters());
+        doReturn(true).when(filterMatchBatcher).isRequestMatchingFilters(request, deny.getFilters());
+        final CompiledDeploymentPlans compiled = compile(plan);
+        final DeviceFilterMatcher matcher = getMatcher(request, compiled);
 
         // When
-        final boolean result = deploymentPlanManager.isPackageAvailable(request, plan);
+        final boolean result = deploymentPlanManager.isPackageAvailable(matcher, compiled.getPlans().get(0));
 
         // Then
-        verify(filterServiceClient).isRequestMatchingFilters(request, deny.getFilters());
+        verify(filterMatchBatcher).isRequestMatchingFilters(request, deny.getFilters());
         assertThat(result).isFalse();
     }
 
@@ -472,13 +557,15 @@ public class DeploymentPlanManagerTest {
         final DeploymentCondition allow = DeploymentCondition.builder().filters(Collections.singletonList(UUID.randomUUID().toString())).build();
         doReturn(Optional.of(allow)).when(plan).getAllow();
         doReturn(Optional.empty()).when(plan).getDeny();
-        doReturn(false).when(filterServiceClient).isRequestMatchingFilters(request, allow.getFilters());
+        doReturn(false).when(filterMatchBatcher).isRequestMatchingFilters(request, allow.getFilters());
+        final CompiledDeploymentPlans compiled = compile(plan);
+        final DeviceFilterMatcher matcher = getMatcher(request, compiled);
 
         // When
-        final boolean result = deploymentPlanManager.isPackageAvailable(request, plan);
+        final boolean result = deploymentPlanManager.isPackageAvailable(matcher, compiled.getPlans().get(0));
 
         // Then
-        verify(filterServiceClient).isRequestMatchingFilters(request, allow.getFilters());
+        verify(filterMatchBatcher).isRequestMatchingFilters(request, allow.getFilters());
         assertThat(result).isFalse();
     }
 
@@ -491,15 +578,17 @@ public class DeploymentPlanManagerTest {
         final DeploymentCondition deny = DeploymentCondition.builder().filters(Collections.singletonList(UUID.randomUUID().toString())).build();
         doReturn(Optional.of(allow)).when(plan).getAllow();
         doReturn(Optional.of(deny)).when(plan).getDeny();
-        doReturn(false).when(filterServiceClient).isRequestMatchingFilters(request, allow.getFilters());
-        doReturn(false).when(filterServiceClient).isRequestMatchingFilters(request, deny.getFilters());
+        doReturn(false).when(filterMatchBatcher).isRequestMatchingFilters(request, allow.getFilters());
+        doReturn(false).when(filterMatchBatcher).isRequestMatchingFilters(request, deny.getFilters());
+        final CompiledDeploymentPlans compiled = compile(plan);
+        final DeviceFilterMatcher matcher = getMatcher(request, compiled);
 
         // When
-        final boolean result = deploymentPlanManager.isPackageAvailable(request, plan);
+        final boolean result = deploymentPlanManager.isPackageAvailable(matcher, compiled.getPlans().get(0));
 
         // Then
-        verify(filterServiceClient).isRequestMatchingFilters(request, allow.getFilters());
-        verify(filterServiceClient, atLeast(0)).isRequestMatchingFilters(request, deny.getFilters());
+        verify(filterMatchBatcher).isRequestMatchingFilters(request, allow.getFilters());
+        verify(filterMatchBatcher, atLeast(0)).isRequestMatchingFilters(request, deny.getFilters());
         assertThat(result).isFalse();
     }
 
@@ -512,31 +601,33 @@ public class DeploymentPlanManagerTest {
         final DeploymentCondition deny = DeploymentCondition.builder().filters(Collections.singletonList(UUID.randomUUID().toString())).build();
         doReturn(Optional.of(allow)).when(plan).getAllow();
         doReturn(Optional.of(deny)).when(plan).getDeny();
-        doReturn(false).when(filterServiceClient).isRequestMatchingFilters(request, allow.getFilters());
-        doReturn(true).when(filterServiceClient).isRequestMatchingFilters(request, deny.getFilters());
+        doReturn(false).when(filterMatchBatcher).isRequestMatchingFilters(request, allow.getFilters());
+        doReturn(true).when(filterMatchBatcher).isRequestMatchingFilters(request, deny.getFilters());
+        final CompiledDeploymentPlans compiled = compile(plan);
+        final DeviceFilterMatcher matcher = getMatcher(request, compiled);
 
         // When
-        final boolean result = deploymentPlanManager.isPackageAvailable(request, plan);
+        final boolean result = deploymentPlanManager.isPackageAvailable(matcher, compiled.getPlans().get(0));
 
         // Then
-        verify(filterServiceClient).isRequestMatchingFilters(request, allow.getFilters());
-        verify(filterServiceClient, atLeast(0)).isRequestMatchingFilters(request, deny.getFilters());
+        verify(filterMatchBatcher).isRequestMatchingFilters(request, allow.getFilters());
+        verify(filterMatchBatcher, atLeast(0)).isRequestMatchingFilters(request, deny.getFilters());
         assertThat(result).isFalse();
     }
 
     @Test
     public void getPackageVersion_whenNoRules_shouldReturnEmpty() {
         // Given
-        final DeploymentPlan plan = mock(DeploymentPlan.class);
-        doReturn(Collections.emptyList()).when(plan).getDeploymentRules();
         final DeviceRequest request = getDeviceRequest();
+        final CompiledDeploymentPlans compiled = compile(DeploymentPlan.builder().packageRef(UUID.randomUUID().toString()).build());
+        final DeviceFilterMatcher matcher = getMatcher(request, compiled);
+        final CompiledDeploymentPlan plan = compiled.getPlans().get(0);
 
         // When
-        final Optional<String> result = deploymentPlanManager.getPackageVersion(request, plan);
+        final OptionalInt result = deploymentPlanManager.getPackageVersion(matcher, plan);
 
         // Then
-        verify(plan).getDeploymentRules();
-        verify(deploymentPlanManager).getPackageVersion(request, plan);
+        verify(deploymentPlanManager).getPackageVersion(matcher, plan);
         verifyNoMoreInteractions(deploymentPlanManager);
         assertThat(result).isEmpty();
     }
@@ -545,24 +636,18 @@ public class DeploymentPlanManagerTest {
     public void getPackageVersion_whenNoVersionAllowed_shouldReturnEmpty() {
         // Given
         final DeviceRequest request = getDeviceRequest();
-        final DeploymentPlan plan = mock(DeploymentPlan.class);
-        final List<DeploymentRule> rules = Arrays.asList(
-                mock(DeploymentRule.class),
-                mock(DeploymentRule.class)
-        );
-        rules.forEach(rule -> {
-            doReturn(false).when(deploymentPlanManager).isVersionAvailable(request, rule);
-            when(rule.getVersionId()).thenReturn(UUID.randomUUID().toString());
-        });
-        doReturn(rules).when(plan).getDeploymentRules();
+        final CompiledDeploymentPlans compiled = compile(getPlanWithRules(null));
+        final DeviceFilterMatcher matcher = getMatcher(request, compiled);
+        final CompiledDeploymentPlan plan = compiled.getPlans().get(0);
+        doReturn(false).when(deploymentPlanManager).isVersionAvailable(eq(matcher), eq(plan), anyInt());
 
         // When
-        final Optional<String> result = deploymentPlanManager.getPackageVersion(request, plan);
+        final OptionalInt result = deploymentPlanManager.getPackageVersion(matcher, plan);
 
         // Then
-        verify(plan).getDeploymentRules();
-        verify(deploymentPlanManager).getPackageVersion(request, plan);
-        verify(deploymentPlanManager, times(rules.size())).isVersionAvailable(eq(request), any());
+        verify(deploymentPlanManager).getPackageVersion(matcher, plan);
+        verify(deploymentPlanManager).isVersionAvailable(matcher, plan, 0);
+        verify(deploymentPlanManager).isVersionAvailable(matcher, plan, 1);
         verifyNoMoreInteractions(deploymentPlanManager);
         assertThat(result).isEmpty();
     }
@@ -571,43 +656,74 @@ public class DeploymentPlanManagerTest {
     public void getPackageVersion_whenVersionsAllowed_shouldReturnFirstMatching() {
         // Given
         final DeviceRequest request = getDeviceRequest();
-        final DeploymentPlan plan = mock(DeploymentPlan.class);
-        final List<DeploymentRule> rules = Arrays.asList(
-                mock(DeploymentRule.class),
-                mock(DeploymentRule.class)
-        );
-        rules.forEach(rule -> {
-            doReturn(true).when(deploymentPlanManager).isVersionAvailable(request, rule);
-            when(rule.getVersionId()).thenReturn(UUID.randomUUID().toString());
-        });
-        doReturn(rules).when(plan).getDeploymentRules();
+        final CompiledDeploymentPlans compiled = compile(getPlanWithRules(null));
+        final DeviceFilterMatcher matcher = getMatcher(request, compiled);
+        final CompiledDeploymentPlan plan = compiled.getPlans().get(0);
+        doReturn(true).when(deploymentPlanManager).isVersionAvailable(eq(matcher), eq(plan), anyInt());
 
         // When
-        final Optional<String> result = deploymentPlanManager.getPackageVersion(request, plan);
+        final OptionalInt result = deploymentPlanManager.getPackageVersion(matcher, plan);
 
         // Then
-        verify(plan).getDeploymentRules();
-        verify(deploymentPlanManager).getPackageVersion(request, plan);
-        verify(deploymentPlanManager).isVersionAvailable(request, rules.get(0));
+        verify(deploymentPlanManager).getPackageVersion(matcher, plan);
+        verify(deploymentPlanManager).isVersionAvailable(matcher, plan, 0);
         verifyNoMoreInteractions(deploymentPlanManager);
-        assertThat(result).isPresent().contains(rules.get(0).getVersionId());
+        assertThat(result).hasValue(0);
+    }
+
+    @Test
+    public void getPackageVersion_whenRulesAreDecided_shouldNotEvaluateRulesSpeculatively() {
+        // Given
+        final DeviceRequest request = getDeviceRequest();
+        final DeploymentCondition allow = DeploymentCondition.builder().filter(UUID.randomUUID().toString()).build();
+        final CompiledDeploymentPlans compiled = compile(getPlanWithRules(allow));
+        final DeviceFilterMatcher matcher = getMatcher(request, compiled);
+        final CompiledDeploymentPlan plan = compiled.getPlans().get(0);
+        doReturn(Collections.singletonMap("0", false)).when(filterMatchBatcher).matchFilterSets(eq(request), anyMap());
+        matcher.prefetch();
+
+        // When
+        final OptionalInt result = deploymentPlanManager.getPackageVersion(matcher, plan);
+
+        // Then
+        verify(planEvaluationExecutor, never()).findFirst(anyList());
+        assertThat(result).hasValue(1);
+    }
+
+    @Test
+    public void getPackageVersion_whenRulesAreUndecided_shouldEvaluateRulesSpeculatively() {
+        // Given
+        final DeviceRequest request = getDeviceRequest();
+        final DeploymentCondition allow = DeploymentCondition.builder().filter(UUID.randomUUID().toString()).build();
+        final CompiledDeploymentPlans compiled = compile(getPlanWithRules(allow));
+        final DeviceFilterMatcher matcher = getMatcher(request, compiled);
+        final CompiledDeploymentPlan plan = compiled.getPlans().get(0);
+        doReturn(false).when(filterMatchBatcher).isRequestMatchingFilters(request, allow.getFilters());
+
+        // When
+        final OptionalInt result = deploymentPlanManager.getPackageVersion(matcher, plan);
+
+        // Then
+        verify(planEvaluationExecutor).findFirst(anyList());
+        verify(filterMatchBatcher).isRequestMatchingFilters(request, allow.getFilters());
+        assertThat(result).hasValue(1);
     }
 
     @Test
     public void getPackageForPlan_whenPlanNotAllowed_shouldReturnEmpty() {
         // Given
         final DeviceRequest request = getDeviceRequest();
-        final String reference = UUID.randomUUID().toString();
-        final DeploymentPlan plan = mock(DeploymentPlan.class);
-        when(plan.getPackageRef()).thenReturn(reference);
-        doReturn(false).when(deploymentPlanManager).isPackageAvailable(request, plan);
+        final CompiledDeploymentPlans compiled = compile(DeploymentPlanUtils.getDeploymentPlan());
+        final DeviceFilterMatcher matcher = getMatcher(request, compiled);
+        final CompiledDeploymentPlan plan = compiled.getPlans().get(0);
+        doReturn(false).when(deploymentPlanManager).isPackageAvailable(matcher, plan);
 
         // When
-        final Optional<Package> result = deploymentPlanManager.getPackageForPlan(request, plan);
+        final Optional<Package> result = deploymentPlanManager.getPackageForPlan(matcher, plan);
 
         // Then
-        verify(deploymentPlanManager).getPackageForPlan(request, plan);
-        verify(deploymentPlanManager).isPackageAvailable(request, plan);
+        verify(deploymentPlanManager).getPackageForPlan(matcher, plan);
+        verify(deploymentPlanManager).isPackageAvailable(matcher, plan);
         verifyNoMoreInteractions(deploymentPlanManager);
         assertThat(result).isEmpty();
     }
@@ -616,20 +732,21 @@ public class DeploymentPlanManagerTest {
     public void getPackageForPlan_whenNoVersion_shouldReturnPackageWithNoVersion() {
         // Given
         final DeviceRequest request = getDeviceRequest();
-        final String reference = UUID.randomUUID().toString();
-        final DeploymentPlan plan = mock(DeploymentPlan.class);
-        when(plan.getPackageRef()).thenReturn(reference);
-        doReturn(true).when(deploymentPlanManager).isPackageAvailable(request, plan);
-        doReturn(Optional.empty()).when(deploymentPlanManager).getPackageVersion(request, plan);
-        final Package expected = Package.builder().reference(reference).build();
+        final DeploymentPlan deploymentPlan = DeploymentPlanUtils.getDeploymentPlan();
+        final CompiledDeploymentPlans compiled = compile(deploymentPlan);
+        final DeviceFilterMatcher matcher = getMatcher(request, compiled);
+        final CompiledDeploymentPlan plan = compiled.getPlans().get(0);
+        doReturn(true).when(deploymentPlanManager).isPackageAvailable(matcher, plan);
+        doReturn(OptionalInt.empty()).when(deploymentPlanManager).getPackageVersion(matcher, plan);
+        final Package expected = Package.builder().reference(deploymentPlan.getPackageRef()).build();
 
         // When
-        final Optional<Package> result = deploymentPlanManager.getPackageForPlan(request, plan);
+        final Optional<Package> result = deploymentPlanManager.getPackageForPlan(matcher, plan);
 
         // Then
-        verify(deploymentPlanManager).getPackageForPlan(request, plan);
-        verify(deploymentPlanManager).isPackageAvailable(request, plan);
-        verify(deploymentPlanManager).getPackageVersion(request, plan);
+        verify(deploymentPlanManager).getPackageForPlan(matcher, plan);
+        verify(deploymentPlanManager).isPackageAvailable(matcher, plan);
+        verify(deploymentPlanManager).getPackageVersion(matcher, plan);
         verifyNoMoreInteractions(deploymentPlanManager);
         assertThat(result).contains(expected);
     }
@@ -638,21 +755,24 @@ public class DeploymentPlanManagerTest {
     public void getPackageForPlan_whenVersion_shouldReturnPackageWithVersion() {
         // Given
         final DeviceRequest request = getDeviceRequest();
-        final String reference = UUID.randomUUID().toString();
-        final String version = UUID.randomUUID().toString();
-        final DeploymentPlan plan = mock(DeploymentPlan.class);
-        when(plan.getPackageRef()).thenReturn(reference);
-        doReturn(true).when(deploymentPlanManager).isPackageAvailable(request, plan);
-        doReturn(Optional.of(version)).when(deploymentPlanManager).getPackageVersion(request, plan);
-        final Package expected = Package.builder().reference(reference).version(version).build();
+        final DeploymentPlan deploymentPlan = DeploymentPlanUtils.getDeploymentPlan();
+        final CompiledDeploymentPlans compiled = compile(deploymentPlan);
+        final DeviceFilterMatcher matcher = getMatcher(request, compiled);
+        final CompiledDeploymentPlan plan = compiled.getPlans().get(0);
+        doReturn(true).when(deploymentPlanManager).isPackageAvailable(matcher, plan);
+        doReturn(OptionalInt.of(0)).when(deploymentPlanManager).getPackageVersion(matcher, plan);
+        final Package expected = Package.builder()
+                .reference(deploymentPlan.getPackageRef())
+                .version(deploymentPlan.getDeploymentRules().get(0).getVersionId())
+                .build();
 
         // When
-        final Optional<Package> result = deploymentPlanManager.getPackageForPlan(request, plan);
+        final Optional<Package> result = deploymentPlanManager.getPackageForPlan(matcher, plan);
 
         // Then
-        verify(deploymentPlanManager).getPackageForPlan(request, plan);
-        verify(deploymentPlanManager).isPackageAvailable(request, plan);
-        verify(deploymentPlanManager).getPackageVersion(request, plan);
+        verify(deploymentPlanManager).getPackageForPlan(matcher, plan);
+        verify(deploymentPlanManager).isPackageAvailable(matcher, plan);
+        verify(deploymentPlanManager).getPackageVersion(matcher, plan);
         verifyNoMoreInteractions(deploymentPlanManager);
         assertThat(result).contains(expected);
     }
@@ -667,24 +787,393 @@ public class DeploymentPlanManagerTest {
         final DeviceRequest request = getDeviceRequest();
         final String userId = request.getUserId();
         final Package available = PackageUtils.getPackage();
-        doReturn(plans).when(deploymentPlanRepository).findByUserId(userId);
-        doReturn(Optional.empty()).when(deploymentPlanManager).getPackageForPlan(request, plans.get(0));
-        doReturn(Optional.of(available)).when(deploymentPlanManager).getPackageForPlan(request, plans.get(1));
+        final CompiledDeploymentPlans compiled = CompiledDeploymentPlans.compile(plans);
+        final CompiledDeploymentPlan absentPlan = getCompiledPlan(compiled, plans.get(0).getPackageRef());
+        final CompiledDeploymentPlan presentPlan = getCompiledPlan(compiled, plans.get(1).getPackageRef());
+        doReturn(compiled).when(activeDeploymentPlansCache).getCompiledDeploymentPlans(userId);
+        doReturn(Optional.empty()).when(deploymentPlanManager).getPackageForPlan(any(DeviceFilterMatcher.class), eq(absentPlan));
+        doReturn(Optional.of(available)).when(deploymentPlanManager).getPackageForPlan(any(DeviceFilterMatcher.class), eq(presentPlan));
 
         // When
         final ResolvedPackages result = deploymentPlanManager.resolvePackagesForDeviceRequest(request);
 
         // Then
-        verify(deploymentPlanRepository).findByUserId(userId);
+        verify(activeDeploymentPlansCache).getCompiledDeploymentPlans(userId);
+        verifyZeroInteractions(deploymentPlanRepository);
         verify(deploymentPlanManager).resolvePackagesForDeviceRequest(request);
-        verify(deploymentPlanManager).getPackageForPlan(request, plans.get(0));
-        verify(deploymentPlanManager).getPackageForPlan(request, plans.get(1));
+        verify(deploymentPlanManager).resolvePackagesForDeviceRequest(request, true);
+        verify(resolvedPackagesCache).get(eq(request), any(Supplier.class));
+        verify(deploymentPlanManager).resolvePackagesForDeviceRequest(request, compiled);
+        verify(deploymentPlanManager).resolvePlanPackages(request, compiled);
+        verify(deploymentPlanManager).resolvePlanPackages(eq(request), eq(compiled), any(FilterDecisionsCache.DeviceDecisions.class));
+        verify(deploymentPlanManager).resolvePackages(any(DeviceFilterMatcher.class), eq(compiled.getPlans()));
+        verify(deploymentPlanManager).evaluatePlans(eq(request), anyList());
+        verify(deploymentPlanManager).getPackageForPlan(any(DeviceFilterMatcher.class), eq(absentPlan));
+        verify(deploymentPlanManager).getPackageForPlan(any(DeviceFilterMatcher.class), eq(presentPlan));
         verifyNoMoreInteractions(deploymentPlanManager);
         assertThat(result).isNotNull();
         assertThat(result.getAbsents()).containsOnly(Package.builder().reference(plans.get(0).getPackageRef()).build());
         assertThat(result.getPresents()).containsOnly(available);
     }
 
+    @Test
+    public void getResolutionTagAsync_shouldChangeWithPlansFiltersDecisionWindowAndDeviceData() {
+        // Given
+        final DeviceRequest request = getDeviceRequest();
+        final DeviceRequest otherData = DeviceRequest.builder()
+                .userId(request.getUserId())
+                .unitId(request.getUnitId())
+                .addCustomClientData("aKey", UUID.randomUUID().toString())
+                .packages(request.getPackages())
+                .build();
+        final CompiledDeploymentPlans plans = compile(DeploymentPlanUtils.getDeploymentPlan());
+        final CompiledDeploymentPlans otherPlans = compile(DeploymentPlanUtils.getDeploymentPlan());
+        doReturn(plans).when(activeDeploymentPlansCache).getCompiledDeploymentPlans(request.getUserId());
+        final String tag = deploymentPlanManager.getResolutionTagAsync(request).join();
+
+        // When
+        final String sameTag = deploymentPlanManager.getResolutionTagAsync(request).join();
+        final String otherDataTag = deploymentPlanManager.getResolutionTagAsync(otherData).join();
+        doReturn(1L).when(filterDecisionsCache).getGeneration(request.getUserId());
+        final String otherFiltersTag = deploymentPlanManager.getResolutionTagAsync(request).join();
+        doReturn(1L).when(filterDecisionsCache).getDecisionWindow();
+        final String otherWindowTag = deploymentPlanManager.getResolutionTagAsync(request).join();
+        doReturn(otherPlans).when(activeDeploymentPlansCache).getCompiledDeploymentPlans(request.getUserId());
+        final String otherPlansTag = deploymentPlanManager.getResolutionTagAsync(request).join();
+
+        // Then
+        verifyZeroInteractions(filterMatchBatcher, resolvedPackagesCache);
+        assertThat(sameTag).isEqualTo(tag);
+        assertThat(otherDataTag).isNotEqualTo(tag);
+        assertThat(otherFiltersTag).isNotEqualTo(tag);
+        assertThat(otherWindowTag).isNotEqualTo(otherFiltersTag);
+        assertThat(otherPlansTag).isNotEqualTo(otherWindowTag);
+    }
+
+    @Test
+    public void resolvePackagesForDeviceRequest_whenCached_shouldReturnCachedResolution() {
+        // Given
+        final DeviceRequest request = getDeviceRequest();
+        final ResolvedPackages expected = ResolvedPackages.builder().present(PackageUtils.getPackage()).build();
+        doReturn(expected).when(resolvedPackagesCache).get(eq(request), any(Supplier.class));
+
+        // When
+        final ResolvedPackages result = deploymentPlanManager.resolvePackagesForDeviceRequest(request, true);
+
+        // Then
+        verify(resolvedPackagesCache).get(eq(request), any(Supplier.class));
+        verifyZeroInteractions(activeDeploymentPlansCache);
+        assertThat(result).isEqualTo(expected);
+    }
+
+    @Test
+    public void resolvePackagesForDeviceRequest_whenCacheBypassed_shouldResolveWithoutTheCache() {
+        // Given
+        final DeviceRequest request = getDeviceRequest();
+        final CompiledDeploymentPlans compiled = CompiledDeploymentPlans.compile(Collections.emptyList());
+        final ResolvedPackages expected = ResolvedPackages.builder().build();
+        doReturn(compiled).when(activeDeploymentPlansCache).getCompiledDeploymentPlans(request.getUserId());
+        doReturn(expected).when(deploymentPlanManager).resolvePackagesForDeviceRequest(request, compiled);
+
+        // When
+        final ResolvedPackages result = deploymentPlanManager.resolvePackagesForDeviceRequest(request, false);
+
+        // Then
+        verify(resolvedPackagesCache).remember(request, expected);
+        verifyNoMoreInteractions(resolvedPackagesCache);
+        verify(deploymentPlanManager).resolvePackagesForDeviceRequest(request, compiled);
+        assertThat(result).isEqualTo(expected);
+    }
+
+    @Test
+    public void resolvePackagesForDeviceRequest_whenPlansShareFilters_shouldMatchEachFilterSetOnceInOneCall() {
+        // Given
+        final DeviceRequest request = getDeviceRequest();
+        final DeploymentCondition betaTesters = DeploymentCondition.builder().filter("beta-testers").build();
+        final DeploymentConditions conditions = DeploymentConditions.builder().allowCondition(betaTesters).build();
+        final List<DeploymentPlan> plans = Arrays.asList(
+                DeploymentPlan.builder().userId(request.getUserId()).packageRef(UUID.randomUUID().toString()).deploymentConditions(conditions).build(),
+                DeploymentPlan.builder().userId(request.getUserId()).packageRef(UUID.randomUUID().toString()).deploymentConditions(conditions).build(),
+                DeploymentPlan.builder().userId(request.getUserId()).packageRef(UUID.randomUUID().toString()).deploymentConditions(conditions).build()
+        );
+        doReturn(CompiledDeploymentPlans.compile(plans)).when(activeDeploymentPlansCache).getCompiledDeploymentPlans(request.getUserId());
+        final Map<String, List<String>> filterSets = Collections.singletonMap("0", betaTesters.getFilters());
+        doReturn(Collections.singletonMap("0", true)).when(filterMatchBatcher).matchFilterSets(request, filterSets);
+
+        // When
+        final ResolvedPackages result = deploymentPlanManager.resolvePackagesForDeviceRequest(request);
+
+        // Then
+        verify(filterDecisionsCache).forDevice(request);
+        verify(filterMatchBatcher).matchFilterSets(request, filterSets);
+        verifyNoMoreInteractions(filterMatchBatcher);
+        assertThat(result.getPresents()).hasSize(plans.size());
+    }
+
+    @Test
+    public void resolvePackagesForDeviceRequest_whenAllFilterSetsAreDecided_shouldEvaluatePlansInline() throws Exception {
+        // Given
+        final DeviceRequest request = getDeviceRequest();
+        final List<DeploymentPlan> plans = Arrays.asList(
+                DeploymentPlan.builder().userId(request.getUserId()).packageRef(UUID.randomUUID().toString()).build(),
+                DeploymentPlan.builder().userId(request.getUserId()).packageRef(UUID.randomUUID().toString()).build()
+        );
+        doReturn(CompiledDeploymentPlans.compile(plans)).when(activeDeploymentPlansCache).getCompiledDeploymentPlans(request.getUserId());
+
+        // When
+        final ResolvedPackages result = deploymentPlanManager.resolvePackagesForDeviceRequest(request);
+
+        // Then
+        verify(planEvaluationExecutor, never()).invokeAll(anyList());
+        verify(deploymentPlanManager, never()).evaluatePlans(any(DeviceRequest.class), anyList());
+        assertThat(result.getPresents()).hasSize(plans.size());
+    }
+
+    @Test
+    public void resolvePackagesForDeviceRequest_shouldReturnPackagesOrderedByReference() {
+        // Given
+        final DeviceRequest request = getDeviceRequest();
+        final List<DeploymentPlan> plans = Arrays.asList(
+                DeploymentPlan.builder().userId(request.getUserId()).packageRef("c").build(),
+                DeploymentPlan.builder().userId(request.getUserId()).packageRef("a").build(),
+                DeploymentPlan.builder().userId(request.getUserId()).packageRef("b").build()
+        );
+        final CompiledDeploymentPlans compiled = CompiledDeploymentPlans.compile(plans);
+        doReturn(compiled).when(activeDeploymentPlansCache).getCompiledDeploymentPlans(request.getUserId());
+        doReturn(Optional.empty()).when(deploymentPlanManager).getPackageForPlan(any(DeviceFilterMatcher.class), eq(getCompiledPlan(compiled, "c")));
+
+        // When
+        final ResolvedPackages result = deploymentPlanManager.resolvePackagesForDeviceRequest(request);
+
+        // Then
+        assertThat(result.getPresents()).extracting(Package::getReference).containsExactly("a", "b");
+        assertThat(result.getAbsents()).extracting(Package::getReference).containsExactly("c");
+    }
+
+    @Test
+    public void resolvePackagesForDeviceRequestAsync_shouldMatchUndecidedFilterSetsWithoutBlocking() {
+        // Given
+        final DeviceRequest request = getDeviceRequest();
+        final DeploymentCondition betaTesters = DeploymentCondition.builder().filter("beta-testers").build();
+        final DeploymentConditions conditions = DeploymentConditions.builder().allowCondition(betaTesters).build();
+        final List<DeploymentPlan> plans = Arrays.asList(
+                DeploymentPlan.builder().userId(request.getUserId()).packageRef("a").deploymentConditions(conditions).build(),
+                DeploymentPlan.builder().userId(request.getUserId()).packageRef("b").build()
+        );
+        doReturn(CompiledDeploymentPlans.compile(plans)).when(activeDeploymentPlansCache).getCompiledDeploymentPlans(request.getUserId());
+        final Map<String, List<String>> filterSets = Collections.singletonMap("0", betaTesters.getFilters());
+        final CompletableFuture<Map<String, Boolean>> match = new CompletableFuture<>();
+        doReturn(match).when(filterMatchBatcher).matchFilterSetsAsync(request, filterSets);
+
+        // When
+        final CompletableFuture<ResolvedPackages> result = deploymentPlanManager.resolvePackagesForDeviceRequestAsync(request, false);
+        final boolean completedEarly = result.isDone();
+        match.complete(Collections.singletonMap("0", false));
+
+        // Then
+        verify(filterMatchBatcher).matchFilterSetsAsync(request, filterSets);
+        verifyNoMoreInteractions(filterMatchBatcher);
+        verify(planEvaluationExecutor).supplyAsync(any(Supplier.class));
+        verify(resolvedPackagesCache, never()).getAsync(any(DeviceRequest.class), any(Supplier.class));
+        assertThat(completedEarly).isFalse();
+        assertThat(result.join().getPresents()).extracting(Package::getReference).containsExactly("b");
+        assertThat(result.join().getAbsents()).extracting(Package::getReference).containsExactly("a");
+    }
+
+    @Test
+    public void resolvePackagesForDeviceRequestAsync_whenEvaluationIsRejected_shouldReturnAFailedFuture() {
+        // Given
+        final DeviceRequest request = getDeviceRequest();
+        doReturn(CompiledDeploymentPlans.compile(Collections.emptyList())).when(activeDeploymentPlansCache).getCompiledDeploymentPlans(request.getUserId());
+        doThrow(new RejectedExecutionException()).when(planEvaluationExecutor).supplyAsync(any(Supplier.class));
+
+        // When
+        final CompletableFuture<ResolvedPackages> result = deploymentPlanManager.resolvePackagesForDeviceRequestAsync(request, false);
+
+        // Then
+        assertThat(result).isCompletedExceptionally();
+        assertThatExceptionOfType(CompletionException.class).isThrownBy(result::join)
+                .withCauseInstanceOf(PackageResolutionUnavailableException.class);
+    }
+
+    @Test
+    public void resolvePackagesForDeviceRequestAsync_whenCached_shouldReturnCachedResolution() {
+        // Given
+        final DeviceRequest request = getDeviceRequest();
+        final ResolvedPackages expected = ResolvedPackages.builder().present(PackageUtils.getPackage()).build();
+        doReturn(CompletableFuture.completedFuture(expected)).when(resolvedPackagesCache).getAsync(eq(request), any(Supplier.class));
+
+        // When
+        final ResolvedPackages result = deploymentPlanManager.resolvePackagesForDeviceRequestAsync(request, true).join();
+
+        // Then
+        verifyZeroInteractions(activeDeploymentPlansCache);
+        assertThat(result).isEqualTo(expected);
+    }
+
+    @Test
+    public void resolvePackagesForDeviceRequestAsync_whenPlansCannotBeLoaded_shouldReturnAFailedFuture() {
+        // Given
+        final DeviceRequest request = getDeviceRequest();
+        final IllegalStateException failure = new IllegalStateException();
+        doThrow(failure).when(activeDeploymentPlansCache).getCompiledDeploymentPlans(request.getUserId());
+
+        // When
+        final CompletableFuture<ResolvedPackages> result = deploymentPlanManager.resolvePackagesForDeviceRequestAsync(request, false);
+
+        // Then
+        assertThat(result).isCompletedExceptionally();
+        assertThatExceptionOfType(CompletionException.class).isThrownBy(result::join).withCause(failure);
+    }
+
+    @Test
+    public void resolvePackagesForDeviceRequest_whenDownstreamIsUnavailable_shouldReturnTheLastKnownResolutionAsStale() {
+        // Given
+        final DeviceRequest request = getDeviceRequest();
+        final ResolvedPackages lastKnown = ResolvedPackages.builder().present(PackageUtils.getPackage()).build().asStale();
+        doThrow(new DownstreamUnavailableException("filter service", "circuit breaker is open"))
+                .when(resolvedPackagesCache).get(eq(request), any(Supplier.class));
+        doReturn(Optional.of(lastKnown)).when(resolvedPackagesCache).getLastKnownGood(request);
+
+        // When
+        final ResolvedPackages result = deploymentPlanManager.resolvePackagesForDeviceRequest(request, true);
+
+        // Then
+        verify(resolvedPackagesCache).getLastKnownGood(request);
+        assertThat(result).isEqualTo(lastKnown);
+        assertThat(result.isStale()).isTrue();
+    }
+
+    @Test
+    public void resolvePackagesForDeviceRequest_whenDownstreamIsUnavailableAndNothingIsKnown_shouldRethrow() {
+        // Given
+        final DeviceRequest request = getDeviceRequest();
+        doThrow(new DownstreamUnavailableException("filter service", "circuit breaker is open"))
+                .when(resolvedPackagesCache).get(eq(request), any(Supplier.class));
+
+        // When / Then
+        assertThatExceptionOfType(DownstreamUnavailableException.class)
+                .isThrownBy(() -> deploymentPlanManager.resolvePackagesForDeviceRequest(request, true))
+                .withMessageContaining("circuit breaker is open");
+    }
+
+    @Test
+    public void resolvePackagesForDeviceRequestAsync_whenDownstreamIsUnavailable_shouldCompleteWithTheLastKnownResolution() {
+        // Given
+        final DeviceRequest request = getDeviceRequest();
+        final ResolvedPackages lastKnown = ResolvedPackages.builder().present(PackageUtils.getPackage()).build().asStale();
+        final CompletableFuture<ResolvedPackages> resolution = new CompletableFuture<>();
+        resolution.completeExceptionally(new CompletionException(new DownstreamUnavailableException("filter service", "too many calls")));
+        doReturn(resolution).when(resolvedPackagesCache).getAsync(eq(request), any(Supplier.class));
+        doReturn(Optional.of(lastKnown)).when(resolvedPackagesCache).getLastKnownGood(request);
+
+        // When
+        final ResolvedPackages result = deploymentPlanManager.resolvePackagesForDeviceRequestAsync(request, true).join();
+
+        // Then
+        assertThat(result).isEqualTo(lastKnown);
+    }
+
+    @Test
+    public void resolvePackagesForDeviceRequestAsync_whenOtherFailure_shouldNotFallBack() {
+        // Given
+        final DeviceRequest request = getDeviceRequest();
+        final IllegalStateException failure = new IllegalStateException();
+        final CompletableFuture<ResolvedPackages> resolution = new CompletableFuture<>();
+        resolution.completeExceptionally(failure);
+        doReturn(resolution).when(resolvedPackagesCache).getAsync(eq(request), any(Supplier.class));
+
+        // When
+        final CompletableFuture<ResolvedPackages> result = deploymentPlanManager.resolvePackagesForDeviceRequestAsync(request, true);
+
+        // Then
+        verify(resolvedPackagesCache, never()).getLastKnownGood(any(DeviceRequest.class));
+        assertThatExceptionOfType(CompletionException.class).isThrownBy(result::join).withCause(failure);
+    }
+
+    @Test
+    public void getBatchResolver_whenDevicesShareData_shouldLoadPlansOncePerUserAndResolveOncePerGroup() {
+        // Given
+        final DeviceRequest first = getDeviceRequest();
+        final DeviceRequest sameData = DeviceRequest.builder()
+                .userId(first.getUserId())
+                .unitId(UUID.randomUUID().toString())
+                .customClientData(first.getCustomClientData())
+                .packages(first.getPackages())
+                .build();
+        final DeviceRequest otherUser = getDeviceRequest();
+        final CompiledDeploymentPlans plans = CompiledDeploymentPlans.compile(Collections.emptyList());
+        final ResolvedPackages firstResult = ResolvedPackages.builder().present(PackageUtils.getPackage()).build();
+        final ResolvedPackages otherResult = ResolvedPackages.builder().absent(PackageUtils.getPackage()).build();
+        doReturn(plans).when(activeDeploymentPlansCache).getCompiledDeploymentPlans(anyString());
+        doReturn(firstResult).when(deploymentPlanManager).resolvePackagesForDeviceRequest(first, plans);
+        doReturn(otherResult).when(deploymentPlanManager).resolvePackagesForDeviceRequest(otherUser, plans);
+
+        // When
+        final List<ResolvedPackages> result = Stream.of(first, sameData, otherUser, first)
+                .map(deploymentPlanManager.getBatchResolver(true, true))
+                .collect(Collectors.toList());
+
+        // Then
+        verify(activeDeploymentPlansCache).getCompiledDeploymentPlans(first.getUserId());
+        verify(activeDeploymentPlansCache).getCompiledDeploymentPlans(otherUser.getUserId());
+        verify(deploymentPlanManager).resolvePackagesForDeviceRequest(first, plans);
+        verify(deploymentPlanManager).resolvePackagesForDeviceRequest(otherUser, plans);
+        verify(deploymentPlanManager, never()).resolvePackagesForDeviceRequest(sameData, plans);
+        verify(resolvedPackagesCache, times(2)).get(any(DeviceRequest.class), any(Supplier.class));
+        assertThat(result).containsExactly(firstResult, firstResult, otherResult, firstResult);
+    }
+
+    @Test
+    public void getBatchResolver_whenNotSharedBetweenUnits_shouldResolveEachUnit() {
+        // Given
+        final DeviceRequest first = getDeviceRequest();
+        final DeviceRequest sameData = DeviceRequest.builder()
+                .userId(first.getUserId())
+                .unitId(UUID.randomUUID().toString())
+                .customClientData(first.getCustomClientData())
+                .packages(first.getPackages())
+                .build();
+        final CompiledDeploymentPlans plans = CompiledDeploymentPlans.compile(Collections.emptyList());
+        final ResolvedPackages expected = ResolvedPackages.builder().build();
+        doReturn(plans).when(activeDeploymentPlansCache).getCompiledDeploymentPlans(first.getUserId());
+        doReturn(expected).when(deploymentPlanManager).resolvePackagesForDeviceRequest(any(DeviceRequest.class), eq(plans));
+
+        // When
+        final List<ResolvedPackages> result = Stream.of(first, sameData, first)
+                .map(deploymentPlanManager.getBatchResolver(false, false))
+                .collect(Collectors.toList());
+
+        // Then
+        verify(activeDeploymentPlansCache).getCompiledDeploymentPlans(first.getUserId());
+        verify(deploymentPlanManager).resolvePackagesForDeviceRequest(first, plans);
+        verify(deploymentPlanManager).resolvePackagesForDeviceRequest(sameData, plans);
+        verifyZeroInteractions(resolvedPackagesCache);
+        assertThat(result).hasSize(3);
+    }
+
+    @Test
+    public void evaluatePlans_whenDeadlineIsHit_shouldThrowAnException() throws Exception {
+        // Given
+        final DeviceRequest request = getDeviceRequest();
+        doThrow(new TimeoutException()).when(planEvaluationExecutor).invokeAll(anyList());
+
+        // When / Then
+        assertThatExceptionOfType(PackageResolutionUnavailableException.class)
+                .isThrownBy(() -> deploymentPlanManager.evaluatePlans(request, Collections.emptyList()));
+    }
+
+    @Test
+    public void evaluatePlans_whenExecutorIsSaturated_shouldThrowAnException() throws Exception {
+        // Given
+        final DeviceRequest request = getDeviceRequest();
+        doThrow(new RejectedExecutionException()).when(planEvaluationExecutor).invokeAll(anyList());
+
+        // When / Then
+        assertThatExceptionOfType(PackageResolutionUnavailableException.class)
+                .isThrownBy(() -> deploymentPlanManager.evaluatePlans(request, Collections.emptyList()));
+    }
+
     @Test
     public void getDeploymentPlansByFilterName_shouldCallRepository_andReturnResult() {
         // Given
@@ -772,4 +1261,40 @@ public class DeploymentPlanManagerTest {
         verify(deploymentPlanRepository).getDeployedVersions(userId, packageRef);
         assertThat(result).isNotNull().isEqualTo(deployedVersions);
     }
-}
\ No newline at end of file
+
+    private CompiledDeploymentPlans compile(DeploymentRule rule) {
+        return compile(DeploymentPlan.builder().packageRef(UUID.randomUUID().toString()).deploymentRule(rule).build());
+    }
+
+    private CompiledDeploymentPlans compile(DeploymentPlan plan) {
+        return CompiledDeploymentPlans.compile(Collections.singletonList(plan));
+    }
+
+    private DeviceFilterMatcher getMatcher(DeviceRequest request, CompiledDeploymentPlans compiled) {
+        return new DeviceFilterMatcher(
+                request,
+                compiled.getFilterSets(),
+                filterMatchBatcher,
+                localFilterEvaluator,
+                FilterDecisionsCache.DeviceDecisions.NONE
+        );
+    }
+
+    private CompiledDeploymentPlan getCompiledPlan(CompiledDeploymentPlans compiled, String packageRef) {
+        return compiled.getPlans().stream()
+                .filter(plan -> plan.getPackageRef().equals(packageRef))
+                .findFirst()
+                .orElseThrow(IllegalArgumentException::new);
+    }
+
+    private DeploymentPlan getPlanWithRules(DeploymentCondition firstRuleAllow) {
+        return DeploymentPlan.builder()
+                .packageRef(UUID.randomUUID().toString())
+                .deploymentRule(DeploymentRule.builder()
+                        .versionId(UUID.randomUUID().toString())
+                        .deploymentConditions(DeploymentConditions.builder().allowCondition(firstRuleAllow).build())
+                        .build())
+                .deploymentRule(DeploymentRule.builder().versionId(UUID.randomUUID().toString()).build())
+                .build();
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.manager;
+
+import io.barracks.deploymentservice.cache.ExistenceCache;
+import io.barracks.deploymentservice.exception.DeploymentPlanValidationUnavailableException;
+import io.barracks.deploymentservice.exception.InvalidDeploymentPlanException;
+import io.barracks.deploymentservice.exception.InvalidFiltersException;
+import io.barracks.deploymentservice.exception.InvalidPackageException;
+import io.barracks.deploymentservice.exception.InvalidVersionsException;
+import io.barracks.deploymentservice.model.DeploymentPlan;
+import io.barracks.deploymentservice.model.DeploymentPlanDiff;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class DeploymentPlanValidatorTest {
+
+    @Mock
+    private ExistenceCache existenceCache;
+
+    private DeploymentPlanValidator deploymentPlanValidator;
+
+    private String userId;
+
+    private String packageRef;
+
+    @Before
+    public void setUp() {
+        deploymentPlanValidator = new DeploymentPlanValidator(existenceCache, 1000);
+        userId = UUID.randomUUID().toString();
+        packageRef = UUID.randomUUID().toString();
+        doReturn(completedFuture(true)).when(existenceCache).packageExists(userId, packageRef);
+    }
+
+    @Test
+    public void validate_shouldThrowAnException_whenOneFilterDoesNotExist() {
+        // Given
+        final String existingFilter = "filter1";
+        final String unknownFilter = "filter2";
+        final DeploymentPlan deploymentPlan = getDeploymentPlan(Arrays.asList(existingFilter, unknownFilter), Collections.emptyList());
+        doReturn(completedFuture(true)).when(existenceCache).filterExists(userId, existingFilter);
+        doReturn(completedFuture(false)).when(existenceCache).filterExists(userId, unknownFilter);
+
+        // When / Then
+        assertThatExceptionOfType(InvalidFiltersException.class)
+                .isThrownBy(() -> deploymentPlanValidator.validate(deploymentPlan))
+                .withMessageContaining(unknownFilter)
+                .withMessageContaining(userId);
+        verify(existenceCache).filterExists(userId, existingFilter);
+        verify(existenceCache).filterExists(userId, unknownFilter);
+    }
+
+    @Test
+    public void validate_shouldThrowAnException_whenOneVersionDoesNotExist() {
+        // Given
+        final String existingVersion = "v0.0.1";
+        final String unknownVersion = "v0.0.2";
+        final DeploymentPlan deploymentPlan = getDeploymentPlan(Collections.emptyList(), Arrays.asList(existingVersion, unknownVersion));
+        doReturn(completedFuture(true)).when(existenceCache).versionExists(userId, packageRef, existingVersion);
+        doReturn(completedFuture(false)).when(existenceCache).versionExists(userId, packageRef, unknownVersion);
+
+        // When / Then
+        assertThatExceptionOfType(InvalidVersionsException.class)
+                .isThrownBy(() -> deploymentPlanValidator.validate(deploymentPlan))
+                .withMessageContaining(unknownVersion)
+                .withMessageContaining(packageRef)
+                .withMessageContaining(userId);
+        verify(existenceCache).versionExists(userId, packageRef, existingVersion);
+        verify(existenceCache).versionExists(userId, packageRef, unknownVersion);
+    }
+
+    @Test
+    public void validate_shouldThrowAnException_whenPackageDoesNotExist() {
+        // Given
+        final DeploymentPlan deploymentPlan = getDeploymentPlan(Collections.emptyList(), Collections.emptyList());
+        doReturn(completedFuture(false)).when(existenceCache).packageExists(userId, packageRef);
+
+        // When / Then
+        assertThatExceptionOfType(InvalidPackageException.class)
+                .isThrownBy(() -> deploymentPlanValidator.validate(deploymentPlan))
+                .withMessageContaining(userId)
+                .withMessageContaining(packageRef);
+        verify(existenceCache).packageExists(userId, packageRef);
+    }
+
+    @Test
+    public void validate_shouldReportEveryInvalidStageTogether() {
+        // Given
+        final DeploymentPlan deploymentPlan = getDeploymentPlan(Collections.singletonList("filter"), Collections.singletonList("v1"));
+        doReturn(completedFuture(false)).when(existenceCache).packageExists(userId, packageRef);
+        doReturn(completedFuture(false)).when(existenceCache).filterExists(userId, "filter");
+        doReturn(completedFuture(false)).when(existenceCache).versionExists(userId, packageRef, "v1");
+
+        // When / Then
+        assertThatExceptionOfType(InvalidDeploymentPlanException.class)
+                .isThrownBy(() -> deploymentPlanValidator.validate(deploymentPlan))
+                .withMessageContaining("invalid package")
+                .withMessageContaining("filter")
+                .withMessageContaining("v1");
+    }
+
+    @Test
+    public void validate_shouldNotThrowAnException_andCheckEachNameOnce_whenEverythingExists() {
+        // Given
+        final DeploymentPlan deploymentPlan = getDeploymentPlan(
+                Arrays.asList("filter1", "filter2", "filter1", "filter1"),
+                Arrays.asList("v1", "v1")
+        );
+        doReturn(completedFuture(true)).when(existenceCache).filterExists(eq(userId), anyString());
+        doReturn(completedFuture(true)).when(existenceCache).versionExists(eq(userId), eq(packageRef), anyString());
+
+        // When
+        deploymentPlanValidator.validate(deploymentPlan);
+
+        // Then
+        verify(existenceCache).packageExists(userId, packageRef);
+        verify(existenceCache).filterExists(userId, "filter1");
+        verify(existenceCache).filterExists(userId, "filter2");
+        verify(existenceCache).versionExists(userId, packageRef, "v1");
+        verifyNoMoreInteractions(existenceCache);
+    }
+
+    @Test
+    public void validate_shouldIssueAllChecksBeforeWaitingForAnyResult() throws Exception {
+        // Given
+        final CompletableFuture<Boolean> packageCheck = new CompletableFuture<>();
+        final CompletableFuture<Boolean> filterCheck = new CompletableFuture<>();
+        final CompletableFuture<Boolean> versionCheck = new CompletableFuture<>();
+        final DeploymentPlan deploymentPlan = getDeploymentPlan(Collections.singletonList("filter"), Collections.singletonList("v1"));
+        doReturn(packageCheck).when(existenceCache).packageExists(userId, packageRef);
+        doReturn(filterCheck).when(existenceCache).filterExists(userId, "filter");
+        doReturn(versionCheck).when(existenceCache).versionExists(userId, packageRef, "v1");
+
+        // When
+        final CompletableFuture<Void> validation = CompletableFuture.runAsync(() -> deploymentPlanValidator.validate(deploymentPlan));
+        verify(existenceCache, timeout(500)).packageExists(userId, packageRef);
+        verify(existenceCache, timeout(500)).filterExists(userId, "filter");
+        verify(existenceCache, timeout(500)).versionExists(userId, packageRef, "v1");
+        final boolean completedEarly = validation.isDone();
+        packageCheck.complete(true);
+        filterCheck.complete(true);
+        versionCheck.complete(true);
+        validation.get(500, TimeUnit.MILLISECONDS);
+
+        // Then
+        assertThat(completedEarly).isFalse();
+    }
+
+    @Test
+    public void validate_whenDeadlineIsHit_shouldThrowAnExceptionAndCancelPendingChecks() {
+        // Given
+        deploymentPlanValidator = new DeploymentPlanValidator(existenceCache, 50);
+        final CompletableFuture<Boolean> filterCheck = new CompletableFuture<>();
+        final DeploymentPlan deploymentPlan = getDeploymentPlan(Collections.singletonList("filter"), Collections.emptyList());
+        doReturn(filterCheck).when(existenceCache).filterExists(userId, "filter");
+
+        // When / Then
+        assertThatExceptionOfType(DeploymentPlanValidationUnavailableException.class)
+                .isThrownBy(() -> deploymentPlanValidator.validate(deploymentPlan))
+                .withMessageContaining(packageRef);
+        assertThat(filterCheck).isCancelled();
+    }
+
+    @Test
+    public void validate_whenACheckFails_shouldRethrowItsCause() {
+        // Given
+        final CompletableFuture<Boolean> filterCheck = new CompletableFuture<>();
+        filterCheck.completeExceptionally(new IllegalStateException("filter service down"));
+        final DeploymentPlan deploymentPlan = getDeploymentPlan(Collections.singletonList("filter"), Collections.emptyList());
+        doReturn(filterCheck).when(existenceCache).filterExists(userId, "filter");
+
+        // When / Then
+        assertThatExceptionOfType(IllegalStateException.class)
+                .isThrownBy(() -> deploymentPlanValidator.validate(deploymentPlan))
+                .withMessage("filter service down");
+    }
+
+    @Test
+    public void validateAsync_shouldOnlyCompleteOnceEveryCheckHasCompleted() {
+        // Given
+        final CompletableFuture<Boolean> filterCheck = new CompletableFuture<>();
+        final DeploymentPlan deploymentPlan = getDeploymentPlan(Collections.singletonList("filter"), Collections.emptyList());
+        doReturn(filterCheck).when(existenceCache).filterExists(userId, "filter");
+
+        // When
+        final CompletableFuture<Void> validation = deploymentPlanValidator.validateAsync(deploymentPlan, DeploymentPlanDiff.full(deploymentPlan));
+        final boolean completedEarly = validation.isDone();
+        filterCheck.complete(true);
+
+        // Then
+        assertThat(completedEarly).isFalse();
+        assertThat(validation).isCompleted();
+    }
+
+    @Test
+    public void validateAsync_whenDeadlineIsHit_shouldCompleteExceptionallyAndCancelPendingChecks() {
+        // Given
+        deploymentPlanValidator = new DeploymentPlanValidator(existenceCache, 50);
+        final CompletableFuture<Boolean> filterCheck = new CompletableFuture<>();
+        final DeploymentPlan deploymentPlan = getDeploymentPlan(Collections.singletonList("filter"), Collections.emptyList());
+        doReturn(filterCheck).when(existenceCache).filterExists(userId, "filter");
+
+        // When
+        final CompletableFuture<Void> validation = deploymentPlanValidator.validateAsync(deploymentPlan, DeploymentPlanDiff.full(deploymentPlan));
+
+        // Then
+        assertThatExceptionOfType(CompletionException.class)
+                .isThrownBy(validation::join)
+                .withCauseInstanceOf(DeploymentPlanValidationUnavailableException.class);
+        assertThatExceptionOfType(CancellationException.class).isThrownBy(() -> filterCheck.get(500, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void validateAsync_whenAFilterDoesNotExist_shouldCompleteExceptionally() {
+        // Given
+        final DeploymentPlan deploymentPlan = getDeploymentPlan(Collections.singletonList("filter"), Collections.emptyList());
+        doReturn(completedFuture(false)).when(existenceCache).filterExists(userId, "filter");
+
+        // When
+        final CompletableFuture<Void> validation = deploymentPlanValidator.validateAsync(deploymentPlan, DeploymentPlanDiff.full(deploymentPlan));
+
+        // Then
+        assertThatExceptionOfType(CompletionException.class)
+                .isThrownBy(validation::join)
+                .withCauseInstanceOf(InvalidFiltersException.class);
+    }
+
+    private DeploymentPlan getDeploymentPlan(List<String> filters, List<String> versions) {
+        final DeploymentPlan deploymentPlan = mock(DeploymentPlan.class);
+        doReturn(userId).when(deploymentPlan).getUserId();
+        doReturn(packageRef).when(deploymentPlan).getPackageRef();
+        doReturn(filters).when(deploymentPlan).extractFilters();
+        doReturn(versions).when(deploymentPlan).extractVersions();
+        return deploymentPlan;
+    }
+
+}
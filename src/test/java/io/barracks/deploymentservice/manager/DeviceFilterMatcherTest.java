@@ -0,0 +1,364 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.manager;
+
+import com.google.common.collect.ImmutableSortedSet;
+import io.barracks.deploymentservice.cache.FilterDecisionsCache;
+import io.barracks.deploymentservice.client.FilterMatchBatcher;
+import io.barracks.deploymentservice.filter.LocalFilterEvaluator;
+import io.barracks.deploymentservice.model.CompiledDeploymentPlan;
+import io.barracks.deploymentservice.model.DeviceRequest;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static io.barracks.deploymentservice.utils.DeviceRequestUtils.getDeviceRequest;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class DeviceFilterMatcherTest {
+
+    private static final List<ImmutableSortedSet<String>> FILTER_SETS = Arrays.asList(
+            ImmutableSortedSet.of("alpha"),
+            ImmutableSortedSet.of("alpha", "beta"),
+            ImmutableSortedSet.of("gamma")
+    );
+
+    @Mock
+    private FilterMatchBatcher filterMatchBatcher;
+
+    @Mock
+    private LocalFilterEvaluator localFilterEvaluator;
+
+    @Mock
+    private FilterDecisionsCache.DeviceDecisions cachedDecisions;
+
+    private DeviceRequest request;
+
+    private DeviceFilterMatcher matcher;
+
+    @Before
+    public void setUp() {
+        request = getDeviceRequest();
+        matcher = new DeviceFilterMatcher(request, FILTER_SETS, filterMatchBatcher, localFilterEvaluator, cachedDecisions);
+        doReturn(Optional.empty()).when(localFilterEvaluator).evaluate(any(DeviceRequest.class), anyCollection());
+        doReturn(Optional.empty()).when(cachedDecisions).get(any());
+    }
+
+    @Test
+    public void matches_whenUnconditional_shouldNotEvaluateAnything() {
+        // When
+        final boolean result = matcher.matches(CompiledDeploymentPlan.UNCONDITIONAL);
+
+        // Then
+        verifyZeroInteractions(filterMatchBatcher, localFilterEvaluator);
+        assertThat(result).isTrue();
+        assertThat(matcher.getSavedCalls()).isEqualTo(0);
+    }
+
+    @Test
+    public void matches_whenFilterSetNeverEvaluated_shouldCallFilterService() {
+        // Given
+        doReturn(true).when(filterMatchBatcher).isRequestMatchingFilters(request, Collections.singletonList("alpha"));
+
+        // When
+        final boolean result = matcher.matches(0);
+
+        // Then
+        verify(filterMatchBatcher).isRequestMatchingFilters(request, Collections.singletonList("alpha"));
+        verify(cachedDecisions).put(FILTER_SETS.get(0), true);
+        assertThat(result).isTrue();
+        assertThat(matcher.isDecided(0)).isTrue();
+        assertThat(matcher.getSavedCalls()).isEqualTo(0);
+    }
+
+    @Test
+    public void matches_whenFilterServiceFails_shouldRethrowAndRetryNextTime() {
+        // Given
+        when(filterMatchBatcher.isRequestMatchingFilters(request, Collections.singletonList("alpha")))
+                .thenThrow(new IllegalStateException("boom"))
+                .thenReturn(true);
+
+        // When
+        assertThatExceptionOfType(IllegalStateException.class).isThrownBy(() -> matcher.matches(0)).withMessage("boom");
+        final boolean result = matcher.matches(0);
+
+        // Then
+        verify(filterMatchBatcher, times(2)).isRequestMatchingFilters(request, Collections.singletonList("alpha"));
+        assertThat(result).isTrue();
+    }
+
+    @Test
+    public void matches_whenSameFilterSetIsBeingEvaluated_shouldWaitForItWithoutBlockingOtherSets() throws Exception {
+        // Given
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            started.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return true;
+        }).when(filterMatchBatcher).isRequestMatchingFilters(request, Collections.singletonList("alpha"));
+        doReturn(false).when(filterMatchBatcher).isRequestMatchingFilters(request, Collections.singletonList("gamma"));
+        final CompletableFuture<Boolean> first = CompletableFuture.supplyAsync(() -> matcher.matches(0));
+        started.await(5, TimeUnit.SECONDS);
+
+        // When
+        final CompletableFuture<Boolean> second = CompletableFuture.supplyAsync(() -> matcher.matches(0));
+        final boolean other = matcher.matches(2);
+        release.countDown();
+
+        // Then
+        assertThat(other).isFalse();
+        assertThat(first.get(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(second.get(5, TimeUnit.SECONDS)).isTrue();
+        verify(filterMatchBatcher).isRequestMatchingFilters(request, Collections.singletonList("alpha"));
+    }
+
+    @Test
+    public void matches_whenDecisionIsCached_shouldNotCallFilterService() {
+        // Given
+        doReturn(Optional.of(false)).when(cachedDecisions).get(FILTER_SETS.get(2));
+
+        // When
+        final boolean result = matcher.matches(2);
+
+        // Then
+        verify(cachedDecisions).get(FILTER_SETS.get(2));
+        verify(cachedDecisions, never()).put(any(), anyBoolean());
+        verifyZeroInteractions(filterMatchBatcher);
+        assertThat(result).isFalse();
+        assertThat(matcher.getSavedCalls()).isEqualTo(1);
+    }
+
+    @Test
+    public void matches_whenSameFilterSetMatchedTwice_shouldCallFilterServiceOnce() {
+        // Given
+        doReturn(false).when(filterMatchBatcher).isRequestMatchingFilters(request, Arrays.asList("alpha", "beta"));
+
+        // When
+        final boolean first = matcher.matches(1);
+        final boolean second = matcher.matches(1);
+
+        // Then
+        verify(filterMatchBatcher).isRequestMatchingFilters(request, Arrays.asList("alpha", "beta"));
+        verifyNoMoreInteractions(filterMatchBatcher);
+        assertThat(first).isFalse();
+        assertThat(second).isFalse();
+        assertThat(matcher.getSavedCalls()).isEqualTo(1);
+    }
+
+    @Test
+    public void matches_whenDecidedLocally_shouldNotCallFilterService() {
+        // Given
+        doReturn(Optional.of(true)).when(localFilterEvaluator).evaluate(request, FILTER_SETS.get(0));
+
+        // When
+        final boolean first = matcher.matches(0);
+        final boolean second = matcher.matches(0);
+
+        // Then
+        verify(localFilterEvaluator).evaluate(request, FILTER_SETS.get(0));
+        verifyZeroInteractions(filterMatchBatcher);
+        assertThat(first).isTrue();
+        assertThat(second).isTrue();
+        assertThat(matcher.getSavedCalls()).isEqualTo(2);
+    }
+
+    @Test
+    public void prefetch_shouldMatchEveryFilterSetInOneCall_andAnswerFollowingMatches() {
+        // Given
+        final Map<String, List<String>> filterSets = new LinkedHashMap<>();
+        filterSets.put("0", Collections.singletonList("alpha"));
+        filterSets.put("1", Arrays.asList("alpha", "beta"));
+        filterSets.put("2", Collections.singletonList("gamma"));
+        final Map<String, Boolean> results = new HashMap<>();
+        results.put("0", true);
+        results.put("1", true);
+        results.put("2", false);
+        doReturn(results).when(filterMatchBatcher).matchFilterSets(request, filterSets);
+
+        // When
+        matcher.prefetch();
+        final boolean first = matcher.matches(1);
+        final boolean second = matcher.matches(2);
+
+        // Then
+        verify(filterMatchBatcher).matchFilterSets(request, filterSets);
+        verifyNoMoreInteractions(filterMatchBatcher);
+        assertThat(matcher.isComplete()).isTrue();
+        assertThat(first).isTrue();
+        assertThat(second).isFalse();
+        assertThat(matcher.getSavedCalls()).isEqualTo(1);
+    }
+
+    @Test
+    public void prefetch_whenSomeDecisionsAreCached_shouldOnlySendRemainingSetsToFilterService_andCacheResults() {
+        // Given
+        doReturn(Optional.of(true)).when(cachedDecisions).get(FILTER_SETS.get(0));
+        final Map<String, List<String>> filterSets = new LinkedHashMap<>();
+        filterSets.put("0", Arrays.asList("alpha", "beta"));
+        filterSets.put("1", Collections.singletonList("gamma"));
+        final Map<String, Boolean> results = new HashMap<>();
+        results.put("0", false);
+        results.put("1", true);
+        doReturn(results).when(filterMatchBatcher).matchFilterSets(request, filterSets);
+
+        // When
+        matcher.prefetch();
+
+        // Then
+        verify(filterMatchBatcher).matchFilterSets(request, filterSets);
+        verify(cachedDecisions).put(FILTER_SETS.get(1), false);
+        verify(cachedDecisions).put(FILTER_SETS.get(2), true);
+        verify(cachedDecisions, never()).put(eq(FILTER_SETS.get(0)), anyBoolean());
+        assertThat(matcher.isComplete()).isTrue();
+        assertThat(matcher.matches(0)).isTrue();
+    }
+
+    @Test
+    public void prefetch_whenFilterServiceOmitsSomeSets_shouldLeaveThemUndecided() {
+        // Given
+        doReturn(Collections.singletonMap("0", true)).when(filterMatchBatcher).matchFilterSets(eq(request), anyMap());
+
+        // When
+        matcher.prefetch();
+
+        // Then
+        assertThat(matcher.isDecided(0)).isTrue();
+        assertThat(matcher.isDecided(1)).isFalse();
+        assertThat(matcher.isComplete()).isFalse();
+    }
+
+    @Test
+    public void prefetch_whenEveryFilterSetAlreadyEvaluated_shouldNotCallFilterService() {
+        // Given
+        final DeviceFilterMatcher single = new DeviceFilterMatcher(
+                request,
+                Collections.singletonList(ImmutableSortedSet.of("alpha")),
+                filterMatchBatcher,
+                localFilterEvaluator,
+                cachedDecisions
+        );
+        doReturn(true).when(filterMatchBatcher).isRequestMatchingFilters(request, Collections.singletonList("alpha"));
+        single.matches(0);
+
+        // When
+        single.prefetch();
+
+        // Then
+        verify(filterMatchBatcher).isRequestMatchingFilters(request, Collections.singletonList("alpha"));
+        verifyNoMoreInteractions(filterMatchBatcher);
+        assertThat(single.isComplete()).isTrue();
+    }
+
+    @Test
+    public void prefetch_whenSomeSetsDecidedLocally_shouldOnlySendRemainingSetsToFilterService() {
+        // Given
+        doReturn(Optional.of(false)).when(localFilterEvaluator).evaluate(request, FILTER_SETS.get(0));
+        doReturn(Optional.of(true)).when(localFilterEvaluator).evaluate(request, FILTER_SETS.get(2));
+        final Map<String, List<String>> filterSets = Collections.singletonMap("0", Arrays.asList("alpha", "beta"));
+        doReturn(Collections.singletonMap("0", true)).when(filterMatchBatcher).matchFilterSets(request, filterSets);
+
+        // When
+        matcher.prefetch();
+
+        // Then
+        verify(filterMatchBatcher).matchFilterSets(request, filterSets);
+        verifyNoMoreInteractions(filterMatchBatcher);
+        assertThat(matcher.matches(0)).isFalse();
+        assertThat(matcher.matches(1)).isTrue();
+        assertThat(matcher.matches(2)).isTrue();
+    }
+
+    @Test
+    public void prefetchAsync_shouldSendUndecidedSetsInOneCall_andCompleteOnceAnswered() {
+        // Given
+        doReturn(Optional.of(true)).when(cachedDecisions).get(FILTER_SETS.get(0));
+        final Map<String, List<String>> filterSets = new LinkedHashMap<>();
+        filterSets.put("0", Arrays.asList("alpha", "beta"));
+        filterSets.put("1", Collections.singletonList("gamma"));
+        final CompletableFuture<Map<String, Boolean>> answer = new CompletableFuture<>();
+        doReturn(answer).when(filterMatchBatcher).matchFilterSetsAsync(request, filterSets);
+        final Map<String, Boolean> results = new HashMap<>();
+        results.put("0", false);
+        results.put("1", true);
+
+        // When
+        final CompletableFuture<Void> prefetched = matcher.prefetchAsync();
+        final boolean completedEarly = prefetched.isDone();
+        answer.complete(results);
+
+        // Then
+        verify(filterMatchBatcher).matchFilterSetsAsync(request, filterSets);
+        verifyNoMoreInteractions(filterMatchBatcher);
+        verify(cachedDecisions).put(FILTER_SETS.get(1), false);
+        verify(cachedDecisions).put(FILTER_SETS.get(2), true);
+        assertThat(completedEarly).isFalse();
+        assertThat(prefetched).isCompleted();
+        assertThat(matcher.isComplete()).isTrue();
+        assertThat(matcher.matches(1)).isFalse();
+        assertThat(matcher.matches(2)).isTrue();
+        assertThat(matcher.getSavedCalls()).isEqualTo(1);
+    }
+
+    @Test
+    public void prefetchAsync_whenEverythingDecidedLocally_shouldCompleteImmediately() {
+        // Given
+        doReturn(Optional.of(true)).when(localFilterEvaluator).evaluate(eq(request), anyCollection());
+
+        // When
+        final CompletableFuture<Void> prefetched = matcher.prefetchAsync();
+
+        // Then
+        verifyZeroInteractions(filterMatchBatcher);
+        assertThat(prefetched).isCompleted();
+        assertThat(matcher.isComplete()).isTrue();
+    }
+
+    @Test
+    public void prefetchAsync_whenFilterServiceFails_shouldFail() {
+        // Given
+        final CompletableFuture<Map<String, Boolean>> failure = new CompletableFuture<>();
+        failure.completeExceptionally(new IllegalStateException());
+        doReturn(failure).when(filterMatchBatcher).matchFilterSetsAsync(eq(request), anyMap());
+
+        // When
+        final CompletableFuture<Void> prefetched = matcher.prefetchAsync();
+
+        // Then
+        assertThat(prefetched).isCompletedExceptionally();
+        assertThat(matcher.isDecided(0)).isFalse();
+    }
+
+}
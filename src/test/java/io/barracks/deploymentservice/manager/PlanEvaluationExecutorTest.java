@@ -0,0 +1,296 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.manager;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+
+public class PlanEvaluationExecutorTest {
+
+    private PlanEvaluationExecutor planEvaluationExecutor;
+
+    @After
+    public void tearDown() {
+        planEvaluationExecutor.shutdown();
+    }
+
+    @Test
+    public void invokeAll_shouldReturnResultsInTaskOrder() throws Exception {
+        // Given
+        planEvaluationExecutor = new PlanEvaluationExecutor(4, 10, 1000, false, 4, 2);
+        final List<Callable<String>> tasks = Arrays.asList(
+                () -> {
+                    Thread.sleep(50);
+                    return "first";
+                },
+                () -> "second",
+                () -> {
+                    Thread.sleep(20);
+                    return "third";
+                }
+        );
+
+        // When
+        final List<String> result = planEvaluationExecutor.invokeAll(tasks);
+
+        // Then
+        assertThat(result).containsExactly("first", "second", "third");
+    }
+
+    @Test
+    public void invokeAll_whenDeadlineIsHit_shouldThrowAnException_andCancelOutstandingTasks() throws Exception {
+        // Given
+        planEvaluationExecutor = new PlanEvaluationExecutor(2, 10, 50, false, 4, 2);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final List<Callable<String>> tasks = Arrays.asList(
+                () -> "fast",
+                () -> {
+                    try {
+                        Thread.sleep(10000);
+                    } catch (InterruptedException e) {
+                        interrupted.countDown();
+                        throw e;
+                    }
+                    return "slow";
+                }
+        );
+
+        // When / Then
+        assertThatExceptionOfType(TimeoutException.class)
+                .isThrownBy(() -> planEvaluationExecutor.invokeAll(tasks));
+        assertThat(interrupted.await(1, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    public void invokeAll_whenQueueIsFull_shouldRejectTasks() throws Exception {
+        // Given
+        planEvaluationExecutor = new PlanEvaluationExecutor(1, 1, 1000, false, 4, 2);
+        final List<Callable<String>> tasks = Arrays.asList(() -> "a", () -> "b", () -> "c", () -> "d");
+
+        // When / Then
+        assertThatExceptionOfType(RejectedExecutionException.class)
+                .isThrownBy(() -> {
+                    final CountDownLatch blocked = new CountDownLatch(1);
+                    final ExecutorService caller = Executors.newSingleThreadExecutor();
+                    try {
+                        caller.submit(() -> planEvaluationExecutor.invokeAll(Collections.singletonList(() -> {
+                            blocked.await();
+                            return "blocking";
+                        })));
+                        Thread.sleep(50);
+                        planEvaluationExecutor.invokeAll(tasks);
+                    } finally {
+                        blocked.countDown();
+                        caller.shutdownNow();
+                    }
+                });
+    }
+
+    @Test
+    public void invokeAll_whenTaskFails_shouldRethrowItsException() {
+        // Given
+        planEvaluationExecutor = new PlanEvaluationExecutor(2, 10, 1000, false, 4, 2);
+        final List<Callable<String>> tasks = Arrays.asList(
+                () -> "ok",
+                () -> {
+                    throw new IllegalArgumentException("boom");
+                }
+        );
+
+        // When / Then
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> planEvaluationExecutor.invokeAll(tasks))
+                .withMessage("boom");
+    }
+
+    @Test
+    public void findFirst_whenNotSpeculative_shouldStopAtFirstMatch() {
+        // Given
+        planEvaluationExecutor = new PlanEvaluationExecutor(2, 10, 1000, false, 4, 2);
+        final AtomicInteger evaluated = new AtomicInteger();
+        final List<Callable<Optional<String>>> candidates = Arrays.asList(
+                () -> {
+                    evaluated.incrementAndGet();
+                    return Optional.empty();
+                },
+                () -> {
+                    evaluated.incrementAndGet();
+                    return Optional.of("second");
+                },
+                () -> {
+                    evaluated.incrementAndGet();
+                    return Optional.of("third");
+                }
+        );
+
+        // When
+        final Optional<String> result = planEvaluationExecutor.findFirst(candidates);
+
+        // Then
+        assertThat(result).contains("second");
+        assertThat(evaluated.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void findFirst_whenSpeculative_shouldReturnFirstMatchInDeclaredOrder() {
+        // Given
+        planEvaluationExecutor = new PlanEvaluationExecutor(2, 10, 1000, true, 4, 2);
+        final List<Callable<Optional<String>>> candidates = Arrays.asList(
+                () -> {
+                    Thread.sleep(50);
+                    return Optional.empty();
+                },
+                () -> {
+                    Thread.sleep(30);
+                    return Optional.of("second");
+                },
+                () -> Optional.of("third")
+        );
+
+        // When
+        final Optional<String> result = planEvaluationExecutor.findFirst(candidates);
+
+        // Then
+        assertThat(result).contains("second");
+    }
+
+    @Test
+    public void findFirst_whenSpeculative_shouldEvaluateCandidatesConcurrently_andCancelTheOnesAfterTheWinner() throws Exception {
+        // Given
+        planEvaluationExecutor = new PlanEvaluationExecutor(2, 10, 1000, true, 4, 2);
+        final CountDownLatch started = new CountDownLatch(3);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final List<Callable<Optional<String>>> candidates = Arrays.asList(
+                () -> {
+                    started.countDown();
+                    started.await();
+                    return Optional.empty();
+                },
+                () -> {
+                    started.countDown();
+                    started.await();
+                    return Optional.of("second");
+                },
+                () -> {
+                    started.countDown();
+                    try {
+                        Thread.sleep(10000);
+                    } catch (InterruptedException e) {
+                        interrupted.countDown();
+                        throw e;
+                    }
+                    return Optional.of("third");
+                }
+        );
+
+        // When
+        final Optional<String> result = planEvaluationExecutor.findFirst(candidates);
+
+        // Then
+        assertThat(result).contains("second");
+        assertThat(interrupted.await(1, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    public void findFirst_whenSpeculativeAndNothingMatches_shouldReturnEmpty() {
+        // Given
+        planEvaluationExecutor = new PlanEvaluationExecutor(2, 10, 1000, true, 1, 2);
+        final List<Callable<Optional<String>>> candidates = Arrays.asList(
+                Optional::empty,
+                Optional::empty,
+                Optional::empty
+        );
+
+        // When
+        final Optional<String> result = planEvaluationExecutor.findFirst(candidates);
+
+        // Then
+        assertThat(result).isEmpty();
+    }
+
+    @Test
+    public void findFirst_whenSpeculativeAndCandidateFails_shouldRethrowItsException() {
+        // Given
+        planEvaluationExecutor = new PlanEvaluationExecutor(2, 10, 1000, true, 4, 2);
+        final List<Callable<Optional<String>>> candidates = Arrays.asList(
+                () -> {
+                    throw new IllegalArgumentException("boom");
+                },
+                () -> Optional.of("second")
+        );
+
+        // When / Then
+        assertThatExceptionOfType(IllegalArgumentException.class)
+                .isThrownBy(() -> planEvaluationExecutor.findFirst(candidates))
+                .withMessage("boom");
+    }
+
+    @Test
+    public void supplyAsync_shouldEvaluateOnADedicatedThread() throws Exception {
+        // Given
+        planEvaluationExecutor = new PlanEvaluationExecutor(2, 10, 1000, false, 4, 2);
+
+        // When
+        final String thread = planEvaluationExecutor.supplyAsync(() -> Thread.currentThread().getName()).get(5, TimeUnit.SECONDS);
+
+        // Then
+        assertThat(thread).startsWith("plan-evaluation-async-");
+    }
+
+    @Test
+    public void supplyAsync_whenQueueIsFull_shouldRejectTheEvaluation() {
+        // Given
+        planEvaluationExecutor = new PlanEvaluationExecutor(2, 1, 1000, false, 4, 1);
+        final CountDownLatch blocked = new CountDownLatch(1);
+
+        // When / Then
+        try {
+            planEvaluationExecutor.supplyAsync(() -> {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return "blocking";
+            });
+            planEvaluationExecutor.supplyAsync(() -> "queued");
+            assertThatExceptionOfType(RejectedExecutionException.class)
+                    .isThrownBy(() -> planEvaluationExecutor.supplyAsync(() -> "rejected"));
+        } finally {
+            blocked.countDown();
+        }
+    }
+
+}
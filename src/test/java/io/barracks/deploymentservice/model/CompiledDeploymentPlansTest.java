@@ -0,0 +1,147 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.model;
+
+import com.google.common.collect.ImmutableSortedSet;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CompiledDeploymentPlansTest {
+
+    @Test
+    public void compile_shouldSortPlansByPackageReference() {
+        // Given
+        final DeploymentPlan c = DeploymentPlan.builder().packageRef("c").build();
+        final DeploymentPlan a = DeploymentPlan.builder().packageRef("a").build();
+        final DeploymentPlan b = DeploymentPlan.builder().packageRef("b").build();
+
+        // When
+        final CompiledDeploymentPlans result = CompiledDeploymentPlans.compile(Arrays.asList(c, a, b));
+
+        // Then
+        assertThat(result.getPlans()).extracting(CompiledDeploymentPlan::getPackageRef).containsExactly("a", "b", "c");
+        assertThat(result.getDeploymentPlans()).containsExactly(c, a, b);
+    }
+
+    @Test
+    public void compile_whenConditionsAreMissingOrEmpty_shouldMarkThemUnconditional() {
+        // Given
+        final DeploymentPlan plan = DeploymentPlan.builder()
+                .packageRef("ref")
+                .deploymentConditions(DeploymentConditions.builder()
+                        .allowCondition(DeploymentCondition.builder().filters(Collections.emptyList()).build())
+                        .build())
+                .deploymentRule(DeploymentRule.builder().versionId("v1").build())
+                .build();
+
+        // When
+        final CompiledDeploymentPlans result = CompiledDeploymentPlans.compile(Collections.singletonList(plan));
+
+        // Then
+        final CompiledDeploymentPlan compiled = result.getPlans().get(0);
+        assertThat(result.getFilterSets()).isEmpty();
+        assertThat(compiled.getAllowFilterSet()).isEqualTo(CompiledDeploymentPlan.UNCONDITIONAL);
+        assertThat(compiled.getDenyFilterSet()).isEqualTo(CompiledDeploymentPlan.UNCONDITIONAL);
+        assertThat(compiled.getRuleAllowFilterSet(0)).isEqualTo(CompiledDeploymentPlan.UNCONDITIONAL);
+        assertThat(compiled.getRuleDenyFilterSet(0)).isEqualTo(CompiledDeploymentPlan.UNCONDITIONAL);
+        assertThat(compiled.getFilterSetCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void compile_whenSameFiltersInAnotherOrderOrDuplicated_shouldInternThemOnce() {
+        // Given
+        final DeploymentPlan first = DeploymentPlan.builder()
+                .packageRef("a")
+                .deploymentConditions(DeploymentConditions.builder()
+                        .allowCondition(DeploymentCondition.builder().filter("beta").filter("alpha").build())
+                        .denyCondition(DeploymentCondition.builder().filter("gamma").build())
+                        .build())
+                .build();
+        final DeploymentPlan second = DeploymentPlan.builder()
+                .packageRef("b")
+                .deploymentRule(DeploymentRule.builder()
+                        .versionId("v1")
+                        .deploymentConditions(DeploymentConditions.builder()
+                                .allowCondition(DeploymentCondition.builder().filter("alpha").filter("beta").filter("alpha").build())
+                                .build())
+                        .build())
+                .build();
+
+        // When
+        final CompiledDeploymentPlans result = CompiledDeploymentPlans.compile(Arrays.asList(second, first));
+
+        // Then
+        final CompiledDeploymentPlan a = result.getPlans().get(0);
+        final CompiledDeploymentPlan b = result.getPlans().get(1);
+        assertThat(result.getFilterSets()).containsExactly(ImmutableSortedSet.of("alpha", "beta"), ImmutableSortedSet.of("gamma"));
+        assertThat(a.getAllowFilterSet()).isEqualTo(0);
+        assertThat(a.getDenyFilterSet()).isEqualTo(1);
+        assertThat(a.getFilterSetCount()).isEqualTo(2);
+        assertThat(b.getRuleAllowFilterSet(0)).isEqualTo(0);
+        assertThat(b.getFilterSetCount()).isEqualTo(1);
+        assertThat(b.getFilterSet(0)).isEqualTo(0);
+    }
+
+    @Test
+    public void compile_shouldPrebuildPackagesOfPlanAndRules() {
+        // Given
+        final DeploymentPlan plan = DeploymentPlan.builder()
+                .packageRef("ref")
+                .deploymentRule(DeploymentRule.builder().versionId("v1").build())
+                .deploymentRule(DeploymentRule.builder().versionId("v2").build())
+                .build();
+
+        // When
+        final CompiledDeploymentPlan result = CompiledDeploymentPlans.compile(Collections.singletonList(plan)).getPlans().get(0);
+
+        // Then
+        assertThat(result.getRuleCount()).isEqualTo(2);
+        assertThat(result.getReferencePackage()).isEqualTo(Package.builder().reference("ref").build());
+        assertThat(result.getRulePackage(0)).isEqualTo(Package.builder().reference("ref").version("v1").build());
+        assertThat(result.getRulePackage(1)).isEqualTo(Package.builder().reference("ref").version("v2").build());
+    }
+
+    @Test
+    public void compile_shouldDeriveEpochFromActivePlanVersions() {
+        // Given
+        final DeploymentPlan a = DeploymentPlan.builder().id("1").packageRef("a").build();
+        final DeploymentPlan b = DeploymentPlan.builder().id("2").packageRef("b").build();
+        final DeploymentPlan newerB = b.toBuilder().id("3").build();
+
+        // When
+        final CompiledDeploymentPlans result = CompiledDeploymentPlans.compile(Arrays.asList(a, b));
+        final CompiledDeploymentPlans reordered = CompiledDeploymentPlans.compile(Arrays.asList(b, a));
+        final CompiledDeploymentPlans republished = CompiledDeploymentPlans.compile(Arrays.asList(a, newerB));
+
+        // Then
+        assertThat(reordered.getEpoch()).isEqualTo(result.getEpoch());
+        assertThat(republished.getEpoch()).isNotEqualTo(result.getEpoch());
+        assertThat(CompiledDeploymentPlans.compile(Collections.singletonList(a)).getEpoch()).isNotEqualTo(result.getEpoch());
+    }
+}
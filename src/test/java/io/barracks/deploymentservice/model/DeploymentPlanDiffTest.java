@@ -0,0 +1,135 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.model;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DeploymentPlanDiffTest {
+
+    @Test
+    public void between_whenNoPreviousPlan_shouldReturnEveryDistinctName() {
+        // Given
+        final DeploymentPlan plan = getDeploymentPlan(
+                Collections.singletonList("filter1"),
+                rules(0, 3, "filter1", "filter2")
+        );
+
+        // When
+        final DeploymentPlanDiff result = DeploymentPlanDiff.between(Optional.empty(), plan);
+
+        // Then
+        assertThat(result.getAddedFilters()).containsExactly("filter1", "filter2");
+        assertThat(result.getAddedVersions()).containsExactly("v0", "v1", "v2");
+        assertThat(result).isEqualTo(DeploymentPlanDiff.full(plan));
+    }
+
+    @Test
+    public void between_whenPlanIsUnchanged_shouldReturnNothing() {
+        // Given
+        final DeploymentPlan previous = getDeploymentPlan(
+                Collections.singletonList("filter1"),
+                rules(0, 3, "filter1", "filter2")
+        );
+        final DeploymentPlan next = previous.toBuilder().id(null).build();
+
+        // When
+        final DeploymentPlanDiff result = DeploymentPlanDiff.between(Optional.of(previous), next);
+
+        // Then
+        assertThat(result.getAddedFilters()).isEmpty();
+        assertThat(result.getAddedVersions()).isEmpty();
+    }
+
+    @Test
+    public void between_whenOneRuleChangesInALargePlan_shouldOnlyReturnTheNewNames() {
+        // Given
+        final List<DeploymentRule> rules = rules(0, 5000, "shared");
+        final DeploymentPlan previous = getDeploymentPlan(filters(0, 2000), rules);
+        final List<DeploymentRule> changedRules = new ArrayList<>(rules);
+        changedRules.set(2500, rule("v-new", "shared", "filter-new"));
+        final DeploymentPlan next = getDeploymentPlan(filters(0, 2000), changedRules);
+
+        // When
+        final DeploymentPlanDiff result = DeploymentPlanDiff.between(Optional.of(previous), next);
+
+        // Then
+        assertThat(result.getAddedFilters()).containsExactly("filter-new");
+        assertThat(result.getAddedVersions()).containsExactly("v-new");
+    }
+
+    @Test
+    public void between_whenPlanGrowsLarge_shouldReturnOnlyTheAddedNamesInPlanOrder() {
+        // Given
+        final DeploymentPlan previous = getDeploymentPlan(filters(0, 10000), rules(0, 10000));
+        final DeploymentPlan next = getDeploymentPlan(filters(5000, 15000), rules(5000, 15000));
+
+        // When
+        final DeploymentPlanDiff result = DeploymentPlanDiff.between(Optional.of(previous), next);
+
+        // Then
+        assertThat(result.getAddedFilters()).isEqualTo(filters(10000, 15000));
+        assertThat(result.getAddedVersions()).isEqualTo(
+                IntStream.range(10000, 15000).mapToObj(i -> "v" + i).collect(Collectors.toList())
+        );
+    }
+
+    private static DeploymentPlan getDeploymentPlan(List<String> allowFilters, List<DeploymentRule> rules) {
+        return DeploymentPlan.builder()
+                .packageRef("ref")
+                .deploymentConditions(DeploymentConditions.builder()
+                        .allowCondition(DeploymentCondition.builder().filters(allowFilters).build())
+                        .build())
+                .deploymentRules(rules)
+                .build();
+    }
+
+    private static List<String> filters(int from, int to) {
+        return IntStream.range(from, to).mapToObj(i -> "filter" + i).collect(Collectors.toList());
+    }
+
+    private static List<DeploymentRule> rules(int from, int to, String... filters) {
+        return IntStream.range(from, to).mapToObj(i -> rule("v" + i, filters)).collect(Collectors.toList());
+    }
+
+    private static DeploymentRule rule(String versionId, String... filters) {
+        return DeploymentRule.builder()
+                .versionId(versionId)
+                .deploymentConditions(DeploymentConditions.builder()
+                        .allowCondition(DeploymentCondition.builder().filters(Arrays.asList(filters)).build())
+                        .build())
+                .build();
+    }
+
+}
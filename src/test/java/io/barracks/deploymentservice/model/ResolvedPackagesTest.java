@@ -0,0 +1,87 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.model;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ResolvedPackagesTest {
+
+    @Test
+    public void toDelta_shouldOnlyKeepPresentPackagesWithAnotherVersionOrNotInstalled() {
+        // Given
+        final Package unchanged = Package.builder().reference("unchanged").version("1.0").build();
+        final Package upgraded = Package.builder().reference("upgraded").version("2.0").build();
+        final Package added = Package.builder().reference("added").version("1.0").build();
+        final ResolvedPackages resolved = ResolvedPackages.builder().present(unchanged).present(upgraded).present(added).build();
+
+        // When
+        final ResolvedPackages delta = resolved.toDelta(Arrays.asList(
+                unchanged,
+                Package.builder().reference("upgraded").version("1.0").build()
+        ));
+
+        // Then
+        assertThat(delta.getPresents()).containsExactly(upgraded, added);
+        assertThat(delta.getAbsents()).isEmpty();
+    }
+
+    @Test
+    public void toDelta_whenPresentPackageHasNoVersion_shouldOnlyKeepItIfNotInstalled() {
+        // Given
+        final Package installed = Package.builder().reference("installed").build();
+        final Package missing = Package.builder().reference("missing").build();
+        final ResolvedPackages resolved = ResolvedPackages.builder().present(installed).present(missing).build();
+
+        // When
+        final ResolvedPackages delta = resolved.toDelta(Collections.singletonList(
+                Package.builder().reference("installed").version("1.0").build()
+        ));
+
+        // Then
+        assertThat(delta.getPresents()).containsExactly(missing);
+    }
+
+    @Test
+    public void toDelta_shouldOnlyKeepAbsentPackagesThatAreInstalled() {
+        // Given
+        final Package removed = Package.builder().reference("removed").build();
+        final Package neverInstalled = Package.builder().reference("neverInstalled").build();
+        final ResolvedPackages resolved = ResolvedPackages.builder().absent(removed).absent(neverInstalled).build();
+
+        // When
+        final ResolvedPackages delta = resolved.toDelta(Collections.singletonList(
+                Package.builder().reference("removed").version("1.0").build()
+        ));
+
+        // Then
+        assertThat(delta.getPresents()).isEmpty();
+        assertThat(delta.getAbsents()).containsExactly(removed);
+    }
+}
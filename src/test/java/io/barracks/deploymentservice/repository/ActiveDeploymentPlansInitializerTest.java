@@ -0,0 +1,87 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.repository;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.Spy;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.boot.DefaultApplicationArguments;
+import org.springframework.data.mongodb.core.MongoOperations;
+
+import static io.barracks.deploymentservice.repository.ActiveDeploymentPlansInitializer.REBUILD_OPTION;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ActiveDeploymentPlansInitializerTest {
+
+    @Mock
+    private DeploymentPlanRepository deploymentPlanRepository;
+
+    @Mock
+    private MongoOperations operations;
+
+    @Spy
+    @InjectMocks
+    private ActiveDeploymentPlansInitializer initializer;
+
+    @Test
+    public void run_whenRebuildOptionIsGiven_shouldRebuildActivePlans() {
+        // Given
+        doReturn(false).when(initializer).isMigrationRequired();
+
+        // When
+        initializer.run(new DefaultApplicationArguments(new String[]{"--" + REBUILD_OPTION}));
+
+        // Then
+        verify(deploymentPlanRepository).rebuildActiveDeploymentPlans();
+    }
+
+    @Test
+    public void run_whenMigrationIsRequired_shouldRebuildActivePlans() {
+        // Given
+        doReturn(true).when(initializer).isMigrationRequired();
+
+        // When
+        initializer.run(new DefaultApplicationArguments(new String[0]));
+
+        // Then
+        verify(deploymentPlanRepository).rebuildActiveDeploymentPlans();
+    }
+
+    @Test
+    public void run_whenActivePlansAreUpToDate_shouldNotRebuildActivePlans() {
+        // Given
+        doReturn(false).when(initializer).isMigrationRequired();
+
+        // When
+        initializer.run(new DefaultApplicationArguments(new String[0]));
+
+        // Then
+        verifyZeroInteractions(deploymentPlanRepository);
+    }
+}
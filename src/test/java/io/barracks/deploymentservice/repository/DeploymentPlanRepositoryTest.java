@@ -24,6 +24,7 @@
 
 package io.barracks.deploymentservice.repository;
 
+import io.barracks.deploymentservice.model.ActiveDeploymentPlan;
 import io.barracks.deploymentservice.model.DeploymentPlan;
 import io.barracks.deploymentservice.utils.DeploymentPlanUtils;
 import org.junit.Test;
@@ -31,14 +32,18 @@ import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
 import org.springframework.context.annotation.ComponentScan;
+import org.springframework.context.annotation.FilterType;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Slice;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.config.EnableMongoAuditing;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.test.context.junit4.SpringRunner;
 
 import java.util.*;
@@ -46,10 +51,14 @@ import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.*;
 
 @RunWith(SpringRunner.class)
 @DataMongoTest(
-        includeFilters = {@ComponentScan.Filter(classes = EnableMongoAuditing.class)}
+        includeFilters = {
+                @ComponentScan.Filter(classes = EnableMongoAuditing.class),
+                @ComponentScan.Filter(type = FilterType.ASSIGNABLE_TYPE, classes = ActiveDeploymentPlanListener.class)
+        }
 )
 @EnableMongoAuditing
 public class DeploymentPlanRepositoryTest {
@@ -236,6 +245,36 @@ public class DeploymentPlanRepositoryTest {
         assertThat(result).containsOnlyElementsOf(Arrays.asList(plans.get(2), plans.get(4)));
     }
 
+    @Test
+    public void findByUserId_whenManyPackagesWithManyVersions_shouldReturnSameAsActiveDeploymentPlans() throws Exception {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final List<String> packageRefs = IntStream.range(0, 200)
+                .mapToObj(i -> UUID.randomUUID().toString())
+                .collect(Collectors.toList());
+        for (int version = 0; version < 3; version++) {
+            deploymentPlanRepository.save(
+                    packageRefs.stream()
+                            .map(packageRef -> buildUnsavedDeploymentPlan(userId, packageRef))
+                            .collect(Collectors.toList())
+            );
+            deploymentPlanRepository.save(buildUnsavedDeploymentPlan(UUID.randomUUID().toString(), packageRefs.get(0)));
+            Thread.sleep(5);
+        }
+        final Map<String, DeploymentPlan> latestPlans = new LinkedHashMap<>();
+        mongoTemplate.find(
+                Query.query(Criteria.where("userId").is(userId)).with(new Sort(Sort.Direction.DESC, "created", "_id")),
+                DeploymentPlan.class
+        ).forEach(plan -> latestPlans.putIfAbsent(plan.getPackageRef(), plan));
+        final List<DeploymentPlan> expected = new ArrayList<>(latestPlans.values());
+
+        // When
+        final List<DeploymentPlan> result = deploymentPlanRepository.findByUserId(userId);
+
+        // Then
+        assertThat(result).hasSize(packageRefs.size()).containsOnlyElementsOf(expected);
+    }
+
     @Test
     public void getDeployedVersions_whenNoDeploymentPlan_shouldReturnEmptyList() {
         // Given
@@ -436,4 +475,78 @@ public class DeploymentPlanRepositoryTest {
                 .contains(newVersion);
     }
 
-}
\ No newline at end of file
+    @Test
+    public void activateDeploymentPlan_whenOlderPlanIsActivatedAfterNewerOne_shouldKeepNewerPlanActive() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final String packageRef = UUID.randomUUID().toString();
+        final DeploymentPlan oldVersion = deploymentPlanRepository.save(buildUnsavedDeploymentPlan(userId, packageRef));
+        final DeploymentPlan newVersion = deploymentPlanRepository.save(buildUnsavedDeploymentPlan(userId, packageRef));
+
+        // When
+        deploymentPlanRepository.activateDeploymentPlan(oldVersion);
+
+        // Then
+        assertThat(deploymentPlanRepository.getActiveDeploymentPlan(userId, packageRef))
+                .isPresent()
+                .contains(newVersion);
+        assertThat(mongoTemplate.count(
+                Query.query(Criteria.where("userId").is(userId).and(PACKAGE_REF_KEY).is(packageRef)),
+                ActiveDeploymentPlan.class
+        )).isEqualTo(1);
+    }
+
+    @Test
+    public void activateDeploymentPlan_whenOlderPlanWinsTheFirstInsert_shouldRetryAndActivateNewerPlan() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final String packageRef = UUID.randomUUID().toString();
+        final DeploymentPlan oldVersion = deploymentPlanRepository.save(buildUnsavedDeploymentPlan(userId, packageRef));
+        final DeploymentPlan newVersion = deploymentPlanRepository.save(buildUnsavedDeploymentPlan(userId, packageRef));
+        mongoTemplate.remove(Query.query(Criteria.where("userId").is(userId)), ActiveDeploymentPlan.class);
+        final MongoTemplate racingTemplate = spy(mongoTemplate);
+        doAnswer(invocation -> {
+            new DeploymentPlanRepositoryImpl(mongoTemplate).activateDeploymentPlan(oldVersion);
+            throw new DuplicateKeyException("Concurrent activation of " + oldVersion.getId());
+        }).doCallRealMethod().when(racingTemplate).upsert(any(Query.class), any(Update.class), eq(ActiveDeploymentPlan.class));
+
+        // When
+        new DeploymentPlanRepositoryImpl(racingTemplate).activateDeploymentPlan(newVersion);
+
+        // Then
+        verify(racingTemplate, times(2)).upsert(any(Query.class), any(Update.class), eq(ActiveDeploymentPlan.class));
+        assertThat(deploymentPlanRepository.getActiveDeploymentPlan(userId, packageRef))
+                .isPresent()
+                .contains(newVersion);
+    }
+
+    @Test
+    public void rebuildActiveDeploymentPlans_whenActivePlansAreMissing_shouldRestoreLatestPlans() throws Exception {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final List<String> packageRefs = IntStream.range(0, 20)
+                .mapToObj(i -> UUID.randomUUID().toString())
+                .collect(Collectors.toList());
+        final List<DeploymentPlan> latestPlans = new ArrayList<>();
+        for (int version = 0; version < 3; version++) {
+            latestPlans.clear();
+            latestPlans.addAll(deploymentPlanRepository.save(
+                    packageRefs.stream()
+                            .map(packageRef -> buildUnsavedDeploymentPlan(userId, packageRef))
+                            .collect(Collectors.toList())
+            ));
+            Thread.sleep(5);
+        }
+        mongoTemplate.remove(new Query(), ActiveDeploymentPlan.class);
+
+        // When
+        final long result = deploymentPlanRepository.rebuildActiveDeploymentPlans();
+
+        // Then
+        assertThat(result).isGreaterThanOrEqualTo(packageRefs.size());
+        assertThat(deploymentPlanRepository.findByUserId(userId))
+                .hasSize(packageRefs.size())
+                .containsOnlyElementsOf(latestPlans);
+    }
+
+}
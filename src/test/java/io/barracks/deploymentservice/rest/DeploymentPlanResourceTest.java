@@ -24,16 +24,24 @@
 
 package io.barracks.deploymentservice.rest;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.Lists;
 import io.barracks.commons.test.PagedResourcesUtils;
+import io.barracks.deploymentservice.exception.InvalidPackageException;
 import io.barracks.deploymentservice.manager.DeploymentPlanManager;
 import io.barracks.deploymentservice.model.DeploymentPlan;
+import io.barracks.deploymentservice.model.DeviceRequest;
+import io.barracks.deploymentservice.model.DryRunOutcome;
+import io.barracks.deploymentservice.utils.DeviceRequestUtils;
+import io.barracks.deploymentservice.utils.PackageUtils;
 import io.barracks.deploymentservice.utils.DeploymentPlanUtils;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.core.task.AsyncTaskExecutor;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.PageRequest;
@@ -41,27 +49,62 @@ import org.springframework.data.domain.Pageable;
 import org.springframework.data.web.PagedResourcesAssembler;
 import org.springframework.hateoas.PagedResources;
 import org.springframework.hateoas.Resource;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.context.request.async.WebAsyncTask;
 
+import javax.validation.ConstraintViolationException;
+import javax.validation.Validation;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
 
 import static io.barracks.deploymentservice.utils.DeploymentPlanUtils.getDeploymentPlan;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
 import static org.mockito.Mockito.*;
 
 @RunWith(MockitoJUnitRunner.class)
 public class DeploymentPlanResourceTest {
 
+    private static final long PUBLISH_TIMEOUT_MILLIS = 1000;
+    private static final long DRY_RUN_TIMEOUT_MILLIS = 60000;
+
     @Mock
     private DeploymentPlanManager deploymentPlanManager;
 
+    @Mock
+    private AsyncTaskExecutor streamingRequestExecutor;
+
     private DeploymentPlanResource deploymentPlanResource;
 
     private PagedResourcesAssembler<DeploymentPlan> assembler = PagedResourcesUtils.getPagedResourcesAssembler();
 
+    private ObjectMapper mapper;
+
     @Before
     public void setup() {
-        deploymentPlanResource = new DeploymentPlanResource(deploymentPlanManager, assembler);
+        mapper = Jackson2ObjectMapperBuilder.json().build();
+        deploymentPlanResource = new DeploymentPlanResource(
+                deploymentPlanManager,
+                assembler,
+                mapper,
+                Validation.buildDefaultValidatorFactory().getValidator(),
+                PUBLISH_TIMEOUT_MILLIS,
+                DRY_RUN_TIMEOUT_MILLIS,
+                streamingRequestExecutor
+        );
     }
 
     @Test
@@ -71,14 +114,33 @@ public class DeploymentPlanResourceTest {
         final DeploymentPlan deploymentPlan = DeploymentPlanUtils.getDeploymentPlan().toBuilder().userId(null).build();
         final DeploymentPlan deploymentPlanWithUserId = deploymentPlan.toBuilder().userId(userId).build();
         final DeploymentPlan expected = getDeploymentPlan();
-        when(deploymentPlanManager.publishDeploymentPlan(deploymentPlanWithUserId)).thenReturn(expected);
+        when(deploymentPlanManager.publishDeploymentPlanAsync(deploymentPlanWithUserId, true)).thenReturn(CompletableFuture.completedFuture(expected));
 
         // When
-        final DeploymentPlan result = deploymentPlanResource.publishDeploymentPlan(deploymentPlan, userId);
+        final DeferredResult<ResponseEntity<DeploymentPlan>> result = deploymentPlanResource.publishDeploymentPlan(deploymentPlan, userId, true);
 
         // Then
-        verify(deploymentPlanManager).publishDeploymentPlan(deploymentPlanWithUserId);
-        assertThat(result).isEqualTo(expected);
+        verify(deploymentPlanManager).publishDeploymentPlanAsync(deploymentPlanWithUserId, true);
+        assertThat(result.getResult()).isEqualTo(ResponseEntity.status(HttpStatus.CREATED).body(expected));
+    }
+
+    @Test
+    public void publishDeploymentPlan_whenPublicationFails_shouldSetTheCauseAsErrorResult() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final DeploymentPlan deploymentPlan = DeploymentPlanUtils.getDeploymentPlan().toBuilder().userId(userId).build();
+        final InvalidPackageException failure = new InvalidPackageException(userId, deploymentPlan.getPackageRef());
+        final CompletableFuture<DeploymentPlan> publication = new CompletableFuture<>();
+        when(deploymentPlanManager.publishDeploymentPlanAsync(deploymentPlan, false)).thenReturn(publication);
+
+        // When
+        final DeferredResult<ResponseEntity<DeploymentPlan>> result = deploymentPlanResource.publishDeploymentPlan(deploymentPlan, userId, false);
+        final boolean completedEarly = result.hasResult();
+        publication.completeExceptionally(new CompletionException(failure));
+
+        // Then
+        assertThat(completedEarly).isFalse();
+        assertThat(result.getResult()).isSameAs(failure);
     }
 
     @Test
@@ -135,4 +197,130 @@ public class DeploymentPlanResourceTest {
         verify(deploymentPlanManager).getActiveDeploymentPlan(userId, packageRef);
         assertThat(result).isNotNull().isEqualTo(result);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void dryRunDeploymentPlan_shouldEvaluateEachSnapshotForTheUser_andStreamOutcomesAndSummary() throws Exception {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final DeploymentPlan draft = getDeploymentPlan().toBuilder().id(null).userId(null).created(null).build();
+        final DeviceRequest first = DeviceRequestUtils.getDeviceRequest();
+        final DeviceRequest second = DeviceRequestUtils.getDeviceRequest();
+        final DryRunOutcome install = DryRunOutcome.of(first.getUnitId(), null, PackageUtils.getPackage());
+        final DryRunOutcome unchanged = DryRunOutcome.of(second.getUnitId(), null, null);
+        final Function<DeviceRequest, DryRunOutcome> dryRun = device -> device.getUnitId().equals(first.getUnitId()) ? install : unchanged;
+        doReturn(dryRun).when(deploymentPlanManager).dryRunDeploymentPlan(draft.toBuilder().userId(userId).build());
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        // When
+        deploymentPlanResource.streamDryRun(userId, toNdjson(draft, first, second)).writeTo(output);
+
+        // Then
+        verify(deploymentPlanManager).dryRunDeploymentPlan(draft.toBuilder().userId(userId).build());
+        final List<String> lines = Arrays.asList(new String(output.toByteArray(), StandardCharsets.UTF_8).split("\n"));
+        assertThat(lines).hasSize(3);
+        assertThat(lines.get(0)).isEqualTo(mapper.writeValueAsString(install));
+        assertThat(lines.get(1)).isEqualTo(mapper.writeValueAsString(unchanged));
+        final JsonNode summary = mapper.readTree(lines.get(2)).get("summary");
+        assertThat(summary.get("devices").asLong()).isEqualTo(2L);
+        assertThat(summary.get("installs").asLong()).isEqualTo(1L);
+        assertThat(summary.get("unchanged").asLong()).isEqualTo(1L);
+    }
+
+    @Test
+    public void dryRunDeploymentPlan_shouldStreamToTheResponseWithItsOwnTimeoutAndExecutor() throws Exception {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final DeploymentPlan draft = getDeploymentPlan().toBuilder().id(null).userId(null).created(null).build();
+        final DeviceRequest snapshot = DeviceRequestUtils.getDeviceRequest();
+        final DryRunOutcome outcome = DryRunOutcome.of(snapshot.getUnitId(), null, null);
+        doReturn((Function<DeviceRequest, DryRunOutcome>) device -> outcome)
+                .when(deploymentPlanManager).dryRunDeploymentPlan(any(DeploymentPlan.class));
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // When
+        final WebAsyncTask<Void> task = deploymentPlanResource.dryRunDeploymentPlan(userId, toNdjson(draft, snapshot), response);
+        task.getCallable().call();
+
+        // Then
+        assertThat(task.getTimeout()).isEqualTo(DRY_RUN_TIMEOUT_MILLIS);
+        assertThat(task.getExecutor()).isSameAs(streamingRequestExecutor);
+        assertThat(response.getContentType()).isEqualTo(PackageResource.APPLICATION_NDJSON_VALUE);
+        assertThat(response.getContentAsString()).startsWith(mapper.writeValueAsString(outcome) + "\n");
+    }
+
+    @Test
+    public void dryRunDeploymentPlan_whenSnapshotBelongsToAnotherUser_shouldEvaluateItForThePathUser() throws Exception {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final DeploymentPlan draft = getDeploymentPlan().toBuilder().id(null).userId(null).created(null).build();
+        final DeviceRequest snapshot = DeviceRequestUtils.getDeviceRequest();
+        final Function<DeviceRequest, DryRunOutcome> dryRun = device -> {
+            assertThat(device.getUserId()).isEqualTo(userId);
+            assertThat(device.getUnitId()).isEqualTo(snapshot.getUnitId());
+            assertThat(device.getPackages()).isEqualTo(snapshot.getPackages());
+            return DryRunOutcome.of(device.getUnitId(), null, null);
+        };
+        doReturn(dryRun).when(deploymentPlanManager).dryRunDeploymentPlan(any(DeploymentPlan.class));
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        // When
+        deploymentPlanResource.streamDryRun(userId, toNdjson(draft, snapshot)).writeTo(output);
+
+        // Then
+        assertThat(new String(output.toByteArray(), StandardCharsets.UTF_8)).startsWith(
+                mapper.writeValueAsString(DryRunOutcome.of(snapshot.getUnitId(), null, null))
+        );
+    }
+
+    @Test
+    public void dryRunDeploymentPlan_whenSnapshotIsInvalid_shouldReportAnErrorAndContinue() throws Exception {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final DeploymentPlan draft = getDeploymentPlan().toBuilder().id(null).userId(null).created(null).build();
+        final DeviceRequest invalid = DeviceRequest.builder().userId(userId).build();
+        final DeviceRequest valid = DeviceRequestUtils.getDeviceRequest();
+        final DryRunOutcome outcome = DryRunOutcome.of(valid.getUnitId(), null, null);
+        doReturn((Function<DeviceRequest, DryRunOutcome>) device -> outcome)
+                .when(deploymentPlanManager).dryRunDeploymentPlan(any(DeploymentPlan.class));
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        // When
+        deploymentPlanResource.streamDryRun(userId, toNdjson(draft, invalid, valid)).writeTo(output);
+
+        // Then
+        final List<String> lines = Arrays.asList(new String(output.toByteArray(), StandardCharsets.UTF_8).split("\n"));
+        assertThat(lines).hasSize(3);
+        assertThat(mapper.readValue(lines.get(0), JsonNode.class).get("change").asText()).isEqualTo(DryRunOutcome.Change.ERROR.name());
+        assertThat(lines.get(1)).isEqualTo(mapper.writeValueAsString(outcome));
+        assertThat(mapper.readTree(lines.get(2)).get("summary").get("errors").asLong()).isEqualTo(1L);
+    }
+
+    @Test
+    public void dryRunDeploymentPlan_whenBodyIsEmpty_shouldThrowAnException() {
+        // When / Then
+        assertThatExceptionOfType(HttpMessageNotReadableException.class).isThrownBy(() ->
+                deploymentPlanResource.streamDryRun(UUID.randomUUID().toString(), new ByteArrayInputStream(new byte[0]))
+        );
+        verifyZeroInteractions(deploymentPlanManager);
+    }
+
+    @Test
+    public void dryRunDeploymentPlan_whenDraftIsInvalid_shouldThrowAnException() {
+        // When / Then
+        assertThatExceptionOfType(ConstraintViolationException.class).isThrownBy(() ->
+                deploymentPlanResource.streamDryRun(
+                        UUID.randomUUID().toString(),
+                        new ByteArrayInputStream("{\"rules\":[]}".getBytes(StandardCharsets.UTF_8))
+                )
+        );
+        verifyZeroInteractions(deploymentPlanManager);
+    }
+
+    private ByteArrayInputStream toNdjson(DeploymentPlan draft, DeviceRequest... devices) throws Exception {
+        final StringBuilder body = new StringBuilder(mapper.writeValueAsString(draft)).append('\n');
+        for (DeviceRequest device : devices) {
+            body.append(mapper.writeValueAsString(device)).append('\n');
+        }
+        return new ByteArrayInputStream(body.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
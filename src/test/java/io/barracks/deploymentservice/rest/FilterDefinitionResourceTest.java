@@ -0,0 +1,74 @@
+/*
+ * MIT License
+ *
+ * Copyright (c) 2017 Barracks Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package io.barracks.deploymentservice.rest;
+
+import io.barracks.deploymentservice.cache.ExistenceCache;
+import io.barracks.deploymentservice.cache.FilterDecisionsCache;
+import io.barracks.deploymentservice.cache.FilterDefinitionsCache;
+import io.barracks.deploymentservice.cache.ResolvedPackagesCache;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.UUID;
+
+import static org.mockito.Mockito.verify;
+
+@RunWith(MockitoJUnitRunner.class)
+public class FilterDefinitionResourceTest {
+
+    @Mock
+    private FilterDefinitionsCache filterDefinitionsCache;
+
+    @Mock
+    private FilterDecisionsCache filterDecisionsCache;
+
+    @Mock
+    private ResolvedPackagesCache resolvedPackagesCache;
+
+    @Mock
+    private ExistenceCache existenceCache;
+
+    @InjectMocks
+    private FilterDefinitionResource resource;
+
+    @Test
+    public void invalidateFilterDefinition_shouldInvalidateCachedDefinition() {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final String name = UUID.randomUUID().toString();
+
+        // When
+        resource.invalidateFilterDefinition(userId, name);
+
+        // Then
+        verify(filterDefinitionsCache).invalidate(userId, name);
+        verify(filterDecisionsCache).invalidate(userId);
+        verify(resolvedPackagesCache).invalidate(userId);
+        verify(existenceCache).invalidateFilter(userId, name);
+    }
+}
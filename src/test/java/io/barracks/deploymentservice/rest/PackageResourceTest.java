@@ -24,42 +24,374 @@
 
 package io.barracks.deploymentservice.rest;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.barracks.deploymentservice.exception.DeviceRequestBatchTooLargeException;
+import io.barracks.deploymentservice.exception.PackageResolutionUnavailableException;
 import io.barracks.deploymentservice.manager.DeploymentPlanManager;
 import io.barracks.deploymentservice.model.DeviceRequest;
+import io.barracks.deploymentservice.model.Package;
+import io.barracks.deploymentservice.model.ResolutionFailure;
 import io.barracks.deploymentservice.model.ResolvedPackages;
 import io.barracks.deploymentservice.utils.ResolvedPackagesUtils;
+import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
-import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.context.request.async.WebAsyncTask;
+
+import javax.validation.ConstraintViolationException;
+import javax.validation.Validation;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 
 import static io.barracks.deploymentservice.utils.DeviceRequestUtils.getDeviceRequest;
 import static org.assertj.core.api.Assertions.assertThat;
-import static org.mockito.Mockito.doReturn;
-import static org.mockito.Mockito.verify;
+import static org.assertj.core.api.Assertions.assertThatExceptionOfType;
+import static org.mockito.Mockito.*;
 
 @RunWith(MockitoJUnitRunner.class)
 public class PackageResourceTest {
 
+    private static final int MAX_BATCH_SIZE = 2;
+
+    private static final long TIMEOUT_MILLIS = 1000;
+
+    private static final long BATCH_TIMEOUT_MILLIS = 60000;
+
     @Mock
     private DeploymentPlanManager manager;
 
-    @InjectMocks
+    @Mock
+    private AsyncTaskExecutor streamingRequestExecutor;
+
+    private ObjectMapper mapper;
+
     private PackageResource resource;
 
+    @Before
+    public void setUp() {
+        mapper = Jackson2ObjectMapperBuilder.json().build();
+        resource = new PackageResource(
+                manager,
+                mapper,
+                Validation.buildDefaultValidatorFactory().getValidator(),
+                MAX_BATCH_SIZE,
+                false,
+                TIMEOUT_MILLIS,
+                BATCH_TIMEOUT_MILLIS,
+                streamingRequestExecutor
+        );
+    }
+
+    @Test
+    public void resolveComponents_shouldPassTheRequestToTheManager_andTagTheResponse() {
+        // Given
+        final DeviceRequest request = getDeviceRequest();
+        final ResolvedPackages expected = ResolvedPackagesUtils.getResolvedPackages();
+        final String tag = UUID.randomUUID().toString();
+        doReturn(CompletableFuture.completedFuture(tag)).when(manager).getResolutionTagAsync(request);
+        doReturn(CompletableFuture.completedFuture(expected)).when(manager).resolvePackagesForDeviceRequestAsync(request, true);
+
+        // When
+        final ResponseEntity<ResolvedPackages> result = getResult(resource.resolvePackages(request, null, null, false));
+
+        // Then
+        verify(manager).getResolutionTagAsync(request);
+        verify(manager).resolvePackagesForDeviceRequestAsync(request, true);
+        assertThat(result.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(result.getHeaders().getETag()).isEqualTo("\"" + tag + "\"");
+        assertThat(result.getBody()).isEqualTo(expected);
+    }
+
+    @Test
+    public void resolveComponents_whenResolutionIsStale_shouldWarnAndNotTagTheResponse() {
+        // Given
+        final DeviceRequest request = getDeviceRequest();
+        final ResolvedPackages expected = ResolvedPackagesUtils.getResolvedPackages().asStale();
+        doReturn(CompletableFuture.completedFuture(UUID.randomUUID().toString())).when(manager).getResolutionTagAsync(request);
+        doReturn(CompletableFuture.completedFuture(expected)).when(manager).resolvePackagesForDeviceRequestAsync(request, true);
+
+        // When
+        final ResponseEntity<ResolvedPackages> result = getResult(resource.resolvePackages(request, null, null, false));
+
+        // Then
+        assertThat(result.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(result.getHeaders().getFirst(HttpHeaders.WARNING)).isEqualTo(PackageResource.STALE_WARNING);
+        assertThat(result.getHeaders().getETag()).isNull();
+        assertThat(result.getBody()).isEqualTo(expected);
+    }
+
+    @Test
+    public void resolveComponents_whenNoCacheRequested_shouldBypassTheCache() {
+        // Given
+        final DeviceRequest request = getDeviceRequest();
+        final ResolvedPackages expected = ResolvedPackagesUtils.getResolvedPackages();
+        doReturn(CompletableFuture.completedFuture(UUID.randomUUID().toString())).when(manager).getResolutionTagAsync(request);
+        doReturn(CompletableFuture.completedFuture(expected)).when(manager).resolvePackagesForDeviceRequestAsync(request, false);
+
+        // When
+        final ResponseEntity<ResolvedPackages> result = getResult(resource.resolvePackages(request, "No-Cache", null, false));
+
+        // Then
+        verify(manager).resolvePackagesForDeviceRequestAsync(request, false);
+        assertThat(result.getBody()).isEqualTo(expected);
+    }
+
     @Test
-    public void resolveComponents_shouldPassTheRequestToTheManager() {
+    public void resolveComponents_whenTagMatches_shouldReturnNotModifiedWithoutResolving() {
+        // Given
+        final DeviceRequest request = getDeviceRequest();
+        final String tag = UUID.randomUUID().toString();
+        doReturn(CompletableFuture.completedFuture(tag)).when(manager).getResolutionTagAsync(request);
+
+        // When
+        final ResponseEntity<ResolvedPackages> result = getResult(resource.resolvePackages(request, null, "\"other\", W/\"" + tag + "\"", false));
+
+        // Then
+        verify(manager).getResolutionTagAsync(request);
+        verifyNoMoreInteractions(manager);
+        assertThat(result.getStatusCode()).isEqualTo(HttpStatus.NOT_MODIFIED);
+        assertThat(result.getHeaders().getETag()).isEqualTo("\"" + tag + "\"");
+        assertThat(result.getBody()).isNull();
+    }
+
+    @Test
+    public void resolveComponents_whenTagDiffers_shouldResolve() {
         // Given
         final DeviceRequest request = getDeviceRequest();
         final ResolvedPackages expected = ResolvedPackagesUtils.getResolvedPackages();
-        doReturn(expected).when(manager).resolvePackagesForDeviceRequest(request);
+        doReturn(CompletableFuture.completedFuture(UUID.randomUUID().toString())).when(manager).getResolutionTagAsync(request);
+        doReturn(CompletableFuture.completedFuture(expected)).when(manager).resolvePackagesForDeviceRequestAsync(request, true);
 
         // When
-        final ResolvedPackages result = resource.resolvePackages(request);
+        final ResponseEntity<ResolvedPackages> result = getResult(resource.resolvePackages(request, null, "\"" + UUID.randomUUID() + "\"", false));
 
         // Then
-        verify(manager).resolvePackagesForDeviceRequest(request);
-        assertThat(result).isEqualTo(expected);
+        verify(manager).resolvePackagesForDeviceRequestAsync(request, true);
+        assertThat(result.getStatusCode()).isEqualTo(HttpStatus.OK);
+        assertThat(result.getBody()).isEqualTo(expected);
+    }
+
+    @Test
+    public void resolveComponents_whenDeltaRequested_shouldOnlyReturnChangesFromInstalledPackages() {
+        // Given
+        final Package unchanged = Package.builder().reference("unchanged").version("1.0").build();
+        final Package upgraded = Package.builder().reference("upgraded").version("2.0").build();
+        final Package removed = Package.builder().reference("removed").version("1.0").build();
+        final DeviceRequest request = DeviceRequest.builder()
+                .userId(UUID.randomUUID().toString())
+                .unitId(UUID.randomUUID().toString())
+                .addPackage(unchanged)
+                .addPackage(Package.builder().reference("upgraded").version("1.0").build())
+                .addPackage(removed)
+                .build();
+        final String tag = UUID.randomUUID().toString();
+        doReturn(CompletableFuture.completedFuture(tag)).when(manager).getResolutionTagAsync(request);
+        doReturn(CompletableFuture.completedFuture(ResolvedPackages.builder().present(unchanged).present(upgraded).absent(removed).build()))
+                .when(manager).resolvePackagesForDeviceRequestAsync(request, true);
+
+        // When
+        final ResponseEntity<ResolvedPackages> result = getResult(resource.resolvePackages(request, null, null, true));
+
+        // Then
+        assertThat(result.getHeaders().getETag()).isEqualTo("\"" + tag + PackageResource.DELTA_ETAG_SUFFIX + "\"");
+        assertThat(result.getBody()).isEqualTo(ResolvedPackages.builder().present(upgraded).absent(removed).build());
+    }
+
+    @Test
+    public void resolveComponents_whenResolutionFails_shouldSetTheCauseAsErrorResult() {
+        // Given
+        final DeviceRequest request = getDeviceRequest();
+        final PackageResolutionUnavailableException failure = new PackageResolutionUnavailableException(
+                request.getUserId(), request.getUnitId(), "unavailable"
+        );
+        final CompletableFuture<ResolvedPackages> resolution = new CompletableFuture<>();
+        doReturn(CompletableFuture.completedFuture(UUID.randomUUID().toString())).when(manager).getResolutionTagAsync(request);
+        doReturn(resolution).when(manager).resolvePackagesForDeviceRequestAsync(request, true);
+
+        // When
+        final DeferredResult<ResponseEntity<ResolvedPackages>> result = resource.resolvePackages(request, null, null, false);
+        final boolean completedEarly = result.hasResult();
+        resolution.completeExceptionally(failure);
+
+        // Then
+        assertThat(completedEarly).isFalse();
+        assertThat(result.getResult()).isSameAs(failure);
+    }
+
+    @Test
+    public void resolvePackagesBatch_shouldPassTheRequestsToTheManager_andWriteOneResultPerLine() throws Exception {
+        // Given
+        final List<DeviceRequest> requests = Arrays.asList(getDeviceRequest(), getDeviceRequest());
+        final List<ResolvedPackages> expected = Arrays.asList(
+                ResolvedPackagesUtils.getResolvedPackages(),
+                ResolvedPackagesUtils.getResolvedPackages()
+        );
+        final Function<DeviceRequest, ResolvedPackages> resolver = request -> expected.get(requests.indexOf(request));
+        doReturn(resolver).when(manager).getBatchResolver(false, true);
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        // When
+        resource.streamBatch(toNdjson(requests), "max-age=0", false).writeTo(output);
+
+        // Then
+        verify(manager).getBatchResolver(false, true);
+        assertThat(new String(output.toByteArray(), StandardCharsets.UTF_8)).isEqualTo(
+                mapper.writeValueAsString(expected.get(0)) + "\n" + mapper.writeValueAsString(expected.get(1)) + "\n"
+        );
+    }
+
+    @Test
+    public void resolvePackagesBatch_shouldStreamToTheResponseWithItsOwnTimeoutAndExecutor() throws Exception {
+        // Given
+        final DeviceRequest request = getDeviceRequest();
+        final ResolvedPackages expected = ResolvedPackagesUtils.getResolvedPackages();
+        doReturn((Function<DeviceRequest, ResolvedPackages>) device -> expected).when(manager).getBatchResolver(false, true);
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // When
+        final WebAsyncTask<Void> task = resource.resolvePackages(toNdjson(Arrays.asList(request)), null, false, response);
+        task.getCallable().call();
+
+        // Then
+        assertThat(task.getTimeout()).isEqualTo(BATCH_TIMEOUT_MILLIS);
+        assertThat(task.getExecutor()).isSameAs(streamingRequestExecutor);
+        assertThat(response.getContentType()).isEqualTo(PackageResource.APPLICATION_NDJSON_VALUE);
+        assertThat(response.getContentAsString()).isEqualTo(mapper.writeValueAsString(expected) + "\n");
+    }
+
+    @Test
+    public void resolvePackagesBatch_whenDeltaRequested_shouldWriteChangesFromEachDevicePackages() throws Exception {
+        // Given
+        final DeviceRequest first = getDeviceRequest();
+        final DeviceRequest second = getDeviceRequest();
+        final ResolvedPackages firstResolved = ResolvedPackages.builder().presents(first.getPackages()).build();
+        final Package upgrade = Package.builder().reference(second.getPackages().get(0).getReference()).version("upgrade").build();
+        final ResolvedPackages secondResolved = ResolvedPackages.builder().present(upgrade).build();
+        final List<DeviceRequest> requests = Arrays.asList(first, second);
+        final Function<DeviceRequest, ResolvedPackages> resolver = request -> first.equals(request) ? firstResolved : secondResolved;
+        doReturn(resolver).when(manager).getBatchResolver(false, true);
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        // When
+        resource.streamBatch(toNdjson(requests), null, true).writeTo(output);
+
+        // Then
+        assertThat(new String(output.toByteArray(), StandardCharsets.UTF_8)).isEqualTo(
+                mapper.writeValueAsString(ResolvedPackages.builder().build()) + "\n"
+                        + mapper.writeValueAsString(secondResolved) + "\n"
+        );
+    }
+
+    @Test
+    public void resolvePackagesBatch_whenOneDeviceFails_shouldWriteAnErrorLineAndContinue() throws Exception {
+        // Given
+        final DeviceRequest failing = getDeviceRequest();
+        final DeviceRequest other = getDeviceRequest();
+        final ResolvedPackages resolved = ResolvedPackagesUtils.getResolvedPackages();
+        final List<DeviceRequest> requests = Arrays.asList(failing, other);
+        final Function<DeviceRequest, ResolvedPackages> resolver = request -> {
+            if (failing.equals(request)) {
+                throw new IllegalStateException("filter service unavailable");
+            }
+            return resolved;
+        };
+        doReturn(resolver).when(manager).getBatchResolver(false, true);
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        // When
+        resource.streamBatch(toNdjson(requests), null, false).writeTo(output);
+
+        // Then
+        assertThat(new String(output.toByteArray(), StandardCharsets.UTF_8)).isEqualTo(
+                mapper.writeValueAsString(ResolutionFailure.of(failing.getUnitId(), "filter service unavailable")) + "\n"
+                        + mapper.writeValueAsString(resolved) + "\n"
+        );
+    }
+
+    @Test
+    public void readDeviceRequests_whenJsonArray_shouldReturnEveryRequest() throws Exception {
+        // Given
+        final List<DeviceRequest> requests = Arrays.asList(getDeviceRequest(), getDeviceRequest());
+
+        // When
+        final List<DeviceRequest> result = resource.readDeviceRequests(
+                new ByteArrayInputStream(mapper.writeValueAsBytes(requests))
+        );
+
+        // Then
+        assertThat(result).containsExactlyElementsOf(requests);
+    }
+
+    @Test
+    public void readDeviceRequests_whenEmptyBody_shouldReturnNoRequest() {
+        // When
+        final List<DeviceRequest> result = resource.readDeviceRequests(new ByteArrayInputStream(new byte[0]));
+
+        // Then
+        assertThat(result).isEmpty();
+    }
+
+    @Test
+    public void readDeviceRequests_whenTooManyRequests_shouldThrowAnException() throws Exception {
+        // Given
+        final InputStream body = toNdjson(Arrays.asList(getDeviceRequest(), getDeviceRequest(), getDeviceRequest()));
+
+        // When / Then
+        assertThatExceptionOfType(DeviceRequestBatchTooLargeException.class)
+                .isThrownBy(() -> resource.readDeviceRequests(body));
+    }
+
+    @Test
+    public void readDeviceRequests_whenInvalidRequest_shouldThrowAnException() throws Exception {
+        // Given
+        final DeviceRequest invalid = DeviceRequest.builder().unitId("unit").build();
+        final InputStream body = toNdjson(Arrays.asList(getDeviceRequest(), invalid));
+
+        // When / Then
+        assertThatExceptionOfType(ConstraintViolationException.class)
+                .isThrownBy(() -> resource.readDeviceRequests(body))
+                .withMessageContaining("index 1");
+        verifyZeroInteractions(manager);
+    }
+
+    @Test
+    public void readDeviceRequests_whenMalformedBody_shouldThrowAnException() {
+        // Given
+        final InputStream body = new ByteArrayInputStream("{\"userId\": ".getBytes(StandardCharsets.UTF_8));
+
+        // When / Then
+        assertThatExceptionOfType(HttpMessageNotReadableException.class)
+                .isThrownBy(() -> resource.readDeviceRequests(body));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T getResult(DeferredResult<T> deferred) {
+        assertThat(deferred.hasResult()).isTrue();
+        return (T) deferred.getResult();
+    }
+
+    private InputStream toNdjson(List<DeviceRequest> requests) throws Exception {
+        final StringBuilder body = new StringBuilder();
+        for (DeviceRequest request : requests) {
+            body.append(mapper.writeValueAsString(request)).append('\n');
+        }
+        return new ByteArrayInputStream(body.toString().getBytes(StandardCharsets.UTF_8));
     }
 }
@@ -33,6 +33,7 @@ import io.barracks.deploymentservice.exception.UnknownDeploymentPlanException;
 import io.barracks.deploymentservice.model.DeploymentPlan;
 import io.barracks.deploymentservice.rest.BarracksResourceTest;
 import io.barracks.deploymentservice.rest.DeploymentPlanResource;
+import io.barracks.deploymentservice.rest.PackageResource;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -44,12 +45,21 @@ import org.springframework.data.domain.Pageable;
 import org.springframework.hateoas.PagedResources;
 import org.springframework.hateoas.Resource;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.restdocs.mockmvc.RestDocumentationRequestBuilders;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
 import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.test.web.servlet.result.MockMvcResultMatchers;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.context.request.async.WebAsyncTask;
 
+import javax.servlet.http.HttpServletResponse;
+import java.io.InputStream;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
@@ -61,6 +71,7 @@ import static org.mockito.Mockito.*;
 import static org.springframework.restdocs.mockmvc.MockMvcRestDocumentation.document;
 import static org.springframework.restdocs.payload.PayloadDocumentation.*;
 import static org.springframework.restdocs.request.RequestDocumentation.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
@@ -99,10 +110,10 @@ public class DeploymentPlanResourceConfigurationTest {
         objectMapper.enable(SerializationFeature.INDENT_OUTPUT);
         final String userId = "userId";
         final DeploymentPlan request = buildDeploymentPlanRequest();
-        when(deploymentPlanResource.publishDeploymentPlan(request, userId)).thenReturn(request);
+        when(deploymentPlanResource.publishDeploymentPlan(request, userId, false)).thenReturn(created(request));
 
         // When
-        final ResultActions result = mvc.perform(
+        final ResultActions result = performAsync(
                 RestDocumentationRequestBuilders.post("/owners/{userId}/plans", userId)
                         .accept(MediaType.APPLICATION_JSON)
                         .contentType(MediaType.APPLICATION_JSON)
@@ -126,7 +137,7 @@ public class DeploymentPlanResourceConfigurationTest {
                                 parameterWithName("userId").description("The unique identifier of the owner")
                         )
                 ));
-        verify(deploymentPlanResource).publishDeploymentPlan(request, userId);
+        verify(deploymentPlanResource).publishDeploymentPlan(request, userId, false);
     }
 
     @Test
@@ -149,6 +160,48 @@ public class DeploymentPlanResourceConfigurationTest {
         verifyZeroInteractions(deploymentPlanResource);
     }
 
+    @Test
+    public void publishDeploymentPlan_whenFullValidationIsRequested_shouldPassTheFlagToTheResource() throws Exception {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final DeploymentPlan request = buildDeploymentPlanRequest();
+        when(deploymentPlanResource.publishDeploymentPlan(request, userId, true)).thenReturn(created(request));
+
+        // When
+        final ResultActions result = performAsync(
+                post("/owners/{userId}/plans", userId)
+                        .param("fullValidation", "true")
+                        .accept(MediaType.APPLICATION_JSON)
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(request))
+        );
+
+        // Then
+        result.andExpect(status().isCreated());
+        verify(deploymentPlanResource).publishDeploymentPlan(request, userId, true);
+    }
+
+    @Test
+    public void dryRunDeploymentPlan_shouldCallResourceWithRequestBody() throws Exception {
+        // Given
+        final String userId = UUID.randomUUID().toString();
+        final String body = "{\"packageRef\":\"io.barracks.package\"}\n{\"unitId\":\"unit\"}\n";
+        doReturn(new WebAsyncTask<Void>(() -> null))
+                .when(deploymentPlanResource).dryRunDeploymentPlan(eq(userId), any(InputStream.class), any(HttpServletResponse.class));
+
+        // When
+        final ResultActions result = performAsync(
+                post("/owners/{userId}/plans/dryRun", userId)
+                        .accept(PackageResource.APPLICATION_NDJSON_VALUE)
+                        .contentType(PackageResource.APPLICATION_NDJSON_VALUE)
+                        .content(body)
+        );
+
+        // Then
+        result.andExpect(status().isOk());
+        verify(deploymentPlanResource).dryRunDeploymentPlan(eq(userId), any(InputStream.class), any(HttpServletResponse.class));
+    }
+
     @Test
     public void publishDeploymentPlan_shouldRequireADeploymentPlanParam() throws Exception {
         // When
@@ -385,4 +438,17 @@ public class DeploymentPlanResourceConfigurationTest {
         verify(deploymentPlanResource).getDeployedVersions(userId, packageRef, true);
         result.andExpect(status().isOk());
     }
+
+    private ResultActions performAsync(RequestBuilder requestBuilder) throws Exception {
+        final MvcResult started = mvc.perform(requestBuilder)
+                .andExpect(MockMvcResultMatchers.request().asyncStarted())
+                .andReturn();
+        return mvc.perform(asyncDispatch(started));
+    }
+
+    private static DeferredResult<ResponseEntity<DeploymentPlan>> created(DeploymentPlan deploymentPlan) {
+        final DeferredResult<ResponseEntity<DeploymentPlan>> result = new DeferredResult<>();
+        result.setResult(ResponseEntity.status(HttpStatus.CREATED).body(deploymentPlan));
+        return result;
+    }
 }
@@ -38,19 +38,33 @@ import org.springframework.boot.test.autoconfigure.restdocs.AutoConfigureRestDoc
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
 import org.springframework.core.io.Resource;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.restdocs.mockmvc.RestDocumentationRequestBuilders;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
 import org.springframework.test.web.servlet.ResultActions;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 import org.springframework.util.FileCopyUtils;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.context.request.async.WebAsyncTask;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.InputStream;
+import java.util.UUID;
 
 import static org.mockito.Mockito.*;
 import static org.springframework.restdocs.mockmvc.MockMvcRestDocumentation.document;
 import static org.springframework.restdocs.payload.PayloadDocumentation.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @RunWith(SpringRunner.class)
@@ -58,6 +72,7 @@ import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.
 @AutoConfigureRestDocs("build/generated-snippets/deployment/packages")
 public class PackageResourceConfigurationTest {
     private static final Endpoint RESOLVE_ENDPOINT = Endpoint.from(HttpMethod.POST, "/packages/resolve");
+    private static final Endpoint RESOLVE_BATCH_ENDPOINT = Endpoint.from(HttpMethod.POST, "/packages/resolve/batch");
     private static final String baseUrl = "https://not.barracks.io/";
     @Autowired
     private MockMvc mvc;
@@ -77,10 +92,10 @@ public class PackageResourceConfigurationTest {
         final Endpoint endpoint = RESOLVE_ENDPOINT;
         final DeviceRequest expectedRequest = mapper.readValue(request.getInputStream(), DeviceRequest.class);
         final ResolvedPackages response = ResolvedPackagesUtils.getResolvedPackages();
-        doReturn(response).when(resource).resolvePackages(expectedRequest);
+        doReturn(deferred(ResponseEntity.ok(response))).when(resource).resolvePackages(expectedRequest, null, null, false);
 
         // When
-        final ResultActions result = mvc.perform(RestDocumentationRequestBuilders
+        final ResultActions result = performAsync(RestDocumentationRequestBuilders
                 .request(
                         endpoint.getMethod(),
                         endpoint.withBase(baseUrl).getURI()
@@ -91,7 +106,7 @@ public class PackageResourceConfigurationTest {
         );
 
         // Then
-        verify(resource).resolvePackages(expectedRequest);
+        verify(resource).resolvePackages(expectedRequest, null, null, false);
         result.andExpect(status().isOk())
                 .andExpect(content().json(mapper.writeValueAsString(response)))
                 .andDo(document(
@@ -120,10 +135,10 @@ public class PackageResourceConfigurationTest {
         final Endpoint endpoint = RESOLVE_ENDPOINT;
         final DeviceRequest expectedRequest = mapper.readValue(request.getInputStream(), DeviceRequest.class);
         final ResolvedPackages response = ResolvedPackagesUtils.getResolvedPackages();
-        doReturn(response).when(resource).resolvePackages(expectedRequest);
+        doReturn(deferred(ResponseEntity.ok(response))).when(resource).resolvePackages(expectedRequest, null, null, false);
 
         // When
-        final ResultActions result = mvc.perform(MockMvcRequestBuilders
+        final ResultActions result = performAsync(MockMvcRequestBuilders
                 .request(
                         endpoint.getMethod(),
                         endpoint.withBase(baseUrl).getURI()
@@ -133,11 +148,88 @@ public class PackageResourceConfigurationTest {
         );
 
         // Then
-        verify(resource).resolvePackages(expectedRequest);
+        verify(resource).resolvePackages(expectedRequest, null, null, false);
         result.andExpect(status().isOk())
                 .andExpect(content().json(mapper.writeValueAsString(response)));
     }
 
+    @Test
+    public void postRequest_whenCacheControlHeader_shouldCallResourceWithHeader() throws Exception {
+        // Given
+        final Endpoint endpoint = RESOLVE_ENDPOINT;
+        final DeviceRequest expectedRequest = mapper.readValue(request.getInputStream(), DeviceRequest.class);
+        final ResolvedPackages response = ResolvedPackagesUtils.getResolvedPackages();
+        doReturn(deferred(ResponseEntity.ok(response))).when(resource).resolvePackages(expectedRequest, "no-cache", null, false);
+
+        // When
+        final ResultActions result = performAsync(MockMvcRequestBuilders
+                .request(
+                        endpoint.getMethod(),
+                        endpoint.withBase(baseUrl).getURI()
+                )
+                .header(HttpHeaders.CACHE_CONTROL, "no-cache")
+                .content(FileCopyUtils.copyToByteArray(request.getInputStream()))
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+        );
+
+        // Then
+        verify(resource).resolvePackages(expectedRequest, "no-cache", null, false);
+        result.andExpect(status().isOk())
+                .andExpect(content().json(mapper.writeValueAsString(response)));
+    }
+
+    @Test
+    public void postRequest_whenDeltaRequested_shouldCallResourceWithDelta() throws Exception {
+        // Given
+        final Endpoint endpoint = RESOLVE_ENDPOINT;
+        final DeviceRequest expectedRequest = mapper.readValue(request.getInputStream(), DeviceRequest.class);
+        final ResolvedPackages response = ResolvedPackagesUtils.getResolvedPackages();
+        doReturn(deferred(ResponseEntity.ok(response))).when(resource).resolvePackages(expectedRequest, null, null, true);
+
+        // When
+        final ResultActions result = performAsync(MockMvcRequestBuilders
+                .request(
+                        endpoint.getMethod(),
+                        endpoint.withBase(baseUrl).getURI()
+                )
+                .param("delta", "true")
+                .content(FileCopyUtils.copyToByteArray(request.getInputStream()))
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+        );
+
+        // Then
+        verify(resource).resolvePackages(expectedRequest, null, null, true);
+        result.andExpect(status().isOk())
+                .andExpect(content().json(mapper.writeValueAsString(response)));
+    }
+
+    @Test
+    public void postRequest_whenNotModified_shouldReturnEtagWithoutBody() throws Exception {
+        // Given
+        final Endpoint endpoint = RESOLVE_ENDPOINT;
+        final DeviceRequest expectedRequest = mapper.readValue(request.getInputStream(), DeviceRequest.class);
+        final String etag = "\"" + UUID.randomUUID().toString() + "\"";
+        doReturn(deferred(ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).build()))
+                .when(resource).resolvePackages(expectedRequest, null, etag, false);
+
+        // When
+        final ResultActions result = performAsync(MockMvcRequestBuilders
+                .request(
+                        endpoint.getMethod(),
+                        endpoint.withBase(baseUrl).getURI()
+                )
+                .header(HttpHeaders.IF_NONE_MATCH, etag)
+                .content(FileCopyUtils.copyToByteArray(request.getInputStream()))
+                .contentType(MediaType.APPLICATION_JSON_UTF8)
+        );
+
+        // Then
+        verify(resource).resolvePackages(expectedRequest, null, etag, false);
+        result.andExpect(status().isNotModified())
+                .andExpect(header().string(HttpHeaders.ETAG, etag))
+                .andExpect(content().string(""));
+    }
+
     @Test
     public void postRequest_whenInvalidRequest_shouldReturnBadRequest() throws Exception {
         // Given
@@ -176,4 +268,42 @@ public class PackageResourceConfigurationTest {
         verifyZeroInteractions(resource);
         result.andExpect(status().isUnprocessableEntity());
     }
+
+    @Test
+    public void postBatch_whenNdjson_shouldCallResourceWithBody() throws Exception {
+        // Given
+        final Endpoint endpoint = RESOLVE_BATCH_ENDPOINT;
+        final byte[] body = mapper.writeValueAsBytes(mapper.readValue(request.getInputStream(), DeviceRequest.class));
+
+        doReturn(new WebAsyncTask<Void>(() -> null))
+                .when(resource).resolvePackages(any(InputStream.class), isNull(String.class), eq(false), any(HttpServletResponse.class));
+
+        // When
+        final ResultActions result = performAsync(MockMvcRequestBuilders
+                .request(
+                        endpoint.getMethod(),
+                        endpoint.withBase(baseUrl).getURI()
+                )
+                .content(body)
+                .contentType(PackageResource.APPLICATION_NDJSON_VALUE)
+                .accept(PackageResource.APPLICATION_NDJSON_VALUE)
+        );
+
+        // Then
+        verify(resource).resolvePackages(any(InputStream.class), isNull(String.class), eq(false), any(HttpServletResponse.class));
+        result.andExpect(status().isOk());
+    }
+
+    private ResultActions performAsync(RequestBuilder requestBuilder) throws Exception {
+        final MvcResult started = mvc.perform(requestBuilder)
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        return mvc.perform(asyncDispatch(started));
+    }
+
+    private static <T> DeferredResult<T> deferred(T value) {
+        final DeferredResult<T> result = new DeferredResult<>();
+        result.setResult(value);
+        return result;
+    }
 }